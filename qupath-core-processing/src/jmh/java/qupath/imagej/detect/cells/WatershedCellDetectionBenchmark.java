@@ -0,0 +1,123 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.imagej.detect.cells;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.FloatProcessor;
+import qupath.imagej.detect.cells.WatershedCellDetection.WatershedCellDetector;
+import qupath.imagej.processing.ProcessorPool;
+import qupath.imagej.tools.IJTools;
+import qupath.lib.images.PathImage;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Throughput of watershed cell detection for a single tile of a synthetic nucleus image,
+ * with and without pooled scratch images.
+ * <p>
+ * The primary result is tiles per second, while the 'cells' counter gives cells per second.
+ * Run with {@code -prof gc} to compare the allocation rate and time spent in garbage collection.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2G"})
+@State(Scope.Thread)
+public class WatershedCellDetectionBenchmark {
+
+	@Param({"true", "false"})
+	public boolean pooled;
+
+	@Param({"1024"})
+	public int size;
+
+	private PathImage<ImagePlus> pathImage;
+	private FloatProcessor fpDetection;
+	private ProcessorPool unpooled = ProcessorPool.createUnpooled();
+
+	/**
+	 * Counts the cells detected, so that JMH reports cells per second alongside tiles per second.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class CellCounter {
+
+		public long cells;
+
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		var img = NucleusImages.createNucleusImage(size, size, new Random(100L));
+		var server = new WrappedBufferedImageServer("Nuclei", img);
+		pathImage = IJTools.convertToImagePlus(server, RegionRequest.createInstance(server));
+		fpDetection = pathImage.getImage().getProcessor().convertToFloatProcessor();
+	}
+
+	@Benchmark
+	public int detect(CellCounter counter) {
+		Map<String, FloatProcessor> channels = Collections.singletonMap("Channel 1", fpDetection);
+		var detector = new WatershedCellDetector(fpDetection, channels, channels, new Roi(0, 0, size, size), pathImage);
+		detector.setProcessorPool(pooled ? ProcessorPool.getThreadPool() : unpooled);
+		detector.runDetection(
+				8,		// background radius
+				Double.NEGATIVE_INFINITY, // max background
+				0,		// median radius
+				1.5,	// sigma
+				50,		// threshold
+				10,		// min area
+				400,	// max area
+				true,	// merge all
+				true,	// watershed post-process
+				false,	// exclude DAB
+				5,		// cell expansion
+				true,	// smooth boundaries
+				true,	// include nuclei
+				true,	// make measurements
+				0, 0);
+		int n = detector.getPathObjects().size();
+		counter.cells += n;
+		return n;
+	}
+
+}
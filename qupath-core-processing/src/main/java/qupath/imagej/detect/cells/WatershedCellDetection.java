@@ -56,6 +56,7 @@ import ij.process.ImageProcessor;
 import ij.process.ImageStatistics;
 import ij.process.ShortProcessor;
 import qupath.imagej.processing.MorphologicalReconstruction;
+import qupath.imagej.processing.ProcessorPool;
 import qupath.imagej.processing.RoiLabeling;
 import qupath.imagej.processing.SimpleThresholding;
 import qupath.imagej.processing.Watershed;
@@ -87,7 +88,6 @@ import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.regions.ImagePlane;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.PolygonROI;
-import qupath.lib.roi.ShapeSimplifier;
 import qupath.lib.roi.interfaces.ROI;
 
 /**
@@ -228,7 +228,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 					if (params.getChoiceParameterValue("detectionImageBrightfield").equals(IMAGE_OPTICAL_DENSITY))
 						fpDetection = IJTools.convertToOpticalDensitySum((ColorProcessor)ip, stains.getMaxRed(), stains.getMaxGreen(), stains.getMaxBlue());
 					else
-						fpDetection = (FloatProcessor)fps[0].duplicate();
+						fpDetection = (FloatProcessor)ProcessorPool.getThreadPool().duplicate("Detection", fps[0]);
 				}
 				
 				// Temporary test of the usefulness of RGB measurements...
@@ -555,6 +555,9 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 		
 		private PathImage<ImagePlus> pathImage = null;
 		
+		// Scratch images are taken from a pool, since otherwise every tile would allocate several new images
+		private ProcessorPool pool = null;
+		
 		public WatershedCellDetector(FloatProcessor fpDetection, Map<String, FloatProcessor> channels, Map<String, FloatProcessor> channelsCell, Roi roi, PathImage<ImagePlus> pathImage) {
 			this.fpDetection = fpDetection;
 			if (channels != null)
@@ -566,9 +569,20 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			Prefs.setThreads(1);
 		}
 		
+		/**
+		 * Set the pool used for scratch images. If this is null, the pool for the current thread is used.
+		 * @param pool
+		 */
+		void setProcessorPool(ProcessorPool pool) {
+			this.pool = pool;
+		}
 		
 		
 		public static ByteProcessor limitedOpeningByReconstruction(final ImageProcessor ip, final ImageProcessor ipBackground, final double radius, final double maxBackground) {
+			return limitedOpeningByReconstruction(ip, ipBackground, radius, maxBackground, ProcessorPool.createUnpooled());
+		}
+		
+		static ByteProcessor limitedOpeningByReconstruction(final ImageProcessor ip, final ImageProcessor ipBackground, final double radius, final double maxBackground, final ProcessorPool pool) {
 			// Apply (initial) morphological opening
 			final RankFilters rf = new RankFilters();
 			ipBackground.setRoi(ip.getRoi());
@@ -582,7 +596,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				for (int i = 0; i < w * h; i++) {
 					if (ipBackground.getf(i) > maxBackground) {
 						if (bpMask == null)
-							bpMask = new ByteProcessor(w, h);
+							bpMask = pool.getByteProcessor("Background mask", w, h);
 						bpMask.setf(i, 1f);
 					}
 				}
@@ -607,6 +621,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 		private void doDetection(boolean regenerateROIs) {
 			int width = fpDetection.getWidth();
 			int height = fpDetection.getHeight();
+			ProcessorPool pool = this.pool == null ? ProcessorPool.getThreadPool() : this.pool;
 //			Prefs.setThreads(1);
 			lastRunCompleted = false;
 			pathObjects.clear();
@@ -619,7 +634,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				
 				// Use Laplacian of Gaussian filtering followed by watershed transform to determine possible nucleus segments
 				// Result will be a dramatic over-segmentation...
-				FloatProcessor fpLoG = (FloatProcessor)fpDetection.duplicate();
+				FloatProcessor fpLoG = (FloatProcessor)pool.duplicate("LoG", fpDetection);
 
 				// Start off with a median filter to reduce texture, if necessary
 				RankFilters rf = new RankFilters();
@@ -631,7 +646,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 					// If we are avoiding DAB, set pixels away from potential nuclei to zero
 					FloatProcessor fpDAB = channels.get("DAB OD");
 					fpDAB.setRoi(roi);
-					ByteProcessor bpH = SimpleThresholding.greaterThanOrEqual(channels.get("Hematoxylin OD"), fpDAB);
+					ByteProcessor bpH = SimpleThresholding.greaterThanOrEqual(channels.get("Hematoxylin OD"), fpDAB, pool.getByteProcessor("Hematoxylin mask", width, height));
 					bpH.multiply(1.0/255.0);
 					rf.rank(bpH, 2.5, RankFilters.MEDIAN);
 					rf.rank(bpH, 2.5, RankFilters.MAX);
@@ -641,10 +656,10 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				
 				// Subtract background first, if needed
 				if (backgroundRadius > 0) {
-					ImageProcessor ipBackground = fpLoG.duplicate();
-					bpBackgroundMask = limitedOpeningByReconstruction(fpLoG, ipBackground, backgroundRadius, maxBackground);
+					ImageProcessor ipBackground = pool.duplicate("Background", fpLoG);
+					bpBackgroundMask = limitedOpeningByReconstruction(fpLoG, ipBackground, backgroundRadius, maxBackground, pool);
 					fpLoG.copyBits(ipBackground, 0, 0, Blitter.SUBTRACT);
-					ipToMeasure = fpLoG.duplicate();
+					ipToMeasure = pool.duplicate("Measure", fpLoG);
 				} else {
 					ipToMeasure = fpDetection;
 				}
@@ -654,7 +669,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				fpLoG.convolve(new float[]{0, -1, 0, -1, 4, -1, 0, -1, 0}, 3, 3);
 				
 				// Threshold the main LoG image
-				bpLoG = SimpleThresholding.thresholdAbove(fpLoG, 0f);
+				bpLoG = SimpleThresholding.thresholdAbove(fpLoG, 0f, pool.getByteProcessor("LoG mask", width, height));
 				// Need to set the threshold very slightly above zero for ImageJ
 				// TODO: DECIDE ON USING MY WATERSHED OR IMAGEJ'S....
 				fpLoG.setRoi(roi);
@@ -672,7 +687,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			} 
 			
 			if (bp == null)
-				bp = new ByteProcessor(width, height);	
+				bp = pool.getByteProcessor("Binary", width, height);
 			
 //			// TODO: Consider application of an automated threshold
 //			if (threshold < 0) {
@@ -734,10 +749,10 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			// The idea is that Gaussian smoothing tends to cause the boundaries of 'thin' nuclei to be overestimated;
 			// this uses a smaller filter to correct instances where the boundary has moved by just one pixel
 			if (refineBoundary && sigma > 1.5) {
-				FloatProcessor fpBoundaryCleanup = (FloatProcessor)fpDetection.duplicate();
+				FloatProcessor fpBoundaryCleanup = (FloatProcessor)pool.duplicate("Boundary", fpDetection);
 				fpBoundaryCleanup.blurGaussian(1);
 				fpBoundaryCleanup.convolve(new float[]{0, -1, 0, -1, 4, -1, 0, -1, 0}, 3, 3);
-				ByteProcessor bp2 = SimpleThresholding.thresholdAbove(fpBoundaryCleanup, 0f);
+				ByteProcessor bp2 = SimpleThresholding.thresholdAbove(fpBoundaryCleanup, 0f, pool.getByteProcessor("Boundary mask", width, height));
 				bp2.copyBits(bp, 0, 0, Blitter.MIN); // Remove everything not detected in bp
 				bp.filter(ByteProcessor.MIN);
 				bp.copyBits(bp2, 0, 0, Blitter.MAX);
@@ -770,7 +785,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 			
 			
 			// Label nuclei
-			ShortProcessor ipLabels = new ShortProcessor(width, height);
+			ShortProcessor ipLabels = pool.getShortProcessor("Labels", width, height);
 			RoiLabeling.labelROIs(ipLabels, roisNuclei);
 			
 			// Measure nuclei for all required channels
@@ -805,11 +820,8 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 					r = new PolygonRoi(r.getInterpolatedPolygon(Math.min(2, r.getNCoordinates()*0.1), false), Roi.POLYGON);
 				}
 				
-				PolygonROI pathROI = IJTools.convertToPolygonROI(r, cal, downsample, plane);
-				
-				if (smoothBoundaries) {
-					pathROI = ShapeSimplifier.simplifyPolygon(pathROI, downsampleSqrt/2);
-				}
+				// Store the outline compactly, since there can be a very large number of nuclei
+				PolygonROI pathROI = IJTools.convertToCompactPolygonROI(r, cal, downsample, smoothBoundaries ? downsampleSqrt/2 : 0, plane);
 				
 				// Create a new shared measurement list
 				MeasurementList measurementList = MeasurementListFactory.createMeasurementList(makeMeasurements ? 30 : 0, MeasurementList.MeasurementListType.FLOAT);
@@ -848,7 +860,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 				double cellExpansionThreshold = -cellExpansion;
 				
 				// Create cell ROIs
-				ImageProcessor ipLabelsCells = ipLabels.duplicate();
+				ImageProcessor ipLabelsCells = pool.duplicate("Cell labels", ipLabels);
 				Watershed.doWatershed(fpEDM, ipLabelsCells, cellExpansionThreshold, false);
 				PolygonRoi[] roisCells = RoiLabeling.labelsToFilledROIs(ipLabelsCells, roisNuclei.size());
 				
@@ -896,9 +908,7 @@ public class WatershedCellDetection extends AbstractTileableDetectionPlugin<Buff
 //						r = new PolygonRoi(r.getInterpolatedPolygon(Math.min(2, r.getNCoordinates()*0.1), false), Roi.POLYGON); // TODO: Check this smoothing - it can be troublesome, causing nuclei to be outside cells
 ////						r = smoothPolygonRoi(r);
 
-					PolygonROI pathROI = IJTools.convertToPolygonROI(r, cal, downsample, plane);
-					if (smoothBoundaries)
-						pathROI = ShapeSimplifier.simplifyPolygon(pathROI, downsampleSqrt/2.0);
+					PolygonROI pathROI = IJTools.convertToCompactPolygonROI(r, cal, downsample, smoothBoundaries ? downsampleSqrt/2.0 : 0, plane);
 
 					
 					MeasurementList measurementList = null;
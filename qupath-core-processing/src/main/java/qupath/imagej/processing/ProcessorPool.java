@@ -0,0 +1,200 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.imagej.processing;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Pool of scratch pixel buffers, used to avoid allocating new images for every tile when applying the same
+ * processing many times (e.g. during tiled cell detection).
+ * <p>
+ * Each buffer is identified by a key. Requesting a processor returns a new {@link ImageProcessor} that wraps the buffer
+ * for that key, which is reused whenever the requested size is unchanged. This means the contents of the processor
+ * remain valid only until the same key is requested again. Processors from a pool should therefore never be retained
+ * after processing is complete.
+ * <p>
+ * Buffers are softly referenced, so they may be reclaimed if memory is low. Pools are not thread-safe;
+ * {@link #getThreadPool()} provides a separate pool for each thread.
+ */
+public class ProcessorPool {
+
+	private static final ThreadLocal<ProcessorPool> THREAD_POOLS = ThreadLocal.withInitial(() -> new ProcessorPool(true));
+
+	private final boolean retainBuffers;
+
+	private final Map<String, SoftReference<float[]>> floatBuffers = new HashMap<>();
+	private final Map<String, SoftReference<short[]>> shortBuffers = new HashMap<>();
+	private final Map<String, SoftReference<byte[]>> byteBuffers = new HashMap<>();
+
+	private long nAllocated = 0;
+	private long nReused = 0;
+
+	private ProcessorPool(boolean retainBuffers) {
+		this.retainBuffers = retainBuffers;
+	}
+
+	/**
+	 * Get the pool for the current thread.
+	 * @return
+	 */
+	public static ProcessorPool getThreadPool() {
+		return THREAD_POOLS.get();
+	}
+
+	/**
+	 * Create a pool that never retains buffers, so that every request allocates a new image.
+	 * This behaves in the same way as creating images directly, and is mostly useful for comparison.
+	 * @return
+	 */
+	public static ProcessorPool createUnpooled() {
+		return new ProcessorPool(false);
+	}
+
+	/**
+	 * Get a float processor with the specified size. The initial pixel values are undefined.
+	 * @param key
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public FloatProcessor getFloatProcessor(String key, int width, int height) {
+		int n = width * height;
+		float[] pixels = getBuffer(floatBuffers, key, n);
+		if (pixels == null) {
+			pixels = new float[n];
+			putBuffer(floatBuffers, key, pixels);
+		}
+		return new FloatProcessor(width, height, pixels);
+	}
+
+	/**
+	 * Get a short processor with the specified size, with all pixels set to zero.
+	 * @param key
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public ShortProcessor getShortProcessor(String key, int width, int height) {
+		int n = width * height;
+		short[] pixels = getBuffer(shortBuffers, key, n);
+		if (pixels == null) {
+			pixels = new short[n];
+			putBuffer(shortBuffers, key, pixels);
+		} else
+			Arrays.fill(pixels, (short)0);
+		return new ShortProcessor(width, height, pixels, null);
+	}
+
+	/**
+	 * Get a byte processor with the specified size, with all pixels set to zero.
+	 * @param key
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public ByteProcessor getByteProcessor(String key, int width, int height) {
+		int n = width * height;
+		byte[] pixels = getBuffer(byteBuffers, key, n);
+		if (pixels == null) {
+			pixels = new byte[n];
+			putBuffer(byteBuffers, key, pixels);
+		} else
+			Arrays.fill(pixels, (byte)0);
+		return new ByteProcessor(width, height, pixels);
+	}
+
+	/**
+	 * Copy the pixels of a processor into a pooled processor of the same type.
+	 * This is the equivalent of {@link ImageProcessor#duplicate()}.
+	 * @param key
+	 * @param ip the processor to copy; this must be a {@link FloatProcessor}, {@link ShortProcessor} or {@link ByteProcessor}
+	 * @return
+	 */
+	public ImageProcessor duplicate(String key, ImageProcessor ip) {
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		ImageProcessor ip2;
+		if (ip instanceof FloatProcessor)
+			ip2 = getFloatProcessor(key, width, height);
+		else if (ip instanceof ShortProcessor)
+			ip2 = getShortProcessor(key, width, height);
+		else if (ip instanceof ByteProcessor)
+			ip2 = getByteProcessor(key, width, height);
+		else
+			throw new IllegalArgumentException("Unsupported processor " + ip);
+		System.arraycopy(ip.getPixels(), 0, ip2.getPixels(), 0, width * height);
+		ip2.resetMinAndMax();
+		return ip2;
+	}
+
+	/**
+	 * Remove all buffers from the pool.
+	 */
+	public void clear() {
+		floatBuffers.clear();
+		shortBuffers.clear();
+		byteBuffers.clear();
+	}
+
+	/**
+	 * Get the number of buffers that have been allocated by this pool.
+	 * @return
+	 */
+	public long getAllocatedCount() {
+		return nAllocated;
+	}
+
+	/**
+	 * Get the number of times an existing buffer has been reused by this pool.
+	 * @return
+	 */
+	public long getReusedCount() {
+		return nReused;
+	}
+
+	private <T> T getBuffer(Map<String, SoftReference<T>> buffers, String key, int length) {
+		var ref = buffers.get(key);
+		T buffer = ref == null ? null : ref.get();
+		// ImageJ requires the buffer length to match the image size exactly
+		if (buffer != null && Array.getLength(buffer) == length) {
+			nReused++;
+			return buffer;
+		}
+		nAllocated++;
+		return null;
+	}
+
+	private <T> void putBuffer(Map<String, SoftReference<T>> buffers, String key, T buffer) {
+		if (retainBuffers)
+			buffers.put(key, new SoftReference<>(buffer));
+	}
+
+}
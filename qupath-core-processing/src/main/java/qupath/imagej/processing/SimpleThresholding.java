@@ -54,12 +54,20 @@ public class SimpleThresholding {
 	 * @return
 	 */
 	public static ByteProcessor greaterThanOrEqual(ImageProcessor ip1, ImageProcessor ip2) {
-		ByteProcessor bp =  new ByteProcessor(ip1.getWidth(), ip1.getHeight());
+		return greaterThanOrEqual(ip1, ip2, new ByteProcessor(ip1.getWidth(), ip1.getHeight()));
+	}
+	
+	/**
+	 * Threshold pixels to find where ip1 &gt;= ip2, writing the result into an existing binary image.
+	 * @param ip1
+	 * @param ip2
+	 * @param bp output image, with the same size as ip1; all pixels are overwritten
+	 * @return bp
+	 */
+	public static ByteProcessor greaterThanOrEqual(ImageProcessor ip1, ImageProcessor ip2, ByteProcessor bp) {
 		byte[] bpPixels = (byte[])bp.getPixels();
-		for (int i = 0; i < bpPixels.length; i++) {
-			if (ip1.getf(i) >= ip2.getf(i))
-				bpPixels[i] = (byte)255;
-		}
+		for (int i = 0; i < bpPixels.length; i++)
+			bpPixels[i] = ip1.getf(i) >= ip2.getf(i) ? (byte)255 : 0;
 		return bp;
 	}
 	
@@ -134,12 +142,20 @@ public class SimpleThresholding {
 	 * @return
 	 */
 	public static ByteProcessor thresholdAbove(ImageProcessor ip, float threshold) {
-		ByteProcessor bp =  new ByteProcessor(ip.getWidth(), ip.getHeight());
+		return thresholdAbove(ip, threshold, new ByteProcessor(ip.getWidth(), ip.getHeight()));
+	}
+	
+	/**
+	 * Threshold pixels to find where ip &gt; threshold, writing the result into an existing binary image.
+	 * @param ip
+	 * @param threshold
+	 * @param bp output image, with the same size as ip; all pixels are overwritten
+	 * @return bp
+	 */
+	public static ByteProcessor thresholdAbove(ImageProcessor ip, float threshold, ByteProcessor bp) {
 		byte[] bpPixels = (byte[])bp.getPixels();
-		for (int i = 0; i < bpPixels.length; i++) {
-			if (ip.getf(i) > threshold)
-				bpPixels[i] = (byte)255;
-		}
+		for (int i = 0; i < bpPixels.length; i++)
+			bpPixels[i] = ip.getf(i) > threshold ? (byte)255 : 0;
 		return bp;
 	}
 	
@@ -90,6 +90,7 @@ import qupath.lib.roi.PolylineROI;
 import qupath.lib.roi.ROIs;
 import qupath.lib.roi.RectangleROI;
 import qupath.lib.roi.RoiTools;
+import qupath.lib.roi.ShapeSimplifier;
 import qupath.lib.roi.interfaces.ROI;
 
 /**
@@ -848,6 +849,27 @@ public class IJTools {
 		return ROIs.createPolygonROI(points, plane);
 	}
 
+	/**
+	 * Convert an ImageJ PolygonRoi to a QuPath PolygonROI with a compact representation, optionally simplifying the polygon.
+	 * <p>
+	 * This avoids creating an intermediate standard polygon, and is intended for large numbers of detections.
+	 * @param roi
+	 * @param cal
+	 * @param downsampleFactor
+	 * @param altitudeThreshold threshold used to simplify the polygon, or 0 if no simplification should be applied
+	 * @param plane
+	 * @return
+	 * @see ROIs#createCompactPolygonROI(List, ImagePlane)
+	 * @see ShapeSimplifier#simplifyPolygonPoints(List, double)
+	 */
+	public static PolygonROI convertToCompactPolygonROI(PolygonRoi roi, Calibration cal, double downsampleFactor, double altitudeThreshold, final ImagePlane plane) {
+		if (altitudeThreshold <= 0)
+			return ROIConverterIJ.convertToCompactPolygonROI(roi.getFloatPolygon(), cal, downsampleFactor, plane);
+		List<Point2> points = ROIConverterIJ.convertToPointsList(roi.getFloatPolygon(), cal, downsampleFactor);
+		ShapeSimplifier.simplifyPolygonPoints(points, altitudeThreshold);
+		return ROIs.createCompactPolygonROI(points, plane);
+	}
+
 	/**
 		 * Convert a QuPath ROI to an ImageJ Roi.
 		 * @param <T>
@@ -238,6 +238,18 @@ class ROIConverterIJ {
 		return convertToPointsList(polygon, x, y, downsampleFactor);
 	}
 
+	static PolygonROI convertToCompactPolygonROI(FloatPolygon polygon, Calibration cal, double downsampleFactor, ImagePlane plane) {
+		double xOrigin = cal == null ? 0 : cal.xOrigin;
+		double yOrigin = cal == null ? 0 : cal.yOrigin;
+		float[] x = new float[polygon.npoints];
+		float[] y = new float[polygon.npoints];
+		for (int i = 0; i < polygon.npoints; i++) {
+			x[i] = (float)convertLocationfromIJ(polygon.xpoints[i], xOrigin, downsampleFactor);
+			y[i] = (float)convertLocationfromIJ(polygon.ypoints[i], yOrigin, downsampleFactor);
+		}
+		return ROIs.createCompactPolygonROI(x, y, plane);
+	}
+
 	private static List<Point2> convertToPointsList(FloatPolygon polygon, double xOrigin, double yOrigin, double downsampleFactor) {
 		List<Point2> points = new ArrayList<>();
 		for (int i = 0; i < polygon.npoints; i++) {
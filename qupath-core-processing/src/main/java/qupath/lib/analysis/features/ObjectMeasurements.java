@@ -126,7 +126,7 @@ public class ObjectMeasurements {
 		 */
 		VARIANCE;
 		
-		private String getMeasurementName() {
+		String getMeasurementName() {
 			switch (this) {
 			case MAX:
 				return "Max";
@@ -403,8 +403,8 @@ public class ObjectMeasurements {
 	 * Measure all channels of an image for one individual object or cell.
 	 * All compartments are measured where possible (nucleus, cytoplasm, membrane and full cell).
 	 * <p>
-	 * Note: This implementation is likely to change in the future, to enable neighboring cells to be 
-	 * measured more efficiently.
+	 * Note: When measuring many objects, {@link #addIntensityMeasurements(ImageServer, Collection, double, Collection, Collection)} 
+	 * is much more efficient.
 	 * 
 	 * @param server the server containing the pixels (and channels) to be measured
 	 * @param pathObject the cell to measure (the {@link MeasurementList} will be updated)
@@ -459,6 +459,35 @@ public class ObjectMeasurements {
 		}
 	}
 	
+	/**
+	 * Measure all channels of an image for multiple objects or cells.
+	 * <p>
+	 * Rather than requesting pixels separately for each object, the image is read one tile at a time and 
+	 * all objects within a tile are measured in a single pass. Statistics for objects that span tiles are merged 
+	 * before the measurements are added. Tiles are processed in parallel.
+	 * <p>
+	 * Each pixel is assigned to only one object (and one nucleus), therefore results may differ from 
+	 * {@link #addIntensityMeasurements(ImageServer, PathObject, double, Collection, Collection)} 
+	 * where objects overlap or share boundary pixels - as touching cells often do, which affects their 'Cell' and 
+	 * 'Membrane' measurements. Results can also differ slightly if the downsample is not an integer, 
+	 * because the pixels sampled depend upon the tile.
+	 * 
+	 * @param server the server containing the pixels (and channels) to be measured
+	 * @param pathObjects the objects or cells to measure (the {@link MeasurementList} of each will be updated)
+	 * @param downsample resolution at which to request pixels
+	 * @param measurements requested measurements to make
+	 * @param compartments the cell compartments to measure; ignored for objects that are not cells
+	 * @throws IOException if the pixels for any tile could not be read; all objects outside the failed tiles are still measured
+	 */
+	public static void addIntensityMeasurements(
+			ImageServer<BufferedImage> server,
+			Collection<? extends PathObject> pathObjects,
+			double downsample,
+			Collection<Measurements> measurements,
+			Collection<Compartments> compartments) throws IOException {
+		new TiledIntensityMeasurements(server, downsample, measurements, compartments).measure(pathObjects);
+	}
+	
 	/**
 	 * Make cell measurements based on labelled images.
 	 * All compartments are measured where possible (nucleus, cytoplasm, membrane and full cell).
@@ -0,0 +1,525 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis.features;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ij.process.FloatProcessor;
+import qupath.imagej.tools.IJTools;
+import qupath.lib.analysis.features.ObjectMeasurements.Compartments;
+import qupath.lib.analysis.features.ObjectMeasurements.Measurements;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Make intensity measurements for many objects by streaming through an image one tile at a time.
+ * <p>
+ * For each tile, the objects it contains are drawn into labeled images (one for cells or other objects, one for nuclei).
+ * Statistics for every channel and compartment are then accumulated for all these objects in a single pass over the pixels.
+ * Tiles are padded by one pixel so that membrane pixels can be identified at tile boundaries, but each pixel is only
+ * counted for the tile that contains it. Partial statistics for objects that span several tiles are merged, and measurements
+ * are added as soon as all the tiles for an object are complete.
+ * <p>
+ * Each pixel is assigned to only one object, and one nucleus: whichever was drawn last. Where cells touch (as they usually do
+ * after cell expansion), pixels on the shared boundary may be filled by both cells. Measured separately, both cells
+ * would include these pixels; here only one does, and the other then has a membrane one pixel further in.
+ * The 'Cell' and 'Membrane' measurements of touching cells can therefore differ slightly from measuring each cell alone,
+ * as can 'Nucleus' and 'Cytoplasm' measurements where nuclei or cells overlap. Separate objects give the same results.
+ * <p>
+ * With a non-integer downsample, the pixels sampled depend upon the origin of each tile, so values can also differ
+ * slightly from measuring each object alone.
+ */
+class TiledIntensityMeasurements {
+
+	private final static Logger logger = LoggerFactory.getLogger(TiledIntensityMeasurements.class);
+
+	/**
+	 * Default width and height of each tile, in pixels at the requested downsample.
+	 */
+	private static final int DEFAULT_TILE_SIZE = 512;
+
+	// Compartment indices - CELL is also used for objects that are not cells
+	private static final int NUCLEUS = 0, CYTOPLASM = 1, MEMBRANE = 2, CELL = 3, N_COMPARTMENTS = 4;
+
+	private final ImageServer<BufferedImage> server;
+	private final double downsample;
+	private final int tileSize;
+	private final List<Measurements> measurements;
+	private final boolean[] compartments = new boolean[N_COMPARTMENTS];
+	private final boolean keepValues;
+	private final int nChannels;
+
+	// Measurement names for cells (by compartment, channel & measurement) and for other objects (by channel & measurement)
+	private final String[][][] cellNames;
+	private final String[][] objectNames;
+
+	TiledIntensityMeasurements(ImageServer<BufferedImage> server, double downsample,
+			Collection<Measurements> measurements, Collection<Compartments> compartments) {
+		this(server, downsample, measurements, compartments, DEFAULT_TILE_SIZE);
+	}
+
+	/**
+	 * Constructor with a specified tile size.
+	 * @param server
+	 * @param downsample
+	 * @param measurements
+	 * @param compartments
+	 * @param tileSize width and height of each tile, in pixels at the requested downsample
+	 */
+	TiledIntensityMeasurements(ImageServer<BufferedImage> server, double downsample,
+			Collection<Measurements> measurements, Collection<Compartments> compartments, int tileSize) {
+		if (tileSize <= 0)
+			throw new IllegalArgumentException("Tile size must be > 0, but was " + tileSize);
+		this.server = server;
+		this.downsample = downsample;
+		this.tileSize = tileSize;
+		this.measurements = new ArrayList<>(new LinkedHashSet<>(measurements));
+		this.compartments[NUCLEUS] = compartments.contains(Compartments.NUCLEUS);
+		this.compartments[CYTOPLASM] = compartments.contains(Compartments.CYTOPLASM);
+		this.compartments[MEMBRANE] = compartments.contains(Compartments.MEMBRANE);
+		this.compartments[CELL] = compartments.contains(Compartments.CELL);
+		// The median is the only measurement that can't be computed from running statistics
+		this.keepValues = this.measurements.contains(Measurements.MEDIAN);
+		this.nChannels = server.nChannels();
+
+		String[] compartmentNames = {"Nucleus", "Cytoplasm", "Membrane", "Cell"};
+		int nMeasurements = this.measurements.size();
+		cellNames = new String[N_COMPARTMENTS][nChannels][nMeasurements];
+		objectNames = new String[nChannels][nMeasurements];
+		for (int c = 0; c < nChannels; c++) {
+			String channelName = server.getChannel(c).getName();
+			for (int m = 0; m < nMeasurements; m++) {
+				String name = this.measurements.get(m).getMeasurementName();
+				objectNames[c][m] = channelName + ": " + name;
+				for (int k = 0; k < N_COMPARTMENTS; k++)
+					cellNames[k][c][m] = channelName.trim() + ": " + compartmentNames[k] + ": " + name;
+			}
+		}
+	}
+
+	/**
+	 * Measure all the objects, adding the results to their measurement lists.
+	 * <p>
+	 * If the pixels for a tile cannot be read, the objects in that tile are not measured but all other tiles 
+	 * are still processed - so that a single failure affects only nearby objects.
+	 * @param pathObjects
+	 * @throws IOException if pixels could not be read for any tile (after measuring all other objects), 
+	 *                     or the calling thread was interrupted before all tiles were measured
+	 */
+	void measure(Collection<? extends PathObject> pathObjects) throws IOException {
+		List<Tile> tiles = createTiles(pathObjects);
+		logger.debug("Measuring {} objects in {} tiles", pathObjects.size(), tiles.size());
+		// Tiles are measured in the common pool, whose threads aren't interrupted along with the caller
+		var caller = Thread.currentThread();
+		List<IOException> failures = Collections.synchronizedList(new ArrayList<>());
+		tiles.parallelStream().forEach(tile -> {
+			if (caller.isInterrupted())
+				return;
+			try {
+				measureTile(tile);
+			} catch (IOException e) {
+				logger.debug("Unable to read tile at ({}, {}): {}", tile.x, tile.y, e.getLocalizedMessage());
+				failures.add(e);
+				skipTile(tile);
+			}
+		});
+		if (caller.isInterrupted())
+			throw new InterruptedIOException("Intensity measurement interrupted");
+		if (!failures.isEmpty()) {
+			long nSkipped = tiles.stream().flatMap(t -> t.objects.stream()).filter(s -> s.skipped).distinct().count();
+			throw new IOException(String.format("Unable to read %d of %d tiles - %d objects have not been measured",
+					failures.size(), tiles.size(), nSkipped), failures.get(0));
+		}
+	}
+
+	/**
+	 * Discard the statistics for all objects in a tile that couldn't be read, so that no measurements are added for them.
+	 */
+	private static void skipTile(Tile tile) {
+		for (var state : tile.objects) {
+			synchronized (state) {
+				state.skipped = true;
+				state.stats = null;
+			}
+		}
+	}
+
+	/**
+	 * Assign objects to all the tiles that their bounding boxes intersect.
+	 * Objects that don't intersect the image are measured immediately, so that they receive NaN values.
+	 */
+	private List<Tile> createTiles(Collection<? extends PathObject> pathObjects) {
+		int step = Math.max(1, (int)Math.round(tileSize * downsample));
+		int width = server.getWidth();
+		int height = server.getHeight();
+		int nTilesX = (width + step - 1) / step;
+		Map<ImagePlane, Map<Integer, Tile>> tileMap = new LinkedHashMap<>();
+		List<ObjectState> outside = new ArrayList<>();
+		for (var pathObject : pathObjects) {
+			var roi = pathObject.getROI();
+			if (roi == null)
+				continue;
+			var state = new ObjectState(pathObject);
+			int tx1 = (int)Math.floor(Math.max(0, roi.getBoundsX()) / step);
+			int ty1 = (int)Math.floor(Math.max(0, roi.getBoundsY()) / step);
+			int tx2 = (int)Math.floor(Math.min(width-1, roi.getBoundsX() + roi.getBoundsWidth()) / step);
+			int ty2 = (int)Math.floor(Math.min(height-1, roi.getBoundsY() + roi.getBoundsHeight()) / step);
+			if (tx2 < tx1 || ty2 < ty1) {
+				outside.add(state);
+				continue;
+			}
+			var tilesForPlane = tileMap.computeIfAbsent(roi.getImagePlane(), p -> new LinkedHashMap<>());
+			for (int ty = ty1; ty <= ty2; ty++) {
+				for (int tx = tx1; tx <= tx2; tx++) {
+					int x = tx * step;
+					int y = ty * step;
+					var plane = roi.getImagePlane();
+					var tile = tilesForPlane.computeIfAbsent(ty * nTilesX + tx,
+							i -> new Tile(plane, x, y, Math.min(step, width - x), Math.min(step, height - y)));
+					tile.objects.add(state);
+					state.remainingTiles.incrementAndGet();
+				}
+			}
+		}
+		if (!outside.isEmpty()) {
+			logger.warn("{} objects are outside the image and cannot be measured", outside.size());
+			for (var state : outside)
+				addMeasurements(state, new StatsBlock(N_COMPARTMENTS * nChannels, false));
+		}
+		// Order tiles in rows, so that objects spanning tiles can usually be completed soon
+		List<Tile> tiles = new ArrayList<>();
+		for (var tilesForPlane : tileMap.values())
+			tiles.addAll(tilesForPlane.values());
+		tiles.sort(Comparator.comparingInt((Tile t) -> t.plane.getT())
+				.thenComparingInt(t -> t.plane.getZ())
+				.thenComparingInt(t -> t.y)
+				.thenComparingInt(t -> t.x));
+		return tiles;
+	}
+
+	private void measureTile(Tile tile) throws IOException {
+		// Pad by a pixel where possible, so that membranes can be identified consistently across tile boundaries
+		int pad = (int)Math.ceil(downsample);
+		int x = Math.max(0, tile.x - pad);
+		int y = Math.max(0, tile.y - pad);
+		int x2 = Math.min(server.getWidth(), tile.x + tile.width + pad);
+		int y2 = Math.min(server.getHeight(), tile.y + tile.height + pad);
+		var request = RegionRequest.createInstance(server.getPath(), downsample,
+				x, y, x2 - x, y2 - y, tile.plane.getZ(), tile.plane.getT());
+		var img = server.readBufferedImage(request);
+		int w = img.getWidth();
+		int h = img.getHeight();
+
+		// Draw labeled images, using the index of the object in the tile + 1 as the label
+		double xOrigin = -request.getX() / downsample;
+		double yOrigin = -request.getY() / downsample;
+		var objects = tile.objects;
+		int nObjects = objects.size();
+		var ipCells = new FloatProcessor(w, h);
+		FloatProcessor ipNuclei = null;
+		boolean[] isCell = new boolean[nObjects + 1];
+		for (int i = 0; i < nObjects; i++) {
+			var state = objects.get(i);
+			int label = i + 1;
+			ipCells.setValue(label);
+			ipCells.fill(IJTools.convertToIJRoi(state.pathObject.getROI(), xOrigin, yOrigin, downsample));
+			if (state.pathObject instanceof PathCellObject) {
+				isCell[label] = true;
+				var roiNucleus = ((PathCellObject)state.pathObject).getNucleusROI();
+				if (roiNucleus != null) {
+					if (ipNuclei == null)
+						ipNuclei = new FloatProcessor(w, h);
+					ipNuclei.setValue(label);
+					ipNuclei.fill(IJTools.convertToIJRoi(roiNucleus, xOrigin, yOrigin, downsample));
+				}
+			}
+		}
+
+		// Determine the pixels belonging to this tile (i.e. excluding the padding)
+		int cx1 = clip((int)Math.round((tile.x - request.getX()) / downsample), w);
+		int cy1 = clip((int)Math.round((tile.y - request.getY()) / downsample), h);
+		int cx2 = clip((int)Math.round((tile.x + tile.width - request.getX()) / downsample), w);
+		int cy2 = clip((int)Math.round((tile.y + tile.height - request.getY()) / downsample), h);
+
+		// Identify the compartment labels for each pixel once, then reuse them for every channel
+		float[] cellLabels = (float[])ipCells.getPixels();
+		float[] nucleusLabels = ipNuclei == null ? null : (float[])ipNuclei.getPixels();
+		int nPixels = (cx2 - cx1) * (cy2 - cy1);
+		int[] pixelIndex = new int[nPixels];
+		int[] pixelCell = new int[nPixels];
+		int[] pixelNucleus = new int[nPixels];
+		boolean[] pixelMembrane = new boolean[nPixels];
+		int n = 0;
+		for (int yy = cy1; yy < cy2; yy++) {
+			for (int xx = cx1; xx < cx2; xx++) {
+				int ind = yy * w + xx;
+				int cell = (int)cellLabels[ind];
+				int nucleus = nucleusLabels == null ? 0 : (int)nucleusLabels[ind];
+				if (cell == 0 && nucleus == 0)
+					continue;
+				pixelIndex[n] = ind;
+				pixelCell[n] = cell;
+				pixelNucleus[n] = nucleus;
+				// Check 4-neighbours to decide if we're at the membrane
+				pixelMembrane[n] = cell != 0 && (
+						(yy >= 1 && cellLabels[ind - w] != cell) ||
+						(yy < h-1 && cellLabels[ind + w] != cell) ||
+						(xx >= 1 && cellLabels[ind - 1] != cell) ||
+						(xx < w-1 && cellLabels[ind + 1] != cell));
+				n++;
+			}
+		}
+
+		// Accumulate statistics for all objects & channels
+		var stats = new StatsBlock((nObjects + 1) * N_COMPARTMENTS * nChannels, keepValues);
+		var raster = img.getRaster();
+		float[] pixels = new float[w * h];
+		for (int c = 0; c < nChannels; c++) {
+			pixels = raster.getSamples(0, 0, w, h, c, pixels);
+			for (int i = 0; i < n; i++) {
+				float val = pixels[pixelIndex[i]];
+				int cell = pixelCell[i];
+				int nucleus = pixelNucleus[i];
+				if (nucleus != 0 && compartments[NUCLEUS] && isCell[nucleus])
+					stats.add(index(nucleus, NUCLEUS, c), val);
+				if (cell == 0)
+					continue;
+				if (isCell[cell]) {
+					if (compartments[CELL])
+						stats.add(index(cell, CELL, c), val);
+					if (compartments[CYTOPLASM] && nucleus == 0)
+						stats.add(index(cell, CYTOPLASM, c), val);
+					if (compartments[MEMBRANE] && pixelMembrane[i])
+						stats.add(index(cell, MEMBRANE, c), val);
+				} else
+					stats.add(index(cell, CELL, c), val);
+			}
+		}
+
+		// Merge with results from other tiles, and add measurements for any objects that are now complete
+		for (int i = 0; i < nObjects; i++) {
+			var state = objects.get(i);
+			int offset = index(i + 1, 0, 0);
+			StatsBlock complete = null;
+			synchronized (state) {
+				if (state.skipped)
+					continue;
+				if (state.stats == null)
+					state.stats = new StatsBlock(N_COMPARTMENTS * nChannels, keepValues);
+				state.stats.merge(stats, offset);
+				if (state.remainingTiles.decrementAndGet() == 0) {
+					complete = state.stats;
+					state.stats = null;
+				}
+			}
+			if (complete != null)
+				addMeasurements(state, complete);
+		}
+	}
+
+	private int index(int label, int compartment, int channel) {
+		return (label * N_COMPARTMENTS + compartment) * nChannels + channel;
+	}
+
+	private static int clip(int val, int max) {
+		return Math.max(0, Math.min(val, max));
+	}
+
+	private void addMeasurements(ObjectState state, StatsBlock stats) {
+		var pathObject = state.pathObject;
+		int nMeasurements = measurements.size();
+		try (var ml = pathObject.getMeasurementList()) {
+			if (pathObject instanceof PathCellObject) {
+				for (int k = 0; k < N_COMPARTMENTS; k++) {
+					if (!compartments[k])
+						continue;
+					for (int c = 0; c < nChannels; c++) {
+						int ind = index(0, k, c);
+						for (int m = 0; m < nMeasurements; m++)
+							ml.putMeasurement(cellNames[k][c][m], stats.getMeasurement(ind, measurements.get(m)));
+					}
+				}
+			} else {
+				for (int c = 0; c < nChannels; c++) {
+					int ind = index(0, CELL, c);
+					for (int m = 0; m < nMeasurements; m++)
+						ml.putMeasurement(objectNames[c][m], stats.getMeasurement(ind, measurements.get(m)));
+				}
+			}
+		}
+	}
+
+
+	private static class Tile {
+
+		private final ImagePlane plane;
+		private final int x, y, width, height;
+		private final List<ObjectState> objects = new ArrayList<>();
+
+		private Tile(ImagePlane plane, int x, int y, int width, int height) {
+			this.plane = plane;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+		}
+
+	}
+
+
+	private static class ObjectState {
+
+		private final PathObject pathObject;
+		private final AtomicInteger remainingTiles = new AtomicInteger();
+		private StatsBlock stats;
+		private boolean skipped;
+
+		private ObjectState(PathObject pathObject) {
+			this.pathObject = pathObject;
+		}
+
+	}
+
+
+	/**
+	 * Running statistics for a block of values, stored in primitive arrays.
+	 * Mean and variance are updated using Welford's algorithm, so that partial results can be merged accurately.
+	 */
+	static class StatsBlock {
+
+		private final long[] n;
+		private final double[] mean, m2, min, max;
+		// Only needed for the median
+		private final float[][] values;
+
+		StatsBlock(int size, boolean keepValues) {
+			n = new long[size];
+			mean = new double[size];
+			m2 = new double[size];
+			min = new double[size];
+			max = new double[size];
+			Arrays.fill(min, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+			values = keepValues ? new float[size][] : null;
+		}
+
+		void add(int i, float val) {
+			long count = ++n[i];
+			double delta = val - mean[i];
+			mean[i] += delta / count;
+			m2[i] += delta * (val - mean[i]);
+			if (val < min[i])
+				min[i] = val;
+			if (val > max[i])
+				max[i] = val;
+			if (values != null) {
+				float[] arr = values[i];
+				if (arr == null)
+					arr = values[i] = new float[16];
+				else if (count > arr.length)
+					arr = values[i] = Arrays.copyOf(arr, arr.length * 2);
+				arr[(int)count - 1] = val;
+			}
+		}
+
+		/**
+		 * Merge statistics from another block, starting at the specified offset.
+		 * @param other
+		 * @param offset
+		 */
+		void merge(StatsBlock other, int offset) {
+			for (int i = 0; i < n.length; i++) {
+				int j = i + offset;
+				long n2 = other.n[j];
+				if (n2 == 0)
+					continue;
+				long n1 = n[i];
+				long count = n1 + n2;
+				double delta = other.mean[j] - mean[i];
+				mean[i] += delta * n2 / count;
+				m2[i] += other.m2[j] + delta * delta * n1 * n2 / count;
+				min[i] = Math.min(min[i], other.min[j]);
+				max[i] = Math.max(max[i], other.max[j]);
+				n[i] = count;
+				if (values != null) {
+					float[] arr = values[i] == null ? new float[(int)count] : Arrays.copyOf(values[i], (int)count);
+					System.arraycopy(other.values[j], 0, arr, (int)n1, (int)n2);
+					values[i] = arr;
+				}
+			}
+		}
+
+		double getMeasurement(int i, Measurements measurement) {
+			long count = n[i];
+			if (count == 0)
+				return Double.NaN;
+			switch (measurement) {
+			case MAX:
+				return max[i];
+			case MEAN:
+				return mean[i];
+			case MEDIAN:
+				if (values == null)
+					return Double.NaN;
+				double[] arr = new double[(int)count];
+				for (int k = 0; k < count; k++)
+					arr[k] = values[i][k];
+				return new Percentile().evaluate(arr, 50.0);
+			case MIN:
+				return min[i];
+			case STD_DEV:
+				return Math.sqrt(getVariance(i));
+			case VARIANCE:
+				return getVariance(i);
+			default:
+				throw new IllegalArgumentException("Unknown measurement " + measurement);
+			}
+		}
+
+		private double getVariance(int i) {
+			long count = n[i];
+			return count == 1 ? 0 : m2[i] / (count - 1);
+		}
+
+	}
+
+}
@@ -0,0 +1,71 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.imagej.detect.cells;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Synthetic nucleus images, shared by tests and benchmarks.
+ */
+class NucleusImages {
+
+	/**
+	 * Create an 8-bit image containing bright, elliptical nuclei on a noisy background.
+	 * Nuclei are placed on a jittered grid, so that some touch and need to be split.
+	 */
+	static BufferedImage createNucleusImage(int width, int height, Random random) {
+		float[] pixels = new float[width * height];
+		int spacing = 20;
+		for (int yc = spacing/2; yc < height; yc += spacing) {
+			for (int xc = spacing/2; xc < width; xc += spacing) {
+				double cx = xc + random.nextGaussian() * 3;
+				double cy = yc + random.nextGaussian() * 3;
+				double rx = 5 + random.nextDouble() * 4;
+				double ry = 5 + random.nextDouble() * 4;
+				double theta = random.nextDouble() * Math.PI;
+				double cos = Math.cos(theta), sin = Math.sin(theta);
+				double intensity = 120 + random.nextDouble() * 100;
+				int r = (int)Math.ceil(Math.max(rx, ry));
+				for (int y = Math.max(0, (int)cy - r); y <= Math.min(height-1, (int)cy + r); y++) {
+					for (int x = Math.max(0, (int)cx - r); x <= Math.min(width-1, (int)cx + r); x++) {
+						double dx = (x - cx) * cos + (y - cy) * sin;
+						double dy = -(x - cx) * sin + (y - cy) * cos;
+						if ((dx*dx)/(rx*rx) + (dy*dy)/(ry*ry) <= 1)
+							pixels[y*width + x] = (float)Math.max(pixels[y*width + x], intensity);
+					}
+				}
+			}
+		}
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		var raster = img.getRaster();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double val = 20 + pixels[y*width + x] + random.nextGaussian() * 8;
+				raster.setSample(x, y, 0, Math.max(0, Math.min(255, (int)Math.round(val))));
+			}
+		}
+		return img;
+	}
+
+}
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.imagej.detect.cells;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import ij.gui.Roi;
+import ij.process.FloatProcessor;
+import qupath.imagej.detect.cells.WatershedCellDetection.WatershedCellDetector;
+import qupath.imagej.processing.ProcessorPool;
+import qupath.imagej.tools.IJTools;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class TestWatershedCellDetection {
+
+	private static List<PathObject> detect(BufferedImage img, ProcessorPool pool) throws Exception {
+		var server = new WrappedBufferedImageServer("Nuclei", img);
+		var pathImage = IJTools.convertToImagePlus(server, RegionRequest.createInstance(server));
+		FloatProcessor fpDetection = pathImage.getImage().getProcessor().convertToFloatProcessor();
+		Map<String, FloatProcessor> channels = Collections.singletonMap("Channel 1", fpDetection);
+		var detector = new WatershedCellDetector(fpDetection, channels, channels, new Roi(0, 0, img.getWidth(), img.getHeight()), pathImage);
+		detector.setProcessorPool(pool);
+		detector.runDetection(
+				8,		// background radius
+				Double.NEGATIVE_INFINITY, // max background
+				0,		// median radius
+				1.5,	// sigma
+				50,		// threshold
+				10,		// min area
+				400,	// max area
+				true,	// merge all
+				true,	// watershed post-process
+				false,	// exclude DAB
+				5,		// cell expansion
+				true,	// smooth boundaries
+				true,	// include nuclei
+				true,	// make measurements
+				0, 0);
+		return detector.getPathObjects();
+	}
+
+	private static void assertSameDetections(List<PathObject> expected, List<PathObject> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			var p1 = expected.get(i);
+			var p2 = actual.get(i);
+			assertEquals(p1.getROI().getAllPoints(), p2.getROI().getAllPoints());
+			if (p1 instanceof PathCellObject)
+				assertEquals(((PathCellObject)p1).getNucleusROI().getAllPoints(), ((PathCellObject)p2).getNucleusROI().getAllPoints());
+			var names = p1.getMeasurementList().getMeasurementNames();
+			assertEquals(names, p2.getMeasurementList().getMeasurementNames());
+			double[] values1 = names.stream().mapToDouble(n -> p1.getMeasurementList().getMeasurementValue(n)).toArray();
+			double[] values2 = names.stream().mapToDouble(n -> p2.getMeasurementList().getMeasurementValue(n)).toArray();
+			assertArrayEquals(values1, values2);
+		}
+	}
+
+	@Test
+	public void test_pooledMatchesUnpooled() throws Exception {
+		var img = NucleusImages.createNucleusImage(256, 256, new Random(100L));
+		var expected = detect(img, ProcessorPool.createUnpooled());
+		assertTrue(expected.size() > 50);
+
+		// Run twice with the same pool, so that the second run reuses (dirty) scratch images
+		var pool = ProcessorPool.getThreadPool();
+		pool.clear();
+		assertSameDetections(expected, detect(img, pool));
+		assertSameDetections(expected, detect(img, pool));
+		assertTrue(pool.getReusedCount() > 0);
+
+		// Scratch images of a different size shouldn't affect the results either
+		detect(NucleusImages.createNucleusImage(200, 180, new Random(200L)), pool);
+		assertSameDetections(expected, detect(img, pool));
+	}
+
+}
@@ -0,0 +1,99 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.imagej.processing;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+@SuppressWarnings("javadoc")
+public class TestProcessorPool {
+
+	@Test
+	public void test_reuse() {
+		var pool = ProcessorPool.createUnpooled();
+		var fp = pool.getFloatProcessor("Float", 10, 20);
+		assertNotSame(fp.getPixels(), pool.getFloatProcessor("Float", 10, 20).getPixels());
+		assertEquals(2, pool.getAllocatedCount());
+		assertEquals(0, pool.getReusedCount());
+		
+		pool = ProcessorPool.getThreadPool();
+		pool.clear();
+		fp = pool.getFloatProcessor("Float", 10, 20);
+		assertSame(fp.getPixels(), pool.getFloatProcessor("Float", 10, 20).getPixels());
+		// Different keys and sizes need different buffers
+		assertNotSame(fp.getPixels(), pool.getFloatProcessor("Other", 10, 20).getPixels());
+		assertNotSame(fp.getPixels(), pool.getFloatProcessor("Float", 20, 20).getPixels());
+		assertEquals(20 * 20, ((float[])pool.getFloatProcessor("Float", 20, 20).getPixels()).length);
+		
+		// Integer images are cleared when reused
+		var bp = pool.getByteProcessor("Byte", 5, 5);
+		bp.set(2, 2, 255);
+		bp = pool.getByteProcessor("Byte", 5, 5);
+		assertEquals(0, bp.get(2, 2));
+		var sp = pool.getShortProcessor("Short", 5, 5);
+		sp.set(2, 2, 1000);
+		assertEquals(0, pool.getShortProcessor("Short", 5, 5).get(2, 2));
+		assertTrue(pool.getReusedCount() > 0);
+	}
+
+	@Test
+	public void test_duplicate() {
+		var pool = ProcessorPool.getThreadPool();
+		var fp = new FloatProcessor(4, 3, new float[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+		var fp2 = pool.duplicate("Float", fp);
+		assertTrue(fp2 instanceof FloatProcessor);
+		assertNotSame(fp.getPixels(), fp2.getPixels());
+		assertArrayEquals((float[])fp.getPixels(), (float[])fp2.getPixels());
+		
+		var sp = new ShortProcessor(2, 2, new short[] {1, 2, 3, 4}, null);
+		assertArrayEquals((short[])sp.getPixels(), (short[])pool.duplicate("Short", sp).getPixels());
+		
+		var bp = new ByteProcessor(2, 2, new byte[] {1, 2, 3, 4});
+		assertArrayEquals((byte[])bp.getPixels(), (byte[])pool.duplicate("Byte", bp).getPixels());
+		
+		assertThrows(IllegalArgumentException.class, () -> pool.duplicate("Color", new ColorProcessor(2, 2)));
+	}
+
+	@Test
+	public void test_threshold() {
+		var fp = new FloatProcessor(2, 2, new float[] {-1, 0, 1, 2});
+		var bp = new ByteProcessor(2, 2, new byte[] {1, 1, 1, 1});
+		assertSame(bp, SimpleThresholding.thresholdAbove(fp, 0.5f, bp));
+		assertArrayEquals((byte[])SimpleThresholding.thresholdAbove(fp, 0.5f).getPixels(), (byte[])bp.getPixels());
+		
+		var fp2 = new FloatProcessor(2, 2, new float[] {0, 0, 1, 3});
+		SimpleThresholding.greaterThanOrEqual(fp, fp2, bp);
+		assertArrayEquals((byte[])SimpleThresholding.greaterThanOrEqual(fp, fp2).getPixels(), (byte[])bp.getPixels());
+	}
+
+}
@@ -0,0 +1,268 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis.features;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.analysis.features.ObjectMeasurements.Compartments;
+import qupath.lib.analysis.features.ObjectMeasurements.Measurements;
+import qupath.lib.analysis.features.TiledIntensityMeasurements.StatsBlock;
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestTiledIntensityMeasurements {
+
+	/**
+	 * Create a 2-channel image, where values are either random or vary smoothly.
+	 */
+	private static ImageServer<BufferedImage> createServer(int width, int height, boolean smooth) {
+		var channels = Arrays.asList(
+				ImageChannel.getInstance("Channel 1", ImageChannel.getDefaultChannelColor(0)),
+				ImageChannel.getInstance("Channel 2", ImageChannel.getDefaultChannelColor(1)));
+		var colorModel = ColorModelFactory.createColorModel(PixelType.UINT16, channels);
+		var raster = colorModel.createCompatibleWritableRaster(width, height);
+		var random = new Random(100L);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (smooth) {
+					raster.setSample(x, y, 0, 1000 + x * 4 + y * 2);
+					raster.setSample(x, y, 1, 1000 + x - y);
+				} else {
+					raster.setSample(x, y, 0, random.nextInt(1000));
+					raster.setSample(x, y, 1, random.nextInt(50) + (x + y) % 7);
+				}
+			}
+		}
+		return new WrappedBufferedImageServer("Test", new BufferedImage(colorModel, raster, false, null), channels);
+	}
+
+	/**
+	 * Create separate (non-touching) cells on a grid, alternating with plain detections.
+	 * Each object is created twice, so that measurements can be compared.
+	 */
+	private static List<List<PathObject>> createObjects(int width, int height) {
+		var plane = ImagePlane.getDefaultPlane();
+		List<PathObject> objects1 = new ArrayList<>();
+		List<PathObject> objects2 = new ArrayList<>();
+		var random = new Random(200L);
+		int spacing = 30;
+		int count = 0;
+		for (int y = spacing; y < height - spacing; y += spacing) {
+			for (int x = spacing; x < width - spacing; x += spacing) {
+				double r = 6 + random.nextDouble() * 6;
+				double rNucleus = r / 2;
+				var roiCell = ROIs.createEllipseROI(x - r, y - r, r * 2, r * 1.7, plane);
+				var roiNucleus = ROIs.createEllipseROI(x - rNucleus, y - rNucleus, rNucleus * 2, rNucleus * 1.5, plane);
+				if (count++ % 3 == 0) {
+					objects1.add(PathObjects.createDetectionObject(roiCell));
+					objects2.add(PathObjects.createDetectionObject(roiCell));
+				} else {
+					objects1.add(PathObjects.createCellObject(roiCell, roiNucleus, null, null));
+					objects2.add(PathObjects.createCellObject(roiCell, roiNucleus, null, null));
+				}
+			}
+		}
+		return Arrays.asList(objects1, objects2);
+	}
+
+	private static void assertSameMeasurements(List<PathObject> expected, List<PathObject> actual, double tolerance) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			var ml1 = expected.get(i).getMeasurementList();
+			var ml2 = actual.get(i).getMeasurementList();
+			assertFalse(ml1.isEmpty());
+			assertEquals(ml1.getMeasurementNames(), ml2.getMeasurementNames());
+			for (String name : ml1.getMeasurementNames()) {
+				double v1 = ml1.getMeasurementValue(name);
+				double v2 = ml2.getMeasurementValue(name);
+				assertEquals(v1, v2, tolerance * Math.max(1, Math.abs(v1)), name);
+			}
+		}
+	}
+
+	@Test
+	public void test_matchesSingleObject() throws Exception {
+		var server = createServer(300, 250, false);
+		var objects = createObjects(server.getWidth(), server.getHeight());
+		var measurements = EnumSet.allOf(Measurements.class);
+		var compartments = EnumSet.allOf(Compartments.class);
+
+		for (var pathObject : objects.get(0))
+			ObjectMeasurements.addIntensityMeasurements(server, pathObject, 1.0, measurements, compartments);
+		// Use small tiles, so that most objects span several tiles
+		new TiledIntensityMeasurements(server, 1.0, measurements, compartments, 32).measure(objects.get(1));
+
+		assertSameMeasurements(objects.get(0), objects.get(1), 1e-9);
+		var cell = objects.get(1).stream().filter(p -> p instanceof PathCellObject).findFirst().get();
+		assertTrue(cell.getMeasurementList().containsNamedMeasurement("Channel 2: Membrane: Median"));
+		assertTrue(cell.getMeasurementList().getMeasurementValue("Channel 1: Cytoplasm: Variance") > 0);
+	}
+
+	@Test
+	public void test_tileSizeIndependent() throws Exception {
+		var server = createServer(300, 250, false);
+		var objects = createObjects(server.getWidth(), server.getHeight());
+		var measurements = EnumSet.of(Measurements.MEDIAN, Measurements.VARIANCE, Measurements.MAX);
+		var compartments = EnumSet.allOf(Compartments.class);
+
+		// The default tile size covers the whole image
+		ObjectMeasurements.addIntensityMeasurements(server, objects.get(0), 1.0, measurements, compartments);
+		new TiledIntensityMeasurements(server, 1.0, measurements, compartments, 17).measure(objects.get(1));
+
+		assertSameMeasurements(objects.get(0), objects.get(1), 1e-9);
+	}
+
+	@Test
+	public void test_nonIntegerDownsample() throws Exception {
+		double downsample = 1.5;
+		// With smoothly-varying pixels, a small shift in the pixels sampled only has a small effect
+		var server = createServer(300, 250, true);
+		var objects = createObjects(server.getWidth(), server.getHeight());
+		var measurements = EnumSet.of(Measurements.MEAN, Measurements.MEDIAN);
+		var compartments = EnumSet.of(Compartments.NUCLEUS, Compartments.CELL);
+
+		for (var pathObject : objects.get(0))
+			ObjectMeasurements.addIntensityMeasurements(server, pathObject, downsample, measurements, compartments);
+		new TiledIntensityMeasurements(server, downsample, measurements, compartments, 24).measure(objects.get(1));
+
+		// Values change by at most 6 per pixel, so sampling pixels shifted by up to one downsampled pixel 
+		// should change values by around 10 - much less than 5% of values that are all above 700, 
+		// but less than the difference between neighboring objects
+		assertSameMeasurements(objects.get(0), objects.get(1), 0.05);
+	}
+
+	@Test
+	public void test_unreadableTile() throws Exception {
+		var server = createServer(300, 250, false);
+		var objects = createObjects(server.getWidth(), server.getHeight());
+		var measurements = EnumSet.of(Measurements.MEAN, Measurements.MEDIAN);
+		var compartments = EnumSet.allOf(Compartments.class);
+
+		// Fail to read any pixels on the right of the image
+		int xFail = 200;
+		var img = server.readBufferedImage(RegionRequest.createInstance(server));
+		var failingServer = new WrappedBufferedImageServer("Failing", img, server.getMetadata().getChannels()) {
+			@Override
+			public BufferedImage readBufferedImage(RegionRequest request) throws IOException {
+				if (request.getMaxX() > xFail)
+					throw new IOException("Unable to read " + request);
+				return super.readBufferedImage(request);
+			}
+		};
+		int tileSize = 32;
+		new TiledIntensityMeasurements(server, 1.0, measurements, compartments, tileSize).measure(objects.get(0));
+		assertThrows(IOException.class, () -> new TiledIntensityMeasurements(failingServer, 1.0, measurements, compartments, tileSize).measure(objects.get(1)));
+
+		// Objects in tiles that could be read should still be measured, objects in tiles that failed should not
+		int nMeasured = 0;
+		int nSkipped = 0;
+		for (int i = 0; i < objects.get(0).size(); i++) {
+			var expected = objects.get(0).get(i);
+			var actual = objects.get(1).get(i);
+			var roi = actual.getROI();
+			// Tiles are padded by one pixel when they are read
+			int maxTileX = ((int)Math.floor((roi.getBoundsX() + roi.getBoundsWidth()) / tileSize) + 1) * tileSize + 1;
+			if (maxTileX <= xFail) {
+				assertSameMeasurements(List.of(expected), List.of(actual), 1e-9);
+				nMeasured++;
+			} else if (roi.getBoundsX() >= xFail) {
+				assertTrue(actual.getMeasurementList().isEmpty());
+				nSkipped++;
+			}
+		}
+		assertTrue(nMeasured > 0);
+		assertTrue(nSkipped > 0);
+	}
+
+	@Test
+	public void test_statsBlockMerge() {
+		var random = new Random(300L);
+		float[] values = new float[101];
+		for (int i = 0; i < values.length; i++)
+			values[i] = (float)(1000 + random.nextGaussian() * 10);
+		var expected = new DescriptiveStatistics();
+		for (float v : values)
+			expected.addValue(v);
+
+		// Split values between blocks, at different offsets, including an empty block
+		var merged = new StatsBlock(2, true);
+		int[] splits = {0, 1, 40, 40, 101};
+		for (int s = 0; s < splits.length - 1; s++) {
+			int offset = s % 2 == 0 ? 0 : 3;
+			var block = new StatsBlock(5, true);
+			for (int i = splits[s]; i < splits[s+1]; i++) {
+				block.add(offset + 1, values[i]);
+				// Values at other indices shouldn't be merged
+				block.add(offset == 0 ? 2 : 0, -1f);
+			}
+			merged.merge(block, offset);
+		}
+
+		double delta = 1e-6;
+		assertEquals(expected.getMean(), merged.getMeasurement(1, Measurements.MEAN), delta);
+		assertEquals(expected.getVariance(), merged.getMeasurement(1, Measurements.VARIANCE), delta);
+		assertEquals(expected.getStandardDeviation(), merged.getMeasurement(1, Measurements.STD_DEV), delta);
+		assertEquals(expected.getMin(), merged.getMeasurement(1, Measurements.MIN), 0.0);
+		assertEquals(expected.getMax(), merged.getMeasurement(1, Measurements.MAX), 0.0);
+		assertEquals(expected.getPercentile(50), merged.getMeasurement(1, Measurements.MEDIAN), 0.0);
+
+		// Merging should give the same result as adding all values to one block
+		var single = new StatsBlock(2, false);
+		for (float v : values)
+			single.add(1, v);
+		assertEquals(single.getMeasurement(1, Measurements.MEAN), merged.getMeasurement(1, Measurements.MEAN), delta);
+		assertEquals(single.getMeasurement(1, Measurements.VARIANCE), merged.getMeasurement(1, Measurements.VARIANCE), delta);
+		// The median needs all values to be retained
+		assertTrue(Double.isNaN(single.getMeasurement(1, Measurements.MEDIAN)));
+
+		// Empty entries give NaN, and single values have no variance
+		assertTrue(Double.isNaN(merged.getMeasurement(0, Measurements.MEAN)));
+		var one = new StatsBlock(1, false);
+		one.add(0, 5f);
+		assertEquals(0.0, one.getMeasurement(0, Measurements.VARIANCE), 0.0);
+	}
+
+}
@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Compare computing neighbors from a single Delaunay triangulation with tiled triangulation.
+ * <p>
+ * Detections are placed like cells on a jittered grid, within either one large tissue section or 
+ * several irregular fragments separated by large gaps (as for biopsies). 
+ * Tiles at the edge of each fragment then need large margins, which tests the fallback to a single triangulation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DelaunayToolsBenchmark {
+
+	@Param({"section", "fragments"})
+	public String layout;
+
+	@Param({"200000"})
+	public int nObjects;
+
+	private List<PathObject> detections;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(100L);
+		// Each fragment is an ellipse, given by its center, semi-axes & orientation
+		List<double[]> fragments = new ArrayList<>();
+		if ("fragments".equals(layout)) {
+			for (int f = 0; f < 8; f++) {
+				double length = 2000 + random.nextDouble() * 6000;
+				double width = 800 + random.nextDouble() * 1200;
+				double cx = 5000 + (f % 4) * 12000 + random.nextDouble() * 3000;
+				double cy = 5000 + (f / 4) * 15000 + random.nextDouble() * 3000;
+				fragments.add(new double[] {cx, cy, length / 2, width / 2, random.nextDouble() * Math.PI});
+			}
+		} else
+			fragments.add(new double[] {0, 0, 12000, 9000, 0.3});
+
+		// Choose the spacing to give approximately the requested number of objects
+		double area = fragments.stream().mapToDouble(f -> Math.PI * f[2] * f[3]).sum();
+		double spacing = Math.sqrt(area / nObjects);
+		double radius = spacing / 4;
+		var plane = ImagePlane.getDefaultPlane();
+		detections = new ArrayList<>();
+		for (var f : fragments) {
+			double cos = Math.cos(f[4]);
+			double sin = Math.sin(f[4]);
+			for (double u = -f[2]; u <= f[2]; u += spacing) {
+				for (double v = -f[3]; v <= f[3]; v += spacing) {
+					// Use an irregular boundary
+					double edge = 0.85 + 0.15 * Math.sin(7 * Math.atan2(v / f[3], u / f[2]) + f[0]);
+					if ((u * u) / (f[2] * f[2]) + (v * v) / (f[3] * f[3]) > edge * edge)
+						continue;
+					double uu = u + (random.nextDouble() - 0.5) * spacing * 0.6;
+					double vv = v + (random.nextDouble() - 0.5) * spacing * 0.6;
+					double x = f[0] + uu * cos - vv * sin;
+					double y = f[1] + uu * sin + vv * cos;
+					detections.add(PathObjects.createDetectionObject(ROIs.createEllipseROI(x - radius, y - radius, radius * 2, radius * 2, plane)));
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	public NeighborGraph single() {
+		return DelaunayTools.newBuilder(detections).centroids().tiled(false).build().getNeighborGraph();
+	}
+
+	@Benchmark
+	public NeighborGraph tiled() {
+		return DelaunayTools.newBuilder(detections).centroids().tiled(true).build().getNeighborGraph();
+	}
+
+}
@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compare reading and writing channels one sample at a time (as the unmixing commands used to)
+ * with bulk access through {@link Raster} and through {@link ChannelPlanes}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ChannelPlanesBenchmark {
+
+	@Param({"ushort-interleaved", "float-banded"})
+	public String layout;
+
+	@Param({"1024"})
+	public int size;
+
+	private static final int N_BANDS = 43;
+	private static final int[] CHANNELS = {13, 14, 15, 16};
+
+	private WritableRaster raster;
+	private float[] buffer;
+
+	@Setup
+	public void setup() {
+		SampleModel model;
+		if ("float-banded".equals(layout))
+			model = new BandedSampleModel(DataBuffer.TYPE_FLOAT, size, size, N_BANDS);
+		else {
+			int[] offsets = new int[N_BANDS];
+			for (int b = 0; b < N_BANDS; b++)
+				offsets[b] = b;
+			model = new PixelInterleavedSampleModel(DataBuffer.TYPE_USHORT, size, size, N_BANDS, size * N_BANDS, offsets);
+		}
+		raster = Raster.createWritableRaster(model, null);
+		Random random = new Random(100L);
+		for (int c : CHANNELS) {
+			for (int y = 0; y < size; y++) {
+				for (int x = 0; x < size; x++)
+					raster.setSample(x, y, c, random.nextInt(4096));
+			}
+		}
+		buffer = new float[size * size];
+	}
+
+	@Benchmark
+	public void readPerPixel(Blackhole bh) {
+		// Column-major, one sample at a time
+		double sum = 0;
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; y < size; y++) {
+				for (int c : CHANNELS)
+					sum += raster.getSample(x, y, c);
+			}
+		}
+		bh.consume(sum);
+	}
+
+	@Benchmark
+	public void readRasterSamples(Blackhole bh) {
+		for (int c : CHANNELS)
+			bh.consume(raster.getSamples(0, 0, size, size, c, buffer));
+	}
+
+	@Benchmark
+	public void readChannelPlanes(Blackhole bh) {
+		for (int c : CHANNELS)
+			bh.consume(ChannelPlanes.getSamples(raster, c, buffer));
+	}
+
+	@Benchmark
+	public void writePerPixel() {
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; y < size; y++) {
+				for (int c : CHANNELS)
+					raster.setSample(x, y, c, buffer[y * size + x]);
+			}
+		}
+	}
+
+	@Benchmark
+	public void writeChannelPlanes() {
+		for (int c : CHANNELS)
+			ChannelPlanes.setSamples(raster, c, buffer);
+	}
+
+}
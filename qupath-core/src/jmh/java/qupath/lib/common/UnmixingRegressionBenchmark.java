@@ -0,0 +1,125 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.common;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare the throughput of per-pixel regression using {@link Unmixing#completeManualRegression(ArrayList, double[][], ArrayList, ArrayList)}
+ * with {@link UnmixingSolver}, for the same pixels.
+ * <p>
+ * Results are reported as time per pixel, so that the speed-up can be read directly from the ratio of the two scores.
+ * That both methods give the same unmixed values is checked by {@code TestUnmixingSolver}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UnmixingRegressionBenchmark {
+
+	@Param({"DAPI", "Opal480", "Opal690"})
+	public String fluorophoreName;
+
+	private static final int N_PIXELS = 65536;
+
+	private Fluorophore fluorophore;
+	private double[][] proportionArray;
+	private UnmixingSolver solver;
+	private float[][] planes;
+	private float[] output;
+
+	@Setup
+	public void setup() {
+		fluorophore = Fluorophore.getCrossedFluorophores().stream()
+				.filter(f -> f.getName().equals(fluorophoreName))
+				.findFirst()
+				.orElseThrow();
+
+		Random random = new Random(100L);
+		proportionArray = new double[7][43];
+		for (int f = 0; f < proportionArray.length; f++) {
+			for (int c = 0; c < proportionArray[f].length; c++)
+				proportionArray[f][c] = 0.1 + random.nextDouble();
+		}
+		int n = fluorophore.nChannels();
+		planes = new float[n][N_PIXELS];
+		for (int i = 0; i < n; i++) {
+			for (int p = 0; p < N_PIXELS; p++)
+				planes[i][p] = random.nextInt(4096);
+		}
+		output = new float[N_PIXELS];
+		solver = UnmixingSolver.create(proportionArray, fluorophore);
+	}
+
+	/**
+	 * Unmix in the same way as the original implementation, solving the regression separately for every pixel.
+	 */
+	private void regression(float[] result) {
+		var channels = fluorophore.getChannelList();
+		var filters = fluorophore.getFilterList();
+		int n = channels.size();
+		double[] intensities = new double[n];
+		var pixelIntensity = new ArrayList<Double>();
+		for (int p = 0; p < N_PIXELS; p++) {
+			pixelIntensity.clear();
+			for (int i = 0; i < n; i++) {
+				intensities[i] = planes[i][p];
+				pixelIntensity.add(intensities[i]);
+			}
+			double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, filters, channels);
+			result[p] = (float)fluorophore.subtractCrossTalk(intensities, beta, proportionArray);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N_PIXELS)
+	public float[] perPixelRegression() {
+		regression(output);
+		return output;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N_PIXELS)
+	public float[] unmixingSolver() {
+		solver.unmix(planes, output);
+		return output;
+	}
+
+}
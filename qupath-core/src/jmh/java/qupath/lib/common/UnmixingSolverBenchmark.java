@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.common.UnmixingSolver.Method;
+
+/**
+ * Compare the throughput of clamped and non-negative least squares unmixing.
+ * <p>
+ * Pixels are simulated from known non-negative coefficients plus noise, so that some pixels have negative
+ * unconstrained coefficients. The accuracy of both methods is checked by {@code TestUnmixingSolver}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UnmixingSolverBenchmark {
+
+	@Param({"DAPI", "Opal480"})
+	public String fluorophoreName;
+
+	@Param({"0.0", "0.2"})
+	public double noise;
+
+	@Param({"262144"})
+	public int nPixels;
+
+	private UnmixingSolver clamped;
+	private UnmixingSolver nnls;
+	private float[][] planes;
+	private float[] output;
+
+	@Setup
+	public void setup() {
+		var fluorophore = Fluorophore.getCrossedFluorophores().stream()
+				.filter(f -> f.getName().equals(fluorophoreName))
+				.findFirst()
+				.orElseThrow();
+
+		Random random = new Random(100L);
+		double[][] proportionArray = new double[7][43];
+		for (int f = 0; f < proportionArray.length; f++) {
+			for (int c = 0; c < proportionArray[f].length; c++)
+				proportionArray[f][c] = 0.1 + random.nextDouble();
+		}
+
+		int[] channels = fluorophore.getChannels();
+		int[] filters = fluorophore.getFilters();
+		int n = channels.length;
+		planes = new float[n][nPixels];
+		double[] b = new double[filters.length];
+		for (int p = 0; p < nPixels; p++) {
+			// Sparse abundances, so that the non-negativity constraint matters
+			for (int j = 0; j < filters.length; j++)
+				b[j] = random.nextDouble() < 0.5 ? 0 : random.nextInt(1000);
+			for (int i = 0; i < n; i++) {
+				double x = 0;
+				for (int j = 0; j < filters.length; j++)
+					x += proportionArray[filters[j]][channels[i]] * b[j];
+				planes[i][p] = (float)Math.max(0, x * (1 + noise * random.nextGaussian()));
+			}
+		}
+		output = new float[nPixels];
+
+		clamped = UnmixingSolver.create(proportionArray, fluorophore, Method.CLAMPED);
+		nnls = UnmixingSolver.create(proportionArray, fluorophore, Method.NNLS);
+	}
+
+	@Benchmark
+	public float[] unmixClamped() {
+		clamped.unmix(planes, output);
+		return output;
+	}
+
+	@Benchmark
+	public float[] unmixNNLS() {
+		nnls.unmix(planes, output);
+		return output;
+	}
+
+}
@@ -21,11 +21,9 @@
 
 package qupath.lib.analysis;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -180,6 +178,11 @@ public class DelaunayTools {
 	 */
 	public static class Builder {
 		
+		/**
+		 * Minimum number of centroids for which tiled triangulation is used, unless specified otherwise.
+		 */
+		private static final int MIN_TILED_CENTROIDS = 100_000;
+		
 		private static enum ExtractorType {CUSTOM, CENTROIDS, ROI}
 		
 		private ExtractorType extractorType = ExtractorType.CENTROIDS;
@@ -190,6 +193,11 @@ public class DelaunayTools {
 		
 		private double erosion = 1.0;
 		
+		// Null if tiled triangulation should be chosen automatically
+		private Boolean tiled = null;
+		private int tilePoints = TiledDelaunayTriangulation.DEFAULT_TILE_POINTS;
+		private int maxMarginTiles = TiledDelaunayTriangulation.DEFAULT_MAX_MARGIN_TILES;
+		
 		private ImagePlane plane = ImagePlane.getDefaultPlane();
 		private Collection<PathObject> pathObjects = new ArrayList<>();
 		
@@ -274,6 +282,37 @@ public class DelaunayTools {
 			return this;
 		}
 		
+		/**
+		 * Specify whether neighbors should be computed by triangulating overlapping tiles in parallel, rather than 
+		 * creating a single triangulation. This is much faster for large numbers of objects.
+		 * <p>
+		 * Neighbors and clusters are then computed without creating a full triangulation. 
+		 * Voronoi faces are still available, but the full triangulation is created when they are first requested.
+		 * If the objects are too unevenly distributed for tiling to help (e.g. in separate fragments with large gaps between them), 
+		 * a single triangulation is used instead.
+		 * <p>
+		 * If this is not specified, tiled triangulation is used for subdivisions created from at least 100,000 centroids.
+		 * @param tiled if true, use tiled triangulation
+		 * @return this builder
+		 */
+		public Builder tiled(boolean tiled) {
+			this.tiled = tiled;
+			return this;
+		}
+		
+		/**
+		 * Use tiled triangulation with the specified tile size and maximum margin.
+		 * @param tilePoints approximate number of coordinates in each tile, excluding the margin
+		 * @param maxMarginTiles maximum margin around each tile, as a multiple of the tile size
+		 * @return this builder
+		 */
+		Builder tiled(int tilePoints, int maxMarginTiles) {
+			this.tiled = true;
+			this.tilePoints = tilePoints;
+			this.maxMarginTiles = maxMarginTiles;
+			return this;
+		}
+		
 		/**
 		 * Build the {@link Subdivision} with the current parameters.
 		 * @return
@@ -308,7 +347,10 @@ public class DelaunayTools {
 			}
 			
 			double tolerance = cal.getAveragedPixelSize().doubleValue() / 1000.0;
-			return new Subdivision(createSubdivision(coords.keySet(), tolerance), pathObjects, coords, plane);
+			boolean useTiles = tiled == null ? extractorType == ExtractorType.CENTROIDS && coords.size() >= MIN_TILED_CENTROIDS : tiled;
+			if (useTiles)
+				return new Subdivision(null, pathObjects, coords, plane, tolerance, tilePoints, maxMarginTiles);
+			return new Subdivision(createSubdivision(coords.keySet(), tolerance), pathObjects, coords, plane, tolerance);
 		}
 		
 	}
@@ -325,6 +367,7 @@ public class DelaunayTools {
 	 * @return a new {@link Subdivision} computed from the centroids of the provided objects
 	 * 
 	 * @see #createFromGeometryCoordinates(Collection, boolean, double)
+	 * @see Builder#tiled(boolean)
 	 */
 	public static Subdivision createFromCentroids(Collection<PathObject> pathObjects, boolean preferNucleusROI) {
 		
@@ -349,7 +392,7 @@ public class DelaunayTools {
 			var coord = new Coordinate(x, y);
 			coords.put(coord, pathObject);
 		}
-		return new Subdivision(createSubdivision(coords.keySet(), 0.01), pathObjects, coords, plane);
+		return new Subdivision(createSubdivision(coords.keySet(), 0.01), pathObjects, coords, plane, 0.01);
 	}
 	
 	/**
@@ -402,7 +445,7 @@ public class DelaunayTools {
 		
 		// Attempts to call VoronoiDiagramBuilder would sometimes fail when clipping to the envelope - 
 		// Because we do our own clipping anyway, we skip that step by requesting the diagram via the subdivision instead
-		return new Subdivision(createSubdivision(coords.keySet(), 0.001), pathObjects, coords, plane);
+		return new Subdivision(createSubdivision(coords.keySet(), 0.001), pathObjects, coords, plane, 0.001);
 	}
 	
 	
@@ -585,15 +628,31 @@ public class DelaunayTools {
 		private Map<Coordinate, PathObject> coordinateMap = new HashMap<>();
 		private Map<PathObject, List<Coordinate>> objectCoordinateMap = new HashMap<>();
 		private QuadEdgeSubdivision subdivision;
+		private double tolerance;
+		private int tilePoints;
+		private int maxMarginTiles;
 		
 		private ImagePlane plane;
 		
+		private transient NeighborGraph neighborGraph;
 		private transient Map<PathObject, List<PathObject>> neighbors;
 		private transient Map<PathObject, Geometry> voronoiFaces;
 		
 		
-		private Subdivision(QuadEdgeSubdivision subdivision, Collection<PathObject> pathObjects, Map<Coordinate, PathObject> coordinateMap, ImagePlane plane) {
+		private Subdivision(QuadEdgeSubdivision subdivision, Collection<PathObject> pathObjects, Map<Coordinate, PathObject> coordinateMap, ImagePlane plane, double tolerance) {
+			this(subdivision, pathObjects, coordinateMap, plane, tolerance, 
+					TiledDelaunayTriangulation.DEFAULT_TILE_POINTS, TiledDelaunayTriangulation.DEFAULT_MAX_MARGIN_TILES);
+		}
+		
+		/**
+		 * If the subdivision is null, neighbors are computed by tiled triangulation and the subdivision is only created if needed.
+		 */
+		private Subdivision(QuadEdgeSubdivision subdivision, Collection<PathObject> pathObjects, Map<Coordinate, PathObject> coordinateMap, ImagePlane plane, double tolerance,
+				int tilePoints, int maxMarginTiles) {
 			this.subdivision = subdivision;
+			this.tolerance = tolerance;
+			this.tilePoints = tilePoints;
+			this.maxMarginTiles = maxMarginTiles;
 			this.plane = plane;
 			this.pathObjects.addAll(pathObjects);
 			this.coordinateMap.putAll(coordinateMap);
@@ -610,6 +669,29 @@ public class DelaunayTools {
 			return plane;
 		}
 		
+		private synchronized QuadEdgeSubdivision getQuadEdgeSubdivision() {
+			if (subdivision == null) {
+				logger.debug("Creating full subdivision for {} objects", getPathObjects().size());
+				subdivision = createSubdivision(coordinateMap.keySet(), tolerance);
+			}
+			return subdivision;
+		}
+		
+		/**
+		 * Get a compact graph containing the neighbors of all objects.
+		 * This is more efficient than {@link #getAllNeighbors()} for large numbers of objects.
+		 * @return
+		 */
+		public NeighborGraph getNeighborGraph() {
+			if (neighborGraph == null) {
+				synchronized (this) {
+					if (neighborGraph == null)
+						neighborGraph = calculateNeighborGraph();
+				}
+			}
+			return neighborGraph;
+		}
+		
 		/**
 		 * Get a map of Voronoi faces as JTS {@link Geometry} objects.
 		 * @return
@@ -686,11 +768,14 @@ public class DelaunayTools {
 		 * @return list of neighbors
 		 */
 		public List<PathObject> getFilteredNeighbors(PathObject pathObject, BiPredicate<PathObject, PathObject> predicate) {
-			var allNeighbors = getAllNeighbors();
+			var graph = getNeighborGraph();
+			int ind = graph.getIndex(pathObject);
+			if (ind < 0)
+				return Collections.emptyList();
 			if (predicate != null) {
-				return filterByPredicate(pathObject, allNeighbors.getOrDefault(pathObject, Collections.emptyList()), predicate);
+				return filterByPredicate(pathObject, graph.getNeighbors(ind), predicate);
 			} else
-				return allNeighbors.getOrDefault(pathObject, Collections.emptyList());
+				return graph.getNeighbors(ind);
 		}
 		
 		/**
@@ -745,43 +830,51 @@ public class DelaunayTools {
 			
 			logger.debug("Calculating all neighbors for {} objects", getPathObjects().size());
 			
-			@SuppressWarnings("unchecked")
-			var edges = (List<QuadEdge>)subdivision.getVertexUniqueEdges(false);
+			var graph = getNeighborGraph();
 			Map<PathObject, List<PathObject>> map = new HashMap<>();
-			var distanceMap = new HashMap<PathObject, Double>();
+			for (int i = 0; i < graph.size(); i++)
+				map.put(graph.getPathObject(i), graph.getNeighbors(i));
+			return map;
+		}
+		
+		private NeighborGraph calculateNeighborGraph() {
 			
+			var objects = getPathObjects().toArray(PathObject[]::new);
+			if (subdivision == null) {
+				var graph = TiledDelaunayTriangulation.createNeighborGraph(objects, coordinateMap, tolerance, tilePoints, maxMarginTiles);
+				if (graph != null)
+					return graph;
+				logger.debug("Unable to tile coordinates efficiently, will use a single triangulation");
+			}
+
+			logger.debug("Calculating neighbor graph for {} objects", objects.length);
+			
+			var indices = new HashMap<PathObject, Integer>();
+			for (int i = 0; i < objects.length; i++)
+				indices.put(objects[i], i);
+			
+			@SuppressWarnings("unchecked")
+			var edges = (List<QuadEdge>)getQuadEdgeSubdivision().getPrimaryEdges(false);
+			int[] from = new int[edges.size()];
+			int[] to = new int[edges.size()];
+			float[] distance = new float[edges.size()];
+			int nEdges = 0;
 			int missing = 0;
 			for (var edge : edges) {
-				var origin = edge.orig();
-				distanceMap.clear();
-				
-				var pathObject = getPathObject(origin);
-				if (pathObject == null) {
-					logger.warn("No object found for {}", pathObject);
+				var origin = getPathObject(edge.orig());
+				var dest = getPathObject(edge.dest());
+				if (origin == null || dest == null) {
+					missing++;
 					continue;
 				}
-				
-				var list = new ArrayList<PathObject>();
-				var next = edge;
-				do {
-					var dest = next.dest();
-					var destObject = getPathObject(dest);
-					if (destObject == pathObject) {
-						continue;
-					} else if (destObject == null) {
-						missing++;
-					} else {
-						distanceMap.put(destObject, next.getLength());
-						list.add(destObject);
-					}
-				} while ((next = next.oNext()) != edge);
-				Collections.sort(list, Comparator.comparingDouble(p -> distanceMap.get(p)));
-				
-				map.put(pathObject, Collections.unmodifiableList(list));
+				from[nEdges] = indices.getOrDefault(origin, -1);
+				to[nEdges] = indices.getOrDefault(dest, -1);
+				distance[nEdges] = (float)edge.getLength();
+				nEdges++;
 			}
 			if (missing > 0)
 				logger.debug("Number of missing neighbors: {}", missing);
-			return map;
+			return NeighborGraph.create(objects, from, to, distance, nEdges);
 		}
 		
 		
@@ -802,7 +895,7 @@ public class DelaunayTools {
 			// We use a new GeometryFactory because we need floating point precision (it seems) to avoid 
 			// invalid polygons being returned
 			@SuppressWarnings("unchecked")
-			var polygons = (List<Polygon>)subdivision.getVoronoiCellPolygons(new GeometryFactory());
+			var polygons = (List<Polygon>)getQuadEdgeSubdivision().getVoronoiCellPolygons(new GeometryFactory());
 			
 			// Create a spatial cache
 			var map = new HashMap<PathObject, Geometry>();
@@ -882,7 +975,7 @@ public class DelaunayTools {
 			logger.debug("Calculating Voronoi faces for {} objects", getPathObjects().size());
 
 			@SuppressWarnings("unchecked")
-			var polygons = (List<Polygon>)subdivision.getVoronoiCellPolygons(GeometryTools.getDefaultFactory());
+			var polygons = (List<Polygon>)getQuadEdgeSubdivision().getVoronoiCellPolygons(GeometryTools.getDefaultFactory());
 //			var polygons = (List<Polygon>)subdivision.getVoronoiCellPolygons(new GeometryFactory());
 			
 			var map = new HashMap<PathObject, Geometry>();
@@ -946,39 +1039,25 @@ public class DelaunayTools {
 		
 		/**
 		 * Get clusters of connected objects, where connections are made between neighboring objects that meet the specified predicate.
-		 * @param predicate predicate used to determine if two otherwise neighboring objects are considered connected
+		 * @param predicate predicate used to determine if two otherwise neighboring objects are considered connected 
+		 *                  (if it is true in either direction)
 		 * @return a list of clusters, where each cluster is a collection of connected objects
+		 * @see NeighborGraph#getClusters(BiPredicate)
 		 */
 		public List<Collection<PathObject>> getClusters(BiPredicate<PathObject, PathObject> predicate) {
-			var alreadyClustered = new HashSet<PathObject>();
-			var output = new ArrayList<Collection<PathObject>>();
-			var neighbors = getFilteredNeighbors(predicate);
-			for (var pathObject : getPathObjects()) {
-				if (!alreadyClustered.contains(pathObject)) {
-					var cluster = buildCluster(pathObject, neighbors, alreadyClustered);
-					output.add(cluster);
-				}
-			}
-			return output;
+			return getNeighborGraph().getClusters(predicate);
 		}
 		
-		private Collection<PathObject> buildCluster(PathObject parent, Map<PathObject, List<PathObject>> neighbors, Collection<PathObject> alreadyClustered) {
-			var cluster = new ArrayList<PathObject>();
-			var deque = new ArrayDeque<PathObject>();
-			deque.add(parent);
-			while (!deque.isEmpty()) {
-				var pathObject = deque.pop();
-				if (!alreadyClustered.add(pathObject))
-					continue;
-				
-				cluster.add(pathObject);
-				
-				for (var neighbor : neighbors.get(pathObject)) {
-					if (!alreadyClustered.contains(neighbor))
-						deque.add(neighbor);
-				}
-			}
-			return cluster;
+		/**
+		 * Get clusters of connected objects, optionally testing the predicate in parallel.
+		 * @param predicate predicate used to determine if two otherwise neighboring objects are considered connected 
+		 *                  (if it is true in either direction); this should be thread-safe if tested in parallel
+		 * @param parallel if true, test the predicate for different objects in parallel
+		 * @return a list of clusters, where each cluster is a collection of connected objects
+		 * @see NeighborGraph#getClusters(BiPredicate, boolean)
+		 */
+		public List<Collection<PathObject>> getClusters(BiPredicate<PathObject, PathObject> predicate, boolean parallel) {
+			return getNeighborGraph().getClusters(predicate, parallel);
 		}
 		
 	}
@@ -0,0 +1,361 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.stream.IntStream;
+
+import qupath.lib.objects.PathObject;
+
+/**
+ * Compact, immutable graph of neighboring objects, stored using primitive arrays.
+ * <p>
+ * Each object is identified by an index. The neighbors of each object are stored contiguously,
+ * sorted by distance (closest first). The graph is symmetric: if one object is a neighbor of another,
+ * the reverse is also true.
+ *
+ * @see DelaunayTools.Subdivision#getNeighborGraph()
+ */
+public class NeighborGraph {
+
+	private final PathObject[] pathObjects;
+	private final int[] offsets;
+	private final int[] neighbors;
+	private final float[] distances;
+
+	private transient Map<PathObject, Integer> indices;
+
+	private NeighborGraph(PathObject[] pathObjects, int[] offsets, int[] neighbors, float[] distances) {
+		this.pathObjects = pathObjects;
+		this.offsets = offsets;
+		this.neighbors = neighbors;
+		this.distances = distances;
+	}
+
+	/**
+	 * Create a graph from a list of (possibly duplicated) edges between objects.
+	 * Edges may be given in either or both directions; self-connections and edges involving a negative index are ignored.
+	 * Where there are duplicate edges, the shortest distance is retained.
+	 *
+	 * @param pathObjects the objects in the graph
+	 * @param from index of the first object for each edge
+	 * @param to index of the second object for each edge
+	 * @param distance distance for each edge
+	 * @param nEdges number of edges to use from the arrays
+	 * @return
+	 */
+	static NeighborGraph create(PathObject[] pathObjects, int[] from, int[] to, float[] distance, int nEdges) {
+		int n = pathObjects.length;
+
+		// Add each edge in both directions
+		int[] counts = new int[n + 1];
+		for (int e = 0; e < nEdges; e++) {
+			int a = from[e];
+			int b = to[e];
+			if (a == b || a < 0 || b < 0)
+				continue;
+			counts[a+1]++;
+			counts[b+1]++;
+		}
+		for (int i = 0; i < n; i++)
+			counts[i+1] += counts[i];
+		int[] rowStart = counts;
+		int[] fill = Arrays.copyOf(rowStart, n);
+		int[] nbrs = new int[rowStart[n]];
+		float[] dists = new float[rowStart[n]];
+		for (int e = 0; e < nEdges; e++) {
+			int a = from[e];
+			int b = to[e];
+			if (a == b || a < 0 || b < 0)
+				continue;
+			int ind = fill[a]++;
+			nbrs[ind] = b;
+			dists[ind] = distance[e];
+			ind = fill[b]++;
+			nbrs[ind] = a;
+			dists[ind] = distance[e];
+		}
+
+		// Remove duplicates & sort by distance, in place
+		int[] rowCounts = new int[n];
+		IntStream.range(0, n).parallel().forEach(i -> {
+			int start = rowStart[i];
+			int len = rowStart[i+1] - start;
+			if (len == 0)
+				return;
+			// Distances are non-negative, so their bits can be sorted as integers
+			long[] keys = new long[len];
+			for (int k = 0; k < len; k++)
+				keys[k] = ((long)nbrs[start+k] << 32) | Float.floatToIntBits(dists[start+k]);
+			Arrays.sort(keys);
+			int count = 0;
+			int last = -1;
+			for (int k = 0; k < len; k++) {
+				int nbr = (int)(keys[k] >>> 32);
+				if (nbr == last)
+					continue;
+				keys[count++] = ((keys[k] & 0xFFFFFFFFL) << 32) | nbr;
+				last = nbr;
+			}
+			Arrays.sort(keys, 0, count);
+			for (int k = 0; k < count; k++) {
+				nbrs[start+k] = (int)(keys[k] & 0xFFFFFFFFL);
+				dists[start+k] = Float.intBitsToFloat((int)(keys[k] >>> 32));
+			}
+			rowCounts[i] = count;
+		});
+
+		// Compact
+		int[] offsets = new int[n + 1];
+		for (int i = 0; i < n; i++)
+			offsets[i+1] = offsets[i] + rowCounts[i];
+		int[] neighbors = new int[offsets[n]];
+		float[] distances = new float[offsets[n]];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(nbrs, rowStart[i], neighbors, offsets[i], rowCounts[i]);
+			System.arraycopy(dists, rowStart[i], distances, offsets[i], rowCounts[i]);
+		}
+		return new NeighborGraph(pathObjects, offsets, neighbors, distances);
+	}
+
+	/**
+	 * Get the number of objects in the graph.
+	 * @return
+	 */
+	public int size() {
+		return pathObjects.length;
+	}
+
+	/**
+	 * Get the total number of connections between objects.
+	 * Each connection is counted once, regardless of direction.
+	 * @return
+	 */
+	public int getEdgeCount() {
+		return neighbors.length / 2;
+	}
+
+	/**
+	 * Get the object with the specified index.
+	 * @param ind
+	 * @return
+	 */
+	public PathObject getPathObject(int ind) {
+		return pathObjects[ind];
+	}
+
+	/**
+	 * Get the index of an object in the graph.
+	 * @param pathObject
+	 * @return the index, or -1 if the object is not in the graph
+	 */
+	public int getIndex(PathObject pathObject) {
+		if (indices == null) {
+			synchronized (this) {
+				if (indices == null) {
+					var map = new HashMap<PathObject, Integer>(pathObjects.length * 2);
+					for (int i = 0; i < pathObjects.length; i++)
+						map.put(pathObjects[i], i);
+					indices = Collections.unmodifiableMap(map);
+				}
+			}
+		}
+		return indices.getOrDefault(pathObject, -1);
+	}
+
+	/**
+	 * Get the number of neighbors of the object with the specified index.
+	 * @param ind
+	 * @return
+	 */
+	public int getNeighborCount(int ind) {
+		return offsets[ind+1] - offsets[ind];
+	}
+
+	/**
+	 * Get the index of a neighbor.
+	 * @param ind index of the object
+	 * @param k the neighbor number, where 0 is the closest neighbor
+	 * @return
+	 */
+	public int getNeighborIndex(int ind, int k) {
+		return neighbors[offsets[ind] + k];
+	}
+
+	/**
+	 * Get the distance to a neighbor.
+	 * @param ind index of the object
+	 * @param k the neighbor number, where 0 is the closest neighbor
+	 * @return
+	 */
+	public double getNeighborDistance(int ind, int k) {
+		return distances[offsets[ind] + k];
+	}
+
+	/**
+	 * Get the indices of all neighbors of an object, sorted by distance.
+	 * @param ind
+	 * @return
+	 */
+	public int[] getNeighborIndices(int ind) {
+		return Arrays.copyOfRange(neighbors, offsets[ind], offsets[ind+1]);
+	}
+
+	/**
+	 * Get all the neighbors of an object, sorted by distance.
+	 * @param ind
+	 * @return an unmodifiable list of neighbors
+	 */
+	public List<PathObject> getNeighbors(int ind) {
+		int start = offsets[ind];
+		int len = offsets[ind+1] - start;
+		return new AbstractList<>() {
+			@Override
+			public PathObject get(int k) {
+				if (k < 0 || k >= len)
+					throw new IndexOutOfBoundsException(k);
+				return pathObjects[neighbors[start + k]];
+			}
+			@Override
+			public int size() {
+				return len;
+			}
+		};
+	}
+
+	/**
+	 * Assign a cluster label to every object, where clusters contain objects that are connected by neighbors that meet
+	 * the specified predicate.
+	 * <p>
+	 * Two neighbors are connected if the predicate is true in either direction, so the result doesn't depend upon the order 
+	 * of the objects even if the predicate isn't symmetric. The predicate is tested on the calling thread, at most twice for 
+	 * each pair of neighbors (and only once if the first test returns true).
+	 *
+	 * @param predicate predicate used to determine if two neighbors are considered connected; if null, all neighbors are connected
+	 * @return an array containing a cluster label for each object, numbered from 0 in order of the first object in each cluster
+	 * @see #getClusterLabels(BiPredicate, boolean)
+	 */
+	public int[] getClusterLabels(BiPredicate<PathObject, PathObject> predicate) {
+		return getClusterLabels(predicate, false);
+	}
+
+	/**
+	 * Assign a cluster label to every object, where clusters contain objects that are connected by neighbors that meet
+	 * the specified predicate, optionally testing the predicate in parallel.
+	 * <p>
+	 * Two neighbors are connected if the predicate is true in either direction. 
+	 * The predicate must be thread-safe if testing in parallel.
+	 *
+	 * @param predicate predicate used to determine if two neighbors are considered connected; if null, all neighbors are connected
+	 * @param parallel if true, test the predicate for different objects in parallel
+	 * @return an array containing a cluster label for each object, numbered from 0 in order of the first object in each cluster
+	 */
+	public int[] getClusterLabels(BiPredicate<PathObject, PathObject> predicate, boolean parallel) {
+		int n = pathObjects.length;
+		boolean[] connected = new boolean[neighbors.length];
+		var range = IntStream.range(0, n);
+		if (parallel)
+			range = range.parallel();
+		range.forEach(i -> {
+			for (int k = offsets[i]; k < offsets[i+1]; k++) {
+				int j = neighbors[k];
+				connected[k] = i < j && (predicate == null || 
+						predicate.test(pathObjects[i], pathObjects[j]) || predicate.test(pathObjects[j], pathObjects[i]));
+			}
+		});
+
+		// Union-find with path halving
+		int[] parents = new int[n];
+		for (int i = 0; i < n; i++)
+			parents[i] = i;
+		for (int i = 0; i < n; i++) {
+			for (int k = offsets[i]; k < offsets[i+1]; k++) {
+				if (!connected[k])
+					continue;
+				int a = findRoot(parents, i);
+				int b = findRoot(parents, neighbors[k]);
+				if (a < b)
+					parents[b] = a;
+				else if (b < a)
+					parents[a] = b;
+			}
+		}
+
+		// Roots are always the lowest index in the cluster, so labels can be assigned in a single pass
+		int[] labels = new int[n];
+		int nLabels = 0;
+		for (int i = 0; i < n; i++) {
+			int root = findRoot(parents, i);
+			labels[i] = root == i ? nLabels++ : labels[root];
+		}
+		return labels;
+	}
+
+	/**
+	 * Get clusters of connected objects, where connections are made between neighbors that meet the specified predicate.
+	 *
+	 * @param predicate predicate used to determine if two neighbors are considered connected; if null, all neighbors are connected
+	 * @return a list of clusters, where each cluster is a collection of connected objects
+	 * @see #getClusterLabels(BiPredicate)
+	 */
+	public List<Collection<PathObject>> getClusters(BiPredicate<PathObject, PathObject> predicate) {
+		return getClusters(predicate, false);
+	}
+
+	/**
+	 * Get clusters of connected objects, where connections are made between neighbors that meet the specified predicate,
+	 * optionally testing the predicate in parallel.
+	 *
+	 * @param predicate predicate used to determine if two neighbors are considered connected; if null, all neighbors are connected
+	 * @param parallel if true, test the predicate for different objects in parallel (in which case it must be thread-safe)
+	 * @return a list of clusters, where each cluster is a collection of connected objects
+	 * @see #getClusterLabels(BiPredicate, boolean)
+	 */
+	public List<Collection<PathObject>> getClusters(BiPredicate<PathObject, PathObject> predicate, boolean parallel) {
+		int[] labels = getClusterLabels(predicate, parallel);
+		var clusters = new ArrayList<Collection<PathObject>>();
+		for (int i = 0; i < labels.length; i++) {
+			int label = labels[i];
+			if (label == clusters.size())
+				clusters.add(new ArrayList<>());
+			clusters.get(label).add(pathObjects[i]);
+		}
+		return clusters;
+	}
+
+	private static int findRoot(int[] parents, int i) {
+		while (parents[i] != i) {
+			parents[i] = parents[parents[i]];
+			i = parents[i];
+		}
+		return i;
+	}
+
+}
@@ -0,0 +1,548 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.locationtech.jts.algorithm.ConvexHull;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.triangulate.IncrementalDelaunayTriangulator;
+import org.locationtech.jts.triangulate.quadedge.QuadEdgeSubdivision;
+import org.locationtech.jts.triangulate.quadedge.TrianglePredicate;
+import org.locationtech.jts.triangulate.quadedge.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.GeometryTools;
+
+/**
+ * Compute the neighbors of a Delaunay triangulation by triangulating overlapping tiles in parallel.
+ * <p>
+ * Each coordinate belongs to exactly one tile, and its neighbors are taken from a triangulation of all coordinates
+ * within the tile plus a margin. A triangle from this local triangulation is only accepted if its circumcircle
+ * contains no other coordinate from the full set, in which case it must also belong to the full triangulation.
+ * If any coordinate in the tile has a triangle that can't be accepted (or is on the edge of the local triangulation,
+ * but not the convex hull of all coordinates), the margin is doubled and the tile triangulated again.
+ * Finally, neighbors from all tiles are combined symmetrically.
+ * <p>
+ * The margin is limited to a multiple of the tile size (by default {@link #DEFAULT_MAX_MARGIN_TILES}). 
+ * If any tile needs more, e.g. because the coordinates form separate fragments with large gaps between them, 
+ * tiling is abandoned and a single triangulation should be used instead.
+ * <p>
+ * Where four or more coordinates lie on the same circle, the triangulation is not unique and so neighboring tiles
+ * may not agree. In this case, the result may include neighbors from both alternatives.
+ */
+class TiledDelaunayTriangulation {
+
+	private final static Logger logger = LoggerFactory.getLogger(TiledDelaunayTriangulation.class);
+
+	/**
+	 * Default approximate number of coordinates in each tile, excluding the margin.
+	 */
+	static final int DEFAULT_TILE_POINTS = 10_000;
+
+	/**
+	 * Default maximum margin around each tile, as a multiple of the tile size.
+	 */
+	static final int DEFAULT_MAX_MARGIN_TILES = 4;
+
+	/**
+	 * Approximate number of coordinates in each cell of the grid used for spatial queries.
+	 */
+	private static final int CELL_POINTS = 4;
+
+	private final PathObject[] pathObjects;
+	private final double tolerance;
+	private final int tilePoints;
+	private final int maxMarginTiles;
+
+	private final int n;
+	private final double[] x, y;
+	private final int[] objectIndex;
+	private final Envelope envelope;
+
+	// Grid used to find coordinates within a region
+	private double cellSize;
+	private int nCellsX, nCellsY;
+	private int[] cellStart, cellPoints;
+
+	// Tiles, each of which is a square group of grid cells
+	private int tileCells, nTilesX, nTilesY;
+
+	// Convex hull of all coordinates
+	private double[] hullX, hullY;
+
+	// Set if any tile needs too large a margin
+	private volatile boolean abandoned = false;
+
+	private TiledDelaunayTriangulation(PathObject[] pathObjects, Map<Coordinate, PathObject> coordinateMap, double tolerance,
+			int tilePoints, int maxMarginTiles) {
+		this.pathObjects = pathObjects;
+		this.tolerance = tolerance;
+		this.tilePoints = tilePoints;
+		this.maxMarginTiles = maxMarginTiles;
+		var indices = new HashMap<PathObject, Integer>(pathObjects.length * 2);
+		for (int i = 0; i < pathObjects.length; i++)
+			indices.put(pathObjects[i], i);
+		n = coordinateMap.size();
+		x = new double[n];
+		y = new double[n];
+		objectIndex = new int[n];
+		envelope = new Envelope();
+		int i = 0;
+		for (var entry : coordinateMap.entrySet()) {
+			var c = entry.getKey();
+			x[i] = c.x;
+			y[i] = c.y;
+			objectIndex[i] = indices.getOrDefault(entry.getValue(), -1);
+			envelope.expandToInclude(c);
+			i++;
+		}
+		var hull = new ConvexHull(coordinateMap.keySet().toArray(Coordinate[]::new), GeometryTools.getDefaultFactory())
+				.getConvexHull()
+				.getCoordinates();
+		hullX = new double[hull.length];
+		hullY = new double[hull.length];
+		for (int h = 0; h < hull.length; h++) {
+			hullX[h] = hull[h].x;
+			hullY[h] = hull[h].y;
+		}
+	}
+
+	/**
+	 * Compute a neighbor graph from a Delaunay triangulation.
+	 * @param pathObjects the objects, in the order they should appear within the graph
+	 * @param coordinateMap map of distinct coordinates to the object they belong to
+	 * @param tolerance tolerance for the triangulation, below which coordinates are considered to be the same
+	 * @param tilePoints approximate number of coordinates in each tile, excluding the margin
+	 * @param maxMarginTiles maximum margin around each tile, as a multiple of the tile size
+	 * @return the neighbor graph, or null if the coordinates can't be tiled efficiently and a single triangulation should be used
+	 */
+	static NeighborGraph createNeighborGraph(PathObject[] pathObjects, Map<Coordinate, PathObject> coordinateMap, double tolerance,
+			int tilePoints, int maxMarginTiles) {
+		var triangulation = new TiledDelaunayTriangulation(pathObjects, coordinateMap, tolerance, tilePoints, maxMarginTiles);
+		return triangulation.createNeighborGraph();
+	}
+
+	private NeighborGraph createNeighborGraph() {
+		if (n == 0)
+			return NeighborGraph.create(pathObjects, new int[0], new int[0], new float[0], 0);
+
+		long startTime = System.currentTimeMillis();
+		buildGrid();
+		int nTiles = nTilesX * nTilesY;
+		List<TileEdges> results = IntStream.range(0, nTiles)
+				.parallel()
+				.mapToObj(this::computeTile)
+				.collect(Collectors.toList());
+		if (abandoned) {
+			logger.debug("Tiled triangulation of {} coordinates abandoned after {} ms", n, System.currentTimeMillis() - startTime);
+			return null;
+		}
+
+		int nEdges = results.stream().mapToInt(r -> r.size).sum();
+		int[] from = new int[nEdges];
+		int[] to = new int[nEdges];
+		float[] distance = new float[nEdges];
+		int ind = 0;
+		for (var result : results) {
+			for (int e = 0; e < result.size; e++) {
+				from[ind] = objectIndex[result.from[e]];
+				to[ind] = objectIndex[result.to[e]];
+				distance[ind] = result.distance[e];
+				ind++;
+			}
+		}
+		var graph = NeighborGraph.create(pathObjects, from, to, distance, nEdges);
+		long endTime = System.currentTimeMillis();
+		logger.debug("Tiled triangulation of {} coordinates ({} tiles) in {} ms", n, nTiles, endTime - startTime);
+		return graph;
+	}
+
+	private void buildGrid() {
+		double width = envelope.getWidth();
+		double height = envelope.getHeight();
+		double size = Math.max(width, height);
+		// Handle coordinates that fall on a line
+		double area = Math.max(width, size * 1e-3) * Math.max(height, size * 1e-3);
+		cellSize = Math.sqrt(area * CELL_POINTS / n);
+		if (!(cellSize > 0))
+			cellSize = 1.0;
+		nCellsX = Math.max(1, (int)Math.ceil(width / cellSize));
+		nCellsY = Math.max(1, (int)Math.ceil(height / cellSize));
+
+		cellStart = new int[nCellsX * nCellsY + 1];
+		int[] cells = new int[n];
+		for (int i = 0; i < n; i++) {
+			cells[i] = cellIndex(i);
+			cellStart[cells[i]+1]++;
+		}
+		for (int c = 0; c < nCellsX * nCellsY; c++)
+			cellStart[c+1] += cellStart[c];
+		int[] fill = Arrays.copyOf(cellStart, nCellsX * nCellsY);
+		cellPoints = new int[n];
+		for (int i = 0; i < n; i++)
+			cellPoints[fill[cells[i]]++] = i;
+
+		tileCells = Math.max(1, (int)Math.round(Math.sqrt((double)tilePoints / CELL_POINTS)));
+		nTilesX = (nCellsX + tileCells - 1) / tileCells;
+		nTilesY = (nCellsY + tileCells - 1) / tileCells;
+	}
+
+	private int cellX(double xx) {
+		return Math.max(0, Math.min(nCellsX - 1, (int)((xx - envelope.getMinX()) / cellSize)));
+	}
+
+	private int cellY(double yy) {
+		return Math.max(0, Math.min(nCellsY - 1, (int)((yy - envelope.getMinY()) / cellSize)));
+	}
+
+	private int cellIndex(int i) {
+		return cellY(y[i]) * nCellsX + cellX(x[i]);
+	}
+
+	private TileEdges computeTile(int tile) {
+		int tx = tile % nTilesX;
+		int ty = tile / nTilesX;
+		int cx1 = tx * tileCells;
+		int cy1 = ty * tileCells;
+		int cx2 = Math.min(nCellsX, cx1 + tileCells);
+		int cy2 = Math.min(nCellsY, cy1 + tileCells);
+
+		var edges = new TileEdges();
+		int margin = Math.max(1, tileCells / 4);
+		while (!abandoned) {
+			// Use whole cells for the local region, so that we can easily tell which coordinates belong to the tile
+			int mx1 = Math.max(0, cx1 - margin);
+			int my1 = Math.max(0, cy1 - margin);
+			int mx2 = Math.min(nCellsX, cx2 + margin);
+			int my2 = Math.min(nCellsY, cy2 + margin);
+			boolean isComplete = mx1 == 0 && my1 == 0 && mx2 == nCellsX && my2 == nCellsY;
+			var local = new LocalTriangulation(cx1, cy1, cx2, cy2, mx1, my1, mx2, my2, isComplete);
+			if (local.nCore == 0)
+				return edges;
+			if (local.addEdges(edges))
+				return edges;
+			if (isComplete) {
+				// Shouldn't happen, since the local triangulation should then match the full triangulation
+				logger.warn("Unable to resolve all neighbors for tile {}", tile);
+				return edges;
+			}
+			edges.size = 0;
+			margin *= 2;
+			if (margin > tileCells * maxMarginTiles) {
+				logger.debug("Tile {} needs a margin of more than {} cells", tile, tileCells * maxMarginTiles);
+				abandoned = true;
+				break;
+			}
+			logger.trace("Increasing margin for tile {} to {} cells", tile, margin);
+		}
+		return null;
+	}
+
+
+	/**
+	 * Triangulation for a single tile, including its margin.
+	 */
+	private class LocalTriangulation {
+
+		private final int mx1, my1, mx2, my2;
+		private final boolean isComplete;
+		// Coordinates within the local region (in cell units)
+		private final double minX, minY, maxX, maxY;
+
+		private int[] points;
+		private boolean[] isCore;
+		private int nCore;
+
+		// Triangle vertices (as local indices) and whether they belong to the full triangulation
+		private int[] triangles;
+		private boolean[] accepted;
+		private int nTriangles;
+
+		LocalTriangulation(int cx1, int cy1, int cx2, int cy2, int mx1, int my1, int mx2, int my2, boolean isComplete) {
+			this.mx1 = mx1;
+			this.my1 = my1;
+			this.mx2 = mx2;
+			this.my2 = my2;
+			this.isComplete = isComplete;
+			this.minX = envelope.getMinX() + mx1 * cellSize;
+			this.minY = envelope.getMinY() + my1 * cellSize;
+			this.maxX = envelope.getMinX() + mx2 * cellSize;
+			this.maxY = envelope.getMinY() + my2 * cellSize;
+
+			int count = 0;
+			for (int cy = my1; cy < my2; cy++)
+				count += cellStart[cy * nCellsX + mx2] - cellStart[cy * nCellsX + mx1];
+			points = new int[count];
+			isCore = new boolean[count];
+			int ind = 0;
+			for (int cy = my1; cy < my2; cy++) {
+				boolean coreRow = cy >= cy1 && cy < cy2;
+				for (int cx = mx1; cx < mx2; cx++) {
+					int cell = cy * nCellsX + cx;
+					boolean coreCell = coreRow && cx >= cx1 && cx < cx2;
+					for (int k = cellStart[cell]; k < cellStart[cell+1]; k++) {
+						if (coreCell)
+							nCore++;
+						isCore[ind] = coreCell;
+						points[ind++] = cellPoints[k];
+					}
+				}
+			}
+		}
+
+		private void triangulate() {
+			// Use the full envelope, so that the frame is the same as for a single triangulation
+			var subdiv = new QuadEdgeSubdivision(envelope, tolerance);
+			var triangulator = new IncrementalDelaunayTriangulator(subdiv);
+			subdiv.setLocator(DelaunayTools.getDefaultLocator(subdiv));
+			// Insertion order matters for performance; sort as DelaunayTriangulationBuilder would
+			Integer[] order = new Integer[points.length];
+			for (int i = 0; i < order.length; i++)
+				order[i] = i;
+			Arrays.sort(order, (i1, i2) -> {
+				int cmp = Double.compare(x[points[i1]], x[points[i2]]);
+				return cmp == 0 ? Double.compare(y[points[i1]], y[points[i2]]) : cmp;
+			});
+			for (int i : order) {
+				int p = points[i];
+				triangulator.insertSite(new IndexedVertex(x[p], y[p], i));
+			}
+
+			@SuppressWarnings("unchecked")
+			var triangleVertices = (List<Vertex[]>)subdiv.getTriangleVertices(false);
+			triangles = new int[triangleVertices.size() * 3];
+			accepted = new boolean[triangleVertices.size()];
+			for (var vertices : triangleVertices) {
+				int a = ((IndexedVertex)vertices[0]).index;
+				int b = ((IndexedVertex)vertices[1]).index;
+				int c = ((IndexedVertex)vertices[2]).index;
+				// We only need triangles involving the tile itself
+				if (!isCore[a] && !isCore[b] && !isCore[c])
+					continue;
+				triangles[nTriangles * 3] = a;
+				triangles[nTriangles * 3 + 1] = b;
+				triangles[nTriangles * 3 + 2] = c;
+				accepted[nTriangles] = isComplete || isDelaunay(points[a], points[b], points[c]);
+				nTriangles++;
+			}
+		}
+
+		/**
+		 * Add the edges for all core coordinates.
+		 * @param edges
+		 * @return true if all neighbors could be determined, false if the triangulation needs a larger margin
+		 */
+		boolean addEdges(TileEdges edges) {
+			triangulate();
+
+			// Find the triangles for each coordinate
+			int nPoints = points.length;
+			int[] triStart = new int[nPoints + 1];
+			for (int t = 0; t < nTriangles * 3; t++)
+				triStart[triangles[t]+1]++;
+			for (int i = 0; i < nPoints; i++)
+				triStart[i+1] += triStart[i];
+			int[] fill = Arrays.copyOf(triStart, nPoints);
+			int[] pointTriangles = new int[nTriangles * 3];
+			for (int t = 0; t < nTriangles * 3; t++)
+				pointTriangles[fill[triangles[t]]++] = t / 3;
+
+			int[] others = new int[16];
+			for (int i = 0; i < nPoints; i++) {
+				if (!isCore[i])
+					continue;
+				// Collect the other vertices for all triangles around the point
+				int nOthers = 0;
+				for (int k = triStart[i]; k < triStart[i+1]; k++) {
+					int t = pointTriangles[k];
+					if (!accepted[t])
+						return false;
+					if (nOthers + 2 > others.length)
+						others = Arrays.copyOf(others, others.length * 2);
+					for (int v = t * 3; v < t * 3 + 3; v++) {
+						if (triangles[v] != i)
+							others[nOthers++] = triangles[v];
+					}
+				}
+				// Each edge should be shared by two triangles, unless it is on the convex hull
+				if (!isComplete && !checkBoundary(i, others, nOthers))
+					return false;
+				int p = points[i];
+				for (int k = 0; k < nOthers; k++) {
+					int q = points[others[k]];
+					edges.add(p, q, (float)Math.hypot(x[p] - x[q], y[p] - y[q]));
+				}
+			}
+			return true;
+		}
+
+		private boolean checkBoundary(int i, int[] others, int nOthers) {
+			// Triangles are added as pairs of vertices, so we can check how often each vertex occurs
+			for (int k = 0; k < nOthers; k++) {
+				int count = 0;
+				for (int k2 = 0; k2 < nOthers; k2++) {
+					if (others[k2] == others[k])
+						count++;
+				}
+				if (count == 1) {
+					// The third vertex of the triangle is the other member of the pair
+					int r = others[k % 2 == 0 ? k + 1 : k - 1];
+					if (!isHullEdge(points[i], points[others[k]], points[r]))
+						return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Check if the circumcircle of a triangle is empty.
+		 * Only coordinates outside the local region need to be checked, since the local triangulation is Delaunay.
+		 */
+		private boolean isDelaunay(int a, int b, int c) {
+			double ax = x[a], ay = y[a];
+			double bx = x[b] - ax, by = y[b] - ay;
+			double cx = x[c] - ax, cy = y[c] - ay;
+			double d = 2 * (bx * cy - by * cx);
+			if (d == 0)
+				return false;
+			double b2 = bx * bx + by * by;
+			double c2 = cx * cx + cy * cy;
+			double ux = (cy * b2 - by * c2) / d;
+			double uy = (bx * c2 - cx * b2) / d;
+			double r = Math.sqrt(ux * ux + uy * uy) * (1 + 1e-9) + tolerance;
+			ux += ax;
+			uy += ay;
+			if (!Double.isFinite(r))
+				return false;
+
+			// Circle is entirely within the local region
+			if (ux - r >= minX && ux + r <= maxX && uy - r >= minY && uy + r <= maxY)
+				return true;
+
+			// Check all cells that could overlap the circle, outside the local region
+			var pa = new Coordinate(x[a], y[a]);
+			var pb = new Coordinate(x[b], y[b]);
+			var pc = new Coordinate(x[c], y[c]);
+			if (d < 0) {
+				var temp = pb;
+				pb = pc;
+				pc = temp;
+			}
+			var pTest = new Coordinate();
+			int row1 = cellY(uy - r);
+			int row2 = cellY(uy + r);
+			for (int row = row1; row <= row2; row++) {
+				// Determine the horizontal extent of the circle within this row of cells
+				double rowMinY = envelope.getMinY() + row * cellSize;
+				double dy = Math.max(0, Math.max(rowMinY - uy, uy - (rowMinY + cellSize)));
+				if (dy > r)
+					continue;
+				double dx = Math.sqrt(r * r - dy * dy);
+				int col1 = cellX(ux - dx);
+				int col2 = cellX(ux + dx);
+				boolean insideRow = row >= my1 && row < my2;
+				for (int col = col1; col <= col2; col++) {
+					if (insideRow && col >= mx1 && col < mx2)
+						continue;
+					int cell = row * nCellsX + col;
+					for (int k = cellStart[cell]; k < cellStart[cell+1]; k++) {
+						int p = cellPoints[k];
+						double px = x[p] - ux;
+						double py = y[p] - uy;
+						if (px * px + py * py > r * r)
+							continue;
+						pTest.x = x[p];
+						pTest.y = y[p];
+						if (TrianglePredicate.isInCircleRobust(pa, pb, pc, pTest))
+							return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Check if an edge lies on the convex hull of all coordinates, i.e. no coordinate is on the opposite side to
+		 * the triangle containing the edge.
+		 */
+		private boolean isHullEdge(int p, int q, int r) {
+			double ex = x[q] - x[p];
+			double ey = y[q] - y[p];
+			double length = Math.hypot(ex, ey);
+			double side = Math.signum(ex * (y[r] - y[p]) - ey * (x[r] - x[p]));
+			for (int h = 0; h < hullX.length; h++) {
+				double dist = (ex * (hullY[h] - y[p]) - ey * (hullX[h] - x[p])) / length;
+				if (dist * side < -tolerance)
+					return false;
+			}
+			return true;
+		}
+
+	}
+
+
+	private static class IndexedVertex extends Vertex {
+
+		private final int index;
+
+		IndexedVertex(double x, double y, int index) {
+			super(x, y);
+			this.index = index;
+		}
+
+	}
+
+
+	/**
+	 * Growable list of directed edges between coordinates.
+	 */
+	private static class TileEdges {
+
+		private int[] from = new int[1024];
+		private int[] to = new int[1024];
+		private float[] distance = new float[1024];
+		private int size = 0;
+
+		void add(int p, int q, float dist) {
+			if (size == from.length) {
+				from = Arrays.copyOf(from, size * 2);
+				to = Arrays.copyOf(to, size * 2);
+				distance = Arrays.copyOf(distance, size * 2);
+			}
+			from[size] = p;
+			to[size] = q;
+			distance[size] = dist;
+			size++;
+		}
+
+	}
+
+}
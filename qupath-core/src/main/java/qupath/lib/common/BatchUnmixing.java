@@ -0,0 +1,391 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServers;
+import qupath.lib.images.servers.TransformedServerBuilder;
+import qupath.lib.images.writers.ImageWriter;
+import qupath.lib.images.writers.ImageWriterTools;
+import qupath.lib.io.GsonTools;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Unmix every image of a project, writing the result for each image as a pyramidal OME-TIFF in the entry directory.
+ * <p>
+ * Several images are unmixed concurrently, but only while their estimated memory requirements fit within a budget.
+ * A small checkpoint file is written alongside each result once it is complete. When the job is run again with the same
+ * proportion array and panel, images that already have a checkpoint are skipped, so that a cancelled or failed job
+ * resumes where it stopped.
+ * <p>
+ * Writing pyramidal images requires an {@link ImageWriter} that supports pyramids, e.g. the OME-TIFF writer
+ * provided by the Bio-Formats extension.
+ */
+public class BatchUnmixing {
+
+	private final static Logger logger = LoggerFactory.getLogger(BatchUnmixing.class);
+
+	/**
+	 * Name of the unmixed image written to each entry directory.
+	 */
+	public static final String OUTPUT_NAME = "unmixed.ome.tif";
+
+	/**
+	 * Name of the checkpoint file written to each entry directory once the unmixed image is complete.
+	 */
+	public static final String CHECKPOINT_NAME = "unmixed.json";
+
+	// Keep the extension, since it may be used to determine the output format
+	private static final String TEMP_OUTPUT_NAME = "unmixed-partial.ome.tif";
+
+	private static final long MB = 1024L * 1024L;
+
+	// Minimum tile size assumed for the pyramidal writer
+	private static final int WRITER_TILE_SIZE = 512;
+
+	/**
+	 * Result of unmixing a single image.
+	 */
+	public static enum Status {
+		/**
+		 * The image had already been unmixed with the same parameters.
+		 */
+		SKIPPED,
+		/**
+		 * The image was unmixed successfully.
+		 */
+		COMPLETED,
+		/**
+		 * The image could not be unmixed.
+		 */
+		FAILED,
+		/**
+		 * The job was cancelled before the image was unmixed.
+		 */
+		CANCELLED
+	}
+
+	private final double[][] proportionArray;
+	private final UnmixingPanel panel;
+	private final String key;
+
+	private int maxConcurrent = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+	private BiConsumer<ProjectImageEntry<BufferedImage>, Status> listener;
+
+	private volatile boolean cancelled = false;
+	private volatile ExecutorService pool;
+
+	/**
+	 * Create a job to unmix images using the specified proportion array and panel.
+	 * @param proportionArray filter x channel proportion array
+	 * @param panel fluorophores to unmix; one output channel is created for each
+	 */
+	public BatchUnmixing(double[][] proportionArray, UnmixingPanel panel) {
+		this.proportionArray = proportionArray;
+		this.panel = panel;
+		this.key = createKey(proportionArray, panel);
+	}
+
+	/**
+	 * Set the maximum number of images to unmix concurrently.
+	 * @param maxConcurrent
+	 * @return this job
+	 */
+	public BatchUnmixing maxConcurrent(int maxConcurrent) {
+		if (maxConcurrent <= 0)
+			throw new IllegalArgumentException("Maximum number of concurrent images must be > 0");
+		this.maxConcurrent = maxConcurrent;
+		return this;
+	}
+
+	/**
+	 * Set the memory budget, in bytes, shared between all images that are unmixed concurrently.
+	 * An image with an estimated requirement larger than the budget is still unmixed, but only on its own.
+	 * @param bytes
+	 * @return this job
+	 * @see #estimateMemoryBytes(ImageServer, UnmixingPanel)
+	 */
+	public BatchUnmixing memoryBudget(long bytes) {
+		if (bytes < MB)
+			throw new IllegalArgumentException("Memory budget must be at least 1 MB");
+		this.memoryBudget = bytes;
+		return this;
+	}
+
+	/**
+	 * Set a listener to be notified whenever an image has been processed.
+	 * This is called from the thread that processed the image.
+	 * @param listener
+	 * @return this job
+	 */
+	public BatchUnmixing listener(BiConsumer<ProjectImageEntry<BufferedImage>, Status> listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * Request that the job is cancelled. Images that are being written are interrupted, and no further images are started.
+	 * Any image that has been completed keeps its checkpoint, so that the job can later be resumed.
+	 */
+	public void cancel() {
+		cancelled = true;
+		var pool = this.pool;
+		if (pool != null)
+			pool.shutdownNow();
+	}
+
+	/**
+	 * Query if {@link #cancel()} has been called.
+	 * @return
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Unmix all the specified entries, blocking until they have been processed.
+	 * @param entries
+	 * @return the status of each entry, in the order of the input collection
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	public Map<ProjectImageEntry<BufferedImage>, Status> run(Collection<? extends ProjectImageEntry<BufferedImage>> entries) throws InterruptedException {
+		int budgetMB = (int)Math.min(Integer.MAX_VALUE, memoryBudget / MB);
+		Semaphore memory = new Semaphore(budgetMB);
+		Map<ProjectImageEntry<BufferedImage>, Future<Status>> futures = new LinkedHashMap<>();
+		pool = Executors.newFixedThreadPool(maxConcurrent, ThreadTools.createThreadFactory("batch-unmixing-", true));
+		try {
+			for (var entry : entries) {
+				if (cancelled)
+					break;
+				futures.put(entry, pool.submit(() -> process(entry, memory, budgetMB)));
+			}
+		} catch (RejectedExecutionException e) {
+			// Cancelled while submitting
+			logger.debug("Batch unmixing cancelled");
+		} finally {
+			pool.shutdown();
+		}
+
+		Map<ProjectImageEntry<BufferedImage>, Status> results = new LinkedHashMap<>();
+		for (var entry : entries) {
+			var future = futures.get(entry);
+			Status status = Status.CANCELLED;
+			if (future != null) {
+				try {
+					status = future.get();
+				} catch (InterruptedException e) {
+					cancel();
+					throw e;
+				} catch (ExecutionException | CancellationException e) {
+					status = cancelled ? Status.CANCELLED : Status.FAILED;
+				}
+			}
+			results.put(entry, status);
+		}
+		return Collections.unmodifiableMap(results);
+	}
+
+	/**
+	 * Query if an entry has already been unmixed with the proportion array and panel of this job.
+	 * @param entry
+	 * @return
+	 */
+	public boolean isComplete(ProjectImageEntry<?> entry) {
+		Path dir = entry.getEntryPath();
+		if (dir == null)
+			return false;
+		Path pathCheckpoint = dir.resolve(CHECKPOINT_NAME);
+		if (!Files.isRegularFile(pathCheckpoint) || !Files.isRegularFile(dir.resolve(OUTPUT_NAME)))
+			return false;
+		try (var reader = Files.newBufferedReader(pathCheckpoint, StandardCharsets.UTF_8)) {
+			var checkpoint = GsonTools.getInstance().fromJson(reader, Checkpoint.class);
+			return checkpoint != null && key.equals(checkpoint.key);
+		} catch (Exception e) {
+			logger.warn("Unable to read checkpoint {}: {}", pathCheckpoint, e.getLocalizedMessage());
+			return false;
+		}
+	}
+
+	private Status process(ProjectImageEntry<BufferedImage> entry, Semaphore memory, int budgetMB) {
+		Status status;
+		try {
+			status = unmixEntry(entry, memory, budgetMB);
+		} catch (InterruptedException | InterruptedIOException e) {
+			logger.info("Unmixing cancelled for {}", entry.getImageName());
+			status = Status.CANCELLED;
+		} catch (Exception e) {
+			if (cancelled) {
+				logger.info("Unmixing cancelled for {}", entry.getImageName());
+				status = Status.CANCELLED;
+			} else {
+				logger.error("Unable to unmix " + entry.getImageName() + ": " + e.getLocalizedMessage(), e);
+				status = Status.FAILED;
+			}
+		}
+		if (listener != null)
+			listener.accept(entry, status);
+		return status;
+	}
+
+	private Status unmixEntry(ProjectImageEntry<BufferedImage> entry, Semaphore memory, int budgetMB) throws Exception {
+		if (cancelled)
+			return Status.CANCELLED;
+		if (isComplete(entry)) {
+			logger.debug("Skipping {} - already unmixed", entry.getImageName());
+			return Status.SKIPPED;
+		}
+		Path dir = entry.getEntryPath();
+		if (dir == null)
+			throw new IOException("No directory available for " + entry.getImageName());
+		Files.createDirectories(dir);
+		Path pathOutput = dir.resolve(OUTPUT_NAME);
+		Path pathTemp = dir.resolve(TEMP_OUTPUT_NAME);
+		Path pathCheckpoint = dir.resolve(CHECKPOINT_NAME);
+		// Any existing result is from different parameters (or incomplete), so should not be trusted
+		Files.deleteIfExists(pathCheckpoint);
+		Files.deleteIfExists(pathTemp);
+
+		try (var server = entry.getServerBuilder().build()) {
+			int permits = (int)Math.max(1, Math.min(budgetMB, (estimateMemoryBytes(server, panel) + MB - 1) / MB));
+			memory.acquire(permits);
+			try {
+				if (cancelled)
+					return Status.CANCELLED;
+				long startTime = System.currentTimeMillis();
+				ImageServer<BufferedImage> unmixed = new TransformedServerBuilder(server)
+						.unmix(proportionArray, panel.getFluorophores())
+						.build();
+				if (unmixed.nResolutions() == 1)
+					unmixed = ImageServers.pyramidalize(unmixed);
+				getPyramidalWriter(unmixed).writeImage(unmixed, pathTemp.toString());
+				Files.move(pathTemp, pathOutput, StandardCopyOption.REPLACE_EXISTING);
+				writeCheckpoint(pathCheckpoint, entry);
+				logger.info("Unmixed {} in {} ms", entry.getImageName(), System.currentTimeMillis() - startTime);
+			} finally {
+				memory.release(permits);
+			}
+		}
+		return Status.COMPLETED;
+	}
+
+	private void writeCheckpoint(Path pathCheckpoint, ProjectImageEntry<BufferedImage> entry) throws IOException {
+		var checkpoint = new Checkpoint();
+		checkpoint.key = key;
+		checkpoint.image = entry.getImageName();
+		checkpoint.output = OUTPUT_NAME;
+		checkpoint.panel = panel.getFluorophores().stream().map(f -> f.getName()).toArray(String[]::new);
+		checkpoint.timestamp = System.currentTimeMillis();
+		// Write to a temporary file first, so that a crash cannot leave a partial checkpoint
+		Path pathTemp = pathCheckpoint.resolveSibling(CHECKPOINT_NAME + ".tmp");
+		Files.writeString(pathTemp, GsonTools.getInstance(true).toJson(checkpoint), StandardCharsets.UTF_8);
+		Files.move(pathTemp, pathCheckpoint, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Get a writer that can write a pyramidal image for the specified server.
+	 * @param server
+	 * @return
+	 * @throws IOException if no suitable writer is available
+	 */
+	static ImageWriter<BufferedImage> getPyramidalWriter(ImageServer<BufferedImage> server) throws IOException {
+		for (var writer : ImageWriterTools.getCompatibleWriters(server, "ome.tif")) {
+			if (writer.supportsPyramidal())
+				return writer;
+		}
+		throw new IOException("No pyramidal OME-TIFF writer available - is the Bio-Formats extension installed?");
+	}
+
+	/**
+	 * Estimate the working memory required to unmix an image.
+	 * Images are unmixed and written one tile at a time, so this depends upon the tile size and the number of tiles
+	 * that may be processed in parallel, rather than the size of the full image.
+	 * @param server the server to unmix
+	 * @param panel the fluorophores to unmix
+	 * @return estimated number of bytes
+	 */
+	public static long estimateMemoryBytes(ImageServer<BufferedImage> server, UnmixingPanel panel) {
+		return estimateMemoryBytes(server, panel, Runtime.getRuntime().availableProcessors());
+	}
+
+	static long estimateMemoryBytes(ImageServer<BufferedImage> server, UnmixingPanel panel, int nParallelTiles) {
+		var metadata = server.getMetadata();
+		long tileWidth = Math.min(server.getWidth(), Math.max(WRITER_TILE_SIZE, metadata.getPreferredTileWidth()));
+		long tileHeight = Math.min(server.getHeight(), Math.max(WRITER_TILE_SIZE, metadata.getPreferredTileHeight()));
+		long bytesPerPixel = (long)server.nChannels() * server.getPixelType().getBytesPerPixel() + panel.size() * 4L;
+		// A downsampled tile of the pyramid may be built from up to 4 tiles of the level above, as well as its own output
+		return tileWidth * tileHeight * bytesPerPixel * 5L * Math.max(1, nParallelTiles);
+	}
+
+	private static String createKey(double[][] proportionArray, UnmixingPanel panel) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256");
+			digest.update(Arrays.deepToString(proportionArray).getBytes(StandardCharsets.UTF_8));
+			digest.update(panel.toJson().getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest())
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is required to be available on every Java platform
+			throw new RuntimeException(e);
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private static class Checkpoint {
+
+		private String key;
+		private String image;
+		private String output;
+		private String[] panel;
+		private long timestamp;
+
+	}
+
+}
@@ -0,0 +1,334 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Normalised cross-correlation between every pair of channels of an image, as used to find duplicate channels.
+ * <p>
+ * For channels a and b this is {@code sum(a*b) / sqrt(sum(a*a) * sum(b*b))}, the same as
+ * {@link RemoveDuplicate#normCrossCorrelationFloat(float[], float[])}. All the sums needed for the matrix
+ * are accumulated in a single pass through the image, one tile at a time, with tiles processed in parallel.
+ * Only the upper triangle of the matrix is accumulated, since it is symmetric.
+ * Products are summed in double precision within small blocks of pixels, and block totals are combined
+ * with Kahan summation so that precision is not lost for very large images.
+ * <p>
+ * Pixels can optionally be subsampled on a regular grid, which gives a fast approximation for previews.
+ */
+public class ChannelCorrelation {
+
+	private final static Logger logger = LoggerFactory.getLogger(ChannelCorrelation.class);
+
+	private static final int TILE_SIZE = 256;
+
+	// Number of pixels to process together, so that all the channels for a block remain in cache
+	private static final int BLOCK_SIZE = 1024;
+
+	private final int nChannels;
+	private final double[] sums;
+	private final double[] compensation;
+	private long nPixels;
+
+	/**
+	 * Create an empty accumulator for the specified number of channels.
+	 * @param nChannels
+	 */
+	public ChannelCorrelation(int nChannels) {
+		if (nChannels <= 0)
+			throw new IllegalArgumentException("Number of channels must be > 0");
+		this.nChannels = nChannels;
+		int nPairs = nChannels * (nChannels + 1) / 2;
+		this.sums = new double[nPairs];
+		this.compensation = new double[nPairs];
+	}
+
+	/**
+	 * Compute the normalised cross-correlation matrix using every pixel of an image.
+	 * @param img
+	 * @return an N x N matrix, where N is the number of channels
+	 */
+	public static float[][] computeMatrix(BufferedImage img) {
+		return computeMatrix(img.getRaster(), 1, UnmixingPlan.getSharedPool());
+	}
+
+	/**
+	 * Compute an approximate normalised cross-correlation matrix, using a regular grid of at most
+	 * (approximately) {@code maxPixels} pixels.
+	 * @param img
+	 * @param maxPixels maximum number of pixels to use; all pixels are used if the image is smaller than this
+	 * @return an N x N matrix, where N is the number of channels
+	 */
+	public static float[][] computePreview(BufferedImage img, long maxPixels) {
+		return computeMatrix(img.getRaster(), getStepForPixels(img.getWidth(), img.getHeight(), maxPixels), UnmixingPlan.getSharedPool());
+	}
+
+	/**
+	 * Compute the normalised cross-correlation matrix for a raster.
+	 * @param raster
+	 * @param step use only pixels where x and y are both multiples of this value; 1 to use every pixel
+	 * @param executor executor used to process tiles in parallel
+	 * @return an N x N matrix, where N is the number of bands
+	 */
+	public static float[][] computeMatrix(Raster raster, int step, Executor executor) {
+		try {
+			return compute(raster.getNumBands(), raster.getMinX(), raster.getMinY(), raster.getWidth(), raster.getHeight(), step,
+					(x, y, w, h) -> raster.createChild(x, y, w, h, x, y, null), executor);
+		} catch (IOException e) {
+			// Can only occur due to interruption, since the raster is already in memory
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Compute the normalised cross-correlation matrix for the full-resolution image of a server,
+	 * reading one tile at a time so that the whole image never needs to be in memory.
+	 * @param server
+	 * @param step use only pixels where x and y are both multiples of this value; 1 to use every pixel
+	 * @param executor executor used to read and process tiles in parallel
+	 * @return an N x N matrix, where N is the number of channels
+	 * @throws IOException if the image could not be read
+	 */
+	public static float[][] computeMatrix(ImageServer<BufferedImage> server, int step, Executor executor) throws IOException {
+		String path = server.getPath();
+		return compute(server.nChannels(), 0, 0, server.getWidth(), server.getHeight(), step, (x, y, w, h) -> {
+			var img = server.readBufferedImage(RegionRequest.createInstance(path, 1.0, x, y, w, h));
+			if (img == null)
+				return null;
+			// Translate so that subsampling uses the same grid for every tile
+			return img.getRaster().createChild(0, 0, w, h, x, y, null);
+		}, executor);
+	}
+
+	/**
+	 * Get the subsampling step needed so that an image contains at most (approximately) the specified number of pixels.
+	 * @param width
+	 * @param height
+	 * @param maxPixels
+	 * @return
+	 */
+	public static int getStepForPixels(int width, int height, long maxPixels) {
+		if (maxPixels <= 0)
+			throw new IllegalArgumentException("Maximum number of pixels must be > 0");
+		double n = (double)width * height;
+		if (n <= maxPixels)
+			return 1;
+		return (int)Math.ceil(Math.sqrt(n / maxPixels));
+	}
+
+	@FunctionalInterface
+	private static interface TileReader {
+		Raster readTile(int x, int y, int w, int h) throws IOException;
+	}
+
+	private static float[][] compute(int nChannels, int minX, int minY, int width, int height, int step, TileReader reader, Executor executor) throws IOException {
+		if (step < 1)
+			throw new IllegalArgumentException("Step must be >= 1");
+		long startTime = System.currentTimeMillis();
+		var total = new ChannelCorrelation(nChannels);
+		// Tiles should contain a whole number of steps, but not be too small
+		int tileSize = Math.max(1, TILE_SIZE / step) * step;
+		Semaphore permits = new Semaphore(Math.max(2, Runtime.getRuntime().availableProcessors() * 2));
+		List<CompletableFuture<?>> futures = new ArrayList<>();
+		try {
+			for (int y = minY; y < minY + height; y += tileSize) {
+				for (int x = minX; x < minX + width; x += tileSize) {
+					int xx = x;
+					int yy = y;
+					int w = Math.min(tileSize, minX + width - x);
+					int h = Math.min(tileSize, minY + height - y);
+					permits.acquire();
+					var future = CompletableFuture.runAsync(() -> {
+						Raster tile;
+						try {
+							tile = reader.readTile(xx, yy, w, h);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+						if (tile == null)
+							return;
+						var local = new ChannelCorrelation(nChannels);
+						local.accumulate(tile, step);
+						total.add(local);
+					}, executor).whenComplete((v, e) -> permits.release());
+					futures.add(future);
+					// Fail fast if anything has already gone wrong
+					if (future.isCompletedExceptionally())
+						future.join();
+				}
+			}
+			CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get();
+		} catch (InterruptedException e) {
+			futures.forEach(f -> f.cancel(true));
+			throw new InterruptedIOException("Cross-correlation interrupted");
+		} catch (ExecutionException | CompletionException e) {
+			Throwable cause = e.getCause();
+			while (cause instanceof CompletionException && cause.getCause() != null)
+				cause = cause.getCause();
+			if (cause instanceof UncheckedIOException)
+				throw ((UncheckedIOException)cause).getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(cause);
+		}
+		logger.debug("Cross-correlation matrix for {} channels from {} pixels computed in {} ms",
+				nChannels, total.getPixelCount(), System.currentTimeMillis() - startTime);
+		return total.getMatrix();
+	}
+
+	/**
+	 * Add the pixels of a raster to this accumulator. This is not thread-safe.
+	 * @param raster the raster; it must have the same number of bands as this accumulator has channels
+	 * @param step use only pixels where x and y (in the raster's coordinate space) are both multiples of this value
+	 */
+	public void accumulate(Raster raster, int step) {
+		if (raster.getNumBands() != nChannels)
+			throw new IllegalArgumentException("Raster has " + raster.getNumBands() + " bands, but " + nChannels + " are required");
+		int minX = raster.getMinX();
+		int minY = raster.getMinY();
+		int width = raster.getWidth();
+		int height = raster.getHeight();
+		float[][] planes = new float[nChannels][];
+		if (step == 1) {
+			for (int c = 0; c < nChannels; c++)
+				planes[c] = ChannelPlanes.getSamples(raster, c, null);
+			accumulate(planes, width * height);
+			return;
+		}
+		// Find the first coordinates on the sampling grid
+		int x0 = Math.floorMod(-minX, step);
+		int y0 = Math.floorMod(-minY, step);
+		int nx = x0 >= width ? 0 : (width - x0 + step - 1) / step;
+		int ny = y0 >= height ? 0 : (height - y0 + step - 1) / step;
+		int n = nx * ny;
+		if (n == 0)
+			return;
+		float[] row = new float[width];
+		for (int c = 0; c < nChannels; c++) {
+			float[] plane = new float[n];
+			int k = 0;
+			for (int y = y0; y < height; y += step) {
+				ChannelPlanes.getSamples(raster, minX, minY + y, width, 1, c, row);
+				for (int x = x0; x < width; x += step)
+					plane[k++] = row[x];
+			}
+			planes[c] = plane;
+		}
+		accumulate(planes, n);
+	}
+
+	/**
+	 * Add pixels to this accumulator. This is not thread-safe.
+	 * @param planes one array of pixel values per channel
+	 * @param n number of pixels to use from each array
+	 */
+	public void accumulate(float[][] planes, int n) {
+		if (planes.length != nChannels)
+			throw new IllegalArgumentException("Expected " + nChannels + " channels, but got " + planes.length);
+		for (int start = 0; start < n; start += BLOCK_SIZE) {
+			int end = Math.min(n, start + BLOCK_SIZE);
+			int ind = 0;
+			for (int i = 0; i < nChannels; i++) {
+				float[] a = planes[i];
+				for (int j = i; j < nChannels; j++) {
+					float[] b = planes[j];
+					double sum = 0;
+					for (int k = start; k < end; k++)
+						sum += (double)a[k] * b[k];
+					addKahan(ind++, sum);
+				}
+			}
+		}
+		nPixels += n;
+	}
+
+	private void addKahan(int ind, double value) {
+		double y = value - compensation[ind];
+		double t = sums[ind] + y;
+		compensation[ind] = (t - sums[ind]) - y;
+		sums[ind] = t;
+	}
+
+	/**
+	 * Add the sums from another accumulator to this one. This is thread-safe with respect to other calls to this method.
+	 * @param other
+	 */
+	public synchronized void add(ChannelCorrelation other) {
+		if (other.nChannels != nChannels)
+			throw new IllegalArgumentException("Number of channels must match");
+		for (int i = 0; i < sums.length; i++)
+			addKahan(i, other.sums[i] - other.compensation[i]);
+		nPixels += other.nPixels;
+	}
+
+	/**
+	 * Get the number of pixels that have been accumulated.
+	 * @return
+	 */
+	public synchronized long getPixelCount() {
+		return nPixels;
+	}
+
+	/**
+	 * Get the normalised cross-correlation matrix for the pixels accumulated so far.
+	 * Diagonal entries are always 1.
+	 * @return
+	 */
+	public synchronized float[][] getMatrix() {
+		float[][] matrix = new float[nChannels][nChannels];
+		for (int i = 0; i < nChannels; i++) {
+			for (int j = i; j < nChannels; j++) {
+				if (i == j) {
+					matrix[i][j] = 1;
+				} else {
+					double value = sums[index(i, j)] / Math.sqrt(sums[index(i, i)] * sums[index(j, j)]);
+					matrix[i][j] = (float)value;
+					matrix[j][i] = (float)value;
+				}
+			}
+		}
+		return matrix;
+	}
+
+	private int index(int i, int j) {
+		// Index into the packed upper triangle, for i <= j
+		return i * nChannels - i * (i - 1) / 2 + (j - i);
+	}
+
+}
@@ -0,0 +1,254 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Static methods for reading and writing whole channels (bands) of a raster as float arrays.
+ * <p>
+ * Pixels are always returned in row-major order, i.e. the value for (x, y) is at index {@code y * width + x}.
+ * Where the raster uses a {@link ComponentSampleModel} backed by a byte, unsigned short or float buffer,
+ * the backing array is accessed directly; otherwise this falls back to {@link Raster#getSamples(int, int, int, int, int, float[])}.
+ * Either way the results are the same as those of the {@link Raster} methods, but much faster than requesting
+ * one sample at a time.
+ * <p>
+ * Note that direct access to the backing array means that Java2D may no longer be able to accelerate
+ * drawing of the raster. This is rarely an issue for the multichannel images these methods are intended for.
+ */
+public class ChannelPlanes {
+
+	// Suppressed default constructor for non-instantiability
+	private ChannelPlanes() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Get all the samples for one band of a raster.
+	 * @param raster the raster
+	 * @param band the band to read
+	 * @param out optional array to store the result; a new array is created if this is null or too short
+	 * @return the samples, in row-major order
+	 */
+	public static float[] getSamples(Raster raster, int band, float[] out) {
+		return getSamples(raster, raster.getMinX(), raster.getMinY(), raster.getWidth(), raster.getHeight(), band, out);
+	}
+
+	/**
+	 * Get the samples for one band within a rectangle of a raster.
+	 * @param raster the raster
+	 * @param x the x coordinate of the top left of the rectangle, in the raster's coordinate space
+	 * @param y the y coordinate of the top left of the rectangle, in the raster's coordinate space
+	 * @param w the width of the rectangle
+	 * @param h the height of the rectangle
+	 * @param band the band to read
+	 * @param out optional array to store the result; a new array is created if this is null or too short
+	 * @return the samples, in row-major order
+	 * @throws ArrayIndexOutOfBoundsException if the rectangle or band are outside the raster
+	 */
+	public static float[] getSamples(Raster raster, int x, int y, int w, int h, int band, float[] out) {
+		checkBounds(raster, x, y, w, h, band);
+		int n = w * h;
+		if (out == null || out.length < n)
+			out = new float[n];
+		var sm = raster.getSampleModel();
+		var db = raster.getDataBuffer();
+		if (!(sm instanceof ComponentSampleModel))
+			return raster.getSamples(x, y, w, h, band, out);
+
+		var csm = (ComponentSampleModel)sm;
+		int bank = csm.getBankIndices()[band];
+		int pixelStride = csm.getPixelStride();
+		int scanlineStride = csm.getScanlineStride();
+		int offset = db.getOffsets()[bank] + csm.getBandOffsets()[band] +
+				(y - raster.getSampleModelTranslateY()) * scanlineStride +
+				(x - raster.getSampleModelTranslateX()) * pixelStride;
+
+		int k = 0;
+		switch (db.getDataType()) {
+		case DataBuffer.TYPE_FLOAT:
+			if (!(db instanceof DataBufferFloat))
+				break;
+			float[] floatData = ((DataBufferFloat)db).getData(bank);
+			for (int yy = 0; yy < h; yy++) {
+				int ind = offset + yy * scanlineStride;
+				if (pixelStride == 1) {
+					System.arraycopy(floatData, ind, out, k, w);
+					k += w;
+				} else {
+					for (int xx = 0; xx < w; xx++) {
+						out[k++] = floatData[ind];
+						ind += pixelStride;
+					}
+				}
+			}
+			return out;
+		case DataBuffer.TYPE_USHORT:
+			if (!(db instanceof DataBufferUShort))
+				break;
+			short[] shortData = ((DataBufferUShort)db).getData(bank);
+			for (int yy = 0; yy < h; yy++) {
+				int ind = offset + yy * scanlineStride;
+				for (int xx = 0; xx < w; xx++) {
+					out[k++] = shortData[ind] & 0xFFFF;
+					ind += pixelStride;
+				}
+			}
+			return out;
+		case DataBuffer.TYPE_BYTE:
+			if (!(db instanceof DataBufferByte))
+				break;
+			byte[] byteData = ((DataBufferByte)db).getData(bank);
+			for (int yy = 0; yy < h; yy++) {
+				int ind = offset + yy * scanlineStride;
+				for (int xx = 0; xx < w; xx++) {
+					out[k++] = byteData[ind] & 0xFF;
+					ind += pixelStride;
+				}
+			}
+			return out;
+		default:
+			break;
+		}
+		return raster.getSamples(x, y, w, h, band, out);
+	}
+
+	/**
+	 * Get all the samples for several bands of a raster.
+	 * @param raster the raster
+	 * @param bands the bands to read
+	 * @return an array containing one row-major array per band, in the order the bands were specified
+	 */
+	public static float[][] getPlanes(Raster raster, int... bands) {
+		float[][] planes = new float[bands.length][];
+		for (int i = 0; i < bands.length; i++)
+			planes[i] = getSamples(raster, bands[i], null);
+		return planes;
+	}
+
+	/**
+	 * Set all the samples for one band of a raster.
+	 * Values are converted to the raster's data type in the same way as {@link WritableRaster#setSamples(int, int, int, int, int, float[])}.
+	 * @param raster the raster
+	 * @param band the band to write
+	 * @param values the samples, in row-major order
+	 */
+	public static void setSamples(WritableRaster raster, int band, float[] values) {
+		setSamples(raster, raster.getMinX(), raster.getMinY(), raster.getWidth(), raster.getHeight(), band, values);
+	}
+
+	/**
+	 * Set the samples for one band within a rectangle of a raster.
+	 * Values are converted to the raster's data type in the same way as {@link WritableRaster#setSamples(int, int, int, int, int, float[])}.
+	 * @param raster the raster
+	 * @param x the x coordinate of the top left of the rectangle, in the raster's coordinate space
+	 * @param y the y coordinate of the top left of the rectangle, in the raster's coordinate space
+	 * @param w the width of the rectangle
+	 * @param h the height of the rectangle
+	 * @param band the band to write
+	 * @param values the samples, in row-major order
+	 * @throws ArrayIndexOutOfBoundsException if the rectangle or band are outside the raster, or there are too few values
+	 */
+	public static void setSamples(WritableRaster raster, int x, int y, int w, int h, int band, float[] values) {
+		checkBounds(raster, x, y, w, h, band);
+		if (values.length < w * h)
+			throw new ArrayIndexOutOfBoundsException("Expected " + (w * h) + " values, but array length is " + values.length);
+		var sm = raster.getSampleModel();
+		var db = raster.getDataBuffer();
+		if (!(sm instanceof ComponentSampleModel)) {
+			raster.setSamples(x, y, w, h, band, values);
+			return;
+		}
+
+		var csm = (ComponentSampleModel)sm;
+		int bank = csm.getBankIndices()[band];
+		int pixelStride = csm.getPixelStride();
+		int scanlineStride = csm.getScanlineStride();
+		int offset = db.getOffsets()[bank] + csm.getBandOffsets()[band] +
+				(y - raster.getSampleModelTranslateY()) * scanlineStride +
+				(x - raster.getSampleModelTranslateX()) * pixelStride;
+
+		int k = 0;
+		switch (db.getDataType()) {
+		case DataBuffer.TYPE_FLOAT:
+			if (!(db instanceof DataBufferFloat))
+				break;
+			float[] floatData = ((DataBufferFloat)db).getData(bank);
+			for (int yy = 0; yy < h; yy++) {
+				int ind = offset + yy * scanlineStride;
+				if (pixelStride == 1) {
+					System.arraycopy(values, k, floatData, ind, w);
+					k += w;
+				} else {
+					for (int xx = 0; xx < w; xx++) {
+						floatData[ind] = values[k++];
+						ind += pixelStride;
+					}
+				}
+			}
+			return;
+		case DataBuffer.TYPE_USHORT:
+			if (!(db instanceof DataBufferUShort))
+				break;
+			short[] shortData = ((DataBufferUShort)db).getData(bank);
+			for (int yy = 0; yy < h; yy++) {
+				int ind = offset + yy * scanlineStride;
+				for (int xx = 0; xx < w; xx++) {
+					// Same conversion as SampleModel.setSample(int, int, int, float, DataBuffer)
+					shortData[ind] = (short)(int)values[k++];
+					ind += pixelStride;
+				}
+			}
+			return;
+		case DataBuffer.TYPE_BYTE:
+			if (!(db instanceof DataBufferByte))
+				break;
+			byte[] byteData = ((DataBufferByte)db).getData(bank);
+			for (int yy = 0; yy < h; yy++) {
+				int ind = offset + yy * scanlineStride;
+				for (int xx = 0; xx < w; xx++) {
+					byteData[ind] = (byte)(int)values[k++];
+					ind += pixelStride;
+				}
+			}
+			return;
+		default:
+			break;
+		}
+		raster.setSamples(x, y, w, h, band, values);
+	}
+
+	private static void checkBounds(Raster raster, int x, int y, int w, int h, int band) {
+		if (w < 0 || h < 0 || x < raster.getMinX() || y < raster.getMinY() ||
+				x + w > raster.getMinX() + raster.getWidth() || y + h > raster.getMinY() + raster.getHeight())
+			throw new ArrayIndexOutOfBoundsException("Invalid coordinates (" + x + ", " + y + ", " + w + ", " + h + ")");
+		if (band < 0 || band >= raster.getNumBands())
+			throw new ArrayIndexOutOfBoundsException("Invalid band " + band + " for raster with " + raster.getNumBands() + " bands");
+	}
+
+}
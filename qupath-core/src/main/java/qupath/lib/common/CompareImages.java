@@ -3,8 +3,9 @@ package qupath.lib.common;
 import qupath.lib.images.ImageData;
 
 import java.awt.image.BufferedImage;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -17,9 +18,10 @@ public class CompareImages {
      * the most similar image and report the values.
      *
      * @param imageDataList
+     * @param outputPath csv file to write the mapped filters to
+     * @throws IOException
      */
-    public static void mapFilters(List<ImageData> imageDataList) {
-        String filePath = "D:\\Desktop\\QuPath\\Compare Images\\MappedFilters.csv";
+    public static void mapFilters(List<ImageData> imageDataList, Path outputPath) throws IOException {
         BufferedImage img1 = RemoveDuplicate.convertImageDataToImage(imageDataList.get(0));
         BufferedImage img2 = RemoveDuplicate.convertImageDataToImage(imageDataList.get(1));
         int width = img1.getWidth();
@@ -57,18 +59,13 @@ public class CompareImages {
             }
         }
 
-        try {
-            FileWriter writer = new FileWriter(filePath);
+        try(var writer = Files.newBufferedWriter(outputPath)) {
             for(int i = 0; i < 7; i++) {
                 writer.append(Integer.toString(finalList.get(i)));
                 if(i != 6) {
                     writer.append(",");
                 }
             }
-            writer.flush();
-            writer.close();
-        } catch(IOException e) {
-            e.printStackTrace();
         }
     }
 
@@ -77,9 +74,11 @@ public class CompareImages {
      * value. This allows easier evaluation of different unmixing methods.
      *
      * @param imageDataList
+     * @param outputDirectory directory to write one csv file to for each pair of images
+     * @throws IOException
      */
-    public static void compareImages(List<ImageData> imageDataList) {
-        String filePath = "D:\\Desktop\\QuPath\\Compare Images\\im3_vs_Duplicate_Scaled.csv";
+    public static void compareImages(List<ImageData> imageDataList, Path outputDirectory) throws IOException {
+        Files.createDirectories(outputDirectory);
         List<BufferedImage> images = new ArrayList<>();
         float[] maxIntensities = new float[imageDataList.size()];
         for(int i = 0; i < imageDataList.size(); i++) {
@@ -167,8 +166,8 @@ public class CompareImages {
 
         for(int img1 = 0; img1 < images.size() - 1; img1++) {
             for(int img2 = img1 + 1; img2 < images.size(); img2++) {
+                Path filePath = outputDirectory.resolve(img1 + "_vs_" + img2 + "_compare" + ".csv");
                 for(int band = 0; band < orderChannels.get(0).size(); band++) {
-                    filePath = "D:\\Desktop\\QuPath\\Compare Images\\" + img1 + "_vs_" + img2 + "_compare" + ".csv";
                     maxIntensity1 = maxIntensities[img1];
                     maxIntensity2 = maxIntensities[img2];
                     pixelIntensities1 = RemoveDuplicate.convertAllMaximumPixelIntensities(images.get(img1), orderChannels.get(img1).get(band), maxIntensity1);
@@ -176,18 +175,13 @@ public class CompareImages {
                     values[band] = Float.toString(RemoveDuplicate.normCrossCorrelationFloat(pixelIntensities1, pixelIntensities2));
                 }
                 //write values to csv file
-                try {
-                    FileWriter writer = new FileWriter(filePath);
+                try(var writer = Files.newBufferedWriter(filePath)) {
                     for(int i = 0; i < values.length; i++) {
                         writer.append(values[i]);
                         if(i != (values.length - 1)) {
                             writer.append(",");
                         }
                     }
-                    writer.flush();
-                    writer.close();
-                } catch(IOException e) {
-                    e.printStackTrace();
                 }
             }
         }
@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cached answers to duplicate-channel queries for every possible threshold of a cross-correlation matrix.
+ * <p>
+ * The set of distinct channels returned by {@link RemoveDuplicate#distinctChannels(float[][], double)} can only change
+ * when the threshold passes one of the values in the matrix. The sorted (unique) off-diagonal values are stored,
+ * along with the distinct channels for each interval between them, so that any threshold can be answered with a
+ * binary search. The threshold giving a required number of channels is also precomputed.
+ * <p>
+ * Channels are treated as duplicates in exactly the same way as {@link RemoveDuplicate#distinctChannels(float[][], double)},
+ * i.e. a channel is removed if it is more similar than the threshold to an earlier channel that has not itself been removed.
+ */
+public class DuplicateChannelSweep {
+
+	private final int nChannels;
+
+	// Sorted unique off-diagonal matrix values
+	private final float[] values;
+
+	// Distinct channels for thresholds in [values[k-1], values[k]); k == 0 means below the lowest value
+	private final List<List<Integer>> distinct;
+
+	// Threshold to use to get (at least) n + 1 channels
+	private final double[] thresholdsForChannels;
+
+	/**
+	 * Create a sweep for a cross-correlation matrix.
+	 * @param crossCorrelationMatrix square, symmetric matrix of channel similarities
+	 */
+	public DuplicateChannelSweep(float[][] crossCorrelationMatrix) {
+		this.nChannels = crossCorrelationMatrix.length;
+		float[] allValues = new float[nChannels * (nChannels - 1) / 2];
+		int n = 0;
+		for (int i = 0; i < nChannels; i++) {
+			if (crossCorrelationMatrix[i].length != nChannels)
+				throw new IllegalArgumentException("Cross-correlation matrix must be square");
+			for (int j = i + 1; j < nChannels; j++) {
+				float value = crossCorrelationMatrix[i][j];
+				// NaN is never greater than a threshold, so never causes a duplicate
+				if (!Float.isNaN(value))
+					allValues[n++] = value;
+			}
+		}
+		Arrays.sort(allValues, 0, n);
+		int nUnique = 0;
+		for (int i = 0; i < n; i++) {
+			if (nUnique == 0 || allValues[i] != allValues[nUnique - 1])
+				allValues[nUnique++] = allValues[i];
+		}
+		this.values = Arrays.copyOf(allValues, nUnique);
+
+		this.distinct = new ArrayList<>(nUnique + 1);
+		for (int k = 0; k <= nUnique; k++) {
+			double threshold = k == 0 ? Double.NEGATIVE_INFINITY : values[k - 1];
+			distinct.add(Collections.unmodifiableList(RemoveDuplicate.distinctChannels(crossCorrelationMatrix, threshold)));
+		}
+
+		this.thresholdsForChannels = new double[nChannels];
+		for (int c = 1; c <= nChannels; c++)
+			thresholdsForChannels[c - 1] = findThresholdForChannels(c);
+	}
+
+	private double findThresholdForChannels(int nRequired) {
+		// Prefer the highest threshold that gives exactly the required number of channels,
+		// otherwise the one that gives the fewest channels above the number required
+		int best = -1;
+		for (int k = distinct.size() - 1; k >= 0; k--) {
+			int count = distinct.get(k).size();
+			if (count == nRequired) {
+				best = k;
+				break;
+			}
+			if (count > nRequired && (best < 0 || count < distinct.get(best).size()))
+				best = k;
+		}
+		if (best < 0)
+			best = distinct.size() - 1;
+		return getRepresentativeThreshold(best);
+	}
+
+	/**
+	 * Get a threshold that lies within the interval with index k.
+	 * Where possible, this is the midpoint so that it is not sensitive to rounding.
+	 */
+	private double getRepresentativeThreshold(int k) {
+		if (values.length == 0)
+			return 1.0;
+		if (k == 0)
+			return Math.nextDown(values[0]);
+		if (k == values.length)
+			return values[k - 1];
+		return values[k - 1] + (values[k] - (double)values[k - 1]) / 2.0;
+	}
+
+	private int getIntervalIndex(double threshold) {
+		// Binary search for the number of values <= threshold
+		int lo = 0;
+		int hi = values.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] <= threshold)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Get the number of channels in the matrix.
+	 * @return
+	 */
+	public int nChannels() {
+		return nChannels;
+	}
+
+	/**
+	 * Get the distinct channels that remain for a specified threshold.
+	 * This gives the same result as {@link RemoveDuplicate#distinctChannels(float[][], double)}.
+	 * @param threshold
+	 * @return an unmodifiable list of 0-based channel indices
+	 */
+	public List<Integer> getDistinctChannels(double threshold) {
+		if (Double.isNaN(threshold))
+			return distinct.get(distinct.size() - 1);
+		return distinct.get(getIntervalIndex(threshold));
+	}
+
+	/**
+	 * Get the number of distinct channels that remain for a specified threshold.
+	 * @param threshold
+	 * @return
+	 */
+	public int getChannelCount(double threshold) {
+		return getDistinctChannels(threshold).size();
+	}
+
+	/**
+	 * Get a threshold value that gives the required number of distinct channels.
+	 * If no threshold gives exactly this number, the threshold giving the closest larger number is returned.
+	 * @param nRequired number of channels required, between 1 and the number of channels in the matrix
+	 * @return
+	 */
+	public double getThresholdForChannels(int nRequired) {
+		if (nRequired < 1 || nRequired > nChannels)
+			throw new IllegalArgumentException("Number of channels must be between 1 and " + nChannels);
+		return thresholdsForChannels[nRequired - 1];
+	}
+
+	/**
+	 * Get the threshold values required for 1, 2, ... (nChannels - 1) channels.
+	 * This is equivalent to {@link RemoveDuplicate#getAllThresholdValues(float[][])}.
+	 * @return
+	 */
+	public double[] getAllThresholdValues() {
+		return Arrays.copyOf(thresholdsForChannels, Math.max(0, nChannels - 1));
+	}
+
+}
@@ -0,0 +1,167 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Definition of a single fluorophore for spectral unmixing.
+ * <p>
+ * A fluorophore is unmixed by regressing the intensities of its channels against the proportions of the
+ * corresponding filters. The first filter is the one belonging to the fluorophore itself; the contributions
+ * of all other filters are subtracted from the intensity of the reference channel to give the unmixed value.
+ * <p>
+ * Channel and filter indices are 0-based, and index into the rows (filters) and columns (channels)
+ * of the proportion array.
+ */
+public class Fluorophore {
+
+	private final String name;
+	private final int[] channels;
+	private final int[] filters;
+	private final int referenceChannel;
+
+	/**
+	 * Constructor.
+	 * @param name name of the fluorophore, used as the output channel name
+	 * @param channels 0-based indices of the image channels used for regression
+	 * @param filters 0-based indices of the filters used for regression; must be the same length as channels
+	 * @param referenceChannel index into channels (not the image!) of the channel from which the cross-talk is subtracted
+	 */
+	public Fluorophore(String name, int[] channels, int[] filters, int referenceChannel) {
+		if (channels.length == 0)
+			throw new IllegalArgumentException("At least one channel is required to unmix " + name);
+		if (channels.length != filters.length)
+			throw new IllegalArgumentException("Number of channels (" + channels.length + ") must match the number of filters (" + filters.length + ") for " + name);
+		if (referenceChannel < 0 || referenceChannel >= channels.length)
+			throw new IllegalArgumentException("Reference channel " + referenceChannel + " is out of range for " + name);
+		this.name = name;
+		this.channels = channels.clone();
+		this.filters = filters.clone();
+		this.referenceChannel = referenceChannel;
+	}
+
+	/**
+	 * Get the name of the fluorophore.
+	 * @return
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Get the 0-based image channels used for regression.
+	 * @return
+	 */
+	public int[] getChannels() {
+		return channels.clone();
+	}
+
+	/**
+	 * Get the 0-based filters used for regression.
+	 * @return
+	 */
+	public int[] getFilters() {
+		return filters.clone();
+	}
+
+	/**
+	 * Get the image channels as a list, as required by {@link Unmixing#completeManualRegression(ArrayList, double[][], ArrayList, ArrayList)}.
+	 * @return
+	 */
+	public ArrayList<Integer> getChannelList() {
+		return toList(channels);
+	}
+
+	/**
+	 * Get the filters as a list, as required by {@link Unmixing#completeManualRegression(ArrayList, double[][], ArrayList, ArrayList)}.
+	 * @return
+	 */
+	public ArrayList<Integer> getFilterList() {
+		return toList(filters);
+	}
+
+	/**
+	 * Get the index (within {@link #getChannels()}) of the channel from which the cross-talk is subtracted.
+	 * @return
+	 */
+	public int getReferenceChannel() {
+		return referenceChannel;
+	}
+
+	/**
+	 * Number of channels (and filters) used for regression.
+	 * @return
+	 */
+	public int nChannels() {
+		return channels.length;
+	}
+
+	/**
+	 * Calculate the unmixed value for a single pixel, given the channel intensities and the regression coefficients.
+	 * Negative values are clipped to zero.
+	 *
+	 * @param pixelIntensity intensities of the channels returned by {@link #getChannels()}, in the same order
+	 * @param beta regression coefficients, one per filter
+	 * @param proportionArray filter x channel proportion array
+	 * @return
+	 */
+	public double subtractCrossTalk(double[] pixelIntensity, double[] beta, double[][] proportionArray) {
+		int c = channels[referenceChannel];
+		double result = pixelIntensity[referenceChannel];
+		for (int j = 1; j < filters.length; j++)
+			result -= beta[j] * proportionArray[filters[j]][c];
+		return result < 0 ? 0 : result;
+	}
+
+	private static ArrayList<Integer> toList(int[] values) {
+		ArrayList<Integer> list = new ArrayList<>(values.length);
+		for (int v : values)
+			list.add(v);
+		return list;
+	}
+
+	/**
+	 * Get the fluorophores used by {@link AutoUnmixing}, with channels and filters chosen so that the lines
+	 * of the panel graph cross over.
+	 * @return
+	 */
+	public static List<Fluorophore> getCrossedFluorophores() {
+		return Arrays.asList(
+				new Fluorophore("DAPI", new int[] {2, 3}, new int[] {4, 3}, 1),
+				new Fluorophore("Opal780", new int[] {9, 10}, new int[] {6, 5}, 1),
+				new Fluorophore("Opal480", new int[] {13, 14, 15, 16}, new int[] {3, 6, 0, 5}, 0),
+				new Fluorophore("Opal690", new int[] {17, 18, 19}, new int[] {5, 6, 2}, 2),
+				new Fluorophore("FITC", new int[] {21, 23, 25}, new int[] {0, 6, 1}, 0),
+				new Fluorophore("Cy3", new int[] {30, 34}, new int[] {1, 2}, 0),
+				new Fluorophore("TexasRed", new int[] {36, 38}, new int[] {2, 6}, 1)
+				);
+	}
+
+	@Override
+	public String toString() {
+		return name + " " + Arrays.toString(channels);
+	}
+
+}
@@ -1,13 +1,37 @@
 package qupath.lib.common;
 
+import com.google.common.primitives.Ints;
 import qupath.lib.images.ImageData;
-import qupath.lib.images.servers.ImageChannel;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
 import java.util.ArrayList;
-
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unmixes a single, hard-coded fluorophore from the full image.
+ *
+ * @deprecated {@link AutoUnmixing} now uses {@link UnmixingPlan}, which reads each tile only once and
+ *             unmixes all fluorophores from it. Use {@link UnmixingPanel} to define fluorophores.
+ */
+@Deprecated
 public class MultiThreadAutoUnmix extends Thread {
 
+    /*
+     * How each output channel is calculated from the regression coefficients (beta) for the fluorophores below.
+     * Each row is {intensity index, proportion channel index, subtracted filter indices...}, so that
+     *   result = intensity[a] - sum(beta[j] * proportionArray[filter[j]][channel[p]])
+     * with negative results set to 0. Any remaining channels are left as they are in the original image.
+     */
+    static final int[][] TEXAS_RED_OUTPUTS = {{1, 1, 1}, {0, 0, 0}};
+    static final int[][] CY3_OUTPUTS = {{0, 0, 1}, {1, 1, 0}};
+    static final int[][] OPAL780_OUTPUTS = {{1, 1, 1}, {0, 0, 0}};
+    static final int[][] FITC_OUTPUTS = {{0, 0, 1, 2}, {2, 2, 0, 2}, {1, 1, 0, 1}};
+    static final int[][] OPAL480_OUTPUTS = {{0, 0, 1, 2, 3}, {2, 2, 0, 2, 3}, {1, 1, 0, 1, 3}, {3, 3, 0, 1, 2}};
+    static final int[][] OPAL690_OUTPUTS = {{2, 2, 1, 2}, {1, 1, 0, 2}, {0, 0, 0, 1}};
+    static final int[][] DAPI_OUTPUTS = {{1, 1, 1}, {1, 0, 0}};
+
     String name;
     BufferedImage image;
     ImageData imgData;
@@ -52,78 +76,7 @@ public class MultiThreadAutoUnmix extends Thread {
      *
      */
     public static BufferedImage unmixTexasRed_Crossed(ImageData imageData, double[][] proportionArray) {
-        //channels 36/38
-        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
-
-        ArrayList<Integer> chosenChannels = new ArrayList<>();
-        chosenChannels.add(36);
-        chosenChannels.add(38);
-
-        ArrayList<Integer> chosenFilters = new ArrayList<>();
-        chosenFilters.add(2);
-        chosenFilters.add(6);
-
-        ArrayList<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < chosenChannels.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-
-        BufferedImage limitedImage = RemoveDuplicate.createNewBufferedImage(chosenChannels, oldImage);
-        BufferedImage resultImage = limitedImage;
-        int width = imageData.getServer().getWidth();
-        int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
-
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = oldImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
-
-                aValues[count] = beta;
-                count++;
-
-                double result0 = pixelIntensity.get(1) - (beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(1)]);
-                double result1 = pixelIntensity.get(0) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(0)]);
-
-                if(result0 < 0) {
-                    resultImage.getRaster().setSample(x, y, 0, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 0, result0);
-                }
-
-                if(result1 < 0) {
-                    resultImage.getRaster().setSample(x, y, 1, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 1, result1);
-                }
-
-                pixelIntensity.clear();
-            }
-        }
-        //un-comment this to export a-values
-//        try {
-//            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + "TexasRed_Crossed_A" + ".csv");
-//            for(int i = 0; i < width * height; i++) {
-//                for(int j = 0; j < chosenChannels.size(); j++) {
-//                    writer.append((aValues[i][j] + ","));
-//                    if(j == chosenChannels.size() - 1) {
-//                        writer.append((Double.toString(aValues[i][j])));
-//                    }
-//                }
-//                writer.append("\n");
-//            }
-//            writer.flush();
-//            writer.close();
-//        } catch(IOException e) {
-//            e.printStackTrace();
-//        }
-        return resultImage;
+        return unmix(imageData, proportionArray, Arrays.asList(36, 38), Arrays.asList(2, 6), TEXAS_RED_OUTPUTS);
     }
 
     /**
@@ -135,78 +88,7 @@ public class MultiThreadAutoUnmix extends Thread {
      *
      */
     public static BufferedImage unmixCy3_Crossed(ImageData imageData, double[][] proportionArray) {
-        //channels 30/34
-        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
-
-        ArrayList<Integer> chosenChannels = new ArrayList<>();
-        chosenChannels.add(30);
-        chosenChannels.add(34);
-
-        ArrayList<Integer> chosenFilters = new ArrayList<>();
-        chosenFilters.add(1);
-        chosenFilters.add(2);
-
-        ArrayList<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < chosenChannels.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-
-        BufferedImage limitedImage = RemoveDuplicate.createNewBufferedImage(chosenChannels, oldImage);
-        BufferedImage resultImage = limitedImage;
-        int width = imageData.getServer().getWidth();
-        int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
-
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = oldImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
-
-                aValues[count] = beta;
-                count++;
-
-                double result0 = pixelIntensity.get(0) - (beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(0)]);
-                double result1 = pixelIntensity.get(1) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(1)]);
-
-                if(result0 < 0) {
-                    resultImage.getRaster().setSample(x, y, 0, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 0, result0);
-                }
-
-                if(result1 < 0) {
-                    resultImage.getRaster().setSample(x, y, 1, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 1, result1);
-                }
-
-                pixelIntensity.clear();
-            }
-        }
-        //un-comment this to export a-values
-//        try {
-//            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + "Cy3_Crossed_A" + ".csv");
-//            for(int i = 0; i < width * height; i++) {
-//                for(int j = 0; j < chosenChannels.size(); j++) {
-//                    writer.append((aValues[i][j] + ","));
-//                    if(j == chosenChannels.size() - 1) {
-//                        writer.append((Double.toString(aValues[i][j])));
-//                    }
-//                }
-//                writer.append("\n");
-//            }
-//            writer.flush();
-//            writer.close();
-//        } catch(IOException e) {
-//            e.printStackTrace();
-//        }
-        return resultImage;
+        return unmix(imageData, proportionArray, Arrays.asList(30, 34), Arrays.asList(1, 2), CY3_OUTPUTS);
     }
 
     /**
@@ -218,79 +100,7 @@ public class MultiThreadAutoUnmix extends Thread {
      *
      */
     public static BufferedImage unmixOpal780_Crossed(ImageData imageData, double[][] proportionArray) {
-        //channels 9-10
-        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
-
-        ArrayList<Integer> chosenChannels = new ArrayList<>();
-        chosenChannels.add(9);
-        chosenChannels.add(10);
-
-        ArrayList<Integer> chosenFilters = new ArrayList<>();
-        chosenFilters.add(6);
-        chosenFilters.add(5);
-
-        ArrayList<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < chosenChannels.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-
-        BufferedImage limitedImage = RemoveDuplicate.createNewBufferedImage(chosenChannels, oldImage);
-        BufferedImage resultImage = limitedImage;
-        int width = imageData.getServer().getWidth();
-        int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
-
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = oldImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
-
-                aValues[count] = beta;
-                count++;
-
-                double result0 = pixelIntensity.get(1) - (beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(1)]);
-                double result1 = pixelIntensity.get(0) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(0)]);
-
-                if(result0 < 0) {
-                    resultImage.getRaster().setSample(x, y, 0, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 0, result0);
-                }
-
-                if(result1 < 0) {
-                    resultImage.getRaster().setSample(x, y, 1, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 1, result1);
-                }
-
-                pixelIntensity.clear();
-            }
-        }
-        //un-comment this to export a-values
-//        try {
-//            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + "Opal780_Crossed_A" + ".csv");
-//            for(int i = 0; i < width * height; i++) {
-//                for(int j = 0; j < chosenChannels.size(); j++) {
-//                    writer.append((aValues[i][j] + ","));
-//                    if(j == chosenChannels.size() - 1) {
-//                        writer.append((Double.toString(aValues[i][j])));
-//                    }
-//                }
-//                writer.append("\n");
-//            }
-//            writer.flush();
-//            writer.close();
-//        } catch(IOException e) {
-//            e.printStackTrace();
-//        }
-
-        return resultImage;
+        return unmix(imageData, proportionArray, Arrays.asList(9, 10), Arrays.asList(6, 5), OPAL780_OUTPUTS);
     }
 
     /**
@@ -302,87 +112,7 @@ public class MultiThreadAutoUnmix extends Thread {
      *
      */
     public static BufferedImage unmixFITC_Crossed(ImageData imageData, double[][] proportionArray) {
-        //channels 21-29
-        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
-
-        ArrayList<Integer> chosenChannels = new ArrayList<>();
-        chosenChannels.add(21);
-        chosenChannels.add(23);
-        chosenChannels.add(25);
-
-        ArrayList<Integer> chosenFilters = new ArrayList<>();
-        chosenFilters.add(0);
-        chosenFilters.add(6);
-        chosenFilters.add(1);
-
-        ArrayList<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < chosenChannels.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-
-        BufferedImage limitedImage = RemoveDuplicate.createNewBufferedImage(chosenChannels, oldImage);
-        BufferedImage resultImage = limitedImage;
-        int width = imageData.getServer().getWidth();
-        int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
-
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = oldImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
-
-                aValues[count] = beta;
-                count++;
-
-                double result0 = pixelIntensity.get(0) - (beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(0)] + beta[2] * proportionArray[chosenFilters.get(2)][chosenChannels.get(0)]);
-                double result1 = pixelIntensity.get(2) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(2)] + beta[2] * proportionArray[chosenFilters.get(2)][chosenChannels.get(2)]);
-                double result2 = pixelIntensity.get(1) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(1)] + beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(1)]);
-
-                if(result0 < 0) {
-                    resultImage.getRaster().setSample(x, y, 0, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 0, result0);
-                }
-
-                if(result1 < 0) {
-                    resultImage.getRaster().setSample(x, y, 1, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 1, result1);
-                }
-
-                if(result2 < 0) {
-                    resultImage.getRaster().setSample(x, y, 2, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 2, result2);
-                }
-                pixelIntensity.clear();
-            }
-        }
-        //un-comment this to export a-values
-//        try {
-//            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + "FITC_Crossed_A" + ".csv");
-//            for(int i = 0; i < width * height; i++) {
-//                for(int j = 0; j < chosenChannels.size(); j++) {
-//                    writer.append((aValues[i][j] + ","));
-//                    if(j == chosenChannels.size() - 1) {
-//                        writer.append((Double.toString(aValues[i][j])));
-//                    }
-//                }
-//                writer.append("\n");
-//            }
-//            writer.flush();
-//            writer.close();
-//        } catch(IOException e) {
-//            e.printStackTrace();
-//        }
-
-        return resultImage;
+        return unmix(imageData, proportionArray, Arrays.asList(21, 23, 25), Arrays.asList(0, 6, 1), FITC_OUTPUTS);
     }
 
     /**
@@ -394,96 +124,7 @@ public class MultiThreadAutoUnmix extends Thread {
      *
      */
     public static BufferedImage unmixOpal480_Crossed(ImageData imageData, double[][] proportionArray) {
-        //channels 21-29
-        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
-
-        ArrayList<Integer> chosenChannels = new ArrayList<>();
-        chosenChannels.add(13);
-        chosenChannels.add(14);
-        chosenChannels.add(15);
-        chosenChannels.add(16);
-
-        ArrayList<Integer> chosenFilters = new ArrayList<>();
-        chosenFilters.add(3);
-        chosenFilters.add(6);
-        chosenFilters.add(0);
-        chosenFilters.add(5);
-
-        ArrayList<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < chosenChannels.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-
-        BufferedImage limitedImage = RemoveDuplicate.createNewBufferedImage(chosenChannels, oldImage);
-        BufferedImage resultImage = limitedImage;
-        int width = imageData.getServer().getWidth();
-        int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
-
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = oldImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
-
-                aValues[count] = beta;
-                count++;
-
-                double result0 = pixelIntensity.get(0) - (beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(0)] + beta[2] * proportionArray[chosenFilters.get(2)][chosenChannels.get(0)] + beta[3] * proportionArray[chosenFilters.get(3)][chosenChannels.get(0)]);
-                double result1 = pixelIntensity.get(2) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(2)] + beta[2] * proportionArray[chosenFilters.get(2)][chosenChannels.get(2)] + beta[3] * proportionArray[chosenFilters.get(3)][chosenChannels.get(2)]);
-                double result2 = pixelIntensity.get(1) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(1)] + beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(1)]  + beta[3] * proportionArray[chosenFilters.get(3)][chosenChannels.get(1)]);
-                double result3 = pixelIntensity.get(3) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(3)] + beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(3)] + beta[2] * proportionArray[chosenFilters.get(2)][chosenChannels.get(3)]);
-
-                if(result0 < 0) {
-                    resultImage.getRaster().setSample(x, y, 0, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 0, result0);
-                }
-
-                if(result1 < 0) {
-                    resultImage.getRaster().setSample(x, y, 1, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 1, result1);
-                }
-
-                if(result2 < 0) {
-                    resultImage.getRaster().setSample(x, y, 2, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 2, result2);
-                }
-
-                if(result3 < 0) {
-                    resultImage.getRaster().setSample(x, y, 3, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 3, result3);
-                }
-
-                pixelIntensity.clear();
-            }
-        }
-        //un-comment this to export a-values
-//        try {
-//            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + "Opal480_Crossed_A" + ".csv");
-//            for(int i = 0; i < width * height; i++) {
-//                for(int j = 0; j < chosenChannels.size(); j++) {
-//                    writer.append((aValues[i][j] + ","));
-//                    if(j == chosenChannels.size() - 1) {
-//                        writer.append((Double.toString(aValues[i][j])));
-//                    }
-//                }
-//                writer.append("\n");
-//            }
-//            writer.flush();
-//            writer.close();
-//        } catch(IOException e) {
-//            e.printStackTrace();
-//        }
-        return resultImage;
+        return unmix(imageData, proportionArray, Arrays.asList(13, 14, 15, 16), Arrays.asList(3, 6, 0, 5), OPAL480_OUTPUTS);
     }
 
     /**
@@ -495,87 +136,7 @@ public class MultiThreadAutoUnmix extends Thread {
      *
      */
     public static BufferedImage unmixOpal690_Crossed(ImageData imageData, double[][] proportionArray) {
-        //channels 17-19
-        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
-
-        ArrayList<Integer> chosenChannels = new ArrayList<>();
-        chosenChannels.add(17);
-        chosenChannels.add(18);
-        chosenChannels.add(19);
-
-        ArrayList<Integer> chosenFilters = new ArrayList<>();
-        chosenFilters.add(5);
-        chosenFilters.add(6);
-        chosenFilters.add(2);
-
-        ArrayList<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < chosenChannels.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-
-        BufferedImage limitedImage = RemoveDuplicate.createNewBufferedImage(chosenChannels, oldImage);
-        BufferedImage resultImage = limitedImage;
-        int width = imageData.getServer().getWidth();
-        int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
-
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = oldImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
-
-                aValues[count] = beta;
-                count++;
-
-                double result0 = pixelIntensity.get(2) - (beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(2)] + beta[2] * proportionArray[chosenFilters.get(2)][chosenChannels.get(2)]);
-                double result1 = pixelIntensity.get(1) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(1)] + beta[2] * proportionArray[chosenFilters.get(2)][chosenChannels.get(1)]);
-                double result2 = pixelIntensity.get(0) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(0)] + beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(0)]);
-
-                if(result0 < 0) {
-                    resultImage.getRaster().setSample(x, y, 0, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 0, result0);
-                }
-
-                if(result1 < 0) {
-                    resultImage.getRaster().setSample(x, y, 1, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 1, result1);
-                }
-
-                if(result2 < 0) {
-                    resultImage.getRaster().setSample(x, y, 2, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 2, result2);
-                }
-
-                pixelIntensity.clear();
-            }
-        }
-        //un-comment this to export a-values
-//        try {
-//            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + "Opal690_Crossed_A" + ".csv");
-//            for(int i = 0; i < width * height; i++) {
-//                for(int j = 0; j < chosenChannels.size(); j++) {
-//                    writer.append((aValues[i][j] + ","));
-//                    if(j == chosenChannels.size() - 1) {
-//                        writer.append((Double.toString(aValues[i][j])));
-//                    }
-//                }
-//                writer.append("\n");
-//            }
-//            writer.flush();
-//            writer.close();
-//        } catch(IOException e) {
-//            e.printStackTrace();
-//        }
-        return resultImage;
+        return unmix(imageData, proportionArray, Arrays.asList(17, 18, 19), Arrays.asList(5, 6, 2), OPAL690_OUTPUTS);
     }
 
     /**
@@ -587,77 +148,52 @@ public class MultiThreadAutoUnmix extends Thread {
      *
      */
     public static BufferedImage unmixDAPI_Crossed(ImageData imageData, double[][] proportionArray) {
-        //channels 21-29
-        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
-
-        ArrayList<Integer> chosenChannels = new ArrayList<>();
-        chosenChannels.add(2);
-        chosenChannels.add(3);
-
-        ArrayList<Integer> chosenFilters = new ArrayList<>();
-        chosenFilters.add(4);
-        chosenFilters.add(3);
-
-        ArrayList<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < chosenChannels.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-
-        BufferedImage limitedImage = RemoveDuplicate.createNewBufferedImage(chosenChannels, oldImage);
-        BufferedImage resultImage = limitedImage;
-        int width = imageData.getServer().getWidth();
-        int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
-
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = oldImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
-
-                aValues[count] = beta;
-                count++;
-
-                double result0 = pixelIntensity.get(1) - (beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(1)]);
-                double result1 = pixelIntensity.get(1) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(0)]);
-
-                if(result0 < 0) {
-                    resultImage.getRaster().setSample(x, y, 0, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 0, result0);
-                }
+        return unmix(imageData, proportionArray, Arrays.asList(2, 3), Arrays.asList(4, 3), DAPI_OUTPUTS);
+    }
 
-                if(result1 < 0) {
-                    resultImage.getRaster().setSample(x, y, 1, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 1, result1);
+    /**
+     * Unmix a fluorophore using whole channels at a time, rather than individual pixels.
+     *
+     * @param imageData
+     * @param proportionArray
+     * @param chosenChannels channels to use for the regression
+     * @param chosenFilters filters to use for the regression, in the same order as the channels
+     * @param outputs how to calculate each output channel from the regression coefficients
+     */
+    static BufferedImage unmix(ImageData imageData, double[][] proportionArray, List<Integer> chosenChannels, List<Integer> chosenFilters, int[][] outputs) {
+        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
+        int[] channels = Ints.toArray(chosenChannels);
+        int[] filters = Ints.toArray(chosenFilters);
+
+        BufferedImage resultImage = RemoveDuplicate.createNewBufferedImage(new ArrayList<>(chosenChannels), oldImage);
+        WritableRaster resultRaster = resultImage.getRaster();
+        int nPixels = oldImage.getWidth() * oldImage.getHeight();
+
+        float[][] pixelIntensity = ChannelPlanes.getPlanes(oldImage.getRaster(), channels);
+        float[][] beta = new float[filters.length][nPixels];
+        UnmixingSolver.create(proportionArray, channels, filters).solve(pixelIntensity, beta);
+
+        float[] result = new float[nPixels];
+        for(int k = 0; k < outputs.length; k++) {
+            float[] intensity = pixelIntensity[outputs[k][0]];
+            int channel = channels[outputs[k][1]];
+            int nTerms = outputs[k].length - 2;
+            float[][] betaTerms = new float[nTerms][];
+            double[] proportions = new double[nTerms];
+            for(int t = 0; t < nTerms; t++) {
+                int j = outputs[k][t + 2];
+                betaTerms[t] = beta[j];
+                proportions[t] = proportionArray[filters[j]][channel];
+            }
+            for(int i = 0; i < nPixels; i++) {
+                double value = intensity[i];
+                for(int t = 0; t < nTerms; t++) {
+                    value -= betaTerms[t][i] * proportions[t];
                 }
-
-                pixelIntensity.clear();
+                result[i] = value < 0 ? 0f : (float)value;
             }
+            ChannelPlanes.setSamples(resultRaster, k, result);
         }
-        //un-comment this to export a-values
-//        try {
-//            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + "DAPI_Crossed_A" + ".csv");
-//            for(int i = 0; i < width * height; i++) {
-//                for(int j = 0; j < chosenChannels.size(); j++) {
-//                    writer.append((aValues[i][j] + ","));
-//                    if(j == chosenChannels.size() - 1) {
-//                        writer.append((Double.toString(aValues[i][j])));
-//                    }
-//                }
-//                writer.append("\n");
-//            }
-//            writer.flush();
-//            writer.close();
-//        } catch(IOException e) {
-//            e.printStackTrace();
-//        }
         return resultImage;
     }
 }
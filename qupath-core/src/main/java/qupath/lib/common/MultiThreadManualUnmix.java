@@ -1,11 +1,19 @@
 package qupath.lib.common;
 
+import com.google.common.primitives.Ints;
 import qupath.lib.images.ImageData;
-import qupath.lib.images.servers.ImageChannel;
 
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
-
+import java.util.Map;
+
+/**
+ * Unmixes a single, hard-coded fluorophore from the full image.
+ *
+ * @deprecated {@link ManualUnmixing} now uses {@link UnmixingPlan}, which reads each tile only once and
+ *             unmixes all fluorophores from it. Use {@link UnmixingPanel} to define fluorophores.
+ */
+@Deprecated
 public class MultiThreadManualUnmix extends Thread {
 
     String name;
@@ -54,97 +62,7 @@ public class MultiThreadManualUnmix extends Thread {
      *
      */
     public static BufferedImage unmixTexasRed(ImageData imageData, double[][] proportionArray, ArrayList<Integer> chosenChannels) {
-        //channels 36/38
-        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
-
-        int numberOfFilters = chosenChannels.size();
-
-        //number of filters needs to be the same as number of channels. Add filters in order of importance
-        ArrayList<Integer> chosenFilters = new ArrayList<>();
-        if(numberOfFilters >= 1) {
-            chosenFilters.add(2);
-        }
-        if(numberOfFilters >= 2) {
-            chosenFilters.add(6);
-        }
-        if(numberOfFilters >= 3) {
-            chosenFilters.add(1);
-        }
-        if(numberOfFilters >= 4) {
-            chosenFilters.add(5);
-        }
-        if(numberOfFilters >= 5) {
-            chosenFilters.add(4);
-        }
-        if(numberOfFilters >= 6) {
-            chosenFilters.add(3);
-        }
-        if(numberOfFilters >= 7) {
-            chosenFilters.add(0);
-        }
-
-
-        ArrayList<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < chosenChannels.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-
-        BufferedImage limitedImage = RemoveDuplicate.createNewBufferedImage(chosenChannels, oldImage);
-        BufferedImage resultImage = limitedImage;
-        int width = imageData.getServer().getWidth();
-        int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
-
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = oldImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
-
-                aValues[count] = beta;
-                count++;
-
-                double result0 = pixelIntensity.get(1) - (beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(1)]);
-                double result1 = pixelIntensity.get(0) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(0)]);
-
-                if(result0 < 0) {
-                    resultImage.getRaster().setSample(x, y, 0, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 0, result0);
-                }
-
-                if(result1 < 0) {
-                    resultImage.getRaster().setSample(x, y, 1, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 1, result1);
-                }
-
-                pixelIntensity.clear();
-            }
-        }
-
-//        try {
-//            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + "TexasRed_A" + ".csv");
-//            for(int i = 0; i < width * height; i++) {
-//                for(int j = 0; j < chosenChannels.size(); j++) {
-//                    writer.append((aValues[i][j] + ","));
-//                    if(j == chosenChannels.size() - 1) {
-//                        writer.append((Double.toString(aValues[i][j])));
-//                    }
-//                }
-//                writer.append("\n");
-//            }
-//            writer.flush();
-//            writer.close();
-//        } catch(IOException e) {
-//            e.printStackTrace();
-//        }
-        return resultImage;
+        return unmix(imageData, proportionArray, "TexasRed", chosenChannels, MultiThreadAutoUnmix.TEXAS_RED_OUTPUTS);
     }
 
     /**
@@ -156,98 +74,7 @@ public class MultiThreadManualUnmix extends Thread {
      *
      */
     public static BufferedImage unmixCy3(ImageData imageData, double[][] proportionArray, ArrayList<Integer> chosenChannels) {
-        //channels 30/34
-        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
-
-        int numberOfFilters = chosenChannels.size();
-
-        //number of filters needs to be the same as number of channels. Add filters in order of importance
-        ArrayList<Integer> chosenFilters = new ArrayList<>();
-        if(numberOfFilters >= 1) {
-            chosenFilters.add(1);
-        }
-        if(numberOfFilters >= 2) {
-            chosenFilters.add(2);
-        }
-        if(numberOfFilters >= 3) {
-            chosenFilters.add(6);
-        }
-        if(numberOfFilters >= 4) {
-            chosenFilters.add(5);
-        }
-        if(numberOfFilters >= 5) {
-            chosenFilters.add(4);
-        }
-        if(numberOfFilters >= 6) {
-            chosenFilters.add(0);
-        }
-        if(numberOfFilters >= 7) {
-            chosenFilters.add(3);
-        }
-
-        ArrayList<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < chosenChannels.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-
-        BufferedImage limitedImage = RemoveDuplicate.createNewBufferedImage(chosenChannels, oldImage);
-        BufferedImage resultImage = limitedImage;
-        int width = imageData.getServer().getWidth();
-        int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
-
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = oldImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
-
-                aValues[count] = beta;
-                count++;
-
-                double result0 = pixelIntensity.get(0) - (beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(0)]);
-                double result1 = pixelIntensity.get(1) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(1)]);
-
-                if(result0 < 0) {
-                    resultImage.getRaster().setSample(x, y, 0, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 0, result0);
-                }
-
-                if(result1 < 0) {
-                    resultImage.getRaster().setSample(x, y, 1, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 1, result1);
-                }
-
-                pixelIntensity.clear();
-            }
-        }
-
-        //un-comment this to export a-values
-//        try {
-//            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + "Cy3_A" + ".csv");
-//            for(int i = 0; i < width * height; i++) {
-//                for(int j = 0; j < chosenChannels.size(); j++) {
-//                    writer.append((aValues[i][j] + ","));
-//                    if(j == chosenChannels.size() - 1) {
-//                        writer.append((Double.toString(aValues[i][j])));
-//                    }
-//                }
-//                writer.append("\n");
-//            }
-//
-//            writer.flush();
-//            writer.close();
-//        } catch(IOException e) {
-//            e.printStackTrace();
-//        }
-        return resultImage;
+        return unmix(imageData, proportionArray, "Cy3", chosenChannels, MultiThreadAutoUnmix.CY3_OUTPUTS);
     }
 
     /**
@@ -259,81 +86,7 @@ public class MultiThreadManualUnmix extends Thread {
      *
      */
     public static BufferedImage unmixOpal780(ImageData imageData, double[][] proportionArray, ArrayList<Integer> chosenChannels) {
-        //channels 9-10
-        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
-
-        int numberOfFilters = chosenChannels.size();
-
-        //number of filters needs to be the same as number of channels. Add filters in order of importance
-        ArrayList<Integer> chosenFilters = new ArrayList<>();
-        if(numberOfFilters >= 1) {
-            chosenFilters.add(6);
-        }
-        if(numberOfFilters >= 2) {
-            chosenFilters.add(5);
-        }
-
-        ArrayList<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < chosenChannels.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-
-        BufferedImage limitedImage = RemoveDuplicate.createNewBufferedImage(chosenChannels, oldImage);
-        BufferedImage resultImage = limitedImage;
-        int width = imageData.getServer().getWidth();
-        int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
-
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = oldImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
-
-                aValues[count] = beta;
-                count++;
-
-                double result0 = pixelIntensity.get(1) - (beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(1)]);
-                double result1 = pixelIntensity.get(0) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(0)]);
-
-                if(result0 < 0) {
-                    resultImage.getRaster().setSample(x, y, 0, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 0, result0);
-                }
-
-                if(result1 < 0) {
-                    resultImage.getRaster().setSample(x, y, 1, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 1, result1);
-                }
-
-                pixelIntensity.clear();
-            }
-        }
-//un-comment this to export a-values
-//        try {
-//            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + "Opal780_A" + ".csv");
-//            for(int i = 0; i < width * height; i++) {
-//                for(int j = 0; j < chosenChannels.size(); j++) {
-//                    writer.append((aValues[i][j] + ","));
-//                    if(j == chosenChannels.size() - 1) {
-//                        writer.append((Double.toString(aValues[i][j])));
-//                    }
-//                }
-//                writer.append("\n");
-//            }
-//            writer.flush();
-//            writer.close();
-//        } catch(IOException e) {
-//            e.printStackTrace();
-//        }
-        return resultImage;
+        return unmix(imageData, proportionArray, "Opal780", chosenChannels, MultiThreadAutoUnmix.OPAL780_OUTPUTS);
     }
 
     /**
@@ -345,101 +98,7 @@ public class MultiThreadManualUnmix extends Thread {
      *
      */
     public static BufferedImage unmixFITC(ImageData imageData, double[][] proportionArray, ArrayList<Integer> chosenChannels) {
-        //channels 21-29
-        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
-
-        int numberOfFilters = chosenChannels.size();
-
-        //number of filters needs to be the same as number of channels. Add filters in order of importance
-        ArrayList<Integer> chosenFilters = new ArrayList<>();
-        if(numberOfFilters >= 1) {
-            chosenFilters.add(0);
-        }
-        if(numberOfFilters >= 2) {
-            chosenFilters.add(1);
-        }
-        if(numberOfFilters >= 3) {
-            chosenFilters.add(6);
-        }
-        if(numberOfFilters >= 4) {
-            chosenFilters.add(5);
-        }
-        if(numberOfFilters >= 5) {
-            chosenFilters.add(2);
-        }
-        if(numberOfFilters >= 6) {
-            chosenFilters.add(3);
-        }
-        if(numberOfFilters >= 7) {
-            chosenFilters.add(4);
-        }
-        ArrayList<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < chosenChannels.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-
-        BufferedImage limitedImage = RemoveDuplicate.createNewBufferedImage(chosenChannels, oldImage);
-        BufferedImage resultImage = limitedImage;
-        int width = imageData.getServer().getWidth();
-        int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
-
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = oldImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
-
-                aValues[count] = beta;
-                count++;
-
-                double result0 = pixelIntensity.get(0) - (beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(0)] + beta[2] * proportionArray[chosenFilters.get(2)][chosenChannels.get(0)]);
-                double result1 = pixelIntensity.get(2) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(2)] + beta[2] * proportionArray[chosenFilters.get(2)][chosenChannels.get(2)]);
-                double result2 = pixelIntensity.get(1) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(1)] + beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(1)]);
-
-                if(result0 < 0) {
-                    resultImage.getRaster().setSample(x, y, 0, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 0, result0);
-                }
-
-                if(result1 < 0) {
-                    resultImage.getRaster().setSample(x, y, 1, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 1, result1);
-                }
-
-                if(result2 < 0) {
-                    resultImage.getRaster().setSample(x, y, 2, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 2, result2);
-                }
-                pixelIntensity.clear();
-            }
-        }
-        //un-comment this to export a-values
-//        try {
-//            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + "FITC_A" + ".csv");
-//            for(int i = 0; i < width * height; i++) {
-//                for(int j = 0; j < chosenChannels.size(); j++) {
-//                    writer.append((aValues[i][j] + ","));
-//                    if(j == chosenChannels.size() - 1) {
-//                        writer.append((Double.toString(aValues[i][j])));
-//                    }
-//                }
-//                writer.append("\n");
-//            }
-//            writer.flush();
-//            writer.close();
-//        } catch(IOException e) {
-//            e.printStackTrace();
-//        }
-        return resultImage;
+        return unmix(imageData, proportionArray, "FITC", chosenChannels, MultiThreadAutoUnmix.FITC_OUTPUTS);
     }
 
     /**
@@ -451,107 +110,7 @@ public class MultiThreadManualUnmix extends Thread {
      *
      */
     public static BufferedImage unmixOpal480(ImageData imageData, double[][] proportionArray, ArrayList<Integer> chosenChannels) {
-        //channels 21-29
-        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
-
-        int numberOfFilters = chosenChannels.size();
-
-        //number of filters needs to be the same as number of channels. Add filters in order of importance
-        ArrayList<Integer> chosenFilters = new ArrayList<>();
-        if(numberOfFilters >= 1) {
-            chosenFilters.add(3);
-        }
-        if(numberOfFilters >= 2) {
-            chosenFilters.add(6);
-        }
-        if(numberOfFilters >= 3) {
-            chosenFilters.add(0);
-        }
-        if(numberOfFilters >= 4) {
-            chosenFilters.add(5);
-        }
-        if(numberOfFilters >= 5) {
-            chosenFilters.add(1);
-        }
-        if(numberOfFilters >= 6) {
-            chosenFilters.add(4);
-        }
-
-        ArrayList<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < chosenChannels.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-
-        BufferedImage limitedImage = RemoveDuplicate.createNewBufferedImage(chosenChannels, oldImage);
-        BufferedImage resultImage = limitedImage;
-        int width = imageData.getServer().getWidth();
-        int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
-
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = oldImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
-
-                aValues[count] = beta;
-                count++;
-
-                double result0 = pixelIntensity.get(0) - (beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(0)] + beta[2] * proportionArray[chosenFilters.get(2)][chosenChannels.get(0)] + beta[3] * proportionArray[chosenFilters.get(3)][chosenChannels.get(0)]);
-                double result1 = pixelIntensity.get(2) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(2)] + beta[2] * proportionArray[chosenFilters.get(2)][chosenChannels.get(2)] + beta[3] * proportionArray[chosenFilters.get(3)][chosenChannels.get(2)]);
-                double result2 = pixelIntensity.get(1) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(1)] + beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(1)]  + beta[3] * proportionArray[chosenFilters.get(3)][chosenChannels.get(1)]);
-                double result3 = pixelIntensity.get(3) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(3)] + beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(3)] + beta[2] * proportionArray[chosenFilters.get(2)][chosenChannels.get(3)]);
-
-                if(result0 < 0) {
-                    resultImage.getRaster().setSample(x, y, 0, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 0, result0);
-                }
-
-                if(result1 < 0) {
-                    resultImage.getRaster().setSample(x, y, 1, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 1, result1);
-                }
-
-                if(result2 < 0) {
-                    resultImage.getRaster().setSample(x, y, 2, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 2, result2);
-                }
-
-                if(result3 < 0) {
-                    resultImage.getRaster().setSample(x, y, 3, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 3, result3);
-                }
-
-                pixelIntensity.clear();
-            }
-        }
-        //un-comment this to export a-values
-//        try {
-//            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + "Opal480_A" + ".csv");
-//            for(int i = 0; i < width * height; i++) {
-//                for(int j = 0; j < chosenChannels.size(); j++) {
-//                    writer.append((aValues[i][j] + ","));
-//                    if(j == chosenChannels.size() - 1) {
-//                        writer.append((Double.toString(aValues[i][j])));
-//                    }
-//                }
-//                writer.append("\n");
-//            }
-//            writer.flush();
-//            writer.close();
-//        } catch(IOException e) {
-//            e.printStackTrace();
-//        }
-        return resultImage;
+        return unmix(imageData, proportionArray, "Opal480", chosenChannels, MultiThreadAutoUnmix.OPAL480_OUTPUTS);
     }
 
     /**
@@ -563,91 +122,7 @@ public class MultiThreadManualUnmix extends Thread {
      *
      */
     public static BufferedImage unmixOpal690(ImageData imageData, double[][] proportionArray, ArrayList<Integer> chosenChannels) {
-        //channels 17-19
-        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
-
-        int numberOfFilters = chosenChannels.size();
-
-        //number of filters needs to be the same as number of channels. Add filters in order of importance
-        ArrayList<Integer> chosenFilters = new ArrayList<>();
-        if(numberOfFilters >= 1) {
-            chosenFilters.add(5);
-        }
-        if(numberOfFilters >= 2) {
-            chosenFilters.add(6);
-        }
-        if(numberOfFilters >= 3) {
-            chosenFilters.add(2);
-        }
-
-        ArrayList<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < chosenChannels.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-
-        BufferedImage limitedImage = RemoveDuplicate.createNewBufferedImage(chosenChannels, oldImage);
-        BufferedImage resultImage = limitedImage;
-        int width = imageData.getServer().getWidth();
-        int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
-
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = oldImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
-
-                aValues[count] = beta;
-                count++;
-
-                double result0 = pixelIntensity.get(2) - (beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(2)] + beta[2] * proportionArray[chosenFilters.get(2)][chosenChannels.get(2)]);
-                double result1 = pixelIntensity.get(1) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(1)] + beta[2] * proportionArray[chosenFilters.get(2)][chosenChannels.get(1)]);
-                double result2 = pixelIntensity.get(0) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(0)] + beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(0)]);
-
-                if(result0 < 0) {
-                    resultImage.getRaster().setSample(x, y, 0, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 0, result0);
-                }
-
-                if(result1 < 0) {
-                    resultImage.getRaster().setSample(x, y, 1, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 1, result1);
-                }
-
-                if(result2 < 0) {
-                    resultImage.getRaster().setSample(x, y, 2, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 2, result2);
-                }
-
-                pixelIntensity.clear();
-            }
-        }
-        //un-comment this to export a-values
-//        try {
-//            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + "Opal690_A" + ".csv");
-//            for(int i = 0; i < width * height; i++) {
-//                for(int j = 0; j < chosenChannels.size(); j++) {
-//                    writer.append((aValues[i][j] + ","));
-//                    if(j == chosenChannels.size() - 1) {
-//                        writer.append((Double.toString(aValues[i][j])));
-//                    }
-//                }
-//                writer.append("\n");
-//            }
-//            writer.flush();
-//            writer.close();
-//        } catch(IOException e) {
-//            e.printStackTrace();
-//        }
-        return resultImage;
+        return unmix(imageData, proportionArray, "Opal690", chosenChannels, MultiThreadAutoUnmix.OPAL690_OUTPUTS);
     }
 
     /**
@@ -659,95 +134,12 @@ public class MultiThreadManualUnmix extends Thread {
      *
      */
     public static BufferedImage unmixDAPI(ImageData imageData, double[][] proportionArray, ArrayList<Integer> chosenChannels) {
-        //channels 21-29
-        BufferedImage oldImage = RemoveDuplicate.convertImageDataToImage(imageData);
-
-        int numberOfFilters = chosenChannels.size();
+        return unmix(imageData, proportionArray, "DAPI", chosenChannels, MultiThreadAutoUnmix.DAPI_OUTPUTS);
+    }
 
+    private static BufferedImage unmix(ImageData imageData, double[][] proportionArray, String name, ArrayList<Integer> chosenChannels, int[][] outputs) {
         //number of filters needs to be the same as number of channels. Add filters in order of importance
-        ArrayList<Integer> chosenFilters = new ArrayList<>();
-        if(numberOfFilters >= 1) {
-            chosenFilters.add(4);
-        }
-        if(numberOfFilters >= 2) {
-            chosenFilters.add(3);
-        }
-        if(numberOfFilters >= 3) {
-            chosenFilters.add(1);
-        }
-        if(numberOfFilters >= 4) {
-            chosenFilters.add(6);
-        }
-        if(numberOfFilters >= 5) {
-            chosenFilters.add(5);
-        }
-        if(numberOfFilters >= 6) {
-            chosenFilters.add(0);
-        }
-        if(numberOfFilters >= 7) {
-            chosenFilters.add(2);
-        }
-
-        ArrayList<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < chosenChannels.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-
-        BufferedImage limitedImage = RemoveDuplicate.createNewBufferedImage(chosenChannels, oldImage);
-        BufferedImage resultImage = limitedImage;
-        int width = imageData.getServer().getWidth();
-        int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
-
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = oldImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
-
-                aValues[count] = beta;
-                count++;
-
-                double result0 = pixelIntensity.get(1) - (beta[1] * proportionArray[chosenFilters.get(1)][chosenChannels.get(1)]);
-                double result1 = pixelIntensity.get(1) - (beta[0] * proportionArray[chosenFilters.get(0)][chosenChannels.get(0)]);
-
-                if(result0 < 0) {
-                    resultImage.getRaster().setSample(x, y, 0, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 0, result0);
-                }
-
-                if(result1 < 0) {
-                    resultImage.getRaster().setSample(x, y, 1, 0);
-                } else {
-                    resultImage.getRaster().setSample(x, y, 1, result1);
-                }
-
-                pixelIntensity.clear();
-            }
-        }
-        //un-comment this to export a-values
-//        try {
-//            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + "DAPI_A" + ".csv");
-//            for(int i = 0; i < width * height; i++) {
-//                for(int j = 0; j < chosenChannels.size(); j++) {
-//                    writer.append((aValues[i][j] + ","));
-//                    if(j == chosenChannels.size() - 1) {
-//                        writer.append((Double.toString(aValues[i][j])));
-//                    }
-//                }
-//                writer.append("\n");
-//            }
-//            writer.flush();
-//            writer.close();
-//        } catch(IOException e) {
-//            e.printStackTrace();
-//        }
-        return resultImage;
+        var fluorophore = UnmixingPanel.createManualPanel(Map.of(name, chosenChannels)).getFluorophores().get(0);
+        return MultiThreadAutoUnmix.unmix(imageData, proportionArray, chosenChannels, Ints.asList(fluorophore.getFilters()), outputs);
     }
 }
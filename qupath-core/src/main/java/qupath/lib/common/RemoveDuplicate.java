@@ -5,6 +5,7 @@ import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageChannel;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.TransformedServerBuilder;
 import qupath.lib.images.servers.WrappedBufferedImageServer;
 import qupath.lib.regions.RegionRequest;
 
@@ -41,15 +42,18 @@ public class RemoveDuplicate {
      * @param secondChannel
      */
     public static float normCrossCorrelationFloat(float[] firstChannel, float[] secondChannel) {
-        float nominator = 0;
-        float firstDenominator = 0;
-        float secondDenominator = 0;
+        //accumulate in double precision, since float sums lose precision for large images
+        double nominator = 0;
+        double firstDenominator = 0;
+        double secondDenominator = 0;
         for(int i = 0; i < firstChannel.length; i++) {
-            nominator += firstChannel[i] * secondChannel[i];
-            firstDenominator += (firstChannel[i] * firstChannel[i]);
-            secondDenominator += (secondChannel[i] * secondChannel[i]);
+            double first = firstChannel[i];
+            double second = secondChannel[i];
+            nominator += first * second;
+            firstDenominator += first * first;
+            secondDenominator += second * second;
         }
-        return nominator/(float)(Math.sqrt((firstDenominator * secondDenominator)));
+        return (float)(nominator/Math.sqrt(firstDenominator * secondDenominator));
     }
 
     /**
@@ -61,10 +65,7 @@ public class RemoveDuplicate {
      * @param maxIntensity
      */
     public static float[] convertAllMaximumPixelIntensities(BufferedImage img, int band, float maxIntensity) {
-        int width = img.getWidth();
-        int height = img.getHeight();
-        float[] pixelIntensities = new float[width * height];
-        img.getRaster().getSamples(0, 0, width, height, band, pixelIntensities);
+        float[] pixelIntensities = ChannelPlanes.getSamples(img.getRaster(), band, null);
         for(int i = 0; i < pixelIntensities.length; i++) {
             pixelIntensities[i] = pixelIntensities[i]/maxIntensity;
         }
@@ -79,26 +80,20 @@ public class RemoveDuplicate {
      * @param similarityThreshold
      */
     public static ArrayList<Integer> distinctChannels(float[][] crossCorrelationMatrix, double similarityThreshold) {
-        ArrayList<Integer> duplicates = new ArrayList<>();
-        ArrayList<Integer> distinct = new ArrayList<>();
         int nChannels = crossCorrelationMatrix.length;
-        for(int i = 0; i < nChannels - 1; i++) {
+        boolean[] duplicates = new boolean[nChannels];
+        ArrayList<Integer> distinct = new ArrayList<>();
+        for(int i = 0; i < nChannels; i++) {
             //only check for duplicates in channels that aren't already considered duplicates
-            if(!duplicates.contains(i)) {
-                for(int j = i + 1; j < crossCorrelationMatrix.length; j++) {
-                    if(!duplicates.contains(j)) {
-                        if(crossCorrelationMatrix[i][j] > similarityThreshold) {
-                            duplicates.add(j);
-                        }
+            if(!duplicates[i]) {
+                distinct.add(i);
+                for(int j = i + 1; j < nChannels; j++) {
+                    if(!duplicates[j] && crossCorrelationMatrix[i][j] > similarityThreshold) {
+                        duplicates[j] = true;
                     }
                 }
             }
         }
-        for(int i = 0; i < nChannels; i++) {
-            if(!duplicates.contains(i)) {
-                distinct.add(i);
-            }
-        }
         return distinct;
     }
 
@@ -107,15 +102,10 @@ public class RemoveDuplicate {
      * when opening the DuplicateMatrixCommand so it seems much quicker when given any different number of channels.
      *
      * @param crossCorrelationMatrix
+     * @see DuplicateChannelSweep
      */
     public static double[] getAllThresholdValues(float[][] crossCorrelationMatrix) {
-        double[] result = new double[crossCorrelationMatrix.length - 1];
-        double thresholdValue = 0.50;
-        for(int i = 1; i < crossCorrelationMatrix.length; i++) {
-            result[i - 1] = getThresholdFromChannels(crossCorrelationMatrix, i, thresholdValue);
-            thresholdValue = result[i - 1];
-        }
-        return result;
+        return new DuplicateChannelSweep(crossCorrelationMatrix).getAllThresholdValues();
     }
 
 
@@ -123,30 +113,15 @@ public class RemoveDuplicate {
      * Find out how what the threshold value is for a specified number of channels. You can give a channel number between 1 and 43 and
      * this will find the threshold value corresponding to it. This makes it easier to enter the values in a different method, which is
      * only interested in the threshold value.
+     * <p>
+     * If many thresholds are required for the same matrix, it is much more efficient to use a {@link DuplicateChannelSweep}.
      *
      * @param crossCorrelationMatrix
      * @param numberOfChannelsRequired
-     * @param startThreshold
+     * @param startThreshold no longer used; retained for compatibility
      */
     public static double getThresholdFromChannels(float[][] crossCorrelationMatrix, int numberOfChannelsRequired, double startThreshold) {
-        double result = startThreshold;
-        double upperValue = 1;
-        double lowerValue = 0;
-        int returnedChannels;
-        int iteration = 0;
-        while(true) {
-            returnedChannels = distinctChannels(crossCorrelationMatrix, result).size();
-            if(returnedChannels == numberOfChannelsRequired || iteration >= 100) {
-                return result;
-            } else if(returnedChannels > numberOfChannelsRequired) {
-                upperValue = result;
-                result = result - (result - lowerValue)/2;
-            } else {
-                lowerValue = result;
-                result = result + (upperValue - result)/2;
-            }
-            iteration++;
-        }
+        return new DuplicateChannelSweep(crossCorrelationMatrix).getThresholdForChannels(numberOfChannelsRequired);
     }
 
     /**
@@ -275,9 +250,9 @@ public class RemoveDuplicate {
         SampleModel resultSampleModel = img.getSampleModel().createSubsetSampleModel(notDuplicatesArray);
         WritableRaster resultRaster = Raster.createWritableRaster(resultSampleModel, null);
         BufferedImage resultImage = new BufferedImage(img.getColorModel(), resultRaster, img.getColorModel().isAlphaPremultiplied(), null);
-        for(int i = 0; i < notDuplicates.size(); i++) {
-            img.getRaster().getSamples(0, 0, width, height, notDuplicates.get(i), tempFloatArray);
-            resultImage.getRaster().setSamples(0, 0, width, height, i, tempFloatArray);
+        for(int i = 0; i < notDuplicatesArray.length; i++) {
+            ChannelPlanes.getSamples(img.getRaster(), notDuplicatesArray[i], tempFloatArray);
+            ChannelPlanes.setSamples(resultRaster, i, tempFloatArray);
         }
         return resultImage;
     }
@@ -299,31 +274,13 @@ public class RemoveDuplicate {
 
     /**
      * Perform normalised cross correlation for each channel of the image then put it into a matrix.
+     * All channel pairs are computed in a single parallel pass through the image.
      *
      * @param img
+     * @see ChannelCorrelation
      */
     public static float[][] createConcatMatrix(BufferedImage img) {
-        int width = img.getWidth();
-        int height = img.getHeight();
-        float[] channelOneArray = new float[width * height];
-        float[] channelTwoArray = new float[width * height];
-        int nChannels = img.getRaster().getNumBands();
-        float[][] channelMatrix = new float[nChannels][nChannels];
-        float result = 0;
-        for(int i = 0; i < nChannels; i++) {
-            for(int j = i; j < nChannels; j++) {
-                if(i == j) {
-                    channelMatrix[i][j] = 1;
-                } else {
-                    img.getRaster().getSamples(0, 0, width, height, i, channelOneArray);
-                    img.getRaster().getSamples(0, 0, width, height, j, channelTwoArray);
-                    result = normCrossCorrelationFloat(channelOneArray, channelTwoArray);
-                    channelMatrix[i][j] = result;
-                    channelMatrix[j][i] = result;
-                }
-            }
-        }
-        return channelMatrix;
+        return ChannelCorrelation.computeMatrix(img);
     }
 
 
@@ -335,14 +292,12 @@ public class RemoveDuplicate {
      */
     public static float findMaximumPixelIntensity(BufferedImage img) {
         float maxValue = 0;
-        float sample = 0;
-        for(int height = 0; height < img.getHeight(); height++) {
-            for(int width = 0; width < img.getWidth(); width++) {
-                for(int band = 0; band < img.getRaster().getNumBands(); band++) {
-                    sample = img.getRaster().getSample(width, height, band);
-                    if(sample > maxValue) {
-                        maxValue = sample;
-                    }
+        float[] samples = null;
+        for(int band = 0; band < img.getRaster().getNumBands(); band++) {
+            samples = ChannelPlanes.getSamples(img.getRaster(), band, samples);
+            for(float sample : samples) {
+                if(sample > maxValue) {
+                    maxValue = sample;
                 }
             }
         }
@@ -421,23 +376,32 @@ public class RemoveDuplicate {
 
     /**
      * Create the associated image whilst removing the duplicate channels.
+     * The channels are selected lazily from the original server, so that pixels are only read when they are requested.
      *
      * @param imageData
-     * @param img
+     * @param img no longer used; retained for compatibility
      */
     public static ImageData concatDuplicateChannels(ImageData<BufferedImage> imageData, BufferedImage img, float[][] crossCorrelationMatrix, double similarityThreshold) {
-        ImageData resultImageData;
+        return concatDuplicateChannels(imageData, crossCorrelationMatrix, similarityThreshold);
+    }
+
+    /**
+     * Create the associated image whilst removing the duplicate channels.
+     * The channels are selected lazily from the original server, so that pixels are only read when they are requested,
+     * and the selected channels are stored with the server so that the image can be reopened.
+     *
+     * @param imageData
+     * @param crossCorrelationMatrix
+     * @param similarityThreshold
+     */
+    public static ImageData<BufferedImage> concatDuplicateChannels(ImageData<BufferedImage> imageData, float[][] crossCorrelationMatrix, double similarityThreshold) {
         ArrayList<Integer> distinct = distinctChannels(crossCorrelationMatrix, similarityThreshold);
-        List<ImageChannel> channels = new ArrayList<>();
-        for(int i = 0; i < distinct.size(); i++) {
-            channels.add(imageData.getServer().getChannel(i));
-        }
-        BufferedImage finalImg = createNewBufferedImage(distinct, img);
-        ImageServer newServer = new WrappedBufferedImageServer(imageData.getServer().getOriginalMetadata().getName(), finalImg, channels);
-        ImageData imageData1 = new ImageData<BufferedImage>(newServer);
-        imageData1.setImageType(ImageData.ImageType.FLUORESCENCE);
-        setRegularChannelColours(imageData1);
-        resultImageData = imageData1;
+        ImageServer<BufferedImage> newServer = new TransformedServerBuilder(imageData.getServer())
+                .selectChannels(Ints.toArray(distinct))
+                .build();
+        ImageData<BufferedImage> resultImageData = new ImageData<>(newServer);
+        resultImageData.setImageType(ImageData.ImageType.FLUORESCENCE);
+        setRegularChannelColours(resultImageData);
         setRegularChannelNames(resultImageData);
         return resultImageData;
     }
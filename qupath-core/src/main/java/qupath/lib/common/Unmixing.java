@@ -5,18 +5,22 @@ import org.apache.commons.math3.linear.DecompositionSolver;
 import org.apache.commons.math3.linear.LUDecomposition;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.stat.regression.OLSMultipleLinearRegression;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageChannel;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.WrappedBufferedImageServer;
 
 import java.awt.image.BufferedImage;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 
 public class Unmixing {
 
+    private final static Logger logger = LoggerFactory.getLogger(Unmixing.class);
+
     /**
      * This method completes regression using OLSMultipleLinearRegression. The results didn't
      * seem correct, so use completeManualRegression method.
@@ -163,9 +167,25 @@ public class Unmixing {
      * @param proportionArray
      * @param startChannel
      * @param endChannel
-     * @param fluorophore
+     * @param fluorophore name of the fluorophore, used to name the unmixed image
      */
     public static ImageData unmixFluorophore(ImageData imageData, double[][] proportionArray, int startChannel, int endChannel, String fluorophore) {
+        return unmixFluorophore(imageData, proportionArray, startChannel, endChannel, fluorophore, null);
+    }
+
+    /**
+     * Unmixes a single fluorophore using the same regression as the completeManualRegression method, optionally exporting
+     * the regression coefficients (A-values) for every pixel as CSV using {@link UnmixingExport}.
+     * The coefficients are calculated only once, and used both for the unmixed image and the export.
+     *
+     * @param imageData
+     * @param proportionArray
+     * @param startChannel
+     * @param endChannel
+     * @param fluorophore name of the fluorophore, used to name the unmixed image
+     * @param aValuesPath file to write the coefficients to, or null if they should not be exported
+     */
+    public static ImageData unmixFluorophore(ImageData imageData, double[][] proportionArray, int startChannel, int endChannel, String fluorophore, Path aValuesPath) {
         ArrayList<Integer> possibleChannels = new ArrayList<>();
 
         for(int i = startChannel - 1; i < endChannel; i++) {
@@ -188,52 +208,38 @@ public class Unmixing {
         BufferedImage resultImage = limitedImage;
         int width = imageData.getServer().getWidth();
         int height = imageData.getServer().getHeight();
-        ArrayList<Double> pixelIntensity = new ArrayList<>();
-        double[][] aValues = new double[width * height][chosenChannels.size()];
-        int count = 0;
-        double samplePixel;
 
-        for(int x = 0; x < width; x++) {
-            for(int y = 0; y < height; y++) {
-                for(int channel : chosenChannels) {
-                    samplePixel = overallImage.getRaster().getSample(x, y, channel);
-                    pixelIntensity.add(samplePixel);
-                }
-                double[] beta = completeManualRegression(pixelIntensity, proportionArray, chosenFilters, chosenChannels);
+        //calculate the coefficients for every pixel at once, rather than with a separate regression per pixel
+        int[] channelsInt = chosenChannels.stream().mapToInt(Integer::intValue).toArray();
+        int[] filtersInt = chosenFilters.stream().mapToInt(Integer::intValue).toArray();
+        float[][] planes = ChannelPlanes.getPlanes(overallImage.getRaster(), channelsInt);
+        float[][] coefficients = new float[filtersInt.length][width * height];
+        UnmixingSolver.create(proportionArray, channelsInt, filtersInt).solve(planes, coefficients);
 
-                aValues[count] = beta;
-                count++;
-                //different method
-                for(int i = 0; i < chosenChannels.size(); i++) {
-                    double result = beta[i] * proportionArray[chosenFilters.get(i)][peak.get(i)];
-                    if(result < 0) {
-                        resultImage.getRaster().setSample(x, y, i, 0);
-                    } else {
-                        resultImage.getRaster().setSample(x, y, i, result);
-                    }
+        for(int i = 0; i < chosenChannels.size(); i++) {
+            double proportion = proportionArray[chosenFilters.get(i)][peak.get(i)];
+            float[] beta = coefficients[i];
+            for(int y = 0; y < height; y++) {
+                for(int x = 0; x < width; x++) {
+                    double result = beta[y * width + x] * proportion;
+                    resultImage.getRaster().setSample(x, y, i, Math.max(result, 0));
                 }
-                pixelIntensity.clear();
             }
         }
 
-        try {
-            FileWriter writer = new FileWriter("D:\\Desktop\\QuPath\\Indirect Panel\\indirect panel data\\" + fluorophore + ".csv");
-            for(int i = 0; i < width * height; i++) {
-                for(int j = 0; j < chosenChannels.size(); j++) {
-                    writer.append((aValues[i][j] + ","));
-                    if(j == chosenChannels.size() - 1) {
-                        writer.append((Double.toString(aValues[i][j])));
-                    }
-                }
-                writer.append("\n");
+        if(aValuesPath != null) {
+            //reuse the coefficients, rather than calculating them all again
+            try {
+                new UnmixingExport(imageData.getServer(), proportionArray)
+                        .format(UnmixingExport.Format.CSV)
+                        .export(coefficients, filtersInt, aValuesPath);
+            } catch(IOException e) {
+                logger.error("Unable to export coefficients for {} to {}", fluorophore, aValuesPath, e);
             }
-            writer.flush();
-            writer.close();
-        } catch(IOException e) {
-            e.printStackTrace();
         }
 
-        ImageServer newServer = new WrappedBufferedImageServer(imageData.getServer().getOriginalMetadata().getName(), resultImage, channels);
+        String name = imageData.getServer().getOriginalMetadata().getName() + " (" + fluorophore + ")";
+        ImageServer newServer = new WrappedBufferedImageServer(name, resultImage, channels);
         ImageData resultImageData = new ImageData<BufferedImage>(newServer);
         return resultImageData;
     }
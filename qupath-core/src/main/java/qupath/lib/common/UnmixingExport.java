@@ -0,0 +1,530 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.io.GsonTools;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Export the per-pixel unmixing coefficients (i.e. the A-values, or abundances) of an image, and channel
+ * correlation matrices.
+ * <p>
+ * Coefficients are calculated and written in horizontal strips, so that the full image never needs to be held in memory.
+ * The next strips are read and unmixed in parallel while the current strip is written, with the size and number of strips
+ * limited by the memory needed for the input channels as well as the coefficients.
+ * <p>
+ * Two formats are supported:
+ * <ul>
+ *   <li>{@link Format#FLOAT32}: raw little-endian 32-bit floats, one full plane per coefficient (i.e. planar),
+ *   with a JSON file alongside that gives the dimensions and plane names</li>
+ *   <li>{@link Format#CSV}: one line per pixel in row-major order, containing x, y and the coefficients</li>
+ * </ul>
+ */
+public class UnmixingExport {
+
+	private final static Logger logger = LoggerFactory.getLogger(UnmixingExport.class);
+
+	/**
+	 * Output format.
+	 */
+	public static enum Format {
+		/**
+		 * Planar little-endian float32 values, with a JSON header file.
+		 */
+		FLOAT32("raw"),
+		/**
+		 * Comma-separated values, one line per pixel.
+		 */
+		CSV("csv");
+
+		private final String ext;
+
+		Format(String ext) {
+			this.ext = ext;
+		}
+
+		/**
+		 * Get the default file extension, without the dot.
+		 * @return
+		 */
+		public String getExtension() {
+			return ext;
+		}
+	}
+
+	// Approximate number of bytes per strip, across all input channels and coefficients
+	private static final long DEFAULT_STRIP_BYTES = 16L * 1024 * 1024;
+
+	private final ImageServer<BufferedImage> server;
+	private final double[][] proportionArray;
+	private UnmixingSolver.Method method = UnmixingSolver.Method.CLAMPED;
+	private Format format = Format.FLOAT32;
+	private long stripBytes = DEFAULT_STRIP_BYTES;
+	private long maxMemoryBytes = Runtime.getRuntime().maxMemory() / 4;
+	private Executor executor;
+
+	/**
+	 * Create an export for the full-resolution image of the specified server.
+	 * @param server
+	 * @param proportionArray filter x channel proportion array
+	 */
+	public UnmixingExport(ImageServer<BufferedImage> server, double[][] proportionArray) {
+		this.server = server;
+		this.proportionArray = proportionArray;
+	}
+
+	/**
+	 * Set the method used to calculate the coefficients.
+	 * @param method
+	 * @return this export
+	 */
+	public UnmixingExport method(UnmixingSolver.Method method) {
+		this.method = method;
+		return this;
+	}
+
+	/**
+	 * Set the output format.
+	 * @param format
+	 * @return this export
+	 */
+	public UnmixingExport format(Format format) {
+		this.format = format;
+		return this;
+	}
+
+	/**
+	 * Set the approximate number of bytes to hold in memory for each strip.
+	 * This includes all the channels read from the server, as well as the coefficients.
+	 * At least one row is always used per strip.
+	 * @param bytes
+	 * @return this export
+	 */
+	public UnmixingExport stripBytes(long bytes) {
+		if (bytes <= 0)
+			throw new IllegalArgumentException("Number of bytes per strip must be > 0");
+		this.stripBytes = bytes;
+		return this;
+	}
+
+	/**
+	 * Set the approximate maximum number of bytes used by all the strips that are being read, unmixed or written at any one time.
+	 * At least one strip is always processed, even if it exceeds the budget.
+	 * @param bytes
+	 * @return this export
+	 */
+	public UnmixingExport maxMemoryBytes(long bytes) {
+		if (bytes <= 0)
+			throw new IllegalArgumentException("Memory budget must be > 0");
+		this.maxMemoryBytes = bytes;
+		return this;
+	}
+
+	/**
+	 * Set the executor used to read and unmix strips. If not set, the shared pool of {@link UnmixingPlan} is used.
+	 * @param executor
+	 * @return this export
+	 */
+	public UnmixingExport executor(Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Export the coefficients for a fluorophore, one per filter.
+	 * @param fluorophore
+	 * @param path output file
+	 * @throws IOException
+	 */
+	public void export(Fluorophore fluorophore, Path path) throws IOException {
+		export(fluorophore.getChannels(), fluorophore.getFilters(), path);
+	}
+
+	/**
+	 * Export the coefficients for every fluorophore of a panel, writing one file per fluorophore.
+	 * @param panel
+	 * @param directory output directory, which will be created if necessary
+	 * @param prefix prefix for each file name, which is followed by the fluorophore name and the extension of the format
+	 * @return the files that were written
+	 * @throws IOException
+	 */
+	public List<Path> export(UnmixingPanel panel, Path directory, String prefix) throws IOException {
+		Files.createDirectories(directory);
+		List<Path> paths = new ArrayList<>();
+		for (var fluorophore : panel.getFluorophores()) {
+			Path path = directory.resolve(prefix + fluorophore.getName() + "." + format.getExtension());
+			export(fluorophore, path);
+			paths.add(path);
+		}
+		return paths;
+	}
+
+	/**
+	 * Export the regression coefficients for the specified channels and filters, one per filter.
+	 * If the export fails, any partial output is deleted.
+	 * @param channels 0-based channel indices
+	 * @param filters 0-based filter indices
+	 * @param path output file
+	 * @throws IOException
+	 */
+	public void export(int[] channels, int[] filters, Path path) throws IOException {
+		var solver = UnmixingSolver.create(proportionArray, channels, filters, method);
+		int width = server.getWidth();
+		int height = server.getHeight();
+		int nPlanes = filters.length;
+		// Each row needs all the channels read from the server, the float planes used for regression, and the coefficients
+		long rowBytes = (long)width * (server.nChannels() * server.getPixelType().getBytesPerPixel() + (channels.length + nPlanes) * Float.BYTES);
+		int stripHeight = (int)Math.max(1, Math.min(height, stripBytes / rowBytes));
+		long stripBytes = rowBytes * stripHeight;
+		int maxInFlight = (int)Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() + 1, maxMemoryBytes / stripBytes));
+
+		long startTime = System.currentTimeMillis();
+		ArrayDeque<CompletableFuture<Strip>> pending = new ArrayDeque<>();
+		boolean success = false;
+		try (var writer = createWriter(path, width, height, createNames(filters))) {
+			Executor executor = this.executor == null ? UnmixingPlan.getSharedPool() : this.executor;
+			int nextY = 0;
+			while (nextY < height || !pending.isEmpty()) {
+				// Keep several strips in progress, but write them strictly in order
+				while (nextY < height && pending.size() < maxInFlight) {
+					int y = nextY;
+					int h = Math.min(stripHeight, height - y);
+					pending.add(CompletableFuture.supplyAsync(() -> computeStrip(solver, channels, y, width, h), executor));
+					nextY += h;
+				}
+				writer.write(getStrip(pending.removeFirst()));
+			}
+			success = true;
+		} finally {
+			if (!success) {
+				pending.forEach(f -> f.cancel(true));
+				deleteOutput(path);
+			}
+		}
+		logger.debug("Exported {} coefficients for {} x {} pixels to {} in {} ms",
+				nPlanes, width, height, path, System.currentTimeMillis() - startTime);
+	}
+
+	/**
+	 * Export regression coefficients that have already been calculated for the full image, one per filter.
+	 * This avoids calculating the coefficients twice when they are also needed for unmixing.
+	 * If the export fails, any partial output is deleted.
+	 * @param coefficients one plane per filter, each containing a value per pixel of the server in row-major order
+	 * @param filters 0-based filter indices, used to name the planes
+	 * @param path output file
+	 * @throws IOException
+	 */
+	public void export(float[][] coefficients, int[] filters, Path path) throws IOException {
+		if (coefficients.length != filters.length)
+			throw new IllegalArgumentException("Expected " + filters.length + " coefficient planes, but got " + coefficients.length);
+		int width = server.getWidth();
+		int height = server.getHeight();
+		boolean success = false;
+		try (var writer = createWriter(path, width, height, createNames(filters))) {
+			writer.write(new Strip(0, width, height, coefficients));
+			success = true;
+		} finally {
+			if (!success)
+				deleteOutput(path);
+		}
+	}
+
+	private static List<String> createNames(int[] filters) {
+		List<String> names = new ArrayList<>();
+		for (int f : filters)
+			names.add("filter" + (f + 1));
+		return names;
+	}
+
+	/**
+	 * Delete the output of a failed export, including any header.
+	 * Failures are logged rather than thrown, so that they don't hide the original exception.
+	 */
+	private void deleteOutput(Path path) {
+		try {
+			Files.deleteIfExists(path);
+			if (format == Format.FLOAT32)
+				Files.deleteIfExists(getHeaderPath(path));
+		} catch (IOException e) {
+			logger.warn("Unable to delete incomplete export {}: {}", path, e.getLocalizedMessage());
+		}
+	}
+
+	private static Strip getStrip(CompletableFuture<Strip> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			throw new InterruptedIOException("Export interrupted");
+		} catch (ExecutionException | CompletionException e) {
+			Throwable cause = e.getCause();
+			while (cause instanceof CompletionException && cause.getCause() != null)
+				cause = cause.getCause();
+			if (cause instanceof UncheckedIOException)
+				throw ((UncheckedIOException)cause).getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private Strip computeStrip(UnmixingSolver solver, int[] channels, int y, int width, int height) {
+		BufferedImage img;
+		try {
+			img = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), 1.0, 0, y, width, height));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		int n = width * height;
+		float[][] coefficients = new float[solver.nFilters()][n];
+		if (img != null) {
+			float[][] planes = ChannelPlanes.getPlanes(img.getRaster(), channels);
+			solver.solve(planes, coefficients);
+		}
+		return new Strip(y, width, height, coefficients);
+	}
+
+	private StripWriter createWriter(Path path, int width, int height, List<String> names) throws IOException {
+		switch (format) {
+		case CSV:
+			return new CsvStripWriter(path, names);
+		case FLOAT32:
+		default:
+			return new Float32StripWriter(path, width, height, names);
+		}
+	}
+
+	/**
+	 * Get the path of the JSON header written alongside a {@link Format#FLOAT32} file.
+	 * @param path path of the raw file
+	 * @return
+	 */
+	public static Path getHeaderPath(Path path) {
+		String name = path.getFileName().toString();
+		int ind = name.lastIndexOf('.');
+		if (ind > 0)
+			name = name.substring(0, ind);
+		return path.resolveSibling(name + ".json");
+	}
+
+	/**
+	 * Write a square matrix (e.g. a channel cross-correlation matrix) as CSV, with the names as the first row and column.
+	 * @param matrix
+	 * @param names names for each row and column; if null, 1-based indices are used
+	 * @param path output file
+	 * @throws IOException
+	 */
+	public static void writeMatrixCSV(float[][] matrix, List<String> names, Path path) throws IOException {
+		int n = matrix.length;
+		if (names != null && names.size() != n)
+			throw new IllegalArgumentException("Expected " + n + " names, but got " + names.size());
+		try (var writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+			for (int j = 0; j < n; j++) {
+				writer.write(',');
+				writeName(writer, names == null ? Integer.toString(j + 1) : names.get(j));
+			}
+			writer.write('\n');
+			for (int i = 0; i < n; i++) {
+				writeName(writer, names == null ? Integer.toString(i + 1) : names.get(i));
+				for (int j = 0; j < n; j++) {
+					writer.write(',');
+					writer.write(Float.toString(matrix[i][j]));
+				}
+				writer.write('\n');
+			}
+		}
+	}
+
+	/**
+	 * Write a square matrix as raw little-endian float32 values in row-major order.
+	 * @param matrix
+	 * @param path output file
+	 * @throws IOException
+	 */
+	public static void writeMatrixFloat32(float[][] matrix, Path path) throws IOException {
+		int n = matrix.length;
+		ByteBuffer buffer = ByteBuffer.allocate(n * n * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		var floats = buffer.asFloatBuffer();
+		for (float[] row : matrix)
+			floats.put(row);
+		try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+	}
+
+	private static void writeName(Writer writer, String name) throws IOException {
+		if (name.contains(",") || name.contains("\"")) {
+			writer.write('"');
+			writer.write(name.replace("\"", "\"\""));
+			writer.write('"');
+		} else
+			writer.write(name);
+	}
+
+	private static class Strip {
+
+		private final int y;
+		private final int width;
+		private final int height;
+		private final float[][] coefficients;
+
+		Strip(int y, int width, int height, float[][] coefficients) {
+			this.y = y;
+			this.width = width;
+			this.height = height;
+			this.coefficients = coefficients;
+		}
+
+	}
+
+	private static interface StripWriter extends AutoCloseable {
+
+		void write(Strip strip) throws IOException;
+
+		@Override
+		void close() throws IOException;
+
+	}
+
+	/**
+	 * Write each strip of each plane as a single contiguous block, at its final position in the file.
+	 */
+	private static class Float32StripWriter implements StripWriter {
+
+		/**
+		 * Maximum number of values to write at once, so that the buffer stays small for large strips.
+		 */
+		private static final int MAX_BUFFER_VALUES = 1 << 20;
+
+		private final FileChannel channel;
+		private final long planeBytes;
+		private ByteBuffer buffer;
+
+		Float32StripWriter(Path path, int width, int height, List<String> names) throws IOException {
+			this.planeBytes = (long)width * height * Float.BYTES;
+			Map<String, Object> header = new LinkedHashMap<>();
+			header.put("width", width);
+			header.put("height", height);
+			header.put("planes", names);
+			header.put("dataType", "float32");
+			header.put("byteOrder", "little-endian");
+			header.put("layout", "planar");
+			Files.writeString(getHeaderPath(path), GsonTools.getInstance(true).toJson(header), StandardCharsets.UTF_8);
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		}
+
+		@Override
+		public void write(Strip strip) throws IOException {
+			// A whole image may be written as one strip, so write each plane in chunks
+			int n = Math.toIntExact((long)strip.width * strip.height);
+			int bufferValues = Math.min(n, MAX_BUFFER_VALUES);
+			if (buffer == null || buffer.capacity() < bufferValues * Float.BYTES)
+				buffer = ByteBuffer.allocateDirect(bufferValues * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			long offset = (long)strip.y * strip.width * Float.BYTES;
+			for (int b = 0; b < strip.coefficients.length; b++) {
+				long position = b * planeBytes + offset;
+				for (int start = 0; start < n; start += bufferValues) {
+					int len = Math.min(bufferValues, n - start);
+					buffer.clear();
+					buffer.asFloatBuffer().put(strip.coefficients[b], start, len);
+					buffer.limit(len * Float.BYTES);
+					while (buffer.hasRemaining())
+						position += channel.write(buffer, position);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+	}
+
+	private static class CsvStripWriter implements StripWriter {
+
+		private final BufferedWriter writer;
+		private final StringBuilder sb = new StringBuilder();
+
+		CsvStripWriter(Path path, List<String> names) throws IOException {
+			this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+			writer.write("x,y");
+			for (var name : names) {
+				writer.write(',');
+				writeName(writer, name);
+			}
+			writer.write('\n');
+		}
+
+		@Override
+		public void write(Strip strip) throws IOException {
+			int k = 0;
+			for (int yy = 0; yy < strip.height; yy++) {
+				int y = strip.y + yy;
+				for (int x = 0; x < strip.width; x++) {
+					sb.setLength(0);
+					sb.append(x).append(',').append(y);
+					for (float[] plane : strip.coefficients)
+						sb.append(',').append(plane[k]);
+					sb.append('\n');
+					writer.append(sb);
+					k++;
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			writer.close();
+		}
+
+	}
+
+}
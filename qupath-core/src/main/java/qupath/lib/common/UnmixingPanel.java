@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import qupath.lib.io.GsonTools;
+
+/**
+ * A panel of fluorophores to unmix together.
+ * <p>
+ * Panels can be read from JSON of the form
+ * <pre>
+ * {"fluorophores": [
+ *   {"name": "DAPI", "channels": [2, 3], "filters": [4, 3], "referenceChannel": 1},
+ *   ...
+ * ]}
+ * </pre>
+ * where channels and filters are 0-based, so that new panels do not require any code changes.
+ */
+public class UnmixingPanel {
+
+	/**
+	 * Filters in order of importance for each fluorophore, used when channels are chosen manually.
+	 * The first filter is always the one belonging to the fluorophore itself.
+	 */
+	private static final Map<String, int[]> MANUAL_FILTER_ORDER = new LinkedHashMap<>();
+
+	/**
+	 * Index of the reference channel for each fluorophore, used when channels are chosen manually.
+	 */
+	private static final Map<String, Integer> MANUAL_REFERENCE_CHANNEL = new LinkedHashMap<>();
+
+	static {
+		addManualDefault("DAPI", 1, 4, 3, 1, 6, 5, 0, 2);
+		addManualDefault("Opal780", 1, 6, 5);
+		addManualDefault("Opal480", 0, 3, 6, 0, 5, 1, 4);
+		addManualDefault("Opal690", 2, 5, 6, 2);
+		addManualDefault("FITC", 0, 0, 1, 6, 5, 2, 3, 4);
+		addManualDefault("Cy3", 0, 1, 2, 6, 5, 4, 0, 3);
+		addManualDefault("TexasRed", 1, 2, 6, 1, 5, 4, 3, 0);
+	}
+
+	private static void addManualDefault(String name, int referenceChannel, int... filters) {
+		MANUAL_FILTER_ORDER.put(name, filters);
+		MANUAL_REFERENCE_CHANNEL.put(name, referenceChannel);
+	}
+
+	private List<Fluorophore> fluorophores;
+
+	/**
+	 * Create a panel from a list of fluorophores. The order of the list determines the order of the output channels.
+	 * @param fluorophores
+	 */
+	public UnmixingPanel(List<Fluorophore> fluorophores) {
+		this.fluorophores = Collections.unmodifiableList(new ArrayList<>(fluorophores));
+	}
+
+	/**
+	 * Get the fluorophores in this panel.
+	 * @return
+	 */
+	public List<Fluorophore> getFluorophores() {
+		return fluorophores;
+	}
+
+	/**
+	 * Number of fluorophores (and therefore output channels) in the panel.
+	 * @return
+	 */
+	public int size() {
+		return fluorophores.size();
+	}
+
+	/**
+	 * Get the panel used for automatic unmixing, with the channels chosen so that the lines of the panel graph cross over.
+	 * @return
+	 * @see Fluorophore#getCrossedFluorophores()
+	 */
+	public static UnmixingPanel getCrossedPanel() {
+		return new UnmixingPanel(Fluorophore.getCrossedFluorophores());
+	}
+
+	/**
+	 * Create a panel from channels chosen manually for each fluorophore.
+	 * Filters are selected in order of importance, so that there are as many filters as channels.
+	 * @param chosenChannels map of fluorophore name to 0-based channels; names must be one of
+	 *                       DAPI, Opal780, Opal480, Opal690, FITC, Cy3 or TexasRed
+	 * @return
+	 * @throws IllegalArgumentException if a fluorophore is unknown, or more channels are chosen than there are filters
+	 */
+	public static UnmixingPanel createManualPanel(Map<String, ? extends List<Integer>> chosenChannels) {
+		List<Fluorophore> fluorophores = new ArrayList<>();
+		for (var entry : chosenChannels.entrySet()) {
+			String name = entry.getKey();
+			int[] filterOrder = MANUAL_FILTER_ORDER.get(name);
+			if (filterOrder == null)
+				throw new IllegalArgumentException("Unknown fluorophore " + name + " - must be one of " + MANUAL_FILTER_ORDER.keySet());
+			List<Integer> channelList = entry.getValue();
+			int n = channelList.size();
+			if (n > filterOrder.length)
+				throw new IllegalArgumentException("Too many channels chosen for " + name + " - maximum is " + filterOrder.length);
+			int[] channels = new int[n];
+			int[] filters = new int[n];
+			for (int i = 0; i < n; i++) {
+				channels[i] = channelList.get(i);
+				filters[i] = filterOrder[i];
+			}
+			int referenceChannel = Math.min(MANUAL_REFERENCE_CHANNEL.get(name), n - 1);
+			fluorophores.add(new Fluorophore(name, channels, filters, referenceChannel));
+		}
+		return new UnmixingPanel(fluorophores);
+	}
+
+	/**
+	 * Read a panel from a JSON file.
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static UnmixingPanel readPanel(Path path) throws IOException {
+		try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			return readPanel(reader);
+		}
+	}
+
+	/**
+	 * Read a panel from JSON.
+	 * @param reader
+	 * @return
+	 * @throws IOException if the panel is missing or invalid
+	 */
+	public static UnmixingPanel readPanel(Reader reader) throws IOException {
+		UnmixingPanel panel;
+		try {
+			panel = GsonTools.getInstance().fromJson(reader, UnmixingPanel.class);
+		} catch (Exception e) {
+			throw new IOException("Unable to read unmixing panel", e);
+		}
+		if (panel == null || panel.fluorophores == null || panel.fluorophores.isEmpty())
+			throw new IOException("Unmixing panel does not contain any fluorophores");
+		// Use the constructor to validate each fluorophore, since Gson bypasses it
+		List<Fluorophore> validated = new ArrayList<>();
+		for (var f : panel.fluorophores) {
+			try {
+				validated.add(new Fluorophore(f.getName(), f.getChannels(), f.getFilters(), f.getReferenceChannel()));
+			} catch (RuntimeException e) {
+				throw new IOException("Invalid fluorophore in unmixing panel: " + e.getLocalizedMessage(), e);
+			}
+		}
+		return new UnmixingPanel(validated);
+	}
+
+	/**
+	 * Get a JSON representation of the panel, which can be read with {@link #readPanel(Reader)}.
+	 * @return
+	 */
+	public String toJson() {
+		return GsonTools.getInstance(true).toJson(this);
+	}
+
+	@Override
+	public String toString() {
+		return "UnmixingPanel " + fluorophores;
+	}
+
+}
@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.TransformedServerBuilder;
+
+/**
+ * Plan for unmixing all the fluorophores of an {@link UnmixingPanel}.
+ * <p>
+ * The unmixed image is provided by a server that reads each tile from the original image only once, 
+ * and unmixes every fluorophore from it. Tiles are unmixed as they are requested, so that parallelism 
+ * depends upon the number of tiles requested at once (e.g. by {@link UnmixingExport} using {@link #getSharedPool()})
+ * rather than the number of fluorophores.
+ */
+public class UnmixingPlan {
+
+	private static ExecutorService sharedPool;
+
+	private final double[][] proportionArray;
+	private final UnmixingPanel panel;
+	private final UnmixingSolver.Method method;
+
+	/**
+	 * Create a plan to unmix the specified panel.
+	 * @param proportionArray filter x channel proportion array
+	 * @param panel fluorophores to unmix
+	 * @throws org.apache.commons.math3.linear.SingularMatrixException if the regression for any fluorophore cannot be solved
+	 */
+	public UnmixingPlan(double[][] proportionArray, UnmixingPanel panel) {
+		this(proportionArray, panel, UnmixingSolver.Method.CLAMPED);
+	}
+
+	/**
+	 * Create a plan to unmix the specified panel, using the specified method to handle negative values.
+	 * @param proportionArray filter x channel proportion array
+	 * @param panel fluorophores to unmix
+	 * @param method
+	 * @throws org.apache.commons.math3.linear.SingularMatrixException if the regression for any fluorophore cannot be solved
+	 */
+	public UnmixingPlan(double[][] proportionArray, UnmixingPanel panel, UnmixingSolver.Method method) {
+		this.proportionArray = proportionArray;
+		this.panel = panel;
+		this.method = method;
+		// Check the regressions can be solved now, rather than when the first tile is read
+		for (var fluorophore : panel.getFluorophores())
+			UnmixingSolver.create(proportionArray, fluorophore, method);
+	}
+
+	/**
+	 * Get the shared executor used to unmix images. This is bounded by the number of available processors.
+	 * @return
+	 */
+	public static synchronized ExecutorService getSharedPool() {
+		if (sharedPool == null) {
+			sharedPool = Executors.newFixedThreadPool(
+					Runtime.getRuntime().availableProcessors(),
+					ThreadTools.createThreadFactory("unmixing-", true));
+		}
+		return sharedPool;
+	}
+
+	/**
+	 * Get the panel that this plan unmixes.
+	 * @return
+	 */
+	public UnmixingPanel getPanel() {
+		return panel;
+	}
+
+	/**
+	 * Get the proportion array used by this plan.
+	 * @return
+	 */
+	public double[][] getProportionArray() {
+		return proportionArray;
+	}
+
+	/**
+	 * Create a new ImageData that unmixes the image using this plan.
+	 * Tiles are unmixed as they are requested, so that the full output image is never held in memory.
+	 * @param imageData
+	 * @return
+	 * @throws IOException if the unmixing server could not be created
+	 */
+	public ImageData<BufferedImage> unmix(ImageData<BufferedImage> imageData) throws IOException {
+		ImageServer<BufferedImage> newServer = new TransformedServerBuilder(imageData.getServer())
+				.unmix(proportionArray, panel.getFluorophores(), method)
+				.build();
+		return new ImageData<>(newServer, ImageData.ImageType.FLUORESCENCE);
+	}
+
+}
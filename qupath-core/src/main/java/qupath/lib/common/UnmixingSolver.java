@@ -0,0 +1,532 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Least squares solver for unmixing many pixels with the same reference emission matrix.
+ * <p>
+ * {@link Unmixing#completeManualRegression(java.util.ArrayList, double[][], java.util.ArrayList, java.util.ArrayList)}
+ * solves f = (((M^T)M)^-1)((M^T)x) for every pixel, although M depends only upon the chosen channels and filters.
+ * This class calculates the pseudo-inverse (((M^T)M)^-1)(M^T) once, and then applies it to whole channel planes
+ * without any per-pixel allocation.
+ * <p>
+ * Because the cross-talk subtraction performed by {@link Fluorophore#subtractCrossTalk(double[], double[], double[][])}
+ * is also linear, the unmixed value of a fluorophore can be reduced to a single weighted sum of its channel intensities.
+ * <p>
+ * Alternatively, a solver can be created with {@link Method#NNLS} to constrain the coefficients to be non-negative,
+ * rather than only clipping the final unmixed value. The unconstrained solution is first computed for all pixels
+ * using simple loops over contiguous arrays (which the JIT compiler can vectorize), and then only the pixels with a
+ * negative coefficient are solved again using the Lawson-Hanson active set method.
+ */
+public class UnmixingSolver {
+
+	/**
+	 * Method used to handle negative results.
+	 */
+	public static enum Method {
+		/**
+		 * Unconstrained least squares, with negative unmixed values clipped to zero.
+		 */
+		CLAMPED,
+		/**
+		 * Non-negative least squares, so that no coefficient can be negative.
+		 * Negative unmixed values (after cross-talk subtraction) are still clipped to zero.
+		 */
+		NNLS
+	}
+
+	// Maximum number of active set iterations per coefficient, to guarantee termination with rounding errors
+	private static final int MAX_NNLS_ITERATIONS_PER_FILTER = 5;
+
+	// Unconstrained coefficients closer to zero than this are treated as rounding errors, and set to zero
+	// rather than requiring the pixel to be solved again
+	private static final float NNLS_ZERO_TOLERANCE = 1e-3f;
+
+	private final Method method;
+	private final int nChannels;
+	private final int nFilters;
+	private final double[][] referenceEmission;
+	private final double[][] pseudoInverse;
+	private final double[] weights;
+
+	// Required for NNLS only
+	private final double[][] gram;
+	private final double[] crossTalk;
+	private final int referenceChannel;
+	private final ThreadLocal<Scratch> scratch;
+
+	private UnmixingSolver(Method method, double[][] referenceEmission, double[][] pseudoInverse, double[] weights, double[] crossTalk, int referenceChannel) {
+		this.method = method;
+		this.nFilters = pseudoInverse.length;
+		this.nChannels = pseudoInverse[0].length;
+		this.referenceEmission = referenceEmission;
+		this.pseudoInverse = pseudoInverse;
+		this.weights = weights;
+		this.crossTalk = crossTalk;
+		this.referenceChannel = referenceChannel;
+		if (method == Method.NNLS) {
+			this.gram = new double[nFilters][nFilters];
+			for (int j = 0; j < nFilters; j++) {
+				for (int k = 0; k < nFilters; k++) {
+					double sum = 0;
+					for (int i = 0; i < nChannels; i++)
+						sum += referenceEmission[i][j] * referenceEmission[i][k];
+					gram[j][k] = sum;
+				}
+			}
+			this.scratch = ThreadLocal.withInitial(() -> new Scratch(nFilters));
+		} else {
+			this.gram = null;
+			this.scratch = null;
+		}
+	}
+
+	/**
+	 * Create a solver for the specified fluorophore.
+	 * @param proportionArray filter x channel proportion array
+	 * @param fluorophore
+	 * @return
+	 * @throws org.apache.commons.math3.linear.SingularMatrixException if (M^T)M cannot be inverted
+	 */
+	public static UnmixingSolver create(double[][] proportionArray, Fluorophore fluorophore) {
+		return create(proportionArray, fluorophore, Method.CLAMPED);
+	}
+
+	/**
+	 * Create a solver for the specified fluorophore, using the specified method to handle negative values.
+	 * @param proportionArray filter x channel proportion array
+	 * @param fluorophore
+	 * @param method
+	 * @return
+	 * @throws org.apache.commons.math3.linear.SingularMatrixException if (M^T)M cannot be inverted
+	 */
+	public static UnmixingSolver create(double[][] proportionArray, Fluorophore fluorophore, Method method) {
+		int[] channels = fluorophore.getChannels();
+		int[] filters = fluorophore.getFilters();
+		double[][] emission = createReferenceEmission(proportionArray, channels, filters);
+		double[][] pinv = computePseudoInverse(emission);
+
+		// Fold the cross-talk subtraction into the pseudo-inverse, so that
+		// result = x[r] - sum_{j>0} (beta[j] * P[f_j][c_r]) = sum_i (w[i] * x[i])
+		int r = fluorophore.getReferenceChannel();
+		int c = channels[r];
+		double[] weights = new double[channels.length];
+		double[] crossTalk = new double[filters.length];
+		weights[r] = 1.0;
+		for (int j = 1; j < filters.length; j++) {
+			double p = proportionArray[filters[j]][c];
+			crossTalk[j] = p;
+			for (int i = 0; i < channels.length; i++)
+				weights[i] -= p * pinv[j][i];
+		}
+		return new UnmixingSolver(method, emission, pinv, weights, crossTalk, r);
+	}
+
+	/**
+	 * Create a solver for the specified channels and filters, without any cross-talk subtraction.
+	 * Only {@link #solve(float[][], float[][])} should be used with a solver created in this way.
+	 * @param proportionArray filter x channel proportion array
+	 * @param channels 0-based channel indices
+	 * @param filters 0-based filter indices
+	 * @return
+	 * @throws org.apache.commons.math3.linear.SingularMatrixException if (M^T)M cannot be inverted
+	 */
+	public static UnmixingSolver create(double[][] proportionArray, int[] channels, int[] filters) {
+		return create(proportionArray, channels, filters, Method.CLAMPED);
+	}
+
+	/**
+	 * Create a solver for the specified channels and filters using the specified method, without any cross-talk subtraction.
+	 * Only {@link #solve(float[][], float[][])} should be used with a solver created in this way.
+	 * @param proportionArray filter x channel proportion array
+	 * @param channels 0-based channel indices
+	 * @param filters 0-based filter indices
+	 * @param method
+	 * @return
+	 * @throws org.apache.commons.math3.linear.SingularMatrixException if (M^T)M cannot be inverted
+	 */
+	public static UnmixingSolver create(double[][] proportionArray, int[] channels, int[] filters, Method method) {
+		double[][] emission = createReferenceEmission(proportionArray, channels, filters);
+		return new UnmixingSolver(method, emission, computePseudoInverse(emission), null, null, -1);
+	}
+
+	/**
+	 * Compute the pseudo-inverse (((M^T)M)^-1)(M^T), where M[i][j] = proportionArray[filters[j]][channels[i]].
+	 * @param proportionArray
+	 * @param channels
+	 * @param filters
+	 * @return a filters x channels array
+	 */
+	static double[][] computePseudoInverse(double[][] proportionArray, int[] channels, int[] filters) {
+		return computePseudoInverse(createReferenceEmission(proportionArray, channels, filters));
+	}
+
+	private static double[][] createReferenceEmission(double[][] proportionArray, int[] channels, int[] filters) {
+		double[][] referenceEmission = new double[channels.length][filters.length];
+		for (int i = 0; i < channels.length; i++) {
+			for (int j = 0; j < filters.length; j++)
+				referenceEmission[i][j] = proportionArray[filters[j]][channels[i]];
+		}
+		return referenceEmission;
+	}
+
+	private static double[][] computePseudoInverse(double[][] referenceEmission) {
+		RealMatrix m = new Array2DRowRealMatrix(referenceEmission, false);
+		RealMatrix mt = m.transpose();
+		RealMatrix inverse = new LUDecomposition(mt.multiply(m)).getSolver().getInverse();
+		return inverse.multiply(mt).getData();
+	}
+
+	/**
+	 * Get a copy of the pseudo-inverse.
+	 * @return a filters x channels array
+	 */
+	public double[][] getPseudoInverse() {
+		double[][] copy = new double[nFilters][];
+		for (int j = 0; j < nFilters; j++)
+			copy[j] = pseudoInverse[j].clone();
+		return copy;
+	}
+
+	/**
+	 * Get the method used to handle negative values.
+	 * @return
+	 */
+	public Method getMethod() {
+		return method;
+	}
+
+	/**
+	 * Number of channels expected as input.
+	 * @return
+	 */
+	public int nChannels() {
+		return nChannels;
+	}
+
+	/**
+	 * Number of coefficients output (one per filter).
+	 * @return
+	 */
+	public int nFilters() {
+		return nFilters;
+	}
+
+	/**
+	 * Calculate the regression coefficients (i.e. the A-values) for every pixel.
+	 * @param channelPlanes input pixels, one array per channel in the order the solver was created with
+	 * @param coefficientPlanes output coefficients, one array per filter; arrays must be at least as long as the input
+	 */
+	public void solve(float[][] channelPlanes, float[][] coefficientPlanes) {
+		checkPlanes(channelPlanes, nChannels);
+		checkPlanes(coefficientPlanes, nFilters);
+		int n = channelPlanes[0].length;
+		if (method == Method.NNLS) {
+			solveNonNegative(channelPlanes, coefficientPlanes, n, scratch.get());
+			return;
+		}
+		for (int j = 0; j < nFilters; j++) {
+			double[] row = pseudoInverse[j];
+			float[] output = coefficientPlanes[j];
+			for (int p = 0; p < n; p++) {
+				double sum = 0;
+				for (int i = 0; i < nChannels; i++)
+					sum += row[i] * channelPlanes[i][p];
+				output[p] = (float)sum;
+			}
+		}
+	}
+
+	/**
+	 * Calculate the unmixed fluorophore value for every pixel, equivalent to solving the regression and
+	 * then applying {@link Fluorophore#subtractCrossTalk(double[], double[], double[][])}.
+	 * @param channelPlanes input pixels, one array per channel in the order returned by {@link Fluorophore#getChannels()}
+	 * @param output array to store the unmixed values; must be at least as long as the input
+	 * @throws UnsupportedOperationException if the solver was not created for a {@link Fluorophore}
+	 */
+	public void unmix(float[][] channelPlanes, float[] output) {
+		if (weights == null)
+			throw new UnsupportedOperationException("Solver was not created for a fluorophore");
+		checkPlanes(channelPlanes, nChannels);
+		int n = channelPlanes[0].length;
+		if (method == Method.NNLS) {
+			unmixNonNegative(channelPlanes, output, n);
+			return;
+		}
+		for (int p = 0; p < n; p++) {
+			double sum = 0;
+			for (int i = 0; i < nChannels; i++)
+				sum += weights[i] * channelPlanes[i][p];
+			output[p] = sum < 0 ? 0f : (float)sum;
+		}
+	}
+
+	private void unmixNonNegative(float[][] channelPlanes, float[] output, int n) {
+		var s = scratch.get();
+		float[][] coefficients = s.getCoefficientPlanes(n);
+		solveNonNegative(channelPlanes, coefficients, n, s);
+
+		// Subtract the cross-talk from the reference channel, one coefficient at a time
+		System.arraycopy(channelPlanes[referenceChannel], 0, output, 0, n);
+		for (int j = 1; j < nFilters; j++) {
+			float c = (float)crossTalk[j];
+			float[] coef = coefficients[j];
+			for (int p = 0; p < n; p++)
+				output[p] -= c * coef[p];
+		}
+		for (int p = 0; p < n; p++) {
+			if (output[p] < 0f)
+				output[p] = 0f;
+		}
+	}
+
+	/**
+	 * Solve the unconstrained problem for all pixels, then solve again any pixel with a negative coefficient.
+	 * The loops are ordered so that the innermost loop always runs over contiguous pixels.
+	 */
+	private void solveNonNegative(float[][] channelPlanes, float[][] coefficientPlanes, int n, Scratch s) {
+		for (int j = 0; j < nFilters; j++) {
+			float[] coef = coefficientPlanes[j];
+			Arrays.fill(coef, 0, n, 0f);
+			for (int i = 0; i < nChannels; i++) {
+				float w = (float)pseudoInverse[j][i];
+				float[] x = channelPlanes[i];
+				for (int p = 0; p < n; p++)
+					coef[p] += w * x[p];
+			}
+		}
+		boolean[] passive = s.passive;
+		for (int p = 0; p < n; p++) {
+			boolean negative = false;
+			for (int j = 0; j < nFilters; j++) {
+				float c = coefficientPlanes[j][p];
+				if (c < -NNLS_ZERO_TOLERANCE)
+					negative = true;
+				else if (c < 0f)
+					coefficientPlanes[j][p] = 0f;
+				passive[j] = c > 0f;
+			}
+			if (!negative)
+				continue;
+			double[] q = s.q;
+			for (int j = 0; j < nFilters; j++) {
+				double sum = 0;
+				for (int i = 0; i < nChannels; i++)
+					sum += referenceEmission[i][j] * channelPlanes[i][p];
+				q[j] = sum;
+			}
+			// Use the positive unconstrained coefficients as the starting passive set
+			solveNonNegative(gram, q, s, true);
+			for (int j = 0; j < nFilters; j++)
+				coefficientPlanes[j][p] = (float)s.b[j];
+		}
+	}
+
+	/**
+	 * Lawson-Hanson active set method to minimize 0.5 b'Gb - q'b subject to b &ge; 0,
+	 * which is equivalent to minimizing ||Mb - x|| when G = M'M and q = M'x.
+	 * The result is stored in s.b.
+	 * <p>
+	 * If warmStart is true, s.passive should contain an initial guess of the coefficients that are positive.
+	 * This is used if solving for only those coefficients gives a feasible solution, since this usually means
+	 * that few (if any) further iterations are required.
+	 */
+	static void solveNonNegative(double[][] gram, double[] q, Scratch s, boolean warmStart) {
+		int k = q.length;
+		double[] b = s.b;
+		double[] z = s.z;
+		double[] w = s.w;
+		boolean[] passive = s.passive;
+		Arrays.fill(b, 0, k, 0.0);
+		if (warmStart) {
+			solvePassive(gram, q, passive, z, s);
+			boolean feasible = true;
+			for (int j = 0; j < k; j++) {
+				if (passive[j] && z[j] <= 0) {
+					feasible = false;
+					break;
+				}
+			}
+			if (feasible)
+				System.arraycopy(z, 0, b, 0, k);
+			else
+				Arrays.fill(passive, 0, k, false);
+		} else
+			Arrays.fill(passive, 0, k, false);
+
+		double maxQ = 0;
+		for (int j = 0; j < k; j++)
+			maxQ = Math.max(maxQ, Math.abs(q[j]));
+		double tol = 1e-10 * Math.max(1.0, maxQ);
+
+		int maxIterations = MAX_NNLS_ITERATIONS_PER_FILTER * k;
+		int iterations = 0;
+		while (iterations++ < maxIterations) {
+			// Gradient of the objective, restricted to the active (zero) coefficients
+			int next = -1;
+			double maxW = tol;
+			for (int j = 0; j < k; j++) {
+				if (passive[j])
+					continue;
+				double sum = q[j];
+				for (int m = 0; m < k; m++)
+					sum -= gram[j][m] * b[m];
+				w[j] = sum;
+				if (sum > maxW) {
+					maxW = sum;
+					next = j;
+				}
+			}
+			if (next < 0)
+				break;
+			passive[next] = true;
+
+			while (iterations++ < maxIterations) {
+				solvePassive(gram, q, passive, z, s);
+				double alpha = Double.POSITIVE_INFINITY;
+				int limit = -1;
+				for (int j = 0; j < k; j++) {
+					if (passive[j] && z[j] <= 0) {
+						double a = b[j] <= 0 ? 0 : b[j] / (b[j] - z[j]);
+						if (a < alpha) {
+							alpha = a;
+							limit = j;
+						}
+					}
+				}
+				if (limit < 0) {
+					System.arraycopy(z, 0, b, 0, k);
+					break;
+				}
+				// Move as far as possible towards z while remaining feasible, then drop the coefficients that reach zero
+				for (int j = 0; j < k; j++) {
+					if (!passive[j])
+						continue;
+					b[j] += alpha * (z[j] - b[j]);
+					if (j == limit || b[j] <= 0) {
+						passive[j] = false;
+						b[j] = 0;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Solve the unconstrained problem for only the passive coefficients, using Gaussian elimination with partial pivoting.
+	 * The result is stored in z, with all other coefficients set to 0.
+	 */
+	private static void solvePassive(double[][] gram, double[] q, boolean[] passive, double[] z, Scratch s) {
+		int k = q.length;
+		int[] index = s.index;
+		int m = 0;
+		for (int j = 0; j < k; j++) {
+			z[j] = 0;
+			if (passive[j])
+				index[m++] = j;
+		}
+		double[][] a = s.system;
+		for (int r = 0; r < m; r++) {
+			for (int c = 0; c < m; c++)
+				a[r][c] = gram[index[r]][index[c]];
+			a[r][m] = q[index[r]];
+		}
+		for (int col = 0; col < m; col++) {
+			int pivot = col;
+			for (int r = col + 1; r < m; r++) {
+				if (Math.abs(a[r][col]) > Math.abs(a[pivot][col]))
+					pivot = r;
+			}
+			double[] temp = a[col];
+			a[col] = a[pivot];
+			a[pivot] = temp;
+			double d = a[col][col];
+			if (d == 0)
+				continue;
+			for (int r = col + 1; r < m; r++) {
+				double f = a[r][col] / d;
+				if (f == 0)
+					continue;
+				for (int c = col; c <= m; c++)
+					a[r][c] -= f * a[col][c];
+			}
+		}
+		for (int r = m - 1; r >= 0; r--) {
+			double sum = a[r][m];
+			for (int c = r + 1; c < m; c++)
+				sum -= a[r][c] * z[index[c]];
+			z[index[r]] = a[r][r] == 0 ? 0 : sum / a[r][r];
+		}
+	}
+
+	private static void checkPlanes(float[][] planes, int expected) {
+		if (planes.length != expected)
+			throw new IllegalArgumentException("Expected " + expected + " planes, but got " + planes.length);
+	}
+
+	/**
+	 * Preallocated buffers for NNLS, so that nothing needs to be allocated per pixel.
+	 * One instance is used per thread.
+	 */
+	static class Scratch {
+
+		private final double[] q;
+		private final double[] b;
+		private final double[] z;
+		private final double[] w;
+		private final boolean[] passive;
+		private final int[] index;
+		private final double[][] system;
+		private float[][] coefficientPlanes;
+
+		Scratch(int nFilters) {
+			q = new double[nFilters];
+			b = new double[nFilters];
+			z = new double[nFilters];
+			w = new double[nFilters];
+			passive = new boolean[nFilters];
+			index = new int[nFilters];
+			system = new double[nFilters][nFilters + 1];
+			coefficientPlanes = new float[nFilters][0];
+		}
+
+		double[] getCoefficients() {
+			return b;
+		}
+
+		float[][] getCoefficientPlanes(int n) {
+			if (coefficientPlanes[0].length < n) {
+				for (int j = 0; j < coefficientPlanes.length; j++)
+					coefficientPlanes[j] = new float[n];
+			}
+			return coefficientPlanes;
+		}
+
+	}
+
+}
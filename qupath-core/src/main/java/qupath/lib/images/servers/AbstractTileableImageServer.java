@@ -28,12 +28,19 @@ import java.awt.image.ColorModel;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,12 +67,19 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 	private ColorModel colorModel;
 	private Map<String, BufferedImage> emptyTileMap = new HashMap<>();
 	
-	private transient Set<TileRequest> emptyTiles = new HashSet<>();
+	private transient Set<TileRequest> emptyTiles = ConcurrentHashMap.newKeySet();
 	
 	private final static Long ZERO = Long.valueOf(0L);
 	
 	// Maintain a record of tiles that could not be cached, so we warn for each only once
-	private transient Set<RegionRequest> failedCacheTiles = new HashSet<>();
+	private transient Set<RegionRequest> failedCacheTiles = ConcurrentHashMap.newKeySet();
+	
+	// Summary of the image file sizes and modification times, used as part of the disk cache key
+	private transient volatile String diskCacheStamp;
+	
+	// Tiles currently being read, so that concurrent requests for the same tile can share a single read
+	private transient Map<TileRequest, CompletableFuture<BufferedImage>> pendingTiles = new ConcurrentHashMap<>();
+	private transient LongAdder deduplicatedReads = new LongAdder();
 		
 	protected AbstractTileableImageServer() {
 		super(BufferedImage.class);
@@ -157,6 +171,45 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 	protected abstract BufferedImage readTile(final TileRequest tileRequest) throws IOException;
 	
 	
+	/**
+	 * Returns true if tiles read by this server may be stored in the persistent disk cache, if one is available.
+	 * <p>
+	 * This is false by default. Subclasses should only return true if reading tiles is slow compared to reading 
+	 * the raw pixels from disk, and the pixels for a given path will not change unless the image files change.
+	 * 
+	 * @return
+	 * @see ImageServerProvider#getDiskCache()
+	 */
+	protected boolean isDiskCacheable() {
+		return false;
+	}
+	
+	/**
+	 * Get the key used to store a tile in the disk cache.
+	 * This incorporates the size and modification time of any local image files, so that tiles are not reused 
+	 * if the files change.
+	 */
+	String getDiskCacheKey(TileRequest tileRequest) {
+		if (diskCacheStamp == null) {
+			var sb = new StringBuilder();
+			for (var uri : getURIs()) {
+				try {
+					if ("file".equals(uri.getScheme())) {
+						var path = Paths.get(uri);
+						sb.append(Files.size(path)).append(':').append(Files.getLastModifiedTime(path).toMillis()).append(';');
+					}
+				} catch (Exception e) {
+					logger.debug("Unable to read file attributes for {}: {}", uri, e.getLocalizedMessage());
+				}
+			}
+			diskCacheStamp = sb.toString();
+		}
+		var request = tileRequest.getRegionRequest();
+		return getPath() + "|" + diskCacheStamp + "|" + request.getDownsample() + "," +
+				request.getX() + "," + request.getY() + "," + request.getWidth() + "," + request.getHeight() + "," +
+				request.getZ() + "," + request.getT();
+	}
+	
 	/**
 	 * Get a tile for the request - ideally from the cache, but otherwise read it and 
 	 * then add it to the cache.
@@ -179,9 +232,108 @@ public abstract class AbstractTileableImageServer extends AbstractImageServer<Bu
 				return imgCached;
 			}
 		}
-		logger.trace("Reading tile: {}", request);
 		
-		var imgCached = readTile(tileRequest);
+		while (true) {
+			// If another thread is already reading the same tile, wait for it rather than reading it again
+			var future = new CompletableFuture<BufferedImage>();
+			var pending = pendingTiles.putIfAbsent(tileRequest, future);
+			if (pending == null)
+				return readPendingTile(tileRequest, cache, future);
+			deduplicatedReads.increment();
+			logger.trace("Waiting for pending tile: {}", request);
+			try {
+				return awaitTile(pending);
+			} catch (IOException e) {
+				// If the read failed only because the other thread was interrupted, try to read the tile here instead
+				if (!isInterruption(e) || Thread.currentThread().isInterrupted())
+					throw e;
+				logger.trace("Pending read was interrupted, retrying: {}", request);
+				pendingTiles.remove(tileRequest, pending);
+			}
+		}
+	}
+	
+	private BufferedImage readPendingTile(TileRequest tileRequest, Map<RegionRequest, BufferedImage> cache, CompletableFuture<BufferedImage> future) throws IOException {
+		try {
+			// The tile may have been cached by another thread since we last checked
+			var img = cache == null ? null : cache.get(tileRequest.getRegionRequest());
+			if (img == null)
+				img = readAndCacheTile(tileRequest, cache);
+			future.complete(img);
+			return img;
+		} catch (IOException | RuntimeException | Error e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			pendingTiles.remove(tileRequest, future);
+		}
+	}
+	
+	private static boolean isInterruption(IOException e) {
+		return e instanceof InterruptedIOException || e instanceof ClosedByInterruptException;
+	}
+	
+	/**
+	 * Get the number of tile requests that were satisfied by waiting for another thread to read the same tile, 
+	 * rather than reading the tile again.
+	 * @return
+	 */
+	public long getDeduplicatedReadCount() {
+		return deduplicatedReads.sum();
+	}
+	
+	/**
+	 * Returns true if a tile is already cached, or is currently being read.
+	 * This is used to avoid requesting tiles unnecessarily when prefetching.
+	 * @param tileRequest
+	 * @return
+	 */
+	boolean isTileCachedOrPending(TileRequest tileRequest) {
+		if (emptyTiles.contains(tileRequest) || pendingTiles.containsKey(tileRequest))
+			return true;
+		var cache = getCache();
+		return cache != null && cache.containsKey(tileRequest.getRegionRequest());
+	}
+	
+	private static BufferedImage awaitTile(CompletableFuture<BufferedImage> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for tile");
+		} catch (ExecutionException e) {
+			var cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(cause);
+		}
+	}
+	
+	/**
+	 * Read a tile, using the disk cache if available, and add it to the in-memory cache.
+	 */
+	private BufferedImage readAndCacheTile(TileRequest tileRequest, Map<RegionRequest, BufferedImage> cache) throws IOException {
+		var request = tileRequest.getRegionRequest();
+		var diskCache = isDiskCacheable() ? ImageServerProvider.getDiskCache() : null;
+		String diskKey = null;
+		BufferedImage imgCached = null;
+		if (diskCache != null) {
+			diskKey = getDiskCacheKey(tileRequest);
+			imgCached = diskCache.get(diskKey, getDefaultColorModel());
+			if (imgCached != null)
+				logger.trace("Returning tile from disk cache: {}", request);
+		}
+		
+		if (imgCached == null) {
+			logger.trace("Reading tile: {}", request);
+			imgCached = readTile(tileRequest);
+			if (diskCache != null && imgCached != null && !isEmptyTile(imgCached))
+				diskCache.put(diskKey, imgCached, getDefaultColorModel());
+		}
 		
 		// Put the tile in the appropriate cache
 		if (imgCached != null) {
@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.common.ChannelPlanes;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * An ImageServer that provides a subset of the channels of a wrapped ImageServer, in a specified order.
+ * <p>
+ * Unlike {@link ChannelTransformFeatureServer}, the pixel type of the wrapped server is retained.
+ * Channels are copied only when a tile is requested, and the selected channels are stored with the
+ * server builder so that the reduced image can be reopened without any further processing.
+ */
+class ChannelSelectionImageServer extends TransformingImageServer<BufferedImage> {
+
+	private final static Logger logger = LoggerFactory.getLogger(ChannelSelectionImageServer.class);
+
+	private int[] channels;
+	private ImageServerMetadata metadata;
+	private transient ColorModel colorModel;
+
+	ChannelSelectionImageServer(ImageServer<BufferedImage> server, int... channels) {
+		super(server);
+
+		logger.trace("Creating server for {} and channels {}", server, channels);
+
+		if (channels.length == 0)
+			throw new IllegalArgumentException("At least one channel must be selected");
+		this.channels = channels.clone();
+
+		int nChannels = server.nChannels();
+		List<ImageChannel> selected = new ArrayList<>();
+		for (int c : channels) {
+			if (c < 0 || c >= nChannels)
+				throw new IllegalArgumentException("Channel " + c + " is out of range - server has " + nChannels + " channels");
+			selected.add(server.getChannel(c));
+		}
+
+		metadata = new ImageServerMetadata.Builder(server.getMetadata())
+				.rgb(false)
+				.channels(selected)
+				.name(String.format("%s (%d channels)", server.getMetadata().getName(), channels.length))
+				.build();
+	}
+
+	private ColorModel getColorModel() {
+		if (colorModel == null) {
+			synchronized(this) {
+				colorModel = ColorModelFactory.createColorModel(getMetadata().getPixelType(), getMetadata().getChannels());
+			}
+		}
+		return colorModel;
+	}
+
+	@Override
+	protected ServerBuilder<BufferedImage> createServerBuilder() {
+		return new ImageServers.ChannelSelectionServerBuilder(
+				getMetadata(),
+				getWrappedServer().getBuilder(),
+				channels
+				);
+	}
+
+	@Override
+	protected String createID() {
+		return getClass().getName() + ": " + getWrappedServer().getPath() + " channels=" + Arrays.toString(channels);
+	}
+
+	/**
+	 * Get the (0-based) indices of the channels of the wrapped server, in the order they are provided by this server.
+	 * @return
+	 */
+	public int[] getChannels() {
+		return channels.clone();
+	}
+
+	@Override
+	public BufferedImage readBufferedImage(final RegionRequest request) throws IOException {
+		BufferedImage img = getWrappedServer().readBufferedImage(request);
+		if (img == null)
+			return null;
+
+		int w = img.getWidth();
+		int h = img.getHeight();
+		var colorModel = getColorModel();
+		WritableRaster raster = colorModel.createCompatibleWritableRaster(w, h);
+		Raster source = img.getRaster();
+		int dataType = raster.getDataBuffer().getDataType();
+		if (dataType == DataBuffer.TYPE_INT || dataType == DataBuffer.TYPE_DOUBLE) {
+			// Avoid losing precision by converting to float
+			double[] values = new double[w * h];
+			for (int b = 0; b < channels.length; b++) {
+				source.getSamples(0, 0, w, h, channels[b], values);
+				raster.setSamples(0, 0, w, h, b, values);
+			}
+		} else {
+			float[] values = new float[w * h];
+			for (int b = 0; b < channels.length; b++) {
+				ChannelPlanes.getSamples(source, channels[b], values);
+				ChannelPlanes.setSamples(raster, b, values);
+			}
+		}
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	@Override
+	public ImageServerMetadata getOriginalMetadata() {
+		return metadata;
+	}
+
+	@Override
+	public String getServerType() {
+		return "Channel selection server";
+	}
+
+}
@@ -0,0 +1,800 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+
+/**
+ * Persistent tile cache, which stores decoded image tiles on disk so that they can be reused across sessions and projects.
+ * <p>
+ * This is intended as a second-level cache beneath the in-memory tile cache, for image servers where decoding tiles
+ * is much slower than reading raw pixels (e.g. JPEG2000, or remote images).
+ * <p>
+ * Tiles are appended to chunk files in a single directory. Chunks that are full are memory-mapped for reading.
+ * When the total size exceeds the limit, the chunk that was least recently read is deleted, along with all its tiles.
+ * Tiles are written asynchronously, and dropped if too many writes are pending, so that a slow disk never delays
+ * reading a tile.
+ * <p>
+ * Only the pixel data is stored. This means that an image with a custom color model can only be restored if the
+ * same color model is provided when it is read.
+ * <p>
+ * The directory is locked while the cache is open, so that it can only be used by one cache at a time.
+ * Where several objects may need the same directory (e.g. multiple servers for one project entry), 
+ * {@link #acquire(Path, long)} should be used to share a single cache between them.
+ */
+public class DiskTileCache implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(DiskTileCache.class);
+
+	private static final int MAGIC_START = 0x51544331; // QTC1
+	private static final int MAGIC_END = 0x51544345; // QTCE
+	private static final int HEADER_BYTES = 4 + 16 + 4 * 7;
+	private static final String CHUNK_EXT = ".qtc";
+	private static final Pattern CHUNK_PATTERN = Pattern.compile("chunk-(\\d+)\\" + CHUNK_EXT);
+	private static final String LOCK_NAME = "cache.lock";
+	private static final int MAX_CREATE_ATTEMPTS = 100;
+
+	private static final long DEFAULT_CHUNK_BYTES = 64L * 1024L * 1024L;
+	private static final long MAX_PENDING_BYTES = 256L * 1024L * 1024L;
+
+	private final Path directory;
+	private final long maxBytes;
+	private final long chunkBytes;
+
+	private final Map<Key, Location> index = new ConcurrentHashMap<>();
+	private final Map<Integer, Chunk> chunks = new ConcurrentHashMap<>();
+	private final AtomicLong totalBytes = new AtomicLong();
+	private final AtomicLong pendingBytes = new AtomicLong();
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+
+	private FileChannel lockChannel;
+
+	// Only accessed by the writer thread
+	private Chunk activeChunk;
+	private int nextChunkId;
+
+	// Caches opened with acquire, by normalized directory
+	private static final Map<Path, DiskTileCache> sharedCaches = new HashMap<>();
+	// Guarded by sharedCaches
+	private int nReferences = 0;
+
+	private final ExecutorService writer = Executors.newSingleThreadExecutor(ThreadTools.createThreadFactory("disk-tile-cache-", true));
+
+	private DiskTileCache(Path directory, long maxBytes, long chunkBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.chunkBytes = chunkBytes;
+	}
+
+	/**
+	 * Open a disk cache in the specified directory, reusing any tiles that were previously written there.
+	 * @param directory the directory for the cache files; this will be created if necessary
+	 * @param maxBytes the maximum size of the cache on disk
+	 * @return
+	 * @throws IOException if the directory could not be created or read, or is already in use by another cache
+	 */
+	public static DiskTileCache open(Path directory, long maxBytes) throws IOException {
+		return open(directory, maxBytes, Math.max(1L, Math.min(DEFAULT_CHUNK_BYTES, maxBytes / 8)));
+	}
+
+	static DiskTileCache open(Path directory, long maxBytes, long chunkBytes) throws IOException {
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("Disk cache size must be > 0");
+		Files.createDirectories(directory);
+		var cache = new DiskTileCache(directory, maxBytes, chunkBytes);
+		try {
+			cache.lock();
+			cache.readChunks();
+		} catch (IOException e) {
+			cache.close();
+			throw e;
+		}
+		return cache;
+	}
+
+	/**
+	 * Get a cache for the specified directory that may be shared with other callers within this JVM.
+	 * If the directory is already open, the existing cache is returned and its maximum size is unchanged.
+	 * Each call must be balanced by a call to {@link #release()}; the cache is closed when the last caller releases it.
+	 * @param directory the directory for the cache files; this will be created if necessary
+	 * @param maxBytes the maximum size of the cache on disk, if a new cache is opened
+	 * @return
+	 * @throws IOException if the directory could not be created or read, or is already in use by a cache that isn't shared
+	 * @see #release()
+	 */
+	public static DiskTileCache acquire(Path directory, long maxBytes) throws IOException {
+		var key = directory.toAbsolutePath().normalize();
+		synchronized (sharedCaches) {
+			var cache = sharedCaches.get(key);
+			if (cache == null) {
+				cache = open(key, maxBytes);
+				sharedCaches.put(key, cache);
+			} else if (cache.getMaxBytes() != maxBytes)
+				logger.debug("Disk tile cache {} is already open with max size {} bytes", key, cache.getMaxBytes());
+			cache.nReferences++;
+			return cache;
+		}
+	}
+
+	/**
+	 * Release a cache returned by {@link #acquire(Path, long)}, closing it if it is no longer used.
+	 * @see #acquire(Path, long)
+	 */
+	public void release() {
+		synchronized (sharedCaches) {
+			if (nReferences <= 0) {
+				logger.warn("Disk tile cache {} was released more times than it was acquired", directory);
+				return;
+			}
+			if (--nReferences > 0)
+				return;
+			sharedCaches.remove(directory, this);
+		}
+		close();
+	}
+
+	/**
+	 * Get the directory containing the cache files.
+	 * @return
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Get the maximum size of the cache, in bytes.
+	 * @return
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Get the current size of the cache files, in bytes.
+	 * @return
+	 */
+	public long getSizeBytes() {
+		return totalBytes.get();
+	}
+
+	/**
+	 * Get the number of tiles in the cache.
+	 * @return
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Get the number of requests that returned a tile.
+	 * @return
+	 */
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	/**
+	 * Get the number of requests that did not return a tile.
+	 * @return
+	 */
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	/**
+	 * Request a tile from the cache.
+	 * @param key unique key for the tile, which should change whenever the pixels might change
+	 * @param colorModel the color model to use if the tile did not have a standard image type; may be null if not needed
+	 * @return the tile, or null if it was not found in the cache
+	 */
+	public BufferedImage get(String key, ColorModel colorModel) {
+		var k = createKey(key);
+		var location = index.get(k);
+		if (location == null) {
+			missCount.increment();
+			return null;
+		}
+		try {
+			var img = location.chunk.read(k, location.offset, location.length, colorModel);
+			if (img != null) {
+				hitCount.increment();
+				return img;
+			}
+		} catch (Exception e) {
+			logger.debug("Unable to read cached tile: {}", e.getLocalizedMessage());
+		}
+		missCount.increment();
+		return null;
+	}
+
+	/**
+	 * Add a tile to the cache, if it has a supported type.
+	 * The tile is written asynchronously, and so must not be modified afterwards.
+	 * @param key unique key for the tile, which should change whenever the pixels might change
+	 * @param img the tile
+	 * @param colorModel the color model that will be used to read the tile, if it does not have a standard image type
+	 * @return true if the tile will be written, false if it was not supported, already cached, or too many tiles are waiting to be written
+	 */
+	public boolean put(String key, BufferedImage img, ColorModel colorModel) {
+		var k = createKey(key);
+		if (index.containsKey(k) || !isSupported(img, colorModel))
+			return false;
+		long bytes = HEADER_BYTES + getDataBytes(img.getRaster().getDataBuffer()) + 4;
+		if (bytes > chunkBytes || pendingBytes.addAndGet(bytes) > MAX_PENDING_BYTES) {
+			pendingBytes.addAndGet(-bytes);
+			return false;
+		}
+		try {
+			writer.execute(() -> {
+				try {
+					write(k, img);
+				} catch (Exception e) {
+					logger.warn("Unable to write tile to disk cache: {}", e.getLocalizedMessage());
+					logger.debug(e.getLocalizedMessage(), e);
+				} finally {
+					pendingBytes.addAndGet(-bytes);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			pendingBytes.addAndGet(-bytes);
+			return false;
+		}
+	}
+
+	/**
+	 * Remove all tiles, and delete the cache files.
+	 * Pending writes may still be added afterwards.
+	 */
+	public void clear() {
+		try {
+			writer.submit(() -> {
+				index.clear();
+				for (var chunk : new ArrayList<>(chunks.values()))
+					deleteChunk(chunk);
+				activeChunk = null;
+			}).get();
+		} catch (Exception e) {
+			logger.warn("Unable to clear disk cache: {}", e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Stop writing tiles, and close the cache files.
+	 * Pending writes are completed, if this is possible within a few seconds.
+	 * <p>
+	 * Caches obtained from {@link #acquire(Path, long)} should be released instead.
+	 */
+	@Override
+	public void close() {
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(5, TimeUnit.SECONDS))
+				writer.shutdownNow();
+		} catch (InterruptedException e) {
+			writer.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		for (var chunk : chunks.values())
+			chunk.close();
+		// Closing the channel also releases the lock
+		var lockChannel = this.lockChannel;
+		this.lockChannel = null;
+		if (lockChannel != null) {
+			try {
+				lockChannel.close();
+			} catch (IOException e) {
+				logger.debug("Unable to release lock for {}: {}", directory, e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Lock the directory, so that two caches can't write chunks with the same name.
+	 */
+	private void lock() throws IOException {
+		lockChannel = FileChannel.open(directory.resolve(LOCK_NAME), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		boolean locked;
+		try {
+			locked = lockChannel.tryLock() != null;
+		} catch (OverlappingFileLockException e) {
+			// Already locked within this JVM
+			locked = false;
+		}
+		if (!locked)
+			throw new IOException("Disk tile cache " + directory + " is already in use");
+	}
+
+
+	static boolean isSupported(BufferedImage img, ColorModel colorModel) {
+		if (img == null || img.isAlphaPremultiplied())
+			return false;
+		int type = img.getType();
+		// Indexed images may use any palette, which isn't stored
+		if (type == BufferedImage.TYPE_BYTE_INDEXED || type == BufferedImage.TYPE_BYTE_BINARY)
+			return false;
+		var template = createImage(type, colorModel, img.getWidth(), img.getHeight());
+		if (template == null)
+			return false;
+		var raster = img.getRaster();
+		var templateRaster = template.getRaster();
+		if (!templateRaster.getSampleModel().equals(raster.getSampleModel()))
+			return false;
+		var buffer = raster.getDataBuffer();
+		var templateBuffer = templateRaster.getDataBuffer();
+		if (buffer.getDataType() != templateBuffer.getDataType() || buffer.getNumBanks() != templateBuffer.getNumBanks() ||
+				buffer.getSize() != templateBuffer.getSize() || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0)
+			return false;
+		for (int b = 0; b < buffer.getNumBanks(); b++) {
+			if (buffer.getOffsets()[b] != 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static BufferedImage createImage(int type, ColorModel colorModel, int width, int height) {
+		if (type != BufferedImage.TYPE_CUSTOM)
+			return new BufferedImage(width, height, type);
+		if (colorModel == null)
+			return null;
+		return new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(width, height), false, null);
+	}
+
+	private static long getDataBytes(DataBuffer buffer) {
+		return (long)buffer.getSize() * buffer.getNumBanks() * (DataBuffer.getDataTypeSize(buffer.getDataType()) / 8);
+	}
+
+
+	private static Key createKey(String key) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			var buffer = ByteBuffer.wrap(digest);
+			return new Key(buffer.getLong(), buffer.getLong());
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is required on every Java platform
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	/**
+	 * Find existing chunks and index their tiles.
+	 */
+	private void readChunks() throws IOException {
+		Map<Integer, Path> paths = new TreeMap<>();
+		try (var stream = Files.list(directory)) {
+			for (var path : (Iterable<Path>)stream::iterator) {
+				var matcher = CHUNK_PATTERN.matcher(path.getFileName().toString());
+				if (matcher.matches())
+					paths.put(Integer.valueOf(matcher.group(1)), path);
+			}
+		}
+		// Index in order, so that later tiles replace earlier ones with the same key
+		for (var entry : paths.entrySet()) {
+			int id = entry.getKey();
+			var path = entry.getValue();
+			nextChunkId = Math.max(nextChunkId, id + 1);
+			try {
+				var chunk = new Chunk(id, path, Files.getLastModifiedTime(path).toMillis());
+				chunk.scan();
+				chunk.seal();
+				chunks.put(id, chunk);
+				totalBytes.addAndGet(chunk.size);
+			} catch (IOException e) {
+				logger.warn("Unable to read tile cache file {}: {}", path, e.getLocalizedMessage());
+			}
+		}
+		logger.debug("Opened disk tile cache with {} tiles ({} MB)", index.size(), totalBytes.get() / (1024 * 1024));
+		// Ensure we aren't above the limit, in case it has changed
+		evictIfNeeded();
+	}
+
+	/**
+	 * Write a tile to the active chunk. This should only be called by the writer thread.
+	 */
+	private void write(Key key, BufferedImage img) throws IOException {
+		if (index.containsKey(key))
+			return;
+		var raster = img.getRaster();
+		var buffer = raster.getDataBuffer();
+		long dataBytes = getDataBytes(buffer);
+		int length = (int)(HEADER_BYTES + dataBytes + 4);
+		if (activeChunk == null || activeChunk.size + length > chunkBytes) {
+			var previous = activeChunk;
+			activeChunk = null;
+			if (previous != null)
+				previous.seal();
+			activeChunk = createChunk();
+		}
+		var bytes = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		bytes.putInt(MAGIC_START);
+		bytes.putLong(key.hi);
+		bytes.putLong(key.lo);
+		bytes.putInt(img.getType());
+		bytes.putInt(buffer.getDataType());
+		bytes.putInt(img.getWidth());
+		bytes.putInt(img.getHeight());
+		bytes.putInt(buffer.getNumBanks());
+		bytes.putInt(buffer.getSize());
+		bytes.putInt((int)dataBytes);
+		for (int b = 0; b < buffer.getNumBanks(); b++)
+			putBank(bytes, buffer, b);
+		bytes.putInt(MAGIC_END);
+		bytes.flip();
+
+		var chunk = activeChunk;
+		long offset = chunk.size;
+		while (bytes.hasRemaining())
+			chunk.channel.write(bytes, offset + bytes.position());
+		chunk.size += length;
+		chunk.keys.add(key);
+		totalBytes.addAndGet(length);
+		index.put(key, new Location(chunk, offset, length));
+		evictIfNeeded();
+	}
+
+	/**
+	 * Create a new chunk for writing, without ever reusing an existing file.
+	 */
+	private Chunk createChunk() throws IOException {
+		for (int attempt = 0; attempt < MAX_CREATE_ATTEMPTS; attempt++) {
+			int id = nextChunkId++;
+			var path = directory.resolve("chunk-" + id + CHUNK_EXT);
+			try {
+				var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.READ);
+				var chunk = new Chunk(id, path, System.currentTimeMillis());
+				chunk.channel = channel;
+				chunks.put(id, chunk);
+				return chunk;
+			} catch (FileAlreadyExistsException e) {
+				logger.debug("Tile cache file {} already exists, trying the next", path);
+			}
+		}
+		throw new IOException("Unable to create a new tile cache file in " + directory);
+	}
+
+	private static void putBank(ByteBuffer bytes, DataBuffer buffer, int bank) {
+		switch (buffer.getDataType()) {
+		case DataBuffer.TYPE_BYTE:
+			bytes.put(((DataBufferByte)buffer).getData(bank));
+			return;
+		case DataBuffer.TYPE_USHORT:
+			var ushort = ((DataBufferUShort)buffer).getData(bank);
+			bytes.asShortBuffer().put(ushort);
+			bytes.position(bytes.position() + ushort.length * 2);
+			return;
+		case DataBuffer.TYPE_SHORT:
+			var shorts = ((DataBufferShort)buffer).getData(bank);
+			bytes.asShortBuffer().put(shorts);
+			bytes.position(bytes.position() + shorts.length * 2);
+			return;
+		case DataBuffer.TYPE_INT:
+			var ints = ((DataBufferInt)buffer).getData(bank);
+			bytes.asIntBuffer().put(ints);
+			bytes.position(bytes.position() + ints.length * 4);
+			return;
+		case DataBuffer.TYPE_FLOAT:
+			var floats = ((DataBufferFloat)buffer).getData(bank);
+			bytes.asFloatBuffer().put(floats);
+			bytes.position(bytes.position() + floats.length * 4);
+			return;
+		case DataBuffer.TYPE_DOUBLE:
+			var doubles = ((DataBufferDouble)buffer).getData(bank);
+			bytes.asDoubleBuffer().put(doubles);
+			bytes.position(bytes.position() + doubles.length * 8);
+			return;
+		default:
+			throw new IllegalArgumentException("Unsupported data type " + buffer.getDataType());
+		}
+	}
+
+	private static void getBank(ByteBuffer bytes, DataBuffer buffer, int bank) {
+		switch (buffer.getDataType()) {
+		case DataBuffer.TYPE_BYTE:
+			bytes.get(((DataBufferByte)buffer).getData(bank));
+			return;
+		case DataBuffer.TYPE_USHORT:
+			var ushort = ((DataBufferUShort)buffer).getData(bank);
+			bytes.asShortBuffer().get(ushort);
+			bytes.position(bytes.position() + ushort.length * 2);
+			return;
+		case DataBuffer.TYPE_SHORT:
+			var shorts = ((DataBufferShort)buffer).getData(bank);
+			bytes.asShortBuffer().get(shorts);
+			bytes.position(bytes.position() + shorts.length * 2);
+			return;
+		case DataBuffer.TYPE_INT:
+			var ints = ((DataBufferInt)buffer).getData(bank);
+			bytes.asIntBuffer().get(ints);
+			bytes.position(bytes.position() + ints.length * 4);
+			return;
+		case DataBuffer.TYPE_FLOAT:
+			var floats = ((DataBufferFloat)buffer).getData(bank);
+			bytes.asFloatBuffer().get(floats);
+			bytes.position(bytes.position() + floats.length * 4);
+			return;
+		case DataBuffer.TYPE_DOUBLE:
+			var doubles = ((DataBufferDouble)buffer).getData(bank);
+			bytes.asDoubleBuffer().get(doubles);
+			bytes.position(bytes.position() + doubles.length * 8);
+			return;
+		default:
+			throw new IllegalArgumentException("Unsupported data type " + buffer.getDataType());
+		}
+	}
+
+	/**
+	 * Delete the least recently read chunks until the cache is within its size limit.
+	 * The active chunk is never deleted.
+	 */
+	private void evictIfNeeded() {
+		while (totalBytes.get() > maxBytes) {
+			Chunk oldest = null;
+			for (var chunk : chunks.values()) {
+				if (chunk == activeChunk)
+					continue;
+				if (oldest == null || chunk.lastAccess < oldest.lastAccess || (chunk.lastAccess == oldest.lastAccess && chunk.id < oldest.id))
+					oldest = chunk;
+			}
+			if (oldest == null)
+				return;
+			deleteChunk(oldest);
+		}
+	}
+
+	private void deleteChunk(Chunk chunk) {
+		chunks.remove(chunk.id);
+		for (var key : chunk.keys) {
+			var location = index.get(key);
+			if (location != null && location.chunk == chunk)
+				index.remove(key, location);
+		}
+		totalBytes.addAndGet(-chunk.size);
+		chunk.close();
+		try {
+			Files.deleteIfExists(chunk.path);
+		} catch (IOException e) {
+			// This can happen on Windows if the file is still mapped
+			logger.debug("Unable to delete {}: {}", chunk.path, e.getLocalizedMessage());
+			chunk.path.toFile().deleteOnExit();
+		}
+	}
+
+
+	private class Chunk {
+
+		private final int id;
+		private final Path path;
+		private final Set<Key> keys = ConcurrentHashMap.newKeySet();
+
+		private volatile long lastAccess;
+		private long size;
+
+		// Channel used while the chunk is being written, and its mapped buffer once it is full
+		private volatile FileChannel channel;
+		private volatile MappedByteBuffer mapped;
+
+		Chunk(int id, Path path, long lastAccess) {
+			this.id = id;
+			this.path = path;
+			this.lastAccess = lastAccess;
+		}
+
+		/**
+		 * Index all the complete tiles in an existing chunk.
+		 */
+		void scan() throws IOException {
+			try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				long fileSize = channel.size();
+				var header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				var end = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+				long offset = 0;
+				while (offset + HEADER_BYTES <= fileSize) {
+					header.clear();
+					while (header.hasRemaining() && channel.read(header, offset + header.position()) >= 0)
+						continue;
+					header.flip();
+					if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC_START)
+						break;
+					var key = new Key(header.getLong(), header.getLong());
+					header.position(HEADER_BYTES - 4);
+					long dataBytes = header.getInt() & 0xFFFFFFFFL;
+					long length = HEADER_BYTES + dataBytes + 4;
+					if (offset + length > fileSize)
+						break;
+					end.clear();
+					channel.read(end, offset + length - 4);
+					end.flip();
+					if (end.remaining() < 4 || end.getInt() != MAGIC_END)
+						break;
+					keys.add(key);
+					index.put(key, new Location(this, offset, (int)length));
+					offset += length;
+				}
+				// Ignore anything after the last complete tile
+				size = offset;
+			}
+		}
+
+		/**
+		 * Stop writing to this chunk, and map it for reading.
+		 */
+		void seal() throws IOException {
+			try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				mapped = size == 0 ? null : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			var writeChannel = this.channel;
+			this.channel = null;
+			if (writeChannel != null)
+				writeChannel.close();
+		}
+
+		/**
+		 * Read a tile, or return null if the tile at the offset does not have the expected key.
+		 */
+		BufferedImage read(Key key, long offset, int length, ColorModel colorModel) throws IOException {
+			lastAccess = System.currentTimeMillis();
+			ByteBuffer bytes;
+			var mapped = this.mapped;
+			if (mapped != null) {
+				bytes = mapped.duplicate().position((int)offset).limit((int)(offset + length)).slice();
+			} else {
+				var channel = this.channel;
+				if (channel == null)
+					return null;
+				bytes = ByteBuffer.allocate(length);
+				while (bytes.hasRemaining()) {
+					if (channel.read(bytes, offset + bytes.position()) < 0)
+						return null;
+				}
+				bytes.flip();
+			}
+			bytes.order(ByteOrder.LITTLE_ENDIAN);
+			if (bytes.getInt() != MAGIC_START || bytes.getLong() != key.hi || bytes.getLong() != key.lo)
+				return null;
+			int type = bytes.getInt();
+			int dataType = bytes.getInt();
+			int width = bytes.getInt();
+			int height = bytes.getInt();
+			int nBanks = bytes.getInt();
+			int bankSize = bytes.getInt();
+			bytes.getInt();
+			var img = createImage(type, colorModel, width, height);
+			if (img == null)
+				return null;
+			var buffer = img.getRaster().getDataBuffer();
+			if (buffer.getDataType() != dataType || buffer.getNumBanks() != nBanks || buffer.getSize() != bankSize)
+				return null;
+			for (int b = 0; b < nBanks; b++)
+				getBank(bytes, buffer, b);
+			return img;
+		}
+
+		void close() {
+			mapped = null;
+			var channel = this.channel;
+			this.channel = null;
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					logger.debug("Unable to close {}: {}", path, e.getLocalizedMessage());
+				}
+			}
+			// Store the last access time, so that least recently used chunks are deleted first in the next session
+			if (Files.exists(path)) {
+				try {
+					Files.setLastModifiedTime(path, FileTime.fromMillis(lastAccess));
+				} catch (IOException e) {
+					logger.debug("Unable to update last access time for {}: {}", path, e.getLocalizedMessage());
+				}
+			}
+		}
+
+	}
+
+
+	private static class Location {
+
+		private final Chunk chunk;
+		private final long offset;
+		private final int length;
+
+		Location(Chunk chunk, long offset, int length) {
+			this.chunk = chunk;
+			this.offset = offset;
+			this.length = length;
+		}
+
+	}
+
+
+	private static class Key {
+
+		private final long hi;
+		private final long lo;
+
+		Key(long hi, long lo) {
+			this.hi = hi;
+			this.lo = lo;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(hi);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			var other = (Key)obj;
+			return hi == other.hi && lo == other.lo;
+		}
+
+	}
+
+}
@@ -57,6 +57,8 @@ public class ImageServerProvider {
 	final private static Logger logger = LoggerFactory.getLogger(ImageServerProvider.class);
 	
 	private static Map<Class<?>, Map<RegionRequest, ?>> cacheMap = new HashMap<>();
+
+	private static volatile DiskTileCache diskCache;
 	
 	@SuppressWarnings("rawtypes")
 	private static ServiceLoader<ImageServerBuilder> serviceLoader = ServiceLoader.load(ImageServerBuilder.class);
@@ -81,7 +83,24 @@ public class ImageServerProvider {
 	public static <T> Map<RegionRequest, T> getCache(final Class<T> cls) {
 		return (Map<RegionRequest, T>)cacheMap.get(cls);
 	}
-	
+
+	/**
+	 * Set the persistent cache to be used for tiles from image servers that support it.
+	 * @param cache the disk cache, or null if tiles should not be cached on disk
+	 * @see AbstractTileableImageServer#isDiskCacheable()
+	 */
+	public static void setDiskCache(DiskTileCache cache) {
+		diskCache = cache;
+	}
+
+	/**
+	 * Get the persistent cache in use for image tiles, if available.
+	 * @return the disk cache, or null if no disk cache has been set
+	 */
+	public static DiskTileCache getDiskCache() {
+		return diskCache;
+	}
+
 	/**
 	 * Replace the default service loader with another.
 	 * <p>
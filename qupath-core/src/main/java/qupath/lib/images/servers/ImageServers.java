@@ -25,6 +25,7 @@ import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedHashSet;
@@ -47,6 +48,8 @@ import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 
 import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.common.Fluorophore;
+import qupath.lib.common.UnmixingSolver;
 import qupath.lib.images.servers.ColorTransforms.ColorTransform;
 import qupath.lib.images.servers.ImageServerBuilder.AbstractServerBuilder;
 import qupath.lib.images.servers.ImageServerBuilder.DefaultImageServerBuilder;
@@ -79,8 +82,12 @@ public class ImageServers {
 			.registerSubtype(CroppedImageServerBuilder.class, "cropped")
 			.registerSubtype(PyramidGeneratingServerBuilder.class, "pyramidize") // For consistency, this would ideally be pyramidalize... but need to keep backwards-compatibility
 			.registerSubtype(ColorDeconvolutionServerBuilder.class, "color_deconvolved")
+			.registerSubtype(UnmixingImageServerBuilder.class, "unmixed")
+			.registerSubtype(ChannelSelectionServerBuilder.class, "selected_channels")
 			;
 	
+	private static volatile long persistentPyramidBytes = 0L;
+	
 	/**
 	 * Get a TypeAdapterFactory to handle {@linkplain ServerBuilder ServerBuilders}.
 	 * @return
@@ -192,6 +199,45 @@ public class ImageServers {
 		return pyramidalizeTiled(server, tileWidth, tileHeight, downsamples);
 	}
 	
+	/**
+	 * Request that the lower-resolution tiles of a dynamically-generated pyramid are stored on disk, 
+	 * so that they don't need to be generated again the next time the image is opened.
+	 * <p>
+	 * This has no effect if the server was not created by {@link #pyramidalize(ImageServer, double...)} 
+	 * or {@link #pyramidalizeTiled(ImageServer, int, int, double...)}.
+	 * 
+	 * @param server the server with the generated pyramid
+	 * @param directory the directory for the tile files (e.g. within a project entry directory)
+	 * @param maxBytes the maximum size of the stored tiles
+	 * @return true if the generated tiles will be stored, false otherwise
+	 * @throws IOException if the directory could not be created or read
+	 */
+	public static boolean persistPyramid(ImageServer<BufferedImage> server, Path directory, long maxBytes) throws IOException {
+		if (!(server instanceof PyramidGeneratingImageServer))
+			return false;
+		((PyramidGeneratingImageServer)server).setLevelCache(directory, maxBytes);
+		return true;
+	}
+	
+	/**
+	 * Set the maximum size of the generated pyramid tiles stored for each project entry.
+	 * If 0, generated tiles are not stored.
+	 * @param maxBytes
+	 * @see #persistPyramid(ImageServer, Path, long)
+	 */
+	public static void setPersistentPyramidSize(long maxBytes) {
+		persistentPyramidBytes = Math.max(0L, maxBytes);
+	}
+	
+	/**
+	 * Get the maximum size of the generated pyramid tiles stored for each project entry.
+	 * @return the maximum size in bytes, or 0 if generated tiles should not be stored
+	 * @see #setPersistentPyramidSize(long)
+	 */
+	public static long getPersistentPyramidSize() {
+		return persistentPyramidBytes;
+	}
+	
 	/**
 	 * Wrap an ImageServer to dynamically generate a pyramid, using specified tile sizes.
 	 * This does not involve writing any new image, and may be rather processor and memory-intensive as high-resolution 
@@ -412,6 +458,72 @@ public class ImageServers {
 		
 	}
 
+	static class UnmixingImageServerBuilder extends AbstractServerBuilder<BufferedImage> {
+		
+		private ServerBuilder<BufferedImage> builder;
+		private double[][] proportionArray;
+		private List<Fluorophore> fluorophores;
+		private UnmixingSolver.Method method;
+		
+		UnmixingImageServerBuilder(ImageServerMetadata metadata, ServerBuilder<BufferedImage> builder, double[][] proportionArray, List<Fluorophore> fluorophores, UnmixingSolver.Method method) {
+			super(metadata);
+			this.builder = builder;
+			this.proportionArray = proportionArray;
+			this.fluorophores = new ArrayList<>(fluorophores);
+			this.method = method;
+		}
+		
+		@Override
+		protected ImageServer<BufferedImage> buildOriginal() throws Exception {
+			return new UnmixingImageServer(builder.build(), proportionArray, fluorophores, method);
+		}
+		
+		@Override
+		public Collection<URI> getURIs() {
+			return builder.getURIs();
+		}
+
+		@Override
+		public ServerBuilder<BufferedImage> updateURIs(Map<URI, URI> updateMap) {
+			ServerBuilder<BufferedImage> newBuilder = builder.updateURIs(updateMap);
+			if (newBuilder == builder)
+				return this;
+			return new UnmixingImageServerBuilder(getMetadata(), newBuilder, proportionArray, fluorophores, method);
+		}
+		
+	}
+
+	static class ChannelSelectionServerBuilder extends AbstractServerBuilder<BufferedImage> {
+		
+		private ServerBuilder<BufferedImage> builder;
+		private int[] channels;
+		
+		ChannelSelectionServerBuilder(ImageServerMetadata metadata, ServerBuilder<BufferedImage> builder, int... channels) {
+			super(metadata);
+			this.builder = builder;
+			this.channels = channels.clone();
+		}
+		
+		@Override
+		protected ImageServer<BufferedImage> buildOriginal() throws Exception {
+			return new ChannelSelectionImageServer(builder.build(), channels);
+		}
+		
+		@Override
+		public Collection<URI> getURIs() {
+			return builder.getURIs();
+		}
+
+		@Override
+		public ServerBuilder<BufferedImage> updateURIs(Map<URI, URI> updateMap) {
+			ServerBuilder<BufferedImage> newBuilder = builder.updateURIs(updateMap);
+			if (newBuilder == builder)
+				return this;
+			return new ChannelSelectionServerBuilder(getMetadata(), newBuilder, channels);
+		}
+		
+	}
+
 	static class RotatedImageServerBuilder extends AbstractServerBuilder<BufferedImage> {
 	
 		private ServerBuilder<BufferedImage> builder;
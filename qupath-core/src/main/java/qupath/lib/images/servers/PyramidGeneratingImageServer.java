@@ -24,6 +24,7 @@ package qupath.lib.images.servers;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Path;
 import java.util.Collection;
 import java.util.Collections;
 
@@ -45,6 +46,9 @@ class PyramidGeneratingImageServer extends AbstractTileableImageServer implement
 	private ImageServer<BufferedImage> server;
 	private ImageServerMetadata metadata;
 	
+	// Optional persistent store for generated tiles, so they don't need to be generated again in later sessions
+	private transient volatile DiskTileCache levelCache;
+	
 	PyramidGeneratingImageServer(ImageServer<BufferedImage> server, int tileWidth, int tileHeight, double... downsamples) {
 		this(server, createDefaultMetadata(server, tileWidth, tileHeight, downsamples));
 	}
@@ -86,7 +90,18 @@ class PyramidGeneratingImageServer extends AbstractTileableImageServer implement
 		if (level == 0 || closestOriginalDownsample >= getDownsampleForResolution(level - 1))
 			return server.readBufferedImage(request.updatePath(server.getPath()));
 		
+		// Check if we generated the tile previously
+		var cache = levelCache;
+		String key = null;
+		if (cache != null) {
+			key = getDiskCacheKey(tileRequest);
+			var imgCached = cache.get(key, getDefaultColorModel());
+			if (imgCached != null)
+				return imgCached;
+		}
+		
 		// Read image from the 'previous' resolution
+		// Because these tiles are themselves cached, each level is built incrementally from the one above it
 		RegionRequest request2 = request.updateDownsample(getDownsampleForResolution(level - 1));
 		
 		// If we have an empty tile, we should also return an empty tile
@@ -100,7 +115,38 @@ class PyramidGeneratingImageServer extends AbstractTileableImageServer implement
 //			return getEmptyTile(tileRequest.getTileWidth(), tileRequest.getTileHeight());
 		
 		// Resize to the required size
-		return BufferedImageTools.resize(img, tileRequest.getTileWidth(), tileRequest.getTileHeight(), allowSmoothInterpolation());
+		var imgTile = BufferedImageTools.resize(img, tileRequest.getTileWidth(), tileRequest.getTileHeight(), allowSmoothInterpolation());
+		if (cache != null)
+			cache.put(key, imgTile, getDefaultColorModel());
+		return imgTile;
+	}
+	
+	/**
+	 * Store generated tiles in the specified directory, so that they can be reused in later sessions.
+	 * Tiles at the full resolution are never stored, since these are read directly from the wrapped server.
+	 * The cache is shared with any other servers using the same directory, and released when this server is closed.
+	 * 
+	 * @param directory the directory for the tile files, or null if generated tiles should not be stored
+	 * @param maxBytes the maximum size of the stored tiles
+	 * @throws IOException if the directory could not be created or read
+	 */
+	synchronized void setLevelCache(Path directory, long maxBytes) throws IOException {
+		var previous = levelCache;
+		levelCache = directory == null ? null : DiskTileCache.acquire(directory, maxBytes);
+		if (previous != null)
+			previous.release();
+	}
+	
+	@Override
+	public void close() throws Exception {
+		super.close();
+		DiskTileCache cache;
+		synchronized (this) {
+			cache = levelCache;
+			levelCache = null;
+		}
+		if (cache != null)
+			cache.release();
 	}
 	
 	/**
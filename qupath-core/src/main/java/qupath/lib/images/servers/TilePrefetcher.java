@@ -0,0 +1,261 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.ThreadTools;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Helper class to read image tiles in the background before they are needed, so that they are already
+ * in the tile cache when requested.
+ * <p>
+ * Tiles are read by a small number of low priority threads, and only for servers that cache their tiles
+ * (i.e. subclasses of {@link AbstractTileableImageServer}). Tiles that are already cached, or currently being read,
+ * are skipped.
+ * <p>
+ * Each call to {@link #prefetch(ImageServer, Collection)} returns a {@link Prefetch} that should be cancelled
+ * as soon as the tiles are no longer expected to be needed. Cancelled tiles are removed from the queue immediately,
+ * so that they no longer count towards the maximum number of pending tiles.
+ */
+public class TilePrefetcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(TilePrefetcher.class);
+
+	private static final TilePrefetcher INSTANCE = new TilePrefetcher(2, 256);
+
+	private final ThreadPoolExecutor pool;
+	private final int maxPendingTiles;
+
+	private final AtomicInteger pendingTiles = new AtomicInteger();
+	private final LongAdder prefetchedTiles = new LongAdder();
+
+	TilePrefetcher(int nThreads, int maxPendingTiles) {
+		this("tile-prefetch-", nThreads, maxPendingTiles, Thread.MIN_PRIORITY);
+	}
+
+	/**
+	 * Create a prefetcher with its own threads, so that tiles can be read for a specific task without
+	 * competing with the shared prefetcher (or being limited by its low priority threads).
+	 * @param prefix prefix for the thread names
+	 * @param nThreads number of threads used to read tiles
+	 * @param maxPendingTiles maximum number of tiles that may be waiting to be read at any time
+	 * @param priority priority of the threads
+	 */
+	public TilePrefetcher(String prefix, int nThreads, int maxPendingTiles, int priority) {
+		this.pool = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+				ThreadTools.createThreadFactory(prefix, true, priority));
+		this.maxPendingTiles = maxPendingTiles;
+	}
+
+	/**
+	 * Get the shared prefetcher.
+	 * @return
+	 */
+	public static TilePrefetcher getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Request that all the tiles needed for the specified regions are read in the background.
+	 * Tiles are read in the order of the regions. If too many tiles are already waiting to be read,
+	 * the remaining tiles are ignored.
+	 *
+	 * @param server the server to read tiles from
+	 * @param regions the regions that are expected to be requested soon
+	 * @return a handle that can be used to cancel any tiles that have not yet been read
+	 */
+	public Prefetch prefetch(ImageServer<?> server, Collection<RegionRequest> regions) {
+		var prefetch = new Prefetch(pool);
+		try {
+			if (server instanceof AbstractTileableImageServer && !regions.isEmpty())
+				submitTiles(prefetch, (AbstractTileableImageServer)server, regions);
+		} finally {
+			// Release the initial count, so that the prefetch can complete once all tiles are read
+			prefetch.tileDone();
+		}
+		return prefetch;
+	}
+
+	private void submitTiles(Prefetch prefetch, AbstractTileableImageServer server, Collection<RegionRequest> regions) {
+		// Without a cache, the tiles would be discarded immediately
+		if (server.getCache() == null)
+			return;
+
+		Set<TileRequest> tiles = new LinkedHashSet<>();
+		for (var region : regions)
+			tiles.addAll(server.getTileRequestManager().getTileRequests(region));
+
+		for (var tile : tiles) {
+			if (server.isTileCachedOrPending(tile))
+				continue;
+			if (pendingTiles.incrementAndGet() > maxPendingTiles) {
+				pendingTiles.decrementAndGet();
+				logger.trace("Prefetch queue is full - {} tiles will not be prefetched", tiles.size() - prefetch.tasks.size());
+				break;
+			}
+			var task = new PrefetchTask(server, tile, prefetch);
+			prefetch.remaining.incrementAndGet();
+			try {
+				pool.execute(task);
+				prefetch.tasks.add(task);
+			} catch (RejectedExecutionException e) {
+				task.cancel(false);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of tiles currently waiting to be prefetched.
+	 * @return
+	 */
+	public int getPendingTileCount() {
+		return pendingTiles.get();
+	}
+
+	/**
+	 * Get the number of tasks waiting in the executor queue, excluding any currently being read.
+	 * @return
+	 */
+	int getQueuedTaskCount() {
+		return pool.getQueue().size();
+	}
+
+	/**
+	 * Get the total number of tiles that have been read by prefetching.
+	 * @return
+	 */
+	public long getPrefetchedTileCount() {
+		return prefetchedTiles.sum();
+	}
+
+
+	private class PrefetchTask extends FutureTask<Void> {
+
+		private final Prefetch prefetch;
+
+		PrefetchTask(AbstractTileableImageServer server, TileRequest tile, Prefetch prefetch) {
+			super(() -> {
+				// The tile may have been requested since the prefetch was queued
+				if (!server.isTileCachedOrPending(tile)) {
+					server.getTile(tile);
+					prefetchedTiles.increment();
+				}
+				return null;
+			});
+			this.prefetch = prefetch;
+		}
+
+		@Override
+		protected void done() {
+			pendingTiles.decrementAndGet();
+			if (!isCancelled()) {
+				try {
+					get();
+				} catch (Exception e) {
+					logger.debug("Unable to prefetch tile: {}", e.getLocalizedMessage());
+				}
+			}
+			prefetch.tileDone();
+		}
+
+	}
+
+
+	/**
+	 * Handle for tiles requested by a single call to {@link TilePrefetcher#prefetch(ImageServer, Collection)}.
+	 */
+	public static class Prefetch {
+
+		private final ThreadPoolExecutor pool;
+		private final List<FutureTask<?>> tasks = new ArrayList<>();
+
+		// Count of tiles not yet done, plus one until all tiles have been submitted
+		private final AtomicInteger remaining = new AtomicInteger(1);
+		private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+		private Prefetch(ThreadPoolExecutor pool) {
+			this.pool = pool;
+		}
+
+		private void tileDone() {
+			if (remaining.decrementAndGet() == 0)
+				completion.complete(null);
+		}
+
+		/**
+		 * Cancel any tiles that have not yet been read.
+		 * Tiles that are currently being read will still be added to the cache.
+		 */
+		public void cancel() {
+			for (var task : tasks) {
+				// Remove from the queue as well, so that stale tasks don't delay or displace newer requests
+				if (task.cancel(false))
+					pool.remove(task);
+			}
+		}
+
+		/**
+		 * Returns true if all tiles have been read or cancelled.
+		 * @return
+		 */
+		public boolean isDone() {
+			return completion.isDone();
+		}
+
+		/**
+		 * Get a future that completes when all tiles have been read or cancelled.
+		 * The future always completes normally, even if some tiles could not be read.
+		 * @return
+		 */
+		public CompletableFuture<Void> getCompletion() {
+			return completion;
+		}
+
+		/**
+		 * Get the number of tiles that were requested.
+		 * @return
+		 */
+		public int getTileCount() {
+			return tasks.size();
+		}
+
+	}
+
+}
@@ -30,6 +30,8 @@ import java.util.Collection;
 import java.util.List;
 
 import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.common.Fluorophore;
+import qupath.lib.common.UnmixingSolver;
 import qupath.lib.images.servers.ColorTransforms.ColorTransform;
 import qupath.lib.images.servers.RotatedImageServer.Rotation;
 import qupath.lib.regions.ImageRegion;
@@ -90,6 +92,28 @@ public class TransformedServerBuilder {
 		return this;
 	}
 	
+	/**
+	 * Apply spectral unmixing to a multispectral image, so that each fluorophore behaves as a separate channel.
+	 * @param proportionArray filter x channel array giving the proportion of each filter contributing to each channel
+	 * @param fluorophores the fluorophores to unmix; one output channel is created for each
+	 * @return
+	 */
+	public TransformedServerBuilder unmix(double[][] proportionArray, List<Fluorophore> fluorophores) {
+		return unmix(proportionArray, fluorophores, UnmixingSolver.Method.CLAMPED);
+	}
+	
+	/**
+	 * Apply spectral unmixing to a multispectral image, using the specified method to handle negative values.
+	 * @param proportionArray filter x channel array giving the proportion of each filter contributing to each channel
+	 * @param fluorophores the fluorophores to unmix; one output channel is created for each
+	 * @param method the method used to handle negative values
+	 * @return
+	 */
+	public TransformedServerBuilder unmix(double[][] proportionArray, List<Fluorophore> fluorophores, UnmixingSolver.Method method) {
+		server = new UnmixingImageServer(server, proportionArray, fluorophores, method);
+		return this;
+	}
+	
 	/**
 	 * Rotate the image, using an increment of 90 degrees.
 	 * @param rotation
@@ -114,6 +138,17 @@ public class TransformedServerBuilder {
 		return this;
 	}
 	
+	/**
+	 * Select a subset of channels from an image, retaining the original pixel type.
+	 * Unlike {@link #extractChannels(int...)}, pixels are not converted to floating point.
+	 * @param channels indices (0-based) of channels to keep, in the order they should be provided.
+	 * @return
+	 */
+	public TransformedServerBuilder selectChannels(int... channels) {
+		server = new ChannelSelectionImageServer(server, channels);
+		return this;
+	}
+	
 	/**
 	 * Extract specified channels for an image.
 	 * @param names names of channels to extract.
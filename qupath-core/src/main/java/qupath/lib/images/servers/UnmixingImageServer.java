@@ -0,0 +1,187 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferFloat;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.common.ChannelPlanes;
+import qupath.lib.common.Fluorophore;
+import qupath.lib.common.UnmixingSolver;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.io.GsonTools;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * An ImageServer that applies spectral unmixing to a wrapped (multispectral) ImageServer.
+ * <p>
+ * Each output channel corresponds to one {@link Fluorophore}. Pixels are unmixed one tile at a time
+ * as they are requested, so that the full image never needs to be held in memory.
+ */
+class UnmixingImageServer extends TransformingImageServer<BufferedImage> {
+
+	private final static Logger logger = LoggerFactory.getLogger(UnmixingImageServer.class);
+
+	private double[][] proportionArray;
+	private List<Fluorophore> fluorophores;
+	private UnmixingSolver.Method method;
+	private ImageServerMetadata metadata;
+	private transient ColorModel colorModel;
+	private transient volatile List<UnmixingSolver> solvers;
+
+	UnmixingImageServer(ImageServer<BufferedImage> server, double[][] proportionArray, List<Fluorophore> fluorophores, UnmixingSolver.Method method) {
+		super(server);
+
+		logger.trace("Creating unmixing server for {} and fluorophores {} ({})", server, fluorophores, method);
+
+		this.proportionArray = proportionArray.clone();
+		this.fluorophores = Collections.unmodifiableList(new ArrayList<>(fluorophores));
+		// Servers created before the method could be chosen always clamped
+		this.method = method == null ? UnmixingSolver.Method.CLAMPED : method;
+
+		int nChannels = server.nChannels();
+		List<ImageChannel> channels = new ArrayList<>();
+		int k = 0;
+		for (var fluorophore : fluorophores) {
+			for (int c : fluorophore.getChannels()) {
+				if (c < 0 || c >= nChannels)
+					throw new IllegalArgumentException("Channel " + c + " required to unmix " + fluorophore.getName() + " is out of range - server has " + nChannels + " channels");
+			}
+			channels.add(ImageChannel.getInstance(fluorophore.getName(), ImageChannel.getDefaultChannelColor(k++)));
+		}
+
+		metadata = new ImageServerMetadata.Builder(server.getMetadata())
+				.pixelType(PixelType.FLOAT32)
+				.rgb(false)
+				.channels(channels)
+				.name(String.format("%s (unmixed)", server.getMetadata().getName()))
+				.build();
+	}
+
+	private ColorModel getColorModel() {
+		if (colorModel == null) {
+			synchronized(this) {
+				colorModel = ColorModelFactory.createColorModel(getMetadata().getPixelType(), getMetadata().getChannels());
+			}
+		}
+		return colorModel;
+	}
+
+	@Override
+	protected ServerBuilder<BufferedImage> createServerBuilder() {
+		return new ImageServers.UnmixingImageServerBuilder(
+				getMetadata(),
+				getWrappedServer().getBuilder(),
+				proportionArray,
+				fluorophores,
+				method
+				);
+	}
+
+	@Override
+	protected String createID() {
+		return getClass().getName() + ": " + getWrappedServer().getPath() + " " + method + " " +
+				GsonTools.getInstance().toJson(fluorophores) + " " + GsonTools.getInstance().toJson(proportionArray);
+	}
+
+	/**
+	 * Get the fluorophores, in the order of the output channels.
+	 * @return
+	 */
+	public List<Fluorophore> getFluorophores() {
+		return fluorophores;
+	}
+
+	/**
+	 * Get the method used to handle negative values.
+	 * @return
+	 */
+	public UnmixingSolver.Method getMethod() {
+		return method;
+	}
+
+	@Override
+	public BufferedImage readBufferedImage(final RegionRequest request) throws IOException {
+		BufferedImage img = getWrappedServer().readBufferedImage(request);
+		if (img == null)
+			return null;
+
+		int w = img.getWidth();
+		int h = img.getHeight();
+		int nChannels = fluorophores.size();
+
+		SampleModel model = new BandedSampleModel(DataBuffer.TYPE_FLOAT, w, h, nChannels);
+		float[][] bytes = new float[nChannels][w*h];
+		DataBufferFloat buffer = new DataBufferFloat(bytes, w*h);
+		WritableRaster raster = Raster.createWritableRaster(model, buffer, null);
+
+		var solvers = getSolvers();
+		for (int b = 0; b < nChannels; b++)
+			unmixFluorophore(img.getRaster(), fluorophores.get(b), solvers.get(b), bytes[b]);
+
+		return new BufferedImage(getColorModel(), raster, false, null);
+	}
+
+	private List<UnmixingSolver> getSolvers() {
+		if (solvers == null) {
+			synchronized(this) {
+				if (solvers == null) {
+					List<UnmixingSolver> list = new ArrayList<>();
+					for (var fluorophore : fluorophores)
+						list.add(UnmixingSolver.create(proportionArray, fluorophore, method));
+					solvers = Collections.unmodifiableList(list);
+				}
+			}
+		}
+		return solvers;
+	}
+
+	private static void unmixFluorophore(Raster source, Fluorophore fluorophore, UnmixingSolver solver, float[] output) {
+		float[][] planes = ChannelPlanes.getPlanes(source, fluorophore.getChannels());
+		solver.unmix(planes, output);
+	}
+
+	@Override
+	public ImageServerMetadata getOriginalMetadata() {
+		return metadata;
+	}
+
+	@Override
+	public String getServerType() {
+		return "Spectral unmixing server";
+	}
+
+}
@@ -0,0 +1,363 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.measurements;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage for the measurements of a fixed number of objects, using one {@code float[]} column per measurement.
+ * <p>
+ * Each object is assigned a row, and can access its measurements through a {@link MeasurementList} view
+ * returned by {@link #getMeasurementList(int)}. Measurement names are shared between rows that have the same
+ * measurements in the same order, so the per-object overhead is very small.
+ * <p>
+ * Values are stored with single precision. Rows that don't contain a measurement have the value {@code NaN}
+ * in the corresponding column, so that columns can be scanned directly with {@link #getColumn(String)}.
+ * <p>
+ * Reading values is lock-free. Changing the measurements contained in a row (rather than only their values)
+ * requires synchronization, and so is comparatively slow - a store is best used for objects with measurements
+ * that are not expected to change much, e.g. detections after they have been created.
+ */
+public class ColumnarMeasurementStore {
+
+	private final int nRows;
+
+	private final Map<String, Integer> columnIndex = new ConcurrentHashMap<>();
+	private volatile float[][] columns = new float[0][];
+	private volatile List<String> columnNames = Collections.emptyList();
+
+	private final Map<List<String>, Schema> schemas = new HashMap<>();
+	private final Schema emptySchema;
+	private final Schema[] rowSchemas;
+
+	private ColumnarMeasurementStore(int nRows) {
+		this.nRows = nRows;
+		this.emptySchema = getSchema(Collections.emptyList());
+		this.rowSchemas = new Schema[nRows];
+		Arrays.fill(rowSchemas, emptySchema);
+	}
+
+	/**
+	 * Create a new, empty store.
+	 * @param nRows the number of rows, i.e. the number of objects that can be stored
+	 * @return
+	 */
+	public static ColumnarMeasurementStore create(int nRows) {
+		return new ColumnarMeasurementStore(nRows);
+	}
+
+	/**
+	 * Get the number of rows in the store.
+	 * @return
+	 */
+	public int nRows() {
+		return nRows;
+	}
+
+	/**
+	 * Get the names of all the columns in the store. Each column corresponds to a measurement found in at least one row.
+	 * @return
+	 */
+	public List<String> getColumnNames() {
+		return columnNames;
+	}
+
+	/**
+	 * Get a copy of all the values in a column.
+	 * @param name the measurement name
+	 * @return an array of length {@link #nRows()} containing the values, or null if there is no column with the specified name
+	 */
+	public float[] getColumn(String name) {
+		var ind = columnIndex.get(name);
+		if (ind == null)
+			return null;
+		return columns[ind].clone();
+	}
+
+	/**
+	 * Get a single measurement value.
+	 * @param row
+	 * @param name
+	 * @return the value, or {@code NaN} if the row doesn't contain the measurement
+	 */
+	public double getValue(int row, String name) {
+		var ind = columnIndex.get(name);
+		if (ind == null)
+			return Double.NaN;
+		return columns[ind][row];
+	}
+
+	/**
+	 * Get a measurement list backed by the specified row.
+	 * Changes to the list are reflected in the store, and vice versa.
+	 * @param row
+	 * @return
+	 */
+	public MeasurementList getMeasurementList(int row) {
+		if (row < 0 || row >= nRows)
+			throw new IndexOutOfBoundsException("Row " + row + " is outside the range 0-" + (nRows-1));
+		return new ColumnarMeasurementList(this, row);
+	}
+
+	/**
+	 * Set the measurements of the specified row, replacing any that are already present.
+	 * @param row
+	 * @param measurements
+	 */
+	public synchronized void setMeasurements(int row, MeasurementList measurements) {
+		var names = measurements.getMeasurementNames();
+		var schema = getSchema(names);
+		clearRow(row);
+		for (int i = 0; i < schema.columns.length; i++)
+			columns[schema.columns[i]][row] = (float)measurements.getMeasurementValue(i);
+		rowSchemas[row] = schema;
+	}
+
+	private synchronized void clearRow(int row) {
+		var columns = this.columns;
+		for (int c : rowSchemas[row].columns)
+			columns[c][row] = Float.NaN;
+		rowSchemas[row] = emptySchema;
+	}
+
+	private synchronized int ensureColumn(String name) {
+		var ind = columnIndex.get(name);
+		if (ind != null)
+			return ind;
+		float[] column = new float[nRows];
+		Arrays.fill(column, Float.NaN);
+		var temp = Arrays.copyOf(columns, columns.length + 1);
+		temp[temp.length-1] = column;
+		columns = temp;
+		var tempNames = new ArrayList<>(columnNames);
+		tempNames.add(name);
+		columnNames = Collections.unmodifiableList(tempNames);
+		columnIndex.put(name, temp.length-1);
+		return temp.length-1;
+	}
+
+	private synchronized Schema getSchema(List<String> names) {
+		var schema = schemas.get(names);
+		if (schema == null) {
+			schema = new Schema(names);
+			schemas.put(schema.names, schema);
+		}
+		return schema;
+	}
+
+
+	/**
+	 * Ordered measurement names for a row, along with the corresponding columns.
+	 * Schemas are immutable and shared between rows.
+	 */
+	private class Schema {
+
+		private final List<String> names;
+		private final int[] columns;
+		private final Map<String, Integer> map = new HashMap<>();
+		private final Map<String, Schema> appended = new ConcurrentHashMap<>();
+
+		private Schema(List<String> names) {
+			this.names = Collections.unmodifiableList(new ArrayList<>(names));
+			this.columns = new int[names.size()];
+			int i = 0;
+			for (String name : this.names) {
+				columns[i] = ensureColumn(name);
+				map.putIfAbsent(name, i);
+				i++;
+			}
+		}
+
+		int indexOf(String name) {
+			var ind = map.get(name);
+			return ind == null ? -1 : ind;
+		}
+
+		Schema append(String name) {
+			return appended.computeIfAbsent(name, n -> {
+				var list = new ArrayList<>(names);
+				list.add(n);
+				return getSchema(list);
+			});
+		}
+
+	}
+
+
+	private static class ColumnarMeasurementList implements MeasurementList {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ColumnarMeasurementStore store;
+		private final int row;
+
+		private ColumnarMeasurementList(ColumnarMeasurementStore store, int row) {
+			this.store = store;
+			this.row = row;
+		}
+
+		private Schema schema() {
+			return store.rowSchemas[row];
+		}
+
+		@Override
+		public boolean addMeasurement(String name, double value) {
+			putMeasurement(name, value);
+			return true;
+		}
+
+		@Override
+		public Measurement putMeasurement(Measurement measurement) {
+			if (measurement.isDynamic())
+				throw new UnsupportedOperationException("This MeasurementList does not support dynamic measurements");
+			String name = measurement.getName();
+			Measurement previous = null;
+			if (containsNamedMeasurement(name))
+				previous = MeasurementFactory.createMeasurement(name, getMeasurementValue(name));
+			putMeasurement(name, measurement.getValue());
+			return previous;
+		}
+
+		@Override
+		public void putMeasurement(String name, double value) {
+			int ind = schema().indexOf(name);
+			if (ind < 0) {
+				synchronized (store) {
+					var schema = schema();
+					ind = schema.indexOf(name);
+					if (ind < 0) {
+						schema = schema.append(name);
+						ind = schema.indexOf(name);
+						store.columns[schema.columns[ind]][row] = (float)value;
+						store.rowSchemas[row] = schema;
+						return;
+					}
+				}
+			}
+			store.columns[schema().columns[ind]][row] = (float)value;
+		}
+
+		@Override
+		public List<String> getMeasurementNames() {
+			return schema().names;
+		}
+
+		@Override
+		public String getMeasurementName(int ind) {
+			return schema().names.get(ind);
+		}
+
+		@Override
+		public double getMeasurementValue(int ind) {
+			var schema = schema();
+			if (ind >= 0 && ind < schema.columns.length)
+				return store.columns[schema.columns[ind]][row];
+			return Double.NaN;
+		}
+
+		@Override
+		public double getMeasurementValue(String name) {
+			return getMeasurementValue(schema().indexOf(name));
+		}
+
+		@Override
+		public boolean containsNamedMeasurement(String name) {
+			return schema().indexOf(name) >= 0;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return size() == 0;
+		}
+
+		@Override
+		public int size() {
+			return schema().columns.length;
+		}
+
+		@Override
+		public boolean supportsDynamicMeasurements() {
+			return false;
+		}
+
+		@Override
+		public void close() {}
+
+		@Override
+		public void removeMeasurements(String... measurementNames) {
+			synchronized (store) {
+				var schema = schema();
+				var names = new ArrayList<>(schema.names);
+				if (!names.removeAll(Arrays.asList(measurementNames)))
+					return;
+				var newSchema = store.getSchema(names);
+				float[] values = new float[names.size()];
+				for (int i = 0; i < values.length; i++)
+					values[i] = (float)getMeasurementValue(names.get(i));
+				store.clearRow(row);
+				for (int i = 0; i < values.length; i++)
+					store.columns[newSchema.columns[i]][row] = values[i];
+				store.rowSchemas[row] = newSchema;
+			}
+		}
+
+		@Override
+		public void clear() {
+			store.clearRow(row);
+		}
+
+		/**
+		 * Serialize as a standalone list, rather than the entire store.
+		 * @return
+		 */
+		private Object writeReplace() {
+			var list = new NumericMeasurementList.FloatList(size());
+			var schema = schema();
+			for (int i = 0; i < schema.columns.length; i++)
+				list.addMeasurement(schema.names.get(i), getMeasurementValue(i));
+			list.close();
+			return list;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			int n = size();
+			sb.append("[");
+			for (int i = 0; i < n; i++) {
+				sb.append(getMeasurementName(i)).append(": ").append(getMeasurementValue(i));
+				if (i < n - 1)
+					sb.append(", ");
+			}
+			sb.append("]");
+			return sb.toString();
+		}
+
+	}
+
+}
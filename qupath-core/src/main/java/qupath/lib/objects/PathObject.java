@@ -161,6 +161,14 @@ public abstract class PathObject implements Externalizable {
 		return measurements;
 	}
 	
+	/**
+	 * Replace the measurement list for the object, e.g. with a view of a shared measurement store.
+	 * @param measurements
+	 */
+	synchronized void setMeasurementList(MeasurementList measurements) {
+		this.measurements = measurements;
+	}
+	
 	/**
 	 * Create a new MeasurementList of the preferred type for this object.
 	 * <p>
@@ -49,6 +49,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import qupath.lib.geom.Point2;
+import qupath.lib.measurements.ColumnarMeasurementStore;
 import qupath.lib.measurements.MeasurementList;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.classes.PathClassFactory;
@@ -749,6 +750,38 @@ public class PathObjectTools {
 //		return pathObjects;
 	}
 	
+	/**
+	 * Move the measurements of the specified objects into a single {@link ColumnarMeasurementStore}.
+	 * <p>
+	 * Each object that has measurements is assigned a row in the store, and its measurement list is replaced 
+	 * by a view of that row. This can greatly reduce the memory required for large numbers of objects with 
+	 * the same measurements (typically detections), and enables fast access to all values of a measurement.
+	 * <p>
+	 * Objects without measurements, or with lists that support dynamic measurements, are left unchanged.
+	 * Note that values are stored as floats.
+	 * 
+	 * @param pathObjects
+	 * @return the store containing the measurements
+	 */
+	public static ColumnarMeasurementStore packMeasurements(Collection<? extends PathObject> pathObjects) {
+		List<PathObject> toPack = new ArrayList<>();
+		for (var pathObject : pathObjects) {
+			if (!pathObject.hasMeasurements())
+				continue;
+			var list = pathObject.getMeasurementList();
+			if (!list.supportsDynamicMeasurements())
+				toPack.add(pathObject);
+		}
+		var store = ColumnarMeasurementStore.create(toPack.size());
+		int row = 0;
+		for (var pathObject : toPack) {
+			store.setMeasurements(row, pathObject.getMeasurementList());
+			pathObject.setMeasurementList(store.getMeasurementList(row));
+			row++;
+		}
+		return store;
+	}
+	
 	private static void addPathObjectsRecursively(PathObject[] pathObjectsInput, Collection<PathObject> pathObjects, Class<? extends PathObject> cls) {
 		for (PathObject childObject : pathObjectsInput) {
 			if (cls == null || cls.isInstance(childObject)) {
@@ -31,6 +31,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -40,6 +41,7 @@ import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import qupath.lib.measurements.ColumnarMeasurementStore;
 import qupath.lib.objects.DefaultPathObjectComparator;
 import qupath.lib.objects.PathAnnotationObject;
 import qupath.lib.objects.PathCellObject;
@@ -97,14 +99,26 @@ public final class PathObjectHierarchy implements Serializable {
 
 	
 	
-	private TMAGrid tmaGrid = null;
-	private PathObject rootObject = new PathRootObject();
+	private volatile TMAGrid tmaGrid = null;
+	private volatile PathObject rootObject = new PathRootObject();
 	
 	transient private PathObjectSelectionModel selectionModel = new PathObjectSelectionModel();
 	transient private List<PathObjectHierarchyListener> listeners = new ArrayList<>();
 
 	// Cache enabling faster access of objects according to location
 	transient private PathObjectTileCache tileCache = new PathObjectTileCache(this);
+	
+	// Incremented whenever the structure of the hierarchy changes; only modified while holding the lock
+	transient private volatile long version = 0;
+	
+	// Number of bulk changes (or event notifications) currently in progress; meanwhile, readers use the last snapshot rather than waiting
+	transient private volatile int nChangesInProgress = 0;
+	
+	// Most recent snapshot of the objects in the hierarchy
+	transient private volatile Snapshot snapshot;
+	
+	// Shared storage for detection measurements, if they have been packed
+	transient private volatile ColumnarMeasurementStore measurementStore;
 
 	/**
 	 * Default constructor, creates an empty hierarchy.
@@ -119,7 +133,8 @@ public final class PathObjectHierarchy implements Serializable {
 	 * 
 	 * @return
 	 */
-	public synchronized boolean isEmpty() {
+	public boolean isEmpty() {
+		var tmaGrid = this.tmaGrid;
 		return (tmaGrid == null || tmaGrid.nCores() == 0) && !rootObject.hasChildren();// && featureMaps.isEmpty();
 	}
 	
@@ -155,7 +170,7 @@ public final class PathObjectHierarchy implements Serializable {
 	 * Get the TMAGrid, or null if there is no TMA grid associated with this hierarchy.
 	 * @return
 	 */
-	public synchronized TMAGrid getTMAGrid() {
+	public TMAGrid getTMAGrid() {
 		return tmaGrid;
 	}
 	
@@ -186,11 +201,17 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param tmaGrid
 	 */
 	public synchronized void setTMAGrid(TMAGrid tmaGrid) {
-		clearTMAGrid();
-		if (tmaGrid == null)
-			return;
-		this.tmaGrid = tmaGrid;
-		updateTMAHierarchy();
+		nChangesInProgress++;
+		try {
+			clearTMAGrid();
+			if (tmaGrid == null)
+				return;
+			this.tmaGrid = tmaGrid;
+			structureChanged();
+			updateTMAHierarchy();
+		} finally {
+			nChangesInProgress--;
+		}
 	}
 	
 
@@ -234,55 +255,73 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @return true if the hierarchy changed as a result of this call, false otherwise
 	 */
 	public synchronized boolean insertPathObjects(Collection<? extends PathObject> pathObjects) {
-		var selectedObjects =  new ArrayList<>(pathObjects);
-		int nObjects = selectedObjects.size();
-		selectedObjects.removeIf(p -> p.isTMACore());
-		if (selectedObjects.size() < nObjects)
-			logger.warn("TMA core objects cannot be inserted - use resolveHierarchy() instead");
+		nChangesInProgress++;
+		try {
+			var selectedObjects =  new ArrayList<>(pathObjects);
+			int nObjects = selectedObjects.size();
+			selectedObjects.removeIf(p -> p.isTMACore());
+			if (selectedObjects.size() < nObjects)
+				logger.warn("TMA core objects cannot be inserted - use resolveHierarchy() instead");
 		
-		if (selectedObjects.isEmpty())
-			return false;
-		removeObjects(selectedObjects, true);
-		selectedObjects.sort(PathObjectHierarchy.HIERARCHY_COMPARATOR.reversed());
-		boolean singleObject = selectedObjects.size() == 1;
-		// We don't want to reset caches for every object if we have only detections, since previously-inserted objects don't impact the potential parent
-		boolean allDetections = selectedObjects.stream().allMatch(p -> p.isDetection());
-		for (var pathObject : selectedObjects) {
+			if (selectedObjects.isEmpty())
+				return false;
+			removeObjects(selectedObjects, true);
+			selectedObjects.sort(PathObjectHierarchy.HIERARCHY_COMPARATOR.reversed());
+			boolean singleObject = selectedObjects.size() == 1;
+			// Detections can't be the parents of other inserted objects, so can be inserted together after everything else
+			List<PathObject> detections = new ArrayList<>();
+			if (!singleObject) {
+				for (var pathObject : selectedObjects) {
+					if (pathObject.isDetection())
+						detections.add(pathObject);
+				}
+				selectedObjects.removeIf(p -> p.isDetection());
+			}
+			for (var pathObject : selectedObjects) {
 //			hierarchy.insertPathObject(pathObject, true);
-			insertPathObject(getRootObject(), pathObject, singleObject, !singleObject && !allDetections);
+				insertPathObject(getRootObject(), pathObject, singleObject, !singleObject);
 //			insertPathObject(pathObject, selectedObjects.size() == 1);
+			}
+			insertDetections(detections);
+			if (!singleObject)
+				fireHierarchyChangedEvent(this);
+			return true;
+		} finally {
+			nChangesInProgress--;
 		}
-		if (!singleObject)
-			fireHierarchyChangedEvent(this);
-		return true;
 	}
 	
 	/**
 	 * Attempt to resolve the parent-child relationships between all objects within the hierarchy.
 	 */
 	public synchronized void resolveHierarchy() {
-		List<? extends PathObject> tmaCores = tmaGrid == null ? Collections.emptyList() : tmaGrid.getTMACoreList();
-		var annotations = getAnnotationObjects();
-		if (annotations.isEmpty() && tmaCores.isEmpty()) {
-			logger.debug("resolveHierarchy() called with no annotations or TMA cores!");
-			return;
-		}
-		var detections = getDetectionObjects();
-		if (annotations.size() > 1 && detections.size() > 1000) {
-			logger.warn("Resolving hierarchy that contains {} annotations and {} detections - this may be slow!",
-					annotations.size(), detections.size());
-		} else if (annotations.size() > 100) {
-			logger.warn("Resolving hierarchy with {} annotations - this may be slow!", annotations.size());
-		}
-		if (!tmaCores.isEmpty()) {
-			// Need to remove annotations first (they will be re-inserted later) so we can resolve detections if needed
-			if (!annotations.isEmpty())
-				removeObjects(annotations, true);
-			var remainingDetections = detections.stream().filter(p -> p.getParent() == rootObject).collect(Collectors.toList());
-			if (!remainingDetections.isEmpty())
-				insertPathObjects(remainingDetections);
+		nChangesInProgress++;
+		try {
+			List<? extends PathObject> tmaCores = tmaGrid == null ? Collections.emptyList() : tmaGrid.getTMACoreList();
+			var annotations = getAnnotationObjects();
+			if (annotations.isEmpty() && tmaCores.isEmpty()) {
+				logger.debug("resolveHierarchy() called with no annotations or TMA cores!");
+				return;
+			}
+			var detections = getDetectionObjects();
+			if (annotations.size() > 1 && detections.size() > 1000) {
+				logger.warn("Resolving hierarchy that contains {} annotations and {} detections - this may be slow!",
+						annotations.size(), detections.size());
+			} else if (annotations.size() > 100) {
+				logger.warn("Resolving hierarchy with {} annotations - this may be slow!", annotations.size());
+			}
+			if (!tmaCores.isEmpty()) {
+				// Need to remove annotations first (they will be re-inserted later) so we can resolve detections if needed
+				if (!annotations.isEmpty())
+					removeObjects(annotations, true);
+				var remainingDetections = detections.stream().filter(p -> p.getParent() == rootObject).collect(Collectors.toList());
+				if (!remainingDetections.isEmpty())
+					insertPathObjects(remainingDetections);
+			}
+			insertPathObjects(annotations);
+		} finally {
+			nChangesInProgress--;
 		}
-		insertPathObjects(annotations);
 	}
 	
 	/**
@@ -348,6 +387,7 @@ public final class PathObjectHierarchy implements Serializable {
 				if (!previousChildren.isEmpty()) {
 					pathObject.addPathObjects(filterObjectsForROI(pathObject.getROI(), previousChildren));
 				}
+				structureChanged();
 				
 				// Notify listeners of changes, if required
 				if (fireChangeEvents)
@@ -360,6 +400,59 @@ public final class PathObjectHierarchy implements Serializable {
 		return true;
 	}
 	
+	/**
+	 * Insert multiple detections into the hierarchy, without firing a change event.
+	 * <p>
+	 * Since detections cannot be parents of one another, the parent of each detection can be found independently 
+	 * (in parallel) using the tile cache. Detections are then added to their parents in a single pass.
+	 * This is equivalent to calling {@link #insertPathObject(PathObject, PathObject, boolean, boolean)} for each detection,
+	 * but much faster when there are many detections.
+	 * 
+	 * @param detections the detections to insert; these should not already be in the hierarchy
+	 */
+	private synchronized void insertDetections(List<PathObject> detections) {
+		if (detections.isEmpty())
+			return;
+		
+		// Make sure the cache is constructed before it is used from multiple threads
+		tileCache.hasObjectsForRegion(PathAnnotationObject.class, null, true);
+		
+		var parents = detections.parallelStream()
+				.map(p -> getParentForDetection(p))
+				.collect(Collectors.toList());
+		
+		Map<PathObject, List<PathObject>> map = new LinkedHashMap<>();
+		for (int i = 0; i < detections.size(); i++)
+			map.computeIfAbsent(parents.get(i), p -> new ArrayList<>()).add(detections.get(i));
+		for (var entry : map.entrySet())
+			entry.getKey().addPathObjects(entry.getValue());
+		structureChanged();
+		tileCache.resetCache();
+	}
+	
+	/**
+	 * Find the object that should be the parent of a detection, using the rules of 
+	 * {@link #insertPathObject(PathObject, PathObject, boolean, boolean)}.
+	 * This does not modify the hierarchy, and may be called from multiple threads.
+	 * 
+	 * @param pathObject the detection
+	 * @return the smallest annotation or TMA core containing the detection centroid, or the root object if there is none
+	 */
+	private PathObject getParentForDetection(PathObject pathObject) {
+		var region = ImageRegion.createInstance(pathObject.getROI());
+		List<PathObject> possibleParents = new ArrayList<>();
+		tileCache.getObjectsForRegion(PathAnnotationObject.class, region, possibleParents, true);
+		if (tmaGrid != null)
+			tileCache.getObjectsForRegion(TMACoreObject.class, region, possibleParents, true);
+		if (possibleParents.size() > 1)
+			possibleParents.sort(HIERARCHY_COMPARATOR);
+		for (var possibleParent : possibleParents) {
+			if (possibleParent != pathObject && tileCache.containsCentroid(possibleParent, pathObject))
+				return possibleParent;
+		}
+		return getRootObject();
+	}
+	
 	/**
 	 * Remove the TMA grid for this hierarchy.
 	 */
@@ -422,6 +515,7 @@ public final class PathObjectHierarchy implements Serializable {
 			pathObjectParent.addPathObjects(pathObject.getChildObjects());
 //			pathObject.clearPathObjects(); // Clear child objects, just in case
 		}
+		structureChanged();
 		if (fireEvent) {
 			if (keepChildren || !hasChildren)
 				fireObjectRemovedEvent(this, pathObject, pathObjectParent);
@@ -439,51 +533,54 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param keepChildren if true, retain children and descendants of the objects being removed
 	 */
 	public synchronized void removeObjects(Collection<? extends PathObject> pathObjects, boolean keepChildren) {
+		nChangesInProgress++;
+		try {
 		
-		if (pathObjects.isEmpty())
-			return;
+			if (pathObjects.isEmpty())
+				return;
 		
-		List<PathObject> pathObjectSet = new ArrayList<>(pathObjects);
-		pathObjectSet.sort((o1, o2) -> Integer.compare(o2.getLevel(), o1.getLevel()));
+			List<PathObject> pathObjectSet = new ArrayList<>(pathObjects);
+			pathObjectSet.sort((o1, o2) -> Integer.compare(o2.getLevel(), o1.getLevel()));
 		
-		// Determine the parents for each object
-		Map<PathObject, List<PathObject>> map = new HashMap<>();
-		for (PathObject pathObject : pathObjectSet) {
-			PathObject parent = pathObject.getParent();
-			if (parent == null)
-				continue;
-			List<PathObject> list = map.get(parent);
-			if (list == null) {
-				list = new ArrayList<>();
-				map.put(parent, list);
+			// Determine the parents for each object
+			Map<PathObject, List<PathObject>> map = new HashMap<>();
+			for (PathObject pathObject : pathObjectSet) {
+				PathObject parent = pathObject.getParent();
+				if (parent == null)
+					continue;
+				List<PathObject> list = map.get(parent);
+				if (list == null) {
+					list = new ArrayList<>();
+					map.put(parent, list);
+				}
+				list.add(pathObject);
 			}
-			list.add(pathObject);
-		}
 		
-		if (map.isEmpty())
-			return;
+			if (map.isEmpty())
+				return;
 		
-		// Loop through and remove objects, keeping children if necessary
-		Set<PathObject> childrenToKeep = new LinkedHashSet<>();
-		for (Entry<PathObject, List<PathObject>> entry : map.entrySet()) {
-			PathObject parent = entry.getKey();
-			List<PathObject> children = entry.getValue();
-			parent.removePathObjects(children);
-			if (keepChildren) {
-				for (PathObject child : children)
-					childrenToKeep.addAll(child.getChildObjects());
+			// Loop through and remove objects, keeping children if necessary
+			Set<PathObject> childrenToKeep = new LinkedHashSet<>();
+			for (Entry<PathObject, List<PathObject>> entry : map.entrySet()) {
+				PathObject parent = entry.getKey();
+				List<PathObject> children = entry.getValue();
+				parent.removePathObjects(children);
+				if (keepChildren) {
+					for (PathObject child : children)
+						childrenToKeep.addAll(child.getChildObjects());
+				}
 			}
-		}
-		childrenToKeep.removeAll(pathObjects);
-		// Add children back if required (note: this can be quite slow!)
-		tileCache.resetCache();
-		for (PathObject pathObject : childrenToKeep) {
-			addPathObject(pathObject, false);
-		}
-		fireHierarchyChangedEvent(this);
+			structureChanged();
+			childrenToKeep.removeAll(pathObjects);
+			// Add children back if required (note: this can be quite slow!)
+			tileCache.resetCache();
+			for (PathObject pathObject : childrenToKeep) {
+				addPathObject(pathObject, false);
+			}
+			fireHierarchyChangedEvent(this);
 		
-		// This previously could result in child objects being deleted even if keepChildren was 
-		// true, depending upon the order in which objects were removed.
+			// This previously could result in child objects being deleted even if keepChildren was 
+			// true, depending upon the order in which objects were removed.
 //		// Loop through and remove objects
 //		for (Entry<PathObject, List<PathObject>> entry : map.entrySet()) {
 //			PathObject parent = entry.getKey();
@@ -500,6 +597,9 @@ public final class PathObjectHierarchy implements Serializable {
 //			}
 //		}
 //		fireHierarchyChangedEvent(this);
+		} finally {
+			nChangesInProgress--;
+		}
 	}
 	
 	
@@ -528,6 +628,7 @@ public final class PathObjectHierarchy implements Serializable {
 		rootObject.clearPathObjects();
 		// Add cores to the start of the object list
 		rootObject.addPathObjects(tmaGrid.getTMACoreList());
+		structureChanged();
 		// Add back any other objects
 		for (PathObject pathObject : pathObjectChildren)
 			addPathObject(pathObject, false);
@@ -561,6 +662,7 @@ public final class PathObjectHierarchy implements Serializable {
 	// TODO: Be very cautious about this!!!!  Use of tileCache inside a synchronized method might lead to deadlocks?
 	private synchronized boolean addPathObjectToList(PathObject pathObjectParent, PathObject pathObject, boolean fireChangeEvents) {
 		pathObjectParent.addPathObject(pathObject);
+		structureChanged();
 		// Notify listeners of changes, if required
 		if (fireChangeEvents)
 			fireObjectAddedEvent(this, pathObject);
@@ -620,22 +722,27 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @return
 	 */
 	public synchronized boolean addPathObjects(Collection<? extends PathObject> pathObjects) {
-		boolean changes = false;
-		int n = pathObjects.size();
-		int counter = 0;
-		for (PathObject pathObject : pathObjects) {
-			if (n > 10000) {
-				if (counter % 1000 == 0)
+		nChangesInProgress++;
+		try {
+			boolean changes = false;
+			int n = pathObjects.size();
+			int counter = 0;
+			for (PathObject pathObject : pathObjects) {
+				if (n > 10000) {
+					if (counter % 1000 == 0)
+						logger.debug("Adding {} of {}", counter, n);
+				} else if (n > 1000 && counter % 100 == 0)
 					logger.debug("Adding {} of {}", counter, n);
-			} else if (n > 1000 && counter % 100 == 0)
-				logger.debug("Adding {} of {}", counter, n);
-			changes = addPathObjectToList(getRootObject(), pathObject, false) || changes;
-			counter++;
-		}
-		if (changes)
-			fireHierarchyChangedEvent(getRootObject());
+				changes = addPathObjectToList(getRootObject(), pathObject, false) || changes;
+				counter++;
+			}
+			if (changes)
+				fireHierarchyChangedEvent(getRootObject());
 //			fireChangeEvent(getRootObject());
-		return changes;
+			return changes;
+		} finally {
+			nChangesInProgress--;
+		}
 	}
 	
 	/**
@@ -644,6 +751,8 @@ public final class PathObjectHierarchy implements Serializable {
 	public synchronized void clearAll() {
 		getRootObject().clearPathObjects();
 		tmaGrid = null;
+		measurementStore = null;
+		structureChanged();
 		fireHierarchyChangedEvent(getRootObject());
 	}
 	
@@ -653,7 +762,7 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param cls
 	 * @return
 	 */
-	public synchronized Collection<PathObject> getPointObjects(Class<? extends PathObject> cls) {
+	public Collection<PathObject> getPointObjects(Class<? extends PathObject> cls) {
 		Collection<PathObject> pathObjects = getObjects(null, cls);
 		if (!pathObjects.isEmpty()) {
 			Iterator<PathObject> iter = pathObjects.iterator();
@@ -690,6 +799,30 @@ public final class PathObjectHierarchy implements Serializable {
 		return getObjects(null, PathDetectionObject.class);
 	}
 	
+	/**
+	 * Move the measurements of all detections in the hierarchy into a single {@link ColumnarMeasurementStore}, 
+	 * replacing any store created by an earlier call.
+	 * <p>
+	 * This reduces the memory needed for large numbers of detections, and provides fast access to 
+	 * all the values of a measurement through {@link ColumnarMeasurementStore#getColumn(String)}.
+	 * Detections added afterwards retain their own measurement lists until this method is called again.
+	 * 
+	 * @return the store containing the detection measurements
+	 * @see PathObjectTools#packMeasurements(Collection)
+	 */
+	public synchronized ColumnarMeasurementStore packDetectionMeasurements() {
+		measurementStore = PathObjectTools.packMeasurements(getDetectionObjects());
+		return measurementStore;
+	}
+	
+	/**
+	 * Get the store created by the last call to {@link #packDetectionMeasurements()}, if available.
+	 * @return the measurement store, or null if detection measurements have not been packed
+	 */
+	public ColumnarMeasurementStore getMeasurementStore() {
+		return measurementStore;
+	}
+	
 	/**
 	 * Get all annotation objects in the hierarchy.
 	 * @return
@@ -714,10 +847,19 @@ public final class PathObjectHierarchy implements Serializable {
 			pathObjects.addAll(tileCache.getObjectsForRegion(cls, null, null, true));
 			return pathObjects;
 		}
+		var snapshot = getSnapshot();
 		if (cls == null || cls.isAssignableFrom(PathRootObject.class))
-			pathObjects.add(getRootObject());
+			pathObjects.add(snapshot.rootObject);
 		
-		return PathObjectTools.getDescendantObjects(getRootObject(), pathObjects, cls);
+		if (cls == null || cls == PathObject.class)
+			pathObjects.addAll(snapshot.objects);
+		else {
+			for (var pathObject : snapshot.objects) {
+				if (cls.isInstance(pathObject))
+					pathObjects.add(pathObject);
+			}
+		}
+		return pathObjects;
 	}
 	
 	/**
@@ -742,10 +884,12 @@ public final class PathObjectHierarchy implements Serializable {
 	 * @param list optional list into which the objects should be added (may be null)
 	 * @return
 	 */
-	public synchronized List<PathObject> getFlattenedObjectList(List<PathObject> list) {
+	public List<PathObject> getFlattenedObjectList(List<PathObject> list) {
+		var snapshot = getSnapshot();
 		if (list == null)
-			list = new ArrayList<>(nObjects());
-		getObjects(list, PathObject.class);
+			list = new ArrayList<>(snapshot.objects.size() + 1);
+		list.add(snapshot.rootObject);
+		list.addAll(snapshot.objects);
 		return list;
 	}
 	
@@ -753,9 +897,67 @@ public final class PathObjectHierarchy implements Serializable {
 	 * Number of objects in the hierarchy, excluding the root.
 	 * @return
 	 */
-	public synchronized int nObjects() {
-		int count = PathObjectTools.countDescendants(getRootObject());
-		return count;
+	public int nObjects() {
+		return getSnapshot().objects.size();
+	}
+	
+	/**
+	 * Get an immutable view of the objects in the hierarchy.
+	 * <p>
+	 * If the hierarchy has changed since the last snapshot was created, this normally waits for any change in progress 
+	 * to complete before creating a new snapshot. However, if a bulk change is being made by another thread 
+	 * (e.g. {@link #resolveHierarchy()} or {@link #insertPathObjects(Collection)}), or listeners are being notified 
+	 * of a change, then the previous snapshot is returned instead - so that readers aren't blocked, and don't see 
+	 * the hierarchy in an intermediate state. A snapshot is always published before listeners are notified, 
+	 * so that readers see the change that the listeners are told about.
+	 * 
+	 * @return
+	 */
+	private Snapshot getSnapshot() {
+		var current = snapshot;
+		if (current != null && current.version == version)
+			return current;
+		boolean holdsLock = Thread.holdsLock(this);
+		if (current != null && nChangesInProgress > 0 && !holdsLock)
+			return current;
+		synchronized (this) {
+			current = snapshot;
+			if (current != null && current.version == version)
+				return current;
+			current = new Snapshot(version, rootObject);
+			// Don't store snapshots in the middle of a change, since other threads shouldn't see them
+			if (nChangesInProgress == 0)
+				snapshot = current;
+			return current;
+		}
+	}
+	
+	/**
+	 * Record that the structure of the hierarchy has changed, so that any snapshot is out of date.
+	 * This should only be called while holding the lock.
+	 */
+	private void structureChanged() {
+		version++;
+	}
+	
+	
+	/**
+	 * Immutable view of the objects in the hierarchy at a specific time.
+	 */
+	private static class Snapshot {
+		
+		private final long version;
+		private final PathObject rootObject;
+		private final List<PathObject> objects;
+		
+		private Snapshot(long version, PathObject rootObject) {
+			this.version = version;
+			this.rootObject = rootObject;
+			var list = new ArrayList<PathObject>(rootObject.nDescendants());
+			rootObject.getDescendantObjects(list);
+			this.objects = Collections.unmodifiableList(list);
+		}
+		
 	}
 	
 	/**
@@ -768,6 +970,8 @@ public final class PathObjectHierarchy implements Serializable {
 			return;
 		rootObject = hierarchy.getRootObject();
 		tmaGrid = hierarchy.tmaGrid;
+		measurementStore = hierarchy.measurementStore;
+		structureChanged();
 		fireHierarchyChangedEvent(rootObject);
 	}
 	
@@ -937,9 +1141,24 @@ public final class PathObjectHierarchy implements Serializable {
 	
 	
 	synchronized void fireEvent(PathObjectHierarchyEvent event) {
+		// Objects may have been changed directly (rather than via the hierarchy) before firing the event
+		if (event.isStructureChangeEvent() || event.getEventType() == HierarchyEventType.CHANGE_OTHER)
+			structureChanged();
 		synchronized(listeners) {
-			for (PathObjectHierarchyListener listener : listeners)
-				listener.hierarchyChanged(event);
+			if (listeners.isEmpty())
+				return;
+			// Publish the state that listeners are being notified about, so that readers on other threads see it too
+			var current = snapshot;
+			if (current == null || current.version != version)
+				snapshot = new Snapshot(version, rootObject);
+			// Listeners may take some time, so avoid blocking readers on other threads while they respond
+			nChangesInProgress++;
+			try {
+				for (PathObjectHierarchyListener listener : listeners)
+					listener.hierarchyChanged(event);
+			} finally {
+				nChangesInProgress--;
+			}
 		}
 	}
 	
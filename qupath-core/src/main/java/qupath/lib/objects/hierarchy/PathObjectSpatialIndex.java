@@ -0,0 +1,428 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Spatial index for PathObjects with ROIs, designed to handle millions of (mostly) detection objects.
+ * <p>
+ * Objects are bulk-loaded into a packed R-tree, sorted along a Hilbert curve according to the centers
+ * of their bounding boxes. Bounds are stored in a single {@code float[]} array, so that no additional objects
+ * are created per PathObject.
+ * <p>
+ * Objects inserted after the tree is built are stored in a small unsorted buffer, and removed objects
+ * are replaced by {@code null}; the tree is rebuilt whenever either becomes too large.
+ * <p>
+ * Note that this class is not thread-safe; synchronization is the responsibility of the caller.
+ */
+class PathObjectSpatialIndex {
+
+	/**
+	 * Maximum number of children per node.
+	 */
+	static final int NODE_SIZE = 16;
+
+	/**
+	 * Minimum number of objects that can be inserted before the tree is rebuilt.
+	 */
+	private static final int MIN_BUFFER_SIZE = 1024;
+
+	private static final int HILBERT_MAX = (1 << 16) - 1;
+
+	/**
+	 * Objects, in Hilbert order; removed objects are set to null.
+	 */
+	private PathObject[] objects = new PathObject[0];
+
+	/**
+	 * Bounding boxes for all nodes, stored as minX, minY, maxX, maxY.
+	 * The first objects.length boxes are the leaves, followed by each level of the tree in turn, ending with the root.
+	 */
+	private float[] boxes = new float[0];
+
+	/**
+	 * Index of the first child for each non-leaf node, followed by the index after the last child.
+	 */
+	private int[] children = new int[0];
+
+	private int nRemoved = 0;
+
+	/**
+	 * Objects inserted since the tree was last built.
+	 */
+	private List<PathObject> buffer = new ArrayList<>();
+
+	/**
+	 * Create an index containing the specified objects.
+	 * @param pathObjects objects to add; all must have ROIs
+	 */
+	PathObjectSpatialIndex(Collection<? extends PathObject> pathObjects) {
+		build(pathObjects.toArray(PathObject[]::new), pathObjects.size());
+	}
+
+	/**
+	 * Create an empty index.
+	 */
+	PathObjectSpatialIndex() {}
+
+	/**
+	 * Get the number of objects in the index.
+	 * @return
+	 */
+	int size() {
+		return objects.length - nRemoved + buffer.size();
+	}
+
+	/**
+	 * Add an object to the index.
+	 * @param pathObject the object to add; this must have a ROI
+	 */
+	void insert(PathObject pathObject) {
+		buffer.add(pathObject);
+		if (buffer.size() > maxBufferSize())
+			rebuild();
+	}
+
+	/**
+	 * Remove an object from the index.
+	 * <p>
+	 * If the ROI of the object has been replaced since it was added, this requires a search of the entire index.
+	 *
+	 * @param pathObject
+	 * @return true if the object was found and removed, false otherwise
+	 * @see #remove(PathObject, boolean)
+	 */
+	boolean remove(PathObject pathObject) {
+		return remove(pathObject, true);
+	}
+
+	/**
+	 * Remove an object from the index, optionally searching the entire index if it isn't found within its current bounds.
+	 * <p>
+	 * Without the full search, objects that aren't in the index are rejected without scanning all objects, 
+	 * but an object will not be found if its ROI has been replaced since it was added.
+	 *
+	 * @param pathObject
+	 * @param searchAll if true, search the entire index if the object isn't found within the bounds of its ROI
+	 * @return true if the object was found and removed, false otherwise
+	 */
+	boolean remove(PathObject pathObject, boolean searchAll) {
+		for (int i = buffer.size() - 1; i >= 0; i--) {
+			if (buffer.get(i) == pathObject) {
+				buffer.remove(i);
+				return true;
+			}
+		}
+		int ind = -1;
+		var roi = pathObject.getROI();
+		if (roi != null) {
+			double x = roi.getBoundsX();
+			double y = roi.getBoundsY();
+			var found = new int[] {-1};
+			visitLeaves(x, y, x + roi.getBoundsWidth(), y + roi.getBoundsHeight(), i -> {
+				if (objects[i] == pathObject) {
+					found[0] = i;
+					return false;
+				}
+				return true;
+			});
+			ind = found[0];
+		}
+		if (ind < 0 && searchAll) {
+			for (int i = 0; i < objects.length; i++) {
+				if (objects[i] == pathObject) {
+					ind = i;
+					break;
+				}
+			}
+		}
+		if (ind < 0)
+			return false;
+		objects[ind] = null;
+		nRemoved++;
+		if (nRemoved > objects.length / 4)
+			rebuild();
+		return true;
+	}
+
+	/**
+	 * Visit all objects with bounding boxes that intersect the specified rectangle, until the visitor returns false.
+	 * <p>
+	 * The bounding boxes are stored with single precision, rounded outwards, and so some objects may be visited
+	 * that lie very slightly outside the rectangle. Callers requiring an exact result should check the ROI bounds.
+	 *
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 * @param visitor
+	 * @return false if the visitor returned false, true otherwise
+	 */
+	boolean visit(double minX, double minY, double maxX, double maxY, Predicate<PathObject> visitor) {
+		if (!visitLeaves(minX, minY, maxX, maxY, i -> objects[i] == null || visitor.test(objects[i])))
+			return false;
+		for (var pathObject : buffer) {
+			var roi = pathObject.getROI();
+			if (roi != null && intersects(roi, minX, minY, maxX, maxY) && !visitor.test(pathObject))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Visit all objects, until the visitor returns false.
+	 * @param visitor
+	 * @return false if the visitor returned false, true otherwise
+	 */
+	boolean visitAll(Predicate<PathObject> visitor) {
+		for (var pathObject : objects) {
+			if (pathObject != null && !visitor.test(pathObject))
+				return false;
+		}
+		for (var pathObject : buffer) {
+			if (!visitor.test(pathObject))
+				return false;
+		}
+		return true;
+	}
+
+
+	private static interface LeafVisitor {
+		boolean visit(int ind);
+	}
+
+	private boolean visitLeaves(double minX, double minY, double maxX, double maxY, LeafVisitor visitor) {
+		int n = objects.length;
+		if (n == 0)
+			return true;
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = boxes.length / 4 - 1;
+		while (top > 0) {
+			int node = stack[--top];
+			if (!intersects(node, minX, minY, maxX, maxY))
+				continue;
+			if (node < n) {
+				if (!visitor.visit(node))
+					return false;
+				continue;
+			}
+			int start = children[(node - n) * 2];
+			int end = children[(node - n) * 2 + 1];
+			if (top + end - start > stack.length)
+				stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + end - start));
+			// Push in reverse so that children are visited in Hilbert order
+			for (int c = end - 1; c >= start; c--)
+				stack[top++] = c;
+		}
+		return true;
+	}
+
+	private boolean intersects(int node, double minX, double minY, double maxX, double maxY) {
+		int i = node * 4;
+		return boxes[i] <= maxX && boxes[i+1] <= maxY && boxes[i+2] >= minX && boxes[i+3] >= minY;
+	}
+
+	private static boolean intersects(ROI roi, double minX, double minY, double maxX, double maxY) {
+		double x = roi.getBoundsX();
+		double y = roi.getBoundsY();
+		return x <= maxX && y <= maxY && x + roi.getBoundsWidth() >= minX && y + roi.getBoundsHeight() >= minY;
+	}
+
+	private int maxBufferSize() {
+		return Math.max(MIN_BUFFER_SIZE, (int)Math.sqrt(objects.length) * 8);
+	}
+
+	private void rebuild() {
+		var all = new PathObject[size()];
+		int n = 0;
+		for (var pathObject : objects) {
+			if (pathObject != null)
+				all[n++] = pathObject;
+		}
+		for (var pathObject : buffer)
+			all[n++] = pathObject;
+		build(all, n);
+	}
+
+	private void build(PathObject[] pathObjects, int n) {
+		buffer = new ArrayList<>();
+		nRemoved = 0;
+		if (n == 0) {
+			objects = new PathObject[0];
+			boxes = new float[0];
+			children = new int[0];
+			return;
+		}
+
+		// Get the bounds of each object, and of everything
+		double[] bounds = new double[n * 4];
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			var roi = pathObjects[i].getROI();
+			double x = roi.getBoundsX();
+			double y = roi.getBoundsY();
+			bounds[i*4] = x;
+			bounds[i*4+1] = y;
+			bounds[i*4+2] = x + roi.getBoundsWidth();
+			bounds[i*4+3] = y + roi.getBoundsHeight();
+			minX = Math.min(minX, bounds[i*4]);
+			minY = Math.min(minY, bounds[i*4+1]);
+			maxX = Math.max(maxX, bounds[i*4+2]);
+			maxY = Math.max(maxY, bounds[i*4+3]);
+		}
+
+		// Sort by Hilbert value of the center, packing the value & original index into a long for a fast primitive sort
+		double scaleX = maxX > minX ? HILBERT_MAX / (maxX - minX) : 0;
+		double scaleY = maxY > minY ? HILBERT_MAX / (maxY - minY) : 0;
+		long[] order = new long[n];
+		for (int i = 0; i < n; i++) {
+			int hx = (int)(((bounds[i*4] + bounds[i*4+2]) / 2 - minX) * scaleX);
+			int hy = (int)(((bounds[i*4+1] + bounds[i*4+3]) / 2 - minY) * scaleY);
+			// Hilbert values use 32 bits, and indices 31 bits, so neither reaches the sign bit
+			order[i] = (hilbert(hx, hy) & 0xFFFFFFFFL) << 31 | i;
+		}
+		Arrays.sort(order);
+
+		// Count nodes
+		int nNodes = n;
+		int levelSize = n;
+		while (levelSize > 1) {
+			levelSize = (levelSize + NODE_SIZE - 1) / NODE_SIZE;
+			nNodes += levelSize;
+		}
+
+		objects = new PathObject[n];
+		boxes = new float[nNodes * 4];
+		children = new int[(nNodes - n) * 2];
+		for (int i = 0; i < n; i++) {
+			int ind = (int)(order[i] & Integer.MAX_VALUE);
+			objects[i] = pathObjects[ind];
+			boxes[i*4] = floor(bounds[ind*4]);
+			boxes[i*4+1] = floor(bounds[ind*4+1]);
+			boxes[i*4+2] = ceil(bounds[ind*4+2]);
+			boxes[i*4+3] = ceil(bounds[ind*4+3]);
+		}
+
+		// Build each level from the one below
+		int start = 0;
+		int end = n;
+		int pos = n;
+		while (end - start > 1) {
+			int levelStart = pos;
+			for (int c = start; c < end; c += NODE_SIZE) {
+				int cEnd = Math.min(c + NODE_SIZE, end);
+				float x1 = Float.POSITIVE_INFINITY, y1 = Float.POSITIVE_INFINITY;
+				float x2 = Float.NEGATIVE_INFINITY, y2 = Float.NEGATIVE_INFINITY;
+				for (int i = c; i < cEnd; i++) {
+					x1 = Math.min(x1, boxes[i*4]);
+					y1 = Math.min(y1, boxes[i*4+1]);
+					x2 = Math.max(x2, boxes[i*4+2]);
+					y2 = Math.max(y2, boxes[i*4+3]);
+				}
+				boxes[pos*4] = x1;
+				boxes[pos*4+1] = y1;
+				boxes[pos*4+2] = x2;
+				boxes[pos*4+3] = y2;
+				children[(pos - n) * 2] = c;
+				children[(pos - n) * 2 + 1] = cEnd;
+				pos++;
+			}
+			start = levelStart;
+			end = pos;
+		}
+	}
+
+	/**
+	 * Convert to float, rounding down if necessary.
+	 */
+	private static float floor(double value) {
+		float f = (float)value;
+		return f > value ? Math.nextDown(f) : f;
+	}
+
+	/**
+	 * Convert to float, rounding up if necessary.
+	 */
+	private static float ceil(double value) {
+		float f = (float)value;
+		return f < value ? Math.nextUp(f) : f;
+	}
+
+	/**
+	 * Compute the position of a point along a Hilbert curve on a 2^16 x 2^16 grid.
+	 * This uses the branch-free method described at http://threadlocalmutex.com/?p=126
+	 */
+	static int hilbert(int x, int y) {
+		int a = x ^ y;
+		int b = 0xFFFF ^ a;
+		int c = 0xFFFF ^ (x | y);
+		int d = x & (y ^ 0xFFFF);
+
+		int A = a | (b >>> 1);
+		int B = (a >>> 1) ^ a;
+		int C = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+		int D = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+		a = A; b = B; c = C; d = D;
+		A = ((a & (a >>> 2)) ^ (b & (b >>> 2)));
+		B = ((a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2)));
+		C ^= ((a & (c >>> 2)) ^ (b & (d >>> 2)));
+		D ^= ((b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2)));
+
+		a = A; b = B; c = C; d = D;
+		A = ((a & (a >>> 4)) ^ (b & (b >>> 4)));
+		B = ((a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4)));
+		C ^= ((a & (c >>> 4)) ^ (b & (d >>> 4)));
+		D ^= ((b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4)));
+
+		a = A; b = B; c = C; d = D;
+		C ^= ((a & (c >>> 8)) ^ (b & (d >>> 8)));
+		D ^= ((b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8)));
+
+		a = C ^ (C >>> 1);
+		b = D ^ (D >>> 1);
+
+		int i0 = x ^ y;
+		int i1 = b | (0xFFFF ^ (i0 | a));
+
+		return (interleave(i1) << 1) | interleave(i0);
+	}
+
+	private static int interleave(int x) {
+		x = (x | (x << 8)) & 0x00FF00FF;
+		x = (x | (x << 4)) & 0x0F0F0F0F;
+		x = (x | (x << 2)) & 0x33333333;
+		x = (x | (x << 1)) & 0x55555555;
+		return x;
+	}
+
+}
@@ -23,6 +23,7 @@
 
 package qupath.lib.objects.hierarchy;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -38,15 +39,12 @@ import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
 import org.locationtech.jts.algorithm.locate.PointOnGeometryLocator;
 import org.locationtech.jts.algorithm.locate.SimplePointInAreaLocator;
 import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.LinearRing;
 import org.locationtech.jts.geom.Location;
 import org.locationtech.jts.geom.Polygonal;
 import org.locationtech.jts.geom.prep.PreparedGeometry;
 import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
-import org.locationtech.jts.index.SpatialIndex;
-import org.locationtech.jts.index.quadtree.Quadtree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -77,25 +75,11 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	
 	final private static Logger logger = LoggerFactory.getLogger(PathObjectTileCache.class);
 	
-	/**
-	 * Largest positive envelope, used when all objects are requested.
-	 */
-	private final static Envelope MAX_ENVELOPE = new Envelope(-Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE);
-	
-	/**
-	 * Keep a map of envelopes per ROI; ROIs should be immutable.
-	 */
-	private Map<ROI, Envelope> envelopeMap = new WeakHashMap<>();
-	
-	/**
-	 * Keep a map of envelopes per object, because potentially an object might have its ROI replaced behind our back...
-	 */
-	private Map<PathObject, Envelope> lastEnvelopeMap = new WeakHashMap<>();
-	
 	/**
 	 * Store a spatial index according to the class of PathObject.
+	 * Bounds are read from the ROIs when the index is built, so no envelopes need to be cached per object.
 	 */
-	private Map<Class<? extends PathObject>, SpatialIndex> map = new HashMap<>();
+	private Map<Class<? extends PathObject>, PathObjectSpatialIndex> map = new HashMap<>();
 	
 	/**
 	 * Map to cache Geometries, specifically for annotations.
@@ -135,7 +119,11 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 				map.clear();
 			else
 				map.remove(limitToClass);
-			addToCache(hierarchy.getRootObject(), true, limitToClass);
+			// Collect all objects first, so that each index can be bulk-loaded
+			Map<Class<? extends PathObject>, List<PathObject>> objectsByClass = new HashMap<>();
+			collectObjects(hierarchy.getRootObject(), limitToClass, objectsByClass);
+			for (var entry : objectsByClass.entrySet())
+				map.put(entry.getKey(), new PathObjectSpatialIndex(entry.getValue()));
 			long endTime = System.currentTimeMillis();
 			logger.debug("Cache reconstructed in " + (endTime - startTime)/1000.);
 		} finally {
@@ -156,35 +144,35 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	}
 	
 	/**
-	 * Add a PathObject to the cache, optionally including children.
+	 * Collect a PathObject and its descendants with ROIs, grouped by class.
 	 * 
 	 * @param pathObject
-	 * @param includeChildren
+	 * @param limitToClass
+	 * @param objectsByClass
 	 */
-	private void addToCache(PathObject pathObject, boolean includeChildren, Class<? extends PathObject> limitToClass) {
-		// If the cache isn't active, we can ignore this... it will be constructed when it is needed
-		if (!isActive())
-			return;
-
+	private static void collectObjects(PathObject pathObject, Class<? extends PathObject> limitToClass, Map<Class<? extends PathObject>, List<PathObject>> objectsByClass) {
 		if (pathObject.hasROI()) {
 			Class<? extends PathObject> cls = pathObject.getClass();
-			if (limitToClass == null || cls == limitToClass) {
-				SpatialIndex mapObjects = map.get(cls);
-				if (mapObjects == null) {
-					mapObjects = createSpatialIndex();
-					map.put(cls, mapObjects);
-				}
-				Envelope envelope = getEnvelope(pathObject);
-				mapObjects.insert(envelope, pathObject);
-			}
+			if (limitToClass == null || cls == limitToClass)
+				objectsByClass.computeIfAbsent(cls, c -> new ArrayList<>()).add(pathObject);
 		}
-		
-		// Add the children
-		if (includeChildren && !(pathObject instanceof TemporaryObject) && pathObject.hasChildren()) {
+		if (!(pathObject instanceof TemporaryObject) && pathObject.hasChildren()) {
 			for (PathObject child : pathObject.getChildObjectsAsArray())
-				addToCache(child, includeChildren, limitToClass);
+				collectObjects(child, limitToClass, objectsByClass);
 		}
 	}
+	
+	/**
+	 * Add a single PathObject to the cache (not including children).
+	 * 
+	 * @param pathObject
+	 */
+	private void addToCache(PathObject pathObject) {
+		// If the cache isn't active, we can ignore this... it will be constructed when it is needed
+		if (!isActive() || !pathObject.hasROI())
+			return;
+		map.computeIfAbsent(pathObject.getClass(), c -> new PathObjectSpatialIndex()).insert(pathObject);
+	}
 
 	Geometry getGeometry(ROI roi) {
 		var geometry = geometryMap.get(roi);
@@ -318,34 +306,14 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	}
 	
 	
-	private SpatialIndex createSpatialIndex() {
-		return new Quadtree();
-//		return new STRtree();
-	}
-	
-	private Envelope getEnvelope(PathObject pathObject) {
-		var envelope = getEnvelope(pathObject.getROI());
-		lastEnvelopeMap.put(pathObject, envelope);
-		return envelope;
-	}
-	
-	private Envelope getEnvelope(ROI roi) {
-		var envelope = envelopeMap.get(roi);
-		if (envelope == null) {
-			envelope = new Envelope(roi.getBoundsX(), roi.getBoundsX() + roi.getBoundsWidth(),
-					roi.getBoundsY(), roi.getBoundsY() + roi.getBoundsHeight());
-			envelopeMap.put(roi, envelope);
-		}
-		return envelope;
-	}
-	
-	private Envelope getEnvelope(ImageRegion region) {
-		return new Envelope(region.getMinX(), region.getMaxX(),
-				region.getMinY(), region.getMaxY());
+	private static boolean intersects(ROI roi, ImageRegion region) {
+		double x = roi.getBoundsX();
+		double y = roi.getBoundsY();
+		return x <= region.getMaxX() && y <= region.getMaxY() &&
+				x + roi.getBoundsWidth() >= region.getMinX() && y + roi.getBoundsHeight() >= region.getMinY();
 	}
 	
 	
-	
 	/**
 	 * This doesn't acquire the lock! The locking is done first.
 	 * 
@@ -353,37 +321,25 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	 * @param removeChildren
 	 */
 	private void removeFromCache(PathObject pathObject, boolean removeChildren) {
+		removeFromCache(pathObject, removeChildren, true);
+	}
+	
+	private void removeFromCache(PathObject pathObject, boolean removeChildren, boolean searchAll) {
 		// If the cache isn't active, then nothing to remove
 		if (!isActive())
 			return;
 		
-		SpatialIndex mapObjects = map.get(pathObject.getClass());
-		
-		// We can remove objects from a Quadtree
-		if (mapObjects instanceof Quadtree) {
-			Envelope envelope = lastEnvelopeMap.get(pathObject);
-			envelope = MAX_ENVELOPE;
-//				System.err.println("Before: " + mapObjects.query(MAX_ENVELOPE).size());
-			if (envelope != null) {
-				if (mapObjects.remove(envelope, pathObject)) {
-					logger.debug("Removed {} from cache", pathObject);
-				} else
-					logger.debug("Unable to remove {} from cache", pathObject);
-			} else {
-				logger.debug("No envelope found for {}", pathObject);					
-			}
-//				System.err.println("After: " + mapObjects.query(MAX_ENVELOPE).size());
-			// Remove the children
-			if (removeChildren) {
-				for (PathObject child : pathObject.getChildObjectsAsArray())
-					removeFromCache(child, removeChildren);
-			}
-		} else if (mapObjects instanceof SpatialIndex && !removeChildren) {
-			// We can't remove objects from a STRtree, but since we're just removing one object we can rebuild only the cache for this class
-			constructCache(pathObject.getClass());
-		} else {
-			// If we need to remove multiple objects, better to just rebuild the entire cache
-			constructCache(null);
+		PathObjectSpatialIndex mapObjects = map.get(pathObject.getClass());
+		if (mapObjects != null) {
+			if (mapObjects.remove(pathObject, searchAll))
+				logger.debug("Removed {} from cache", pathObject);
+			else
+				logger.debug("Unable to remove {} from cache", pathObject);
+		}
+		// Remove the children
+		if (removeChildren) {
+			for (PathObject child : pathObject.getChildObjectsAsArray())
+				removeFromCache(child, removeChildren, searchAll);
 		}
 	}
 	
@@ -418,35 +374,40 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	public Collection<PathObject> getObjectsForRegion(Class<? extends PathObject> cls, ImageRegion region, Collection<PathObject> pathObjects, boolean includeSubclasses) {
 		ensureCacheConstructed();
 		
-		var envelope = region == null ? MAX_ENVELOPE : getEnvelope(region);
-		
 		int z = region == null ? -1 : region.getZ();
 		int t = region == null ? -1 : region.getT();
 		r.lock();
 		try {
 			// Iterate through all the classes, getting objects of the specified class or subclasses thereof
-			for (Entry<Class<? extends PathObject>, SpatialIndex> entry : map.entrySet()) {
+			for (Entry<Class<? extends PathObject>, PathObjectSpatialIndex> entry : map.entrySet()) {
 				if (cls == null || (includeSubclasses && cls.isAssignableFrom(entry.getKey())) || cls.isInstance(entry.getKey())) {
-					if (entry.getValue() != null) {
-						var list = entry.getValue().query(envelope);
-						if (list.isEmpty())
-							continue;
-						
-						if (pathObjects == null)
-							pathObjects = new HashSet<PathObject>();
-						
-						// Add all objects that have a parent, i.e. might be in the hierarchy
-						for (PathObject pathObject : (List<PathObject>)list) {
+					var index = entry.getValue();
+					if (index == null || index.size() == 0)
+						continue;
+					
+					if (pathObjects == null)
+						pathObjects = new HashSet<PathObject>();
+					
+					// Add all objects that have a parent, i.e. might be in the hierarchy
+					var collection = pathObjects;
+					if (region == null) {
+						index.visitAll(pathObject -> {
+							if (pathObject.getParent() != null || pathObject.isRootObject())
+								collection.add(pathObject);
+							return true;
+						});
+					} else {
+						index.visit(region.getMinX(), region.getMinY(), region.getMaxX(), region.getMaxY(), pathObject -> {
 							var roi = pathObject.getROI();
-							if (roi == null || region == null || (roi.getZ() == z && roi.getT() == t)) {
+							if (roi == null || (roi.getZ() == z && roi.getT() == t)) {
 								if (pathObject.getParent() != null || pathObject.isRootObject()) {
-									if (envelope.intersects(getEnvelope(pathObject)))
-										pathObjects.add(pathObject);
+									if (roi == null || intersects(roi, region))
+										collection.add(pathObject);
 								}
 							}
-						}
+							return true;
+						});
 					}
-//						pathObjects = entry.getValue().getObjectsForRegion(region, pathObjects);
 				}
 			}
 	//		logger.info("Objects for " + region + ": " + (pathObjects == null ? 0 : pathObjects.size()));
@@ -461,29 +422,28 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 	public boolean hasObjectsForRegion(Class<? extends PathObject> cls, ImageRegion region, boolean includeSubclasses) {
 		ensureCacheConstructed();
 		
-		var envelope = region == null ? MAX_ENVELOPE : getEnvelope(region);
-		
 		int z = region == null ? -1 : region.getZ();
 		int t = region == null ? -1 : region.getT();
 		r.lock();
 		try {
 			// Iterate through all the classes, getting objects of the specified class or subclasses thereof
-			for (Entry<Class<? extends PathObject>, SpatialIndex> entry : map.entrySet()) {
+			for (Entry<Class<? extends PathObject>, PathObjectSpatialIndex> entry : map.entrySet()) {
 				if (cls == null || cls.isInstance(entry.getKey()) || (includeSubclasses && cls.isAssignableFrom(entry.getKey()))) {
-					if (entry.getValue() != null) {
-						var list = (List<PathObject>)entry.getValue().query(envelope);
-						for (var pathObject : list) {
-							var roi = pathObject.getROI();
-							if (roi == null)
-								continue;
-							if (region == null)
-								return true;
-							if (roi.getZ() != z || roi.getT() != t)
-								continue;
-							if (region.intersects(roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight())) {
-								return true;
-							}
-						}
+					var index = entry.getValue();
+					if (index != null) {
+						// The visitor returns false (to stop early) as soon as a match is found
+						boolean noMatch;
+						if (region == null)
+							noMatch = index.visitAll(pathObject -> !pathObject.hasROI());
+						else
+							noMatch = index.visit(region.getMinX(), region.getMinY(), region.getMaxX(), region.getMaxY(), pathObject -> {
+								var roi = pathObject.getROI();
+								if (roi == null || roi.getZ() != z || roi.getT() != t)
+									return true;
+								return !region.intersects(roi.getBoundsX(), roi.getBoundsY(), roi.getBoundsWidth(), roi.getBoundsHeight());
+							});
+						if (!noMatch)
+							return true;
 //						if (list.stream().anyMatch(p -> p.hasROI() && 
 //								(region == null || (p.getROI().getZ() == z && p.getROI().getT() == t))))
 //							return true;
@@ -537,8 +497,9 @@ class PathObjectTileCache implements PathObjectHierarchyListener {
 			boolean singleChange = event.getChangedObjects().size() == 1;
 			PathObject singleObject = singleChange ? event.getChangedObjects().get(0) : null;
 			if (singleChange && event.getEventType() == HierarchyEventType.ADDED) {
-				removeFromCache(singleObject, false);
-				addToCache(singleObject, false, singleObject.getClass());
+				// The object is usually new, so avoid searching the whole cache for it
+				removeFromCache(singleObject, false, false);
+				addToCache(singleObject);
 			} else if (singleChange && event.getEventType() == HierarchyEventType.REMOVED) {
 				removeFromCache(singleObject, false);
 			} else if (event.getEventType() == HierarchyEventType.OTHER_STRUCTURE_CHANGE || event.getEventType() == HierarchyEventType.CHANGE_OTHER) {
@@ -28,16 +28,14 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import qupath.lib.common.ThreadTools;
 import qupath.lib.images.ImageData;
 
 
@@ -45,7 +43,7 @@ import qupath.lib.images.ImageData;
  * Abstract PluginRunner to help with the creation of plugin runners for specific circumstances,
  * e.g. running through a GUI, or from a command line only.
  * <p>
- * Note!  This makes use of a static threadpool, which will be reused by all inheriting classes.
+ * Note!  Tasks are run using a shared {@link PluginTaskScheduler}, which is reused by all inheriting classes.
  * 
  * @author Pete Bankhead
  *
@@ -56,10 +54,12 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	final private static Logger logger = LoggerFactory.getLogger(AbstractPluginRunner.class);
 
 	private static int numThreadsRequested = Runtime.getRuntime().availableProcessors();
-	private static int counter = 0;
 
-	private static ExecutorService pool;
 	private ExecutorCompletionService<Runnable> service;
+	
+	private int taskPriority = PluginTaskScheduler.NORM_PRIORITY;
+	
+	private boolean fireHierarchyUpdate = true;
 
 	private Map<Future<Runnable>, Runnable> pendingTasks = Collections.synchronizedMap(new HashMap<>());
 	
@@ -68,7 +68,7 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	private boolean tasksCancelled = false;
 	
 	/**
-	 * Set the number of threads requested to be used for the next threadpool created.
+	 * Set the number of threads requested to be used when running tasks.
 	 * <p>
 	 * The request is stored as-is, but may be adjusted if it is outside a valid range, i.e. &gt; 0 and &lt;= available processors.
 	 * 
@@ -80,10 +80,8 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	public synchronized static void setNumThreadsRequested(int n) {
 		if (numThreadsRequested == n)
 			return;
+		// This takes effect the next time tasks are run
 		numThreadsRequested = n;
-		// Need to shutdown the pool for this to take effect
-		if (pool != null)
-			pool.shutdown();
 	}
 	
 	/**
@@ -117,6 +115,25 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 		return numThreadsRequested <= 0 || numThreadsRequested > max ? max : numThreadsRequested;
 	}
 
+	/**
+	 * Set the priority used for tasks submitted by this runner.
+	 * Tasks with a higher priority are started before those with a lower priority, if they are waiting at the same time.
+	 * 
+	 * @param priority
+	 * @see PluginTaskScheduler#NORM_PRIORITY
+	 */
+	public void setTaskPriority(int priority) {
+		this.taskPriority = priority;
+	}
+	
+	/**
+	 * Get the priority used for tasks submitted by this runner.
+	 * @return
+	 */
+	public int getTaskPriority() {
+		return taskPriority;
+	}
+
 	protected abstract SimpleProgressMonitor makeProgressMonitor();
 	
 	/* (non-Javadoc)
@@ -136,15 +153,9 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 		
 		// Reset cancelled status
 		tasksCancelled = false;
+		fireHierarchyUpdate = updateHierarchy;
 		
-		// Ensure we have a pool
-		if (pool == null || pool.isShutdown()) {
-			int n = getNumThreads();
-			pool = Executors.newFixedThreadPool(n, ThreadTools.createThreadFactory("plugin-runner-"+(+counter)+"-", false));
-			logger.debug("New threadpool created with {} threads", n);
-			service = new ExecutorCompletionService<>(pool);
-		} else if (service == null)
-			service = new ExecutorCompletionService<>(pool);
+		service = new ExecutorCompletionService<>(createExecutor());
 		
 		monitor = makeProgressMonitor();
 		monitor.startMonitoring(null, tasks.size(), true);
@@ -152,15 +163,28 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 			Future<Runnable> future = service.submit(task, task);
 			pendingTasks.put(future, task);
 		}
-		// TODO: See if this needs to be shutdown here, or there's a better way..?
-		// In any case, it was inhibiting application shutdown just letting it be...
-		pool.shutdown();
 		awaitCompletion();
 		
-		// Post-process any PathTasks
+		// Post-process any PathTasks (this also fires a hierarchy change event, if required)
 		postProcess(tasks.stream().filter(t -> t instanceof PathTask).map(t -> (PathTask)t).collect(Collectors.toList()));
-		
-		getImageData().getHierarchy().fireHierarchyChangedEvent(this);
+	}
+	
+	/**
+	 * Create an executor for the tasks of a single run.
+	 * This is normally a new group within the shared scheduler, so that threads are not left idle between runs.
+	 * @return
+	 */
+	private Executor createExecutor() {
+		// If we're already running on a scheduler thread, waiting for other tasks could cause a deadlock - so run them directly instead
+		if (PluginTaskScheduler.isSchedulerThread()) {
+			logger.debug("Tasks requested from a plugin task thread - will run sequentially");
+			return Runnable::run;
+		}
+		var scheduler = PluginTaskScheduler.getDefault();
+		scheduler.setParallelism(getNumThreads());
+		var imageData = getImageData();
+		String name = imageData == null ? "Tasks" : imageData.getServerPath();
+		return scheduler.createTaskGroup(name, taskPriority);
 	}
 	
 	
@@ -215,13 +239,11 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 //				logger.error("CAUSING Error running plugin: {}", e2.getLocalizedMessage(), e2);
 //			}
 //			e.printStackTrace();
-			if (pool != null)
-				pool.shutdownNow();
+			cancelPendingTasks();
 			monitor.pluginCompleted("Completed with error " + e.getLocalizedMessage());
 		} catch (Exception e) {
 			logger.error("Error running plugin: {}", e.getLocalizedMessage(), e);
-			if (pool != null)
-				pool.shutdownNow();
+			cancelPendingTasks();
 			monitor.pluginCompleted("Completed with error " + e.getLocalizedMessage());
 		} finally {
 			pendingTasks.clear();
@@ -229,6 +251,15 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 	}
 
 	
+	/**
+	 * Cancel any tasks that have not yet completed; the scheduler is shared, so it can't simply be shut down.
+	 */
+	private void cancelPendingTasks() {
+		for (Future<?> future : pendingTasks.keySet().toArray(new Future<?>[0]))
+			future.cancel(true);
+	}
+
+	
 	/**
 	 * Perform post-processing after a task has complete.
 	 * 
@@ -246,7 +277,7 @@ public abstract class AbstractPluginRunner<T> implements PluginRunner<T> {
 			task.taskComplete(wasCancelled);
 		
 		var imageData = getImageData();
-		if (imageData != null)
+		if (imageData != null && fireHierarchyUpdate)
 			imageData.getHierarchy().fireHierarchyChangedEvent(this);
 		
 //		PathTask task = runnable instanceof PathTask ? (PathTask)runnable : null;
@@ -25,15 +25,30 @@ package qupath.lib.plugins;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import qupath.lib.geom.ImmutableDimension;
 import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ServerTools;
+import qupath.lib.images.servers.TilePrefetcher;
+import qupath.lib.images.servers.TilePrefetcher.Prefetch;
 import qupath.lib.objects.PathObject;
+import qupath.lib.plugins.ParallelTileObject.Status;
+import qupath.lib.plugins.TilePipelineMetrics.Stage;
+import qupath.lib.plugins.TilePipelineMetrics.StageMetrics;
 import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.ROIs;
 import qupath.lib.roi.RoiTools;
 import qupath.lib.roi.interfaces.ROI;
@@ -44,6 +59,10 @@ import qupath.lib.roi.interfaces.ROI;
  * and analyzing these in parallel - optionally with overlaps.
  * <p>
  * Particularly useful for tasks such as cell detection.
+ * <p>
+ * Tiles are processed as a pipeline: pixels for a bounded number of upcoming tiles are read in the background,
+ * detection is applied to each tile by the plugin runner's threads, and the detections from all tiles are merged
+ * in a single step once detection is complete. Metrics for each stage are available from {@link #getPipelineMetrics()}.
  * 
  * @author Pete Bankhead
  *
@@ -51,8 +70,53 @@ import qupath.lib.roi.interfaces.ROI;
  */
 public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetectionPlugin<T> {
 	
+	private final static Logger logger = LoggerFactory.getLogger(AbstractTileableDetectionPlugin.class);
+	
 	private static int PREFERRED_TILE_SIZE = 2048;
 	private static int MAX_TILE_SIZE = 3072;
+	
+	/**
+	 * Maximum number of upcoming tiles to prefetch while processing.
+	 */
+	private static int PREFETCH_TILES = Math.max(2, Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * Number of threads used to read pixels for upcoming tiles.
+	 * These are separate from the shared {@link TilePrefetcher}, which has only a few low priority threads for the viewer.
+	 */
+	private static int READ_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+	
+	private static TilePrefetcher reader;
+	
+	private static synchronized TilePrefetcher getTileReader() {
+		if (reader == null)
+			reader = new TilePrefetcher("detection-tile-read-", READ_THREADS, 4096, Thread.NORM_PRIORITY);
+		return reader;
+	}
+	
+	private transient TilePipelineMetrics metrics = new TilePipelineMetrics();
+
+	/**
+	 * Get the metrics for the stages of the most recent run of this plugin.
+	 * These can be used to determine whether detection was limited by reading pixels or processing them.
+	 * @return
+	 */
+	public TilePipelineMetrics getPipelineMetrics() {
+		return metrics;
+	}
+	
+	@Override
+	protected void preprocess(final PluginRunner<T> pluginRunner) {
+		super.preprocess(pluginRunner);
+		metrics = new TilePipelineMetrics();
+	}
+	
+	@Override
+	protected void postprocess(final PluginRunner<T> pluginRunner) {
+		super.postprocess(pluginRunner);
+		if (metrics.getStage(Stage.DETECT).getCount() > 0)
+			logger.info("Tiled detection {}", metrics);
+	}
 
 	/**
 	 * Get the preferred pixel size that would be used for the specified ImageData and ParameterList.
@@ -136,7 +200,7 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 //			return;
 //		}
 		
-		ParallelDetectionTileManager manager = new ParallelDetectionTileManager(parentObject); 
+		ParallelDetectionTileManager manager = new ParallelDetectionTileManager(parentObject, metrics, getTileReader());
 		
 		List<ParallelTileObject> tileList = new ArrayList<>();
 		AtomicInteger countdown = new AtomicInteger(pathROIs.size());
@@ -151,11 +215,23 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 			tasks.add(DetectionPluginTools.createRunnableTask(createDetector(imageData, params), params, imageData, tile));
 		}
 		manager.setTiles(tileList);
+		// Detectors generally read tiles at the preferred pixel size, so these are the regions worth prefetching
+		manager.setPrefetch(imageData.getServer(), downsampleFactor);
 		
 		imageData.getHierarchy().fireHierarchyChangedEvent(this);
 	}
 	
 	
+	/**
+	 * Coordinates the stages of tiled detection for a single parent object.
+	 * <p>
+	 * Reads are requested in tile order, keeping at most {@link #PREFETCH_TILES} tiles ahead of detection,
+	 * so that pixels are generally available by the time detection starts. Detections are merged into the parent
+	 * only once all tiles are complete.
+	 * <p>
+	 * When detection starts for a tile, reads that haven't started yet are cancelled rather than awaited,
+	 * since the detector will then request the pixels itself.
+	 */
 	static class ParallelDetectionTileManager {
 		
 		private PathObject parent;
@@ -166,40 +242,184 @@ public abstract class AbstractTileableDetectionPlugin<T> extends AbstractDetecti
 		private AtomicInteger countdown;
 		private List<ParallelTileObject> tiles = new ArrayList<>();
 		
-		ParallelDetectionTileManager(PathObject parent) {
+		private final TilePipelineMetrics metrics;
+		private final TilePrefetcher reader;
+		
+		// Tiles waiting for detection to start
+		private Set<ParallelTileObject> pendingTiles = Collections.newSetFromMap(new IdentityHashMap<>());
+		// Pixels requested for tiles where detection has not yet started
+		private Map<ParallelTileObject, Prefetch> reads = new IdentityHashMap<>();
+		// Pixels requested for tiles where detection has started
+		private Map<ParallelTileObject, Prefetch> activeReads = new IdentityHashMap<>();
+		// Start time for tiles currently being processed
+		private Map<ParallelTileObject, Long> detectStartTimes = new IdentityHashMap<>();
+		private int nMergePending = 0;
+		
+		private ImageServer<?> server;
+		private double prefetchDownsample;
+		private int nextRead = 0;
+		
+		ParallelDetectionTileManager(PathObject parent, TilePipelineMetrics metrics, TilePrefetcher reader) {
 			this.parent = parent;
+			this.metrics = metrics;
+			this.reader = reader;
 			this.originalChildObjects = new ArrayList<>(parent.getChildObjects());
 		}
 		
-		public void setTiles(Collection<ParallelTileObject> tiles) {
+		public synchronized void setTiles(Collection<ParallelTileObject> tiles) {
 			this.tiles = new ArrayList<>(tiles);
+			for (var tile : tiles) {
+				if (pendingTiles.add(tile))
+					metrics.getStage(Stage.DETECT).queued();
+			}
 			countdown = new AtomicInteger(tiles.size());
 			this.parent.clearPathObjects();
 			this.parent.addPathObjects(tiles);
 		}
 		
+		/**
+		 * Request that pixels for upcoming tiles are read in the background while earlier tiles are processed.
+		 * @param server the server from which pixels will be read
+		 * @param downsample the downsample at which pixels will be read
+		 */
+		synchronized void setPrefetch(ImageServer<?> server, double downsample) {
+			this.server = server;
+			this.prefetchDownsample = downsample;
+			requestReads();
+		}
+		
+		/**
+		 * Request pixels for the next pending tiles, up to the maximum number that may be read ahead of detection.
+		 * Tiles are generally processed in order, so the tiles that follow are the ones most likely to be needed next.
+		 */
+		private void requestReads() {
+			if (server == null || wasCancelled)
+				return;
+			while (reads.size() < PREFETCH_TILES && nextRead < tiles.size()) {
+				var tile = tiles.get(nextRead++);
+				if (tile.getStatus() != Status.PENDING)
+					continue;
+				var request = RegionRequest.createInstance(server.getPath(), prefetchDownsample, tile.getROI());
+				StageMetrics read = metrics.getStage(Stage.READ);
+				read.queued();
+				long startTime = System.nanoTime();
+				var prefetch = reader.prefetch(server, Collections.singletonList(request));
+				prefetch.getCompletion().thenRun(() -> {
+					read.dequeued();
+					read.record(System.nanoTime() - startTime);
+				});
+				reads.put(tile, prefetch);
+			}
+		}
+		
+		/**
+		 * Notify the manager that processing has started for a tile, so that pixels for another tile can be requested.
+		 * @param tile
+		 */
+		synchronized void tileStarted(ParallelTileObject tile) {
+			if (pendingTiles.remove(tile))
+				metrics.getStage(Stage.DETECT).dequeued();
+			var prefetch = reads.remove(tile);
+			if (prefetch != null)
+				activeReads.put(tile, prefetch);
+			requestReads();
+		}
+		
+		/**
+		 * Wait until any pixels for a tile that are currently being read are available, 
+		 * cancelling any reads that have not yet started.
+		 * This should be called after the tile has started processing, but without holding any locks.
+		 * @param tile
+		 */
+		void awaitPixels(ParallelTileObject tile) {
+			Prefetch prefetch;
+			synchronized (this) {
+				prefetch = activeReads.remove(tile);
+			}
+			long startTime = System.nanoTime();
+			if (prefetch != null && !prefetch.isDone()) {
+				// Queued reads would only delay detection; completion then depends only on reads in progress
+				prefetch.cancel();
+				try {
+					prefetch.getCompletion().get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					// Tiles that couldn't be read will be requested again by the detector
+				}
+			}
+			long endTime = System.nanoTime();
+			metrics.recordReadWait(endTime - startTime);
+			synchronized (this) {
+				detectStartTimes.put(tile, endTime);
+			}
+		}
+		
+		/**
+		 * Notify the manager that detection has finished for a tile, so that it can be queued for merging.
+		 * @param tile
+		 */
+		synchronized void tileFinished(ParallelTileObject tile) {
+			Long startTime = detectStartTimes.remove(tile);
+			if (startTime != null)
+				metrics.getStage(Stage.DETECT).record(System.nanoTime() - startTime);
+			metrics.getStage(Stage.MERGE).queued();
+			nMergePending++;
+		}
+		
 		public void tileComplete(PathObject tile, boolean wasCancelled) {
-			if (wasCancelled)
+			synchronized (this) {
+				// Tiles may be cancelled before they are started
+				if (pendingTiles.remove(tile))
+					metrics.getStage(Stage.DETECT).dequeued();
+			}
+			if (wasCancelled) {
 				this.wasCancelled = true;
+				cancelPrefetch();
+			}
 			int remaining = countdown.decrementAndGet();
-			if (remaining == 0)
+			if (remaining == 0) {
+				cancelPrefetch();
 				postprocess();
+			}
+		}
+		
+		private synchronized void cancelPrefetch() {
+			for (var prefetch : reads.values())
+				prefetch.cancel();
+			for (var prefetch : activeReads.values())
+				prefetch.cancel();
+			reads.clear();
+			activeReads.clear();
 		}
 		
+		/**
+		 * Merge the detections from all tiles into the parent as a single batch, after resolving overlaps.
+		 */
 		private void postprocess() {
+			long startTime = System.nanoTime();
 			parent.clearPathObjects();
 			if (wasCancelled) {
 				// If anything was cancelled, then replace the original objects
 				parent.addPathObjects(originalChildObjects);
 			} else {
-				// Add the objects from all the children
-				for (var tile : tiles) {
+				// Resolve all overlaps before adding anything to the parent
+				for (var tile : tiles)
 					tile.resolveOverlaps();
-					parent.addPathObjects(tile.getChildObjects());
-				}
+				List<PathObject> pathObjects = new ArrayList<>();
+				for (var tile : tiles)
+					pathObjects.addAll(tile.getChildObjects());
+				parent.addPathObjects(pathObjects);
 				if (parent.hasChildren())
 					parent.setLocked(true);
 			}
+			var merge = metrics.getStage(Stage.MERGE);
+			synchronized (this) {
+				for (int i = 0; i < nMergePending; i++)
+					merge.dequeued();
+				nMergePending = 0;
+			}
+			merge.record(System.nanoTime() - startTime);
 //			hierarchy.fireObjectsChangedEvent(this, Collections.singletonList(parent));
 		}
 		
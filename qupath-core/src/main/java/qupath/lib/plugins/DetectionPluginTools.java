@@ -106,6 +106,7 @@ public class DetectionPluginTools {
 				if (parentObject instanceof ParallelTileObject) {
 					((ParallelTileObject) parentObject).updateStatus(Status.PROCESSING);
 					imageData.getHierarchy().fireObjectClassificationsChangedEvent(this, Collections.singleton(parentObject));
+					((ParallelTileObject) parentObject).awaitPixels();
 				}
 				if (checkROI()) {
 					try {
@@ -137,7 +137,13 @@ public class ParallelTileObject extends PathTileObject implements TemporaryObjec
 	 */
 	public synchronized void updateStatus(Status status) {
 		Objects.nonNull(status);
+		boolean started = status == Status.PROCESSING && this.status != Status.PROCESSING;
+		boolean finished = status == Status.DONE && this.status == Status.PROCESSING;
 		this.status = status;
+		if (started)
+			manager.tileStarted(this);
+		else if (finished)
+			manager.tileFinished(this);
 		switch(status) {
 		case DONE:
 			setPathClass(pathClassDone);
@@ -152,6 +158,14 @@ public class ParallelTileObject extends PathTileObject implements TemporaryObjec
 		}
 	}
 	
+	/**
+	 * Wait until the pixels for this tile have been read, if they were requested in advance.
+	 * This should be called after the status has been set to {@link Status#PROCESSING}.
+	 */
+	void awaitPixels() {
+		manager.awaitPixels(this);
+	}
+	
 	/**
 	 * Get the current status (pending, processing or done).
 	 * @return
@@ -0,0 +1,242 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.plugins;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-lived scheduler used to run plugin tasks.
+ * <p>
+ * Tasks are submitted through a {@link TaskGroup}, typically one for each call to
+ * {@link PluginRunner#runTasks(java.util.Collection, boolean)}. All groups share the same work-stealing pool,
+ * so that threads can be kept busy across annotations, images and concurrent runs (e.g. from batch scripts)
+ * rather than creating a new pool each time.
+ * <p>
+ * Pending tasks are started according to the priority of their group (highest first), then in the order in which
+ * the groups were created, and finally in the order the tasks were submitted. This means that the tasks for one image
+ * will generally complete before those of the next image start, while idle threads can still pick up work from later groups.
+ */
+public class PluginTaskScheduler {
+
+	private final static Logger logger = LoggerFactory.getLogger(PluginTaskScheduler.class);
+
+	/**
+	 * Default priority for a task group.
+	 */
+	public static final int NORM_PRIORITY = 0;
+
+	private static PluginTaskScheduler defaultScheduler;
+
+	private static final AtomicInteger poolCounter = new AtomicInteger();
+
+	private final PriorityBlockingQueue<ScheduledTask> queue = new PriorityBlockingQueue<>();
+	private final AtomicLong taskCounter = new AtomicLong();
+	private final AtomicLong groupCounter = new AtomicLong();
+
+	private ForkJoinPool pool;
+
+	/**
+	 * Create a new scheduler.
+	 * @param parallelism the number of threads to use
+	 */
+	public PluginTaskScheduler(int parallelism) {
+		this.pool = createPool(parallelism);
+	}
+
+	/**
+	 * Get the scheduler shared by all plugin runners.
+	 * @return
+	 */
+	public static synchronized PluginTaskScheduler getDefault() {
+		if (defaultScheduler == null)
+			defaultScheduler = new PluginTaskScheduler(Runtime.getRuntime().availableProcessors());
+		return defaultScheduler;
+	}
+
+	private static ForkJoinPool createPool(int parallelism) {
+		String prefix = "plugin-runner-" + poolCounter.getAndIncrement() + "-";
+		AtomicInteger threadCounter = new AtomicInteger();
+		return new ForkJoinPool(parallelism, p -> {
+			// Worker threads are daemon threads, so they don't inhibit application shutdown
+			var thread = new SchedulerThread(p);
+			thread.setName(prefix + threadCounter.incrementAndGet());
+			return thread;
+		}, null, true);
+	}
+
+	/**
+	 * Set the number of threads to use.
+	 * Tasks that have already been submitted are unaffected, but new tasks will use a pool with the specified parallelism.
+	 * @param parallelism
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		if (parallelism == pool.getParallelism())
+			return;
+		var previousPool = pool;
+		pool = createPool(parallelism);
+		// Any tasks already submitted will still be completed
+		previousPool.shutdown();
+		logger.debug("Plugin task scheduler parallelism set to {}", parallelism);
+	}
+
+	/**
+	 * Get the number of threads used to run tasks.
+	 * @return
+	 */
+	public synchronized int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Get the number of tasks that have been submitted, but not yet started.
+	 * @return
+	 */
+	public int getQueuedTaskCount() {
+		return queue.size();
+	}
+
+	/**
+	 * Query whether the current thread is one of the threads used by a scheduler to run tasks.
+	 * Tasks running on these threads should not wait for other tasks, since this may lead to a deadlock.
+	 * @return
+	 */
+	public static boolean isSchedulerThread() {
+		return Thread.currentThread() instanceof SchedulerThread;
+	}
+
+	/**
+	 * Create a new group for submitting tasks.
+	 * @param name name of the group, used for logging
+	 * @param priority priority of the group; tasks from groups with higher priorities are started first
+	 * @return
+	 */
+	public TaskGroup createTaskGroup(String name, int priority) {
+		return new TaskGroup(name, priority, groupCounter.getAndIncrement());
+	}
+
+	private synchronized void submit(ScheduledTask task) {
+		queue.add(task);
+		// Each submission starts exactly one task from the queue, which may not be the same one
+		pool.execute(this::runNext);
+	}
+
+	private void runNext() {
+		var task = queue.poll();
+		if (task == null)
+			return;
+		try {
+			task.runnable.run();
+		} catch (Throwable t) {
+			logger.error("Error running task in " + task.group.name + ": " + t.getLocalizedMessage(), t);
+		}
+	}
+
+
+	/**
+	 * A group of tasks, usually corresponding to a single plugin run on a single image.
+	 */
+	public class TaskGroup implements Executor {
+
+		private final String name;
+		private final int priority;
+		private final long order;
+
+		private TaskGroup(String name, int priority, long order) {
+			this.name = name;
+			this.priority = priority;
+			this.order = order;
+		}
+
+		/**
+		 * Get the name of the group.
+		 * @return
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Get the priority of the group.
+		 * @return
+		 */
+		public int getPriority() {
+			return priority;
+		}
+
+		/**
+		 * Submit a task to be run by the scheduler.
+		 */
+		@Override
+		public void execute(Runnable command) {
+			submit(new ScheduledTask(this, command, taskCounter.getAndIncrement()));
+		}
+
+		@Override
+		public String toString() {
+			return "TaskGroup[" + name + ", priority=" + priority + "]";
+		}
+
+	}
+
+
+	private static class ScheduledTask implements Comparable<ScheduledTask> {
+
+		private final TaskGroup group;
+		private final Runnable runnable;
+		private final long order;
+
+		private ScheduledTask(TaskGroup group, Runnable runnable, long order) {
+			this.group = group;
+			this.runnable = runnable;
+			this.order = order;
+		}
+
+		@Override
+		public int compareTo(ScheduledTask o) {
+			int cmp = -Integer.compare(group.priority, o.group.priority);
+			if (cmp == 0)
+				cmp = Long.compare(group.order, o.group.order);
+			if (cmp == 0)
+				cmp = Long.compare(order, o.order);
+			return cmp;
+		}
+
+	}
+
+
+	private static class SchedulerThread extends ForkJoinWorkerThread {
+
+		private SchedulerThread(ForkJoinPool pool) {
+			super(pool);
+		}
+
+	}
+
+}
@@ -0,0 +1,203 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.plugins;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Queue depth and latency metrics for the stages used when running tiled detection.
+ * <p>
+ * Tiles pass through three stages: pixels are read in the background ({@link Stage#READ}),
+ * detection is applied ({@link Stage#DETECT}) and finally the detections from all tiles are merged,
+ * resolving overlaps ({@link Stage#MERGE}).
+ * <p>
+ * The time that detection spends waiting for pixels is recorded separately; if this is a substantial
+ * fraction of the detection time, the run is limited by reading rather than processing.
+ */
+public class TilePipelineMetrics {
+
+	/**
+	 * Stages of tiled detection.
+	 */
+	public static enum Stage {
+		/**
+		 * Reading pixels for a tile in the background.
+		 * Latency is the time from requesting the pixels until they are available.
+		 */
+		READ,
+		/**
+		 * Applying detection to a tile.
+		 * Latency is the processing time, excluding any time spent waiting for pixels.
+		 */
+		DETECT,
+		/**
+		 * Merging detections from all tiles, resolving overlaps.
+		 * Latency is the time taken for each merge.
+		 */
+		MERGE
+	}
+
+	private final Map<Stage, StageMetrics> stages = new EnumMap<>(Stage.class);
+	private final LongAdder readWaitNanos = new LongAdder();
+
+	/**
+	 * Create new metrics, with all stages empty.
+	 */
+	public TilePipelineMetrics() {
+		for (Stage stage : Stage.values())
+			stages.put(stage, new StageMetrics());
+	}
+
+	/**
+	 * Get the metrics for a single stage.
+	 * @param stage
+	 * @return
+	 */
+	public StageMetrics getStage(Stage stage) {
+		return stages.get(stage);
+	}
+
+	void recordReadWait(long nanos) {
+		readWaitNanos.add(nanos);
+	}
+
+	/**
+	 * Get the total time detection spent waiting for pixels to be read.
+	 * @return
+	 */
+	public double getReadWaitMillis() {
+		return readWaitNanos.sum() / 1e6;
+	}
+
+	/**
+	 * Get the fraction of the time spent on detection that was actually spent waiting for pixels.
+	 * Values close to 1 indicate that tiled detection is limited by reading pixels, values close to 0 that
+	 * it is limited by processing.
+	 * @return the fraction, or NaN if no tiles have been processed
+	 */
+	public double getReadWaitFraction() {
+		double wait = getReadWaitMillis();
+		double total = wait + getStage(Stage.DETECT).getTotalMillis();
+		return total == 0 ? Double.NaN : wait / total;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Stage stage : Stage.values()) {
+			sb.append(stage).append(": ").append(getStage(stage)).append(", ");
+		}
+		sb.append(String.format("read wait: %.1f ms (%.0f%%)", getReadWaitMillis(), getReadWaitFraction() * 100));
+		return sb.toString();
+	}
+
+
+	/**
+	 * Queue depth and latency for a single stage.
+	 */
+	public static class StageMetrics {
+
+		private final AtomicInteger queued = new AtomicInteger();
+		private final AtomicInteger maxQueued = new AtomicInteger();
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		private StageMetrics() {}
+
+		void queued() {
+			int n = queued.incrementAndGet();
+			maxQueued.accumulateAndGet(n, Math::max);
+		}
+
+		void dequeued() {
+			queued.decrementAndGet();
+		}
+
+		void record(long nanos) {
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+		}
+
+		/**
+		 * Get the number of tiles currently waiting in this stage.
+		 * @return
+		 */
+		public int getQueueDepth() {
+			return queued.get();
+		}
+
+		/**
+		 * Get the maximum number of tiles that were waiting in this stage at any one time.
+		 * @return
+		 */
+		public int getMaxQueueDepth() {
+			return maxQueued.get();
+		}
+
+		/**
+		 * Get the number of times the stage has completed.
+		 * @return
+		 */
+		public long getCount() {
+			return count.sum();
+		}
+
+		/**
+		 * Get the total latency of the stage, summed over all completions.
+		 * @return
+		 */
+		public double getTotalMillis() {
+			return totalNanos.sum() / 1e6;
+		}
+
+		/**
+		 * Get the mean latency of the stage.
+		 * @return the mean latency, or NaN if the stage has not completed
+		 */
+		public double getMeanMillis() {
+			long n = getCount();
+			return n == 0 ? Double.NaN : getTotalMillis() / n;
+		}
+
+		/**
+		 * Get the maximum latency of the stage.
+		 * @return
+		 */
+		public double getMaxMillis() {
+			return maxNanos.get() / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("n=%d, mean=%.1f ms, max=%.1f ms, queue=%d (max %d)",
+					getCount(), getMeanMillis(), getMaxMillis(), getQueueDepth(), getMaxQueueDepth());
+		}
+
+	}
+
+}
@@ -64,6 +64,7 @@ import qupath.lib.images.ImageData;
 import qupath.lib.images.ImageData.ImageType;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServers;
 import qupath.lib.io.GsonTools;
 import qupath.lib.io.PathIO;
 import qupath.lib.objects.PathObject;
@@ -723,6 +724,16 @@ class DefaultProject implements Project<BufferedImage> {
 			}
 			if (server == null)
 				return null;
+			// Store any generated pyramid levels alongside the entry, so they can be reused
+			// The store is shared by all open servers for the entry, and released when each server is closed
+			long pyramidBytes = ImageServers.getPersistentPyramidSize();
+			if (pyramidBytes > 0) {
+				try {
+					ImageServers.persistPyramid(server, getEntryPath().resolve("pyramid"), pyramidBytes);
+				} catch (IOException e) {
+					logger.warn("Unable to store generated pyramid for {}: {}", getImageName(), e.getLocalizedMessage());
+				}
+			}
 			ImageData<BufferedImage> imageData = null;
 			if (Files.exists(path)) {
 				try (var stream = Files.newInputStream(path)) {
@@ -0,0 +1,214 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.roi;
+
+import java.util.List;
+
+import qupath.lib.geom.Point2;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Polygon ROI with vertices stored in a compact, packed form.
+ * <p>
+ * This is intended for very large numbers of small, immutable polygons (e.g. cell boundaries).
+ * Coordinates are rounded to a fixed precision of 1/256 pixels and stored relative to the bounding box,
+ * so that bounds are available immediately. Area and centroid are computed directly from the packed
+ * coordinates the first time they are needed, without creating a {@link ClosedShapeStatistics}.
+ * <p>
+ * Conversion to a JTS Geometry or Java AWT Shape happens only on demand, and the result is not retained.
+ */
+class PackedPolygonROI extends PolygonROI {
+
+	private static final long serialVersionUID = 1L;
+
+	// Cached values computed lazily (NaN if not yet computed)
+	private transient double area = Double.NaN;
+	private transient double centroidX = Double.NaN;
+	private transient double centroidY = Double.NaN;
+
+	PackedPolygonROI(PackedVertices vertices, ImagePlane plane) {
+		super(vertices, plane);
+	}
+
+	/**
+	 * Create a compact polygon ROI from x and y coordinates, if possible.
+	 * @param x
+	 * @param y
+	 * @param plane
+	 * @return a {@link PackedPolygonROI} if the coordinates can be packed, or a standard {@link PolygonROI} otherwise
+	 */
+	static PolygonROI create(float[] x, float[] y, ImagePlane plane) {
+		var vertices = PackedVertices.create(x, y);
+		if (vertices == null)
+			return new PolygonROI(x, y, plane, true);
+		return new PackedPolygonROI(vertices, plane);
+	}
+
+	/**
+	 * Create a compact polygon ROI from a list of points, if possible.
+	 * @param points
+	 * @param plane
+	 * @return a {@link PackedPolygonROI} if the coordinates can be packed, or a standard {@link PolygonROI} otherwise
+	 */
+	static PolygonROI create(List<? extends Point2> points, ImagePlane plane) {
+		float[] x = new float[points.size()];
+		float[] y = new float[points.size()];
+		for (int i = 0; i < points.size(); i++) {
+			Point2 p = points.get(i);
+			x[i] = (float)p.getX();
+			y[i] = (float)p.getY();
+		}
+		return create(x, y, plane);
+	}
+
+	private PackedVertices getPackedVertices() {
+		return (PackedVertices)getVertices();
+	}
+
+	/**
+	 * Compute the area and centroid using the offsets from the origin, which avoids precision problems
+	 * with large coordinates.
+	 */
+	private void calculateAreaAndCentroid() {
+		var vertices = getPackedVertices();
+		int n = vertices.size();
+		double area2 = 0, cx = 0, cy = 0;
+		for (int i = 0; i < n; i++) {
+			double x0 = vertices.getOffsetX(i);
+			double y0 = vertices.getOffsetY(i);
+			int j = i == n-1 ? 0 : i + 1;
+			double x1 = vertices.getOffsetX(j);
+			double y1 = vertices.getOffsetY(j);
+			double cross = x0 * y1 - x1 * y0;
+			area2 += cross;
+			cx += (x0 + x1) * cross;
+			cy += (y0 + y1) * cross;
+		}
+		double scale = PackedVertices.SCALE;
+		if (area2 == 0) {
+			// Degenerate polygon - use the same behavior as any other polygon
+			centroidX = super.getCentroidX();
+			centroidY = super.getCentroidY();
+		} else {
+			centroidX = vertices.getOriginX() + cx / (3 * area2) / scale;
+			centroidY = vertices.getOriginY() + cy / (3 * area2) / scale;
+		}
+		area = Math.abs(area2) / 2.0 / (scale * scale);
+	}
+
+	@Override
+	public double getCentroidX() {
+		if (Double.isNaN(centroidX))
+			calculateAreaAndCentroid();
+		return centroidX;
+	}
+
+	@Override
+	public double getCentroidY() {
+		if (Double.isNaN(centroidY))
+			calculateAreaAndCentroid();
+		return centroidY;
+	}
+
+	@Override
+	public double getArea() {
+		if (Double.isNaN(area))
+			calculateAreaAndCentroid();
+		return area;
+	}
+
+	@Override
+	public double getScaledArea(double pixelWidth, double pixelHeight) {
+		// Area scales directly with the pixel size, since the polygon edges are straight lines
+		return getArea() * pixelWidth * pixelHeight;
+	}
+
+	@Override
+	public double getLength() {
+		return getScaledLength(1, 1);
+	}
+
+	@Override
+	public double getScaledLength(double pixelWidth, double pixelHeight) {
+		var vertices = getPackedVertices();
+		int n = vertices.size();
+		if (n < 2)
+			return 0;
+		double sx = pixelWidth / PackedVertices.SCALE;
+		double sy = pixelHeight / PackedVertices.SCALE;
+		double perimeter = 0;
+		for (int i = 0; i < n; i++) {
+			int j = i == n-1 ? 0 : i + 1;
+			double dx = (vertices.getOffsetX(j) - vertices.getOffsetX(i)) * sx;
+			double dy = (vertices.getOffsetY(j) - vertices.getOffsetY(i)) * sy;
+			perimeter += Math.sqrt(dx*dx + dy*dy);
+		}
+		return perimeter;
+	}
+
+	@Override
+	public double getBoundsX() {
+		return getPackedVertices().getOriginX();
+	}
+
+	@Override
+	public double getBoundsY() {
+		return getPackedVertices().getOriginY();
+	}
+
+	@Override
+	public double getBoundsWidth() {
+		return getPackedVertices().getWidth();
+	}
+
+	@Override
+	public double getBoundsHeight() {
+		return getPackedVertices().getHeight();
+	}
+
+	@Override
+	public int getNumPoints() {
+		return getPackedVertices().size();
+	}
+
+	@Override
+	public int nVertices() {
+		return getPackedVertices().size();
+	}
+
+	@Override
+	public ROI translate(double dx, double dy) {
+		if (dx == 0 && dy == 0)
+			return this;
+		// Only the origin needs to change, so the buffer can be shared
+		return new PackedPolygonROI(getPackedVertices().translate(dx, dy), getImagePlane());
+	}
+
+	@Override
+	public ROI scale(double scaleX, double scaleY, double originX, double originY) {
+		var points = getAllPoints();
+		points.replaceAll(p -> RoiTools.scalePoint(p, scaleX, scaleY, originX, originY));
+		return create(points, getImagePlane());
+	}
+
+}
@@ -0,0 +1,224 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.roi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import qupath.lib.geom.Point2;
+
+/**
+ * Immutable vertices stored in a single packed buffer, as offsets from the top left of the bounding box.
+ * <p>
+ * Coordinates are rounded to a fixed precision of {@code 1/SCALE} pixels. Offsets are stored as unsigned 16-bit
+ * values whenever the bounding box is small enough (as it is for most detections), or as 32-bit values otherwise.
+ * x and y offsets are interleaved in the buffer.
+ */
+class PackedVertices implements Vertices {
+
+	/**
+	 * Number of subdivisions of a pixel used to store coordinates.
+	 */
+	static final int SCALE = 256;
+
+	private static final int MAX_SHORT = 0xFFFF;
+
+	private final double originX, originY;
+	private final int width, height;
+
+	// Only one of these is used, depending upon the size of the bounding box
+	private final short[] shortBuffer;
+	private final int[] intBuffer;
+
+	private PackedVertices(double originX, double originY, int width, int height, short[] shortBuffer, int[] intBuffer) {
+		this.originX = originX;
+		this.originY = originY;
+		this.width = width;
+		this.height = height;
+		this.shortBuffer = shortBuffer;
+		this.intBuffer = intBuffer;
+	}
+
+	/**
+	 * Create packed vertices from arrays of x and y coordinates.
+	 * @param x
+	 * @param y
+	 * @return the packed vertices, or null if the bounding box is too large to be stored with the required precision
+	 */
+	static PackedVertices create(float[] x, float[] y) {
+		if (x.length != y.length)
+			throw new IllegalArgumentException("Array lengths " + x.length + " and " + y.length + " do not match!");
+		int n = x.length;
+		if (n == 0)
+			return new PackedVertices(0, 0, 0, 0, new short[0], null);
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			minX = Math.min(minX, x[i]);
+			maxX = Math.max(maxX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		if (!Double.isFinite(minX + maxX + minY + maxY))
+			return null;
+		double originX = Math.floor(minX * SCALE) / SCALE;
+		double originY = Math.floor(minY * SCALE) / SCALE;
+		long width = Math.round((maxX - originX) * SCALE);
+		long height = Math.round((maxY - originY) * SCALE);
+		if (width > Integer.MAX_VALUE || height > Integer.MAX_VALUE)
+			return null;
+		if (width <= MAX_SHORT && height <= MAX_SHORT) {
+			short[] buffer = new short[n * 2];
+			for (int i = 0; i < n; i++) {
+				buffer[i*2] = (short)Math.round((x[i] - originX) * SCALE);
+				buffer[i*2+1] = (short)Math.round((y[i] - originY) * SCALE);
+			}
+			return new PackedVertices(originX, originY, (int)width, (int)height, buffer, null);
+		} else {
+			int[] buffer = new int[n * 2];
+			for (int i = 0; i < n; i++) {
+				buffer[i*2] = (int)Math.round((x[i] - originX) * SCALE);
+				buffer[i*2+1] = (int)Math.round((y[i] - originY) * SCALE);
+			}
+			return new PackedVertices(originX, originY, (int)width, (int)height, null, buffer);
+		}
+	}
+
+	/**
+	 * Create translated vertices, sharing the same buffer.
+	 * @param dx
+	 * @param dy
+	 * @return
+	 */
+	PackedVertices translate(double dx, double dy) {
+		return new PackedVertices(originX + dx, originY + dy, width, height, shortBuffer, intBuffer);
+	}
+
+	/**
+	 * Get the x offset of a vertex from the origin, in units of {@code 1/SCALE} pixels.
+	 * @param idx
+	 * @return
+	 */
+	int getOffsetX(int idx) {
+		return getOffset(idx * 2);
+	}
+
+	/**
+	 * Get the y offset of a vertex from the origin, in units of {@code 1/SCALE} pixels.
+	 * @param idx
+	 * @return
+	 */
+	int getOffsetY(int idx) {
+		return getOffset(idx * 2 + 1);
+	}
+
+	private int getOffset(int ind) {
+		if (shortBuffer != null)
+			return shortBuffer[ind] & MAX_SHORT;
+		return intBuffer[ind];
+	}
+
+	double getOriginX() {
+		return originX;
+	}
+
+	double getOriginY() {
+		return originY;
+	}
+
+	double getWidth() {
+		return (double)width / SCALE;
+	}
+
+	double getHeight() {
+		return (double)height / SCALE;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public int size() {
+		return (shortBuffer != null ? shortBuffer.length : intBuffer.length) / 2;
+	}
+
+	@Override
+	public float[] getX(float[] xArray) {
+		int n = size();
+		if (xArray == null || xArray.length < n)
+			xArray = new float[n];
+		for (int i = 0; i < n; i++)
+			xArray[i] = getX(i);
+		return xArray;
+	}
+
+	@Override
+	public float[] getY(float[] yArray) {
+		int n = size();
+		if (yArray == null || yArray.length < n)
+			yArray = new float[n];
+		for (int i = 0; i < n; i++)
+			yArray[i] = getY(i);
+		return yArray;
+	}
+
+	@Override
+	public Point2 get(int idx) {
+		return new Point2(getX(idx), getY(idx));
+	}
+
+	@Override
+	public float getX(int idx) {
+		return (float)(originX + (double)getOffsetX(idx) / SCALE);
+	}
+
+	@Override
+	public float getY(int idx) {
+		return (float)(originY + (double)getOffsetY(idx) / SCALE);
+	}
+
+	@Override
+	public List<Point2> getPoints() {
+		int n = size();
+		List<Point2> points = new ArrayList<>(n);
+		for (int i = 0; i < n; i++)
+			points.add(get(i));
+		return points;
+	}
+
+	/**
+	 * Packed vertices are immutable, so this returns the same object.
+	 */
+	@Override
+	public Vertices duplicate() {
+		return this;
+	}
+
+	/**
+	 * Packed vertices are always compact, so this does nothing.
+	 */
+	@Override
+	public void compact() {}
+
+}
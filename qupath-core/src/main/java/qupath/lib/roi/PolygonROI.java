@@ -116,6 +116,11 @@ public class PolygonROI extends AbstractPathROI implements Serializable {
 		vertices = VerticesFactory.createVertices(x, y, copyVertices);
 	}
 	
+	PolygonROI(Vertices vertices, ImagePlane plane) {
+		super(plane);
+		this.vertices = vertices;
+	}
+	
 	
 //	public PolygonROI(Vertices vertices, int c, int z, int t) {
 //		super(c, z, t);
@@ -379,7 +384,7 @@ public class PolygonROI extends AbstractPathROI implements Serializable {
 //		
 //	}
 	
-	private Object writeReplace() {
+	Object writeReplace() {
 		return new SerializationProxy(this);
 	}
 
@@ -400,6 +405,8 @@ public class PolygonROI extends AbstractPathROI implements Serializable {
 		
 		private ClosedShapeStatistics stats;
 		
+		private boolean packed;
+		
 //		static int nullCounter = 0;
 		
 		SerializationProxy(final PolygonROI roi) {
@@ -411,9 +418,15 @@ public class PolygonROI extends AbstractPathROI implements Serializable {
 			this.z = roi.z;
 			this.t = roi.t;
 			this.stats = roi.stats;
+			this.packed = roi instanceof PackedPolygonROI;
 		}
 		
 		private Object readResolve() {
+			if (packed) {
+				var vertices = PackedVertices.create(x, y);
+				if (vertices != null)
+					return new PackedPolygonROI(vertices, ImagePlane.getPlaneWithChannel(c, z, t));
+			}
 			PolygonROI roi = new PolygonROI(x, y, ImagePlane.getPlaneWithChannel(c, z, t), false);
 			roi.stats = this.stats; // Doesn't matter if this is null...
 //			if (roi.stats == null) {
@@ -185,6 +185,36 @@ public class ROIs {
 		return new PolygonROI(points, plane);
 	}
 	
+	/**
+	 * Create a closed polygon ROI from a list of points, using a compact representation where possible.
+	 * <p>
+	 * This is intended for large numbers of small polygons that will not be edited, such as detections.
+	 * Coordinates are stored with a fixed precision of 1/256 pixels relative to the bounding box, which 
+	 * generally requires much less memory than a standard polygon.
+	 * 
+	 * @param points
+	 * @param plane
+	 * @return
+	 */
+	public static PolygonROI createCompactPolygonROI(List<? extends Point2> points, ImagePlane plane) {
+		return PackedPolygonROI.create(points, plane);
+	}
+	
+	/**
+	 * Create a closed polygon ROI from arrays of x and y coordinates, using a compact representation where possible.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param plane
+	 * @return
+	 * @see #createCompactPolygonROI(List, ImagePlane)
+	 */
+	public static PolygonROI createCompactPolygonROI(float[] x, float[] y, ImagePlane plane) {
+		if (x.length != y.length)
+			throw new IllegalArgumentException("Arrays have different lengths!");
+		return PackedPolygonROI.create(x, y, plane);
+	}
+	
 	/**
 	 * Create a polygon ROI from an array of x and y coordinates.
 	 * @param x
@@ -0,0 +1,150 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2014 - 2016 The Queen's University of Belfast, Northern Ireland
+ * Contact: IP Management (ipmanagement@qub.ac.uk)
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License 
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.analysis;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BiPredicate;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestDelaunayTools {
+	
+	@Test
+	public void test_tiledNeighbors() {
+		
+		// Create detections with a hole in the middle, so that some neighbors are far apart
+		var rand = new Random(100L);
+		List<PathObject> detections = new ArrayList<>();
+		var classes = new String[] {"Tumor", "Stroma"};
+		while (detections.size() < 2000) {
+			double x = rand.nextDouble() * 2000;
+			double y = rand.nextDouble() * 1000;
+			if (Math.hypot(x - 1000, y - 500) < 200)
+				continue;
+			var roi = ROIs.createEllipseROI(x - 2, y - 2, 4, 4, ImagePlane.getDefaultPlane());
+			var pathClass = PathClassFactory.getPathClass(classes[rand.nextInt(classes.length)]);
+			detections.add(PathObjects.createDetectionObject(roi, pathClass));
+		}
+		
+		var subdivision = DelaunayTools.newBuilder(detections).centroids().build();
+		
+		// Allow any margin, so that the tiles are always used
+		var tiled = DelaunayTools.newBuilder(detections).centroids().tiled(100, 1000).build();
+		
+		var graph = subdivision.getNeighborGraph();
+		var graphTiled = tiled.getNeighborGraph();
+		assertEquals(detections.size(), graph.size());
+		assertEquals(graph.getEdgeCount(), graphTiled.getEdgeCount());
+		for (var detection : detections) {
+			var neighbors = subdivision.getNeighbors(detection);
+			assertFalse(neighbors.isEmpty());
+			assertEquals(new HashSet<>(neighbors), new HashSet<>(tiled.getNeighbors(detection)));
+			assertEquals(neighbors.get(0), tiled.getNearestNeighbor(detection));
+			// Neighbors should be symmetric, and sorted by distance
+			int ind = graph.getIndex(detection);
+			for (int k = 0; k < graph.getNeighborCount(ind); k++) {
+				assertTrue(subdivision.getNeighbors(neighbors.get(k)).contains(detection));
+				if (k > 0)
+					assertTrue(graph.getNeighborDistance(ind, k) >= graph.getNeighborDistance(ind, k-1));
+			}
+		}
+		
+		var predicate = DelaunayTools.sameClassificationPredicate();
+		var clusters = subdivision.getClusters(predicate);
+		var clustersTiled = tiled.getClusters(predicate);
+		assertEquals(clusters.size(), clustersTiled.size());
+		assertEquals(detections.size(), clusters.stream().mapToInt(c -> c.size()).sum());
+		for (var cluster : clusters) {
+			var pathClass = cluster.iterator().next().getPathClass();
+			assertTrue(cluster.stream().allMatch(p -> p.getPathClass() == pathClass));
+		}
+		assertEquals(1, subdivision.getClusters(null).size());
+		
+		// Testing the predicate in parallel shouldn't change the clusters
+		var clustersParallel = subdivision.getClusters(predicate, true);
+		assertEquals(clusters.size(), clustersParallel.size());
+		for (int i = 0; i < clusters.size(); i++)
+			assertEquals(new HashSet<>(clusters.get(i)), new HashSet<>(clustersParallel.get(i)));
+		
+		// Neighbors are connected if an asymmetric predicate is true in either direction
+		BiPredicate<PathObject, PathObject> asymmetric = (p1, p2) -> p1.getPathClass() == PathClassFactory.getPathClass("Tumor");
+		var clustersAsymmetric = subdivision.getClusters(asymmetric);
+		var clustersSymmetric = subdivision.getClusters((p1, p2) -> asymmetric.test(p1, p2) || asymmetric.test(p2, p1));
+		assertEquals(clustersSymmetric, clustersAsymmetric);
+		assertTrue(clustersAsymmetric.size() < clusters.size());
+		
+		// By default, the predicate should only be tested on the calling thread
+		var thread = Thread.currentThread();
+		subdivision.getClusters((p1, p2) -> {
+			assertSame(thread, Thread.currentThread());
+			return predicate.test(p1, p2);
+		});
+		
+		// Voronoi faces should still be available
+		assertEquals(detections.size(), tiled.getVoronoiFaces().size());
+	}
+	
+	@Test
+	public void test_tiledFallback() {
+		
+		// Create separate fragments of tissue, with large gaps between them
+		var rand = new Random(200L);
+		List<PathObject> detections = new ArrayList<>();
+		double[][] centers = {{500, 500}, {3000, 700}, {1500, 3500}};
+		for (int i = 0; i < 1500; i++) {
+			var center = centers[i % centers.length];
+			double theta = rand.nextDouble() * 2 * Math.PI;
+			double r = Math.sqrt(rand.nextDouble()) * 400;
+			double x = center[0] + r * Math.cos(theta);
+			double y = center[1] + r * Math.sin(theta);
+			var roi = ROIs.createEllipseROI(x - 2, y - 2, 4, 4, ImagePlane.getDefaultPlane());
+			detections.add(PathObjects.createDetectionObject(roi));
+		}
+		
+		var subdivision = DelaunayTools.newBuilder(detections).centroids().build();
+		
+		// Don't permit the margin to grow at all, so that tiling is abandoned
+		var tiled = DelaunayTools.newBuilder(detections).centroids().tiled(100, 0).build();
+		
+		var graph = subdivision.getNeighborGraph();
+		var graphTiled = tiled.getNeighborGraph();
+		assertEquals(graph.getEdgeCount(), graphTiled.getEdgeCount());
+		for (var detection : detections)
+			assertEquals(subdivision.getNeighbors(detection), tiled.getNeighbors(detection));
+		assertEquals(1, tiled.getClusters(null).size());
+	}
+	
+}
@@ -0,0 +1,248 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.projects.ProjectImageEntry;
+
+@SuppressWarnings("javadoc")
+public class TestBatchUnmixing {
+
+	private static final double[][] PROPORTIONS = {{1.0, 0.2}, {0.1, 1.0}};
+
+	private static UnmixingPanel createPanel() {
+		return new UnmixingPanel(Arrays.asList(
+				new Fluorophore("A", new int[] {0, 1}, new int[] {0, 1}, 0),
+				new Fluorophore("B", new int[] {1, 0}, new int[] {1, 0}, 0)));
+	}
+
+	private static List<ImageChannel> createChannels(int nChannels) {
+		List<ImageChannel> channels = new ArrayList<>();
+		for (int c = 0; c < nChannels; c++)
+			channels.add(ImageChannel.getInstance("Channel " + c, ImageChannel.getDefaultChannelColor(c)));
+		return channels;
+	}
+
+	/**
+	 * Create a server that provides metadata only, so that very large images can be represented.
+	 */
+	@SuppressWarnings("unchecked")
+	private static ImageServer<BufferedImage> createMetadataServer(int width, int height, int nChannels) {
+		var metadata = new ImageServerMetadata.Builder(WrappedBufferedImageServer.class, "test", width, height)
+				.pixelType(PixelType.UINT16)
+				.channels(createChannels(nChannels))
+				.preferredTileSize(256, 256)
+				.build();
+		return (ImageServer<BufferedImage>)Proxy.newProxyInstance(
+				ImageServer.class.getClassLoader(),
+				new Class<?>[] {ImageServer.class},
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getMetadata":
+						return metadata;
+					case "getWidth":
+						return metadata.getWidth();
+					case "getHeight":
+						return metadata.getHeight();
+					case "nChannels":
+						return metadata.getSizeC();
+					case "getPixelType":
+						return metadata.getPixelType();
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	private static BufferedImage createImage(int width, int height, int nChannels) {
+		var colorModel = ColorModelFactory.createColorModel(PixelType.UINT16, createChannels(nChannels));
+		var raster = colorModel.createCompatibleWritableRaster(width, height);
+		for (int c = 0; c < nChannels; c++) {
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++)
+					raster.setSample(x, y, c, (x + y) * (c + 1));
+			}
+		}
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	/**
+	 * Create an entry with its own directory, whose server wraps a small in-memory image.
+	 */
+	@SuppressWarnings("unchecked")
+	private static ProjectImageEntry<BufferedImage> createEntry(String name, Path dir) {
+		var img = createImage(32, 24, 2);
+		var builder = new ServerBuilder<BufferedImage>() {
+			@Override
+			public ImageServer<BufferedImage> build() {
+				return new WrappedBufferedImageServer(name, img);
+			}
+			@Override
+			public Collection<URI> getURIs() {
+				return Collections.emptyList();
+			}
+			@Override
+			public ServerBuilder<BufferedImage> updateURIs(Map<URI, URI> updateMap) {
+				return this;
+			}
+		};
+		return (ProjectImageEntry<BufferedImage>)Proxy.newProxyInstance(
+				ProjectImageEntry.class.getClassLoader(),
+				new Class<?>[] {ProjectImageEntry.class},
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getImageName":
+						return name;
+					case "getEntryPath":
+						return dir;
+					case "getServerBuilder":
+						return builder;
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					case "toString":
+						return name;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	private static void deleteRecursive(Path path) throws IOException {
+		if (Files.isDirectory(path)) {
+			try (var stream = Files.list(path)) {
+				for (var child : (Iterable<Path>)stream::iterator)
+					deleteRecursive(child);
+			}
+		}
+		Files.deleteIfExists(path);
+	}
+
+	@Test
+	public void test_memoryEstimateIsPerTile() {
+		var panel = createPanel();
+		long small = BatchUnmixing.estimateMemoryBytes(createMetadataServer(100, 80, 8), panel, 4);
+		long large = BatchUnmixing.estimateMemoryBytes(createMetadataServer(10_000, 10_000, 8), panel, 4);
+		long huge = BatchUnmixing.estimateMemoryBytes(createMetadataServer(100_000, 100_000, 8), panel, 4);
+
+		// Once an image is larger than a tile, its size should not matter
+		assertEquals(large, huge);
+		assertTrue(small < large);
+		long wholeImage = 100_000L * 100_000L * (8 * 2 + panel.size() * 4);
+		assertTrue(huge < wholeImage / 1000);
+
+		// Memory should scale with the number of tiles in parallel
+		assertEquals(large * 2, BatchUnmixing.estimateMemoryBytes(createMetadataServer(10_000, 10_000, 8), panel, 8));
+		// ... and with the number of channels
+		assertTrue(BatchUnmixing.estimateMemoryBytes(createMetadataServer(10_000, 10_000, 40), panel, 4) > large);
+	}
+
+	@Test
+	public void test_invalidSettings() {
+		var job = new BatchUnmixing(PROPORTIONS, createPanel());
+		assertThrows(IllegalArgumentException.class, () -> job.maxConcurrent(0));
+		assertThrows(IllegalArgumentException.class, () -> job.memoryBudget(1024));
+	}
+
+	@Test
+	public void test_cancelledBeforeRun() throws Exception {
+		Path dir = Files.createTempDirectory("batch-unmixing");
+		try {
+			var entries = Arrays.asList(
+					createEntry("First", dir.resolve("1")),
+					createEntry("Second", dir.resolve("2")));
+			var job = new BatchUnmixing(PROPORTIONS, createPanel());
+			job.cancel();
+			assertTrue(job.isCancelled());
+			var results = job.run(entries);
+			assertEquals(Arrays.asList(entries.get(0), entries.get(1)), new ArrayList<>(results.keySet()));
+			for (var status : results.values())
+				assertEquals(BatchUnmixing.Status.CANCELLED, status);
+		} finally {
+			deleteRecursive(dir);
+		}
+	}
+
+	@Test
+	public void test_failureLeavesNoCheckpoint() throws Exception {
+		Path dir = Files.createTempDirectory("batch-unmixing");
+		try {
+			var entries = Arrays.asList(
+					createEntry("First", dir.resolve("1")),
+					createEntry("Second", dir.resolve("2")),
+					createEntry("Third", dir.resolve("3")));
+
+			// A result from different parameters should be discarded, not skipped
+			Path stale = dir.resolve("2");
+			Files.createDirectories(stale);
+			Files.writeString(stale.resolve(BatchUnmixing.OUTPUT_NAME), "");
+			Files.writeString(stale.resolve(BatchUnmixing.CHECKPOINT_NAME), "{\"key\": \"something else\"}");
+
+			Map<ProjectImageEntry<BufferedImage>, BatchUnmixing.Status> notified = new ConcurrentHashMap<>();
+			var job = new BatchUnmixing(PROPORTIONS, createPanel())
+					.maxConcurrent(2)
+					.listener(notified::put);
+			assertFalse(job.isComplete(entries.get(1)));
+
+			// Core has no pyramidal writer available, so every image should fail - but cleanly
+			var results = job.run(entries);
+			assertEquals(entries.size(), results.size());
+			assertEquals(results, notified);
+			for (var entry : entries) {
+				assertEquals(BatchUnmixing.Status.FAILED, results.get(entry));
+				assertFalse(job.isComplete(entry));
+				assertFalse(Files.exists(entry.getEntryPath().resolve(BatchUnmixing.CHECKPOINT_NAME)));
+			}
+		} finally {
+			deleteRecursive(dir);
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestChannelCorrelation {
+
+	private static WritableRaster createRaster(int width, int height, int nChannels) {
+		int[] offsets = new int[nChannels];
+		for (int b = 0; b < nChannels; b++)
+			offsets[b] = b;
+		var raster = Raster.createWritableRaster(
+				new PixelInterleavedSampleModel(DataBuffer.TYPE_USHORT, width, height, nChannels, width * nChannels, offsets), null);
+		Random random = new Random(100L);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int base = random.nextInt(3000);
+				for (int b = 0; b < nChannels; b++) {
+					// Make some channels identical, and others partly correlated
+					if (b % 3 == 0)
+						raster.setSample(x, y, b, base);
+					else
+						raster.setSample(x, y, b, random.nextInt(3000) + (b % 3) * base / 2);
+				}
+			}
+		}
+		return raster;
+	}
+
+	@Test
+	public void test_matrixMatchesPairwise() {
+		int width = 600;
+		int height = 421;
+		int nChannels = 7;
+		var raster = createRaster(width, height, nChannels);
+		float[][] matrix = ChannelCorrelation.computeMatrix(raster, 1, UnmixingPlan.getSharedPool());
+		for (int i = 0; i < nChannels; i++) {
+			float[] first = raster.getSamples(0, 0, width, height, i, (float[])null);
+			for (int j = 0; j < nChannels; j++) {
+				float[] second = raster.getSamples(0, 0, width, height, j, (float[])null);
+				float expected = i == j ? 1f : RemoveDuplicate.normCrossCorrelationFloat(first, second);
+				assertEquals(expected, matrix[i][j], 1e-6);
+				assertEquals(matrix[i][j], matrix[j][i]);
+			}
+		}
+		assertEquals(1.0, matrix[0][3], 1e-6);
+	}
+
+	@Test
+	public void test_subsampling() {
+		int width = 600;
+		int height = 421;
+		int nChannels = 5;
+		int step = 3;
+		var raster = createRaster(width, height, nChannels);
+
+		// Compare with a manually subsampled image
+		int nx = (width + step - 1) / step;
+		int ny = (height + step - 1) / step;
+		float[][] planes = new float[nChannels][nx * ny];
+		for (int b = 0; b < nChannels; b++) {
+			int k = 0;
+			for (int y = 0; y < height; y += step) {
+				for (int x = 0; x < width; x += step)
+					planes[b][k++] = raster.getSample(x, y, b);
+			}
+		}
+		var correlation = new ChannelCorrelation(nChannels);
+		correlation.accumulate(planes, nx * ny);
+		float[][] expected = correlation.getMatrix();
+
+		float[][] matrix = ChannelCorrelation.computeMatrix(raster, step, UnmixingPlan.getSharedPool());
+		for (int i = 0; i < nChannels; i++) {
+			for (int j = 0; j < nChannels; j++)
+				assertEquals(expected[i][j], matrix[i][j], 1e-6);
+		}
+
+		assertEquals(1, ChannelCorrelation.getStepForPixels(100, 100, 10000));
+		assertEquals(2, ChannelCorrelation.getStepForPixels(100, 100, 2500));
+		assertEquals(3, ChannelCorrelation.getStepForPixels(100, 100, 2000));
+	}
+
+}
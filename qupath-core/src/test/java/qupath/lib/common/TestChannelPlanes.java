@@ -0,0 +1,102 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestChannelPlanes {
+
+	private static final int WIDTH = 37;
+	private static final int HEIGHT = 23;
+	private static final int BANDS = 5;
+
+	private static WritableRaster[] createRasters(int dataType, Random random) {
+		SampleModel[] models = {
+				new PixelInterleavedSampleModel(dataType, WIDTH, HEIGHT, BANDS, BANDS * WIDTH, new int[] {4, 2, 0, 1, 3}),
+				new BandedSampleModel(dataType, WIDTH, HEIGHT, BANDS)
+		};
+		WritableRaster[] rasters = new WritableRaster[models.length * 2];
+		for (int i = 0; i < models.length; i++) {
+			var raster = Raster.createWritableRaster(models[i], null);
+			for (int b = 0; b < BANDS; b++) {
+				for (int y = 0; y < HEIGHT; y++) {
+					for (int x = 0; x < WIDTH; x++)
+						raster.setSample(x, y, b, random.nextInt(250));
+				}
+			}
+			rasters[i * 2] = raster;
+			// Check translated child rasters as well
+			rasters[i * 2 + 1] = raster.createWritableChild(3, 4, 20, 10, 100, 200, null);
+		}
+		return rasters;
+	}
+
+	@Test
+	public void test_getAndSetSamples() {
+		Random random = new Random(100L);
+		for (int dataType : new int[] {DataBuffer.TYPE_BYTE, DataBuffer.TYPE_USHORT, DataBuffer.TYPE_FLOAT, DataBuffer.TYPE_INT}) {
+			for (var raster : createRasters(dataType, random)) {
+				int x = raster.getMinX();
+				int y = raster.getMinY();
+				int w = raster.getWidth();
+				int h = raster.getHeight();
+				for (int b = 0; b < BANDS; b++) {
+					float[] expected = raster.getSamples(x, y, w, h, b, (float[])null);
+					assertArrayEquals(expected, ChannelPlanes.getSamples(raster, b, null));
+
+					// Values should be converted in the same way as the raster would convert them
+					float[] values = new float[w * h];
+					for (int i = 0; i < values.length; i++)
+						values[i] = random.nextFloat() * 70000f - 100f;
+					raster.setSamples(x, y, w, h, b, values);
+					expected = raster.getSamples(x, y, w, h, b, (float[])null);
+					ChannelPlanes.setSamples(raster, b, values);
+					assertArrayEquals(expected, ChannelPlanes.getSamples(raster, b, null));
+				}
+				// Sub-regions
+				float[] expected = raster.getSamples(x + 2, y + 1, 5, 7, 1, (float[])null);
+				assertArrayEquals(expected, ChannelPlanes.getSamples(raster, x + 2, y + 1, 5, 7, 1, null));
+			}
+		}
+	}
+
+	@Test
+	public void test_invalidRegion() {
+		var raster = createRasters(DataBuffer.TYPE_FLOAT, new Random(200L))[0];
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> ChannelPlanes.getSamples(raster, BANDS, null));
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> ChannelPlanes.getSamples(raster, 1, 1, WIDTH, HEIGHT, 0, null));
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> ChannelPlanes.setSamples(raster, 0, new float[10]));
+	}
+
+}
@@ -0,0 +1,80 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestDuplicateChannelSweep {
+
+	private static float[][] createMatrix(int nChannels, long seed) {
+		Random random = new Random(seed);
+		float[][] matrix = new float[nChannels][nChannels];
+		for (int i = 0; i < nChannels; i++) {
+			matrix[i][i] = 1f;
+			for (int j = i + 1; j < nChannels; j++) {
+				// Round so that some values are repeated
+				float value = Math.round(random.nextFloat() * 200) / 100f - 1f;
+				matrix[i][j] = value;
+				matrix[j][i] = value;
+			}
+		}
+		return matrix;
+	}
+
+	@Test
+	public void test_matchesDistinctChannels() {
+		float[][] matrix = createMatrix(20, 100L);
+		var sweep = new DuplicateChannelSweep(matrix);
+		for (double threshold = -1.05; threshold <= 1.05; threshold += 0.005) {
+			assertEquals(RemoveDuplicate.distinctChannels(matrix, threshold), sweep.getDistinctChannels(threshold));
+		}
+		// Check thresholds exactly equal to values in the matrix
+		for (int i = 0; i < matrix.length; i++) {
+			for (int j = 0; j < matrix.length; j++)
+				assertEquals(RemoveDuplicate.distinctChannels(matrix, matrix[i][j]), sweep.getDistinctChannels(matrix[i][j]));
+		}
+	}
+
+	@Test
+	public void test_thresholdForChannels() {
+		float[][] matrix = createMatrix(15, 200L);
+		var sweep = new DuplicateChannelSweep(matrix);
+		for (int n = 1; n <= matrix.length; n++) {
+			double threshold = sweep.getThresholdForChannels(n);
+			int count = RemoveDuplicate.distinctChannels(matrix, threshold).size();
+			assertEquals(count, sweep.getChannelCount(threshold));
+			assertTrue(count >= n);
+		}
+		assertEquals(matrix.length - 1, sweep.getAllThresholdValues().length);
+		assertEquals(matrix.length, sweep.getChannelCount(1.0));
+		assertThrows(IllegalArgumentException.class, () -> sweep.getThresholdForChannels(0));
+		assertThrows(IllegalArgumentException.class, () -> sweep.getThresholdForChannels(matrix.length + 1));
+	}
+
+}
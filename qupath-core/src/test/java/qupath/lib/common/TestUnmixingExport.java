@@ -0,0 +1,254 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class TestUnmixingExport {
+
+	private static final int[] CHANNELS = {0, 2, 3};
+	private static final int[] FILTERS = {1, 0};
+
+	private static BufferedImage createImage(int width, int height, int nChannels) {
+		List<ImageChannel> channels = new ArrayList<>();
+		for (int c = 0; c < nChannels; c++)
+			channels.add(ImageChannel.getInstance("Channel " + c, ImageChannel.getDefaultChannelColor(c)));
+		var colorModel = ColorModelFactory.createColorModel(PixelType.UINT16, channels);
+		var raster = colorModel.createCompatibleWritableRaster(width, height);
+		Random random = new Random(100L);
+		for (int c = 0; c < nChannels; c++) {
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++)
+					raster.setSample(x, y, c, random.nextInt(4000));
+			}
+		}
+		return new BufferedImage(colorModel, raster, false, null);
+	}
+
+	private static double[][] createProportions(int nFilters, int nChannels) {
+		Random random = new Random(200L);
+		double[][] proportionArray = new double[nFilters][nChannels];
+		for (double[] row : proportionArray) {
+			for (int c = 0; c < nChannels; c++)
+				row[c] = 0.1 + random.nextDouble();
+		}
+		return proportionArray;
+	}
+
+	private static float[][] computeExpected(BufferedImage img, double[][] proportionArray) {
+		var solver = UnmixingSolver.create(proportionArray, CHANNELS, FILTERS);
+		float[][] planes = ChannelPlanes.getPlanes(img.getRaster(), CHANNELS);
+		float[][] expected = new float[FILTERS.length][img.getWidth() * img.getHeight()];
+		solver.solve(planes, expected);
+		return expected;
+	}
+
+	private static void deleteDirectory(Path dir) throws IOException {
+		try (var stream = Files.list(dir)) {
+			for (var path : (Iterable<Path>)stream::iterator)
+				Files.delete(path);
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void test_float32MatchesSolver() throws Exception {
+		int width = 57;
+		int height = 41;
+		var img = createImage(width, height, 4);
+		double[][] proportionArray = createProportions(2, 4);
+		float[][] expected = computeExpected(img, proportionArray);
+
+		Path dir = Files.createTempDirectory("unmixing-export");
+		try (var server = new WrappedBufferedImageServer("Test", img)) {
+			Path path = dir.resolve("test.raw");
+			// Use small strips, so that the image is split into many strips of different sizes
+			new UnmixingExport(server, proportionArray)
+					.format(UnmixingExport.Format.FLOAT32)
+					.stripBytes(5000)
+					.export(CHANNELS, FILTERS, path);
+
+			assertTrue(Files.exists(UnmixingExport.getHeaderPath(path)));
+			var buffer = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			assertEquals(width * height * FILTERS.length, buffer.remaining());
+			for (int b = 0; b < FILTERS.length; b++) {
+				float[] actual = new float[width * height];
+				buffer.get(actual);
+				assertArrayEquals(expected[b], actual, 1e-3f);
+			}
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void test_float32WholeImage() throws Exception {
+		// A whole image is written as one strip, which should be split into several writes
+		int width = 1100;
+		int height = 1000;
+		var img = createImage(width, height, 1);
+		float[][] coefficients = new float[FILTERS.length][width * height];
+		for (int b = 0; b < coefficients.length; b++) {
+			for (int i = 0; i < coefficients[b].length; i++)
+				coefficients[b][i] = i * (b + 1) * 0.5f;
+		}
+
+		Path dir = Files.createTempDirectory("unmixing-export");
+		try (var server = new WrappedBufferedImageServer("Test", img)) {
+			Path path = dir.resolve("test.raw");
+			new UnmixingExport(server, createProportions(2, 1))
+					.format(UnmixingExport.Format.FLOAT32)
+					.export(coefficients, FILTERS, path);
+
+			var buffer = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			assertEquals(width * height * FILTERS.length, buffer.remaining());
+			for (int b = 0; b < FILTERS.length; b++) {
+				float[] actual = new float[width * height];
+				buffer.get(actual);
+				assertArrayEquals(coefficients[b], actual, 0f);
+			}
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void test_csvMatchesSolver() throws Exception {
+		int width = 23;
+		int height = 19;
+		var img = createImage(width, height, 4);
+		double[][] proportionArray = createProportions(2, 4);
+		float[][] expected = computeExpected(img, proportionArray);
+
+		Path dir = Files.createTempDirectory("unmixing-export");
+		try (var server = new WrappedBufferedImageServer("Test", img)) {
+			Path path = dir.resolve("test.csv");
+			new UnmixingExport(server, proportionArray)
+					.format(UnmixingExport.Format.CSV)
+					.stripBytes(100)
+					.export(CHANNELS, FILTERS, path);
+
+			var lines = Files.readAllLines(path);
+			assertEquals(width * height + 1, lines.size());
+			assertEquals("x,y,filter2,filter1", lines.get(0));
+			for (int p = 0; p < width * height; p++) {
+				String[] values = lines.get(p + 1).split(",");
+				assertEquals(p % width, Integer.parseInt(values[0]));
+				assertEquals(p / width, Integer.parseInt(values[1]));
+				for (int b = 0; b < FILTERS.length; b++)
+					assertEquals(expected[b][p], Float.parseFloat(values[b + 2]), 1e-3f);
+			}
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void test_precomputedMatchesServer() throws Exception {
+		int width = 23;
+		int height = 19;
+		var img = createImage(width, height, 4);
+		double[][] proportionArray = createProportions(2, 4);
+		float[][] expected = computeExpected(img, proportionArray);
+
+		Path dir = Files.createTempDirectory("unmixing-export");
+		try (var server = new WrappedBufferedImageServer("Test", img)) {
+			for (var format : UnmixingExport.Format.values()) {
+				Path pathServer = dir.resolve("server." + format.getExtension());
+				Path pathPrecomputed = dir.resolve("precomputed." + format.getExtension());
+				var export = new UnmixingExport(server, proportionArray).format(format);
+				export.export(CHANNELS, FILTERS, pathServer);
+				export.export(expected, FILTERS, pathPrecomputed);
+				assertArrayEquals(Files.readAllBytes(pathServer), Files.readAllBytes(pathPrecomputed));
+			}
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void test_failureDeletesOutput() throws Exception {
+		int width = 31;
+		int height = 40;
+		var img = createImage(width, height, 4);
+		double[][] proportionArray = createProportions(2, 4);
+
+		Path dir = Files.createTempDirectory("unmixing-export");
+		// Fail part way through the image, with an unchecked exception
+		try (var server = new WrappedBufferedImageServer("Test", img) {
+				@Override
+				public BufferedImage readBufferedImage(RegionRequest request) throws IOException {
+					if (request.getY() >= height / 2)
+						throw new IllegalStateException("Read failed");
+					return super.readBufferedImage(request);
+				}
+			}) {
+			Path path = dir.resolve("test.raw");
+			var export = new UnmixingExport(server, proportionArray)
+					.format(UnmixingExport.Format.FLOAT32)
+					.stripBytes(1000)
+					.maxMemoryBytes(3000);
+			assertThrows(IllegalStateException.class, () -> export.export(CHANNELS, FILTERS, path));
+			assertFalse(Files.exists(path));
+			assertFalse(Files.exists(UnmixingExport.getHeaderPath(path)));
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void test_matrixCSV() throws Exception {
+		float[][] matrix = {{1f, 0.5f}, {0.5f, 1f}};
+		Path path = Files.createTempFile("matrix", ".csv");
+		try {
+			UnmixingExport.writeMatrixCSV(matrix, Arrays.asList("A", "B,C"), path);
+			assertEquals(Arrays.asList(",A,\"B,C\"", "A,1.0,0.5", "\"B,C\",0.5,1.0"), Files.readAllLines(path));
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+}
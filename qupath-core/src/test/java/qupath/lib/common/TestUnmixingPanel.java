@@ -0,0 +1,80 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestUnmixingPanel {
+
+	@Test
+	public void test_jsonRoundTrip() throws IOException {
+		var panel = UnmixingPanel.getCrossedPanel();
+		var panel2 = UnmixingPanel.readPanel(new StringReader(panel.toJson()));
+		assertEquals(panel.size(), panel2.size());
+		for (int i = 0; i < panel.size(); i++) {
+			var f1 = panel.getFluorophores().get(i);
+			var f2 = panel2.getFluorophores().get(i);
+			assertEquals(f1.getName(), f2.getName());
+			assertArrayEquals(f1.getChannels(), f2.getChannels());
+			assertArrayEquals(f1.getFilters(), f2.getFilters());
+			assertEquals(f1.getReferenceChannel(), f2.getReferenceChannel());
+		}
+	}
+
+	@Test
+	public void test_invalidJson() {
+		assertThrows(IOException.class, () -> UnmixingPanel.readPanel(new StringReader("{}")));
+		assertThrows(IOException.class, () -> UnmixingPanel.readPanel(new StringReader(
+				"{\"fluorophores\": [{\"name\": \"DAPI\", \"channels\": [1, 2], \"filters\": [0], \"referenceChannel\": 0}]}")));
+	}
+
+	@Test
+	public void test_manualPanel() {
+		Map<String, List<Integer>> chosen = new LinkedHashMap<>();
+		chosen.put("Cy3", Arrays.asList(30, 31, 32));
+		chosen.put("Opal690", Arrays.asList(18));
+		var panel = UnmixingPanel.createManualPanel(chosen);
+		var cy3 = panel.getFluorophores().get(0);
+		assertArrayEquals(new int[] {1, 2, 6}, cy3.getFilters());
+		assertEquals(0, cy3.getReferenceChannel());
+		// Reference channel is limited by the number of channels chosen
+		var opal690 = panel.getFluorophores().get(1);
+		assertEquals(0, opal690.getReferenceChannel());
+
+		chosen.put("Opal780", Arrays.asList(9, 10, 11));
+		assertThrows(IllegalArgumentException.class, () -> UnmixingPanel.createManualPanel(chosen));
+		assertThrows(IllegalArgumentException.class, () -> UnmixingPanel.createManualPanel(Map.of("Unknown", Arrays.asList(1))));
+	}
+
+}
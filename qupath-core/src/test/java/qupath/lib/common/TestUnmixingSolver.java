@@ -0,0 +1,290 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.common.UnmixingSolver.Method;
+
+@SuppressWarnings("javadoc")
+public class TestUnmixingSolver {
+
+	private static double[][] createProportionArray(Random random) {
+		double[][] proportionArray = new double[7][43];
+		for (int f = 0; f < proportionArray.length; f++) {
+			for (int c = 0; c < proportionArray[f].length; c++)
+				proportionArray[f][c] = random.nextDouble();
+		}
+		return proportionArray;
+	}
+
+	private static float[][] createPlanes(Random random, int nChannels, int nPixels) {
+		float[][] planes = new float[nChannels][nPixels];
+		for (int i = 0; i < nChannels; i++) {
+			for (int p = 0; p < nPixels; p++)
+				planes[i][p] = random.nextInt(1000);
+		}
+		return planes;
+	}
+
+	@Test
+	public void test_solveMatchesManualRegression() {
+		Random random = new Random(100L);
+		double[][] proportionArray = createProportionArray(random);
+		int nPixels = 500;
+		for (var fluorophore : Fluorophore.getCrossedFluorophores()) {
+			int n = fluorophore.nChannels();
+			float[][] planes = createPlanes(random, n, nPixels);
+			float[][] coefficients = new float[n][nPixels];
+			var solver = UnmixingSolver.create(proportionArray, fluorophore.getChannels(), fluorophore.getFilters());
+			solver.solve(planes, coefficients);
+
+			ArrayList<Double> pixelIntensity = new ArrayList<>();
+			for (int p = 0; p < nPixels; p++) {
+				pixelIntensity.clear();
+				for (int i = 0; i < n; i++)
+					pixelIntensity.add((double)planes[i][p]);
+				double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, fluorophore.getFilterList(), fluorophore.getChannelList());
+				for (int j = 0; j < n; j++)
+					assertEquals(beta[j], coefficients[j][p], Math.max(1e-3, Math.abs(beta[j]) * 1e-5));
+			}
+		}
+	}
+
+	@Test
+	public void test_unmixMatchesCrossTalkSubtraction() {
+		Random random = new Random(200L);
+		double[][] proportionArray = createProportionArray(random);
+		int nPixels = 500;
+		for (var fluorophore : Fluorophore.getCrossedFluorophores()) {
+			int n = fluorophore.nChannels();
+			float[][] planes = createPlanes(random, n, nPixels);
+			float[] output = new float[nPixels];
+			UnmixingSolver.create(proportionArray, fluorophore).unmix(planes, output);
+
+			ArrayList<Double> pixelIntensity = new ArrayList<>();
+			double[] intensities = new double[n];
+			for (int p = 0; p < nPixels; p++) {
+				pixelIntensity.clear();
+				for (int i = 0; i < n; i++) {
+					intensities[i] = planes[i][p];
+					pixelIntensity.add(intensities[i]);
+				}
+				double[] beta = Unmixing.completeManualRegression(pixelIntensity, proportionArray, fluorophore.getFilterList(), fluorophore.getChannelList());
+				double expected = fluorophore.subtractCrossTalk(intensities, beta, proportionArray);
+				assertEquals(expected, output[p], Math.max(1e-2, Math.abs(expected) * 1e-5));
+			}
+		}
+	}
+
+	private static double[][] createEmission(double[][] proportionArray, Fluorophore fluorophore) {
+		int[] channels = fluorophore.getChannels();
+		int[] filters = fluorophore.getFilters();
+		double[][] emission = new double[channels.length][filters.length];
+		for (int i = 0; i < channels.length; i++) {
+			for (int j = 0; j < filters.length; j++)
+				emission[i][j] = proportionArray[filters[j]][channels[i]];
+		}
+		return emission;
+	}
+
+	private static double residual(double[][] emission, double[] x, double[] b) {
+		double sum = 0;
+		for (int i = 0; i < x.length; i++) {
+			double d = -x[i];
+			for (int j = 0; j < b.length; j++)
+				d += emission[i][j] * b[j];
+			sum += d * d;
+		}
+		return sum;
+	}
+
+	/**
+	 * Find the NNLS solution by solving the unconstrained problem for every subset of coefficients.
+	 */
+	private static double bruteForceResidual(double[][] emission, double[] x) {
+		int k = emission[0].length;
+		double best = residual(emission, x, new double[k]);
+		for (int mask = 1; mask < (1 << k); mask++) {
+			int m = Integer.bitCount(mask);
+			int[] index = new int[m];
+			int n = 0;
+			for (int j = 0; j < k; j++) {
+				if ((mask & (1 << j)) != 0)
+					index[n++] = j;
+			}
+			double[][] sub = new double[x.length][m];
+			for (int i = 0; i < x.length; i++) {
+				for (int c = 0; c < m; c++)
+					sub[i][c] = emission[i][index[c]];
+			}
+			var matrix = new Array2DRowRealMatrix(sub, false);
+			var pinv = new LUDecomposition(matrix.transpose().multiply(matrix)).getSolver().getInverse().multiply(matrix.transpose()).getData();
+			double[] b = new double[k];
+			boolean feasible = true;
+			for (int c = 0; c < m; c++) {
+				double sum = 0;
+				for (int i = 0; i < x.length; i++)
+					sum += pinv[c][i] * x[i];
+				b[index[c]] = sum;
+				feasible = feasible && sum >= 0;
+			}
+			if (feasible)
+				best = Math.min(best, residual(emission, x, b));
+		}
+		return best;
+	}
+
+	@Test
+	public void test_nnlsMatchesBruteForce() {
+		Random random = new Random(400L);
+		double[][] proportionArray = createProportionArray(random);
+		int nPixels = 500;
+		for (var fluorophore : Fluorophore.getCrossedFluorophores()) {
+			int n = fluorophore.nChannels();
+			float[][] planes = createPlanes(random, n, nPixels);
+			float[][] coefficients = new float[n][nPixels];
+			var solver = UnmixingSolver.create(proportionArray, fluorophore.getChannels(), fluorophore.getFilters(), Method.NNLS);
+			solver.solve(planes, coefficients);
+
+			double[][] emission = createEmission(proportionArray, fluorophore);
+			double[] x = new double[n];
+			double[] b = new double[n];
+			for (int p = 0; p < nPixels; p++) {
+				for (int i = 0; i < n; i++)
+					x[i] = planes[i][p];
+				for (int j = 0; j < n; j++) {
+					b[j] = coefficients[j][p];
+					assertTrue(b[j] >= 0);
+				}
+				double expected = bruteForceResidual(emission, x);
+				assertEquals(expected, residual(emission, x, b), Math.max(1e-2, expected * 1e-4));
+			}
+		}
+	}
+
+	@Test
+	public void test_nnlsMatchesClampedForNonNegativeCoefficients() {
+		Random random = new Random(500L);
+		double[][] proportionArray = createProportionArray(random);
+		int nPixels = 500;
+		for (var fluorophore : Fluorophore.getCrossedFluorophores()) {
+			// Create pixels from non-negative coefficients, so that the constraint is never active
+			int n = fluorophore.nChannels();
+			double[][] emission = createEmission(proportionArray, fluorophore);
+			float[][] planes = new float[n][nPixels];
+			for (int p = 0; p < nPixels; p++) {
+				for (int j = 0; j < n; j++) {
+					double b = random.nextInt(1000);
+					for (int i = 0; i < n; i++)
+						planes[i][p] += (float)(emission[i][j] * b);
+				}
+			}
+			float[] clamped = new float[nPixels];
+			float[] nnls = new float[nPixels];
+			UnmixingSolver.create(proportionArray, fluorophore, Method.CLAMPED).unmix(planes, clamped);
+			UnmixingSolver.create(proportionArray, fluorophore, Method.NNLS).unmix(planes, nnls);
+			for (int p = 0; p < nPixels; p++)
+				assertEquals(clamped[p], nnls[p], Math.max(1e-1, Math.abs(clamped[p]) * 1e-4));
+		}
+	}
+
+	private static double meanAbsoluteError(float[] output, float[] expected) {
+		double sum = 0;
+		for (int p = 0; p < output.length; p++)
+			sum += Math.abs(output[p] - expected[p]);
+		return sum / output.length;
+	}
+
+	@Test
+	public void test_nnlsAccuracyWithNoise() {
+		Random random = new Random(600L);
+		double[][] proportionArray = createProportionArray(random);
+		int nPixels = 5000;
+		double totalClamped = 0;
+		double totalNNLS = 0;
+		for (var fluorophore : Fluorophore.getCrossedFluorophores()) {
+			int n = fluorophore.nChannels();
+			int r = fluorophore.getReferenceChannel();
+			double[][] emission = createEmission(proportionArray, fluorophore);
+			float[][] exact = new float[n][nPixels];
+			float[][] noisy = new float[n][nPixels];
+			float[] expected = new float[nPixels];
+			double[] b = new double[n];
+			for (int p = 0; p < nPixels; p++) {
+				// Sparse abundances, so that the non-negativity constraint matters once noise is added
+				for (int j = 0; j < n; j++)
+					b[j] = random.nextDouble() < 0.5 ? 0 : random.nextInt(1000);
+				for (int i = 0; i < n; i++) {
+					double x = 0;
+					for (int j = 0; j < n; j++)
+						x += emission[i][j] * b[j];
+					exact[i][p] = (float)x;
+					noisy[i][p] = (float)Math.max(0, x * (1 + 0.2 * random.nextGaussian()));
+				}
+				expected[p] = (float)(emission[r][0] * b[0]);
+			}
+			var clamped = UnmixingSolver.create(proportionArray, fluorophore, Method.CLAMPED);
+			var nnls = UnmixingSolver.create(proportionArray, fluorophore, Method.NNLS);
+			float[] output = new float[nPixels];
+
+			// Without noise, both methods recover the reference fluorophore
+			clamped.unmix(exact, output);
+			assertEquals(0, meanAbsoluteError(output, expected), 1e-1);
+			nnls.unmix(exact, output);
+			assertEquals(0, meanAbsoluteError(output, expected), 1e-1);
+
+			// With noise, enforcing non-negativity should be about as accurate as clamping for every fluorophore
+			clamped.unmix(noisy, output);
+			double errorClamped = meanAbsoluteError(output, expected);
+			nnls.unmix(noisy, output);
+			double errorNNLS = meanAbsoluteError(output, expected);
+			assertTrue(errorNNLS <= errorClamped * 1.05, String.format("%s: NNLS error %.3f, clamped error %.3f", fluorophore.getName(), errorNNLS, errorClamped));
+			totalClamped += errorClamped;
+			totalNNLS += errorNNLS;
+		}
+		// ... and more accurate overall
+		assertTrue(totalNNLS < totalClamped);
+	}
+
+	@Test
+	public void test_invalidInput() {
+		Random random = new Random(300L);
+		double[][] proportionArray = createProportionArray(random);
+		var fluorophore = Fluorophore.getCrossedFluorophores().get(0);
+		var solver = UnmixingSolver.create(proportionArray, fluorophore.getChannels(), fluorophore.getFilters());
+		// Too few planes
+		assertThrows(IllegalArgumentException.class, () -> solver.solve(new float[1][10], new float[2][10]));
+		// No cross-talk weights without a fluorophore
+		assertThrows(UnsupportedOperationException.class, () -> solver.unmix(new float[2][10], new float[10]));
+	}
+
+}
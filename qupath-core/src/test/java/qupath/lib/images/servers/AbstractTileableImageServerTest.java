@@ -0,0 +1,150 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class AbstractTileableImageServerTest {
+
+	private static final int N_THREADS = 4;
+
+	/**
+	 * Server that blocks while reading a tile, until the test releases it.
+	 */
+	static class BlockingServer extends WrappedBufferedImageServer {
+
+		private final AtomicInteger readCount = new AtomicInteger();
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private volatile boolean fail;
+
+		BlockingServer(BufferedImage img) {
+			super("Blocking", img);
+		}
+
+		@Override
+		protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+			readCount.incrementAndGet();
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while reading tile");
+			}
+			if (fail)
+				throw new IOException("Expected failure");
+			return super.readTile(tileRequest);
+		}
+
+	}
+
+	private static List<Future<BufferedImage>> readConcurrently(BlockingServer server) throws Exception {
+		var request = RegionRequest.createInstance(server.getPath(), 1.0, 0, 0, server.getWidth(), server.getHeight());
+		var pool = Executors.newFixedThreadPool(N_THREADS);
+		try {
+			List<Future<BufferedImage>> futures = new ArrayList<>();
+			for (int i = 0; i < N_THREADS; i++)
+				futures.add(pool.submit(() -> server.readBufferedImage(request)));
+			// Wait until all but one thread is waiting for the first read to complete
+			long timeout = System.currentTimeMillis() + 10_000;
+			while (server.getDeduplicatedReadCount() < N_THREADS - 1 && System.currentTimeMillis() < timeout)
+				Thread.sleep(5);
+			server.latch.countDown();
+			pool.shutdown();
+			assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+			return futures;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void test_coalescedReads() throws Exception {
+		var server = new BlockingServer(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB));
+		var futures = readConcurrently(server);
+		for (var future : futures)
+			assertNotNull(future.get());
+		assertEquals(1, server.readCount.get());
+		assertEquals(N_THREADS - 1, server.getDeduplicatedReadCount());
+	}
+
+	@Test
+	public void test_coalescedFailures() throws Exception {
+		var server = new BlockingServer(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB));
+		server.fail = true;
+		var futures = readConcurrently(server);
+		for (var future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+				continue;
+			}
+			throw new AssertionError("Expected the read to fail");
+		}
+		assertEquals(1, server.readCount.get());
+	}
+
+	@Test
+	public void test_interruptedReadRetried() throws Exception {
+		var server = new BlockingServer(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB));
+		var request = RegionRequest.createInstance(server.getPath(), 1.0, 0, 0, server.getWidth(), server.getHeight());
+		var pool = Executors.newFixedThreadPool(2);
+		try {
+			var leader = pool.submit(() -> server.readBufferedImage(request));
+			long timeout = System.currentTimeMillis() + 10_000;
+			while (server.readCount.get() < 1 && System.currentTimeMillis() < timeout)
+				Thread.sleep(5);
+			var waiter = pool.submit(() -> server.readBufferedImage(request));
+			while (server.getDeduplicatedReadCount() < 1 && System.currentTimeMillis() < timeout)
+				Thread.sleep(5);
+
+			// Interrupting the first read should cause the waiting thread to read the tile itself
+			leader.cancel(true);
+			while (server.readCount.get() < 2 && System.currentTimeMillis() < timeout)
+				Thread.sleep(5);
+			assertEquals(2, server.readCount.get());
+			server.latch.countDown();
+			assertNotNull(waiter.get(10, TimeUnit.SECONDS));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+}
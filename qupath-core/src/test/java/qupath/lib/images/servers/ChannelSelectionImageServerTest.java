@@ -0,0 +1,76 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.color.ColorModelFactory;
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class ChannelSelectionImageServerTest {
+
+	@Test
+	public void test() throws Exception {
+		int nChannels = 5;
+		List<ImageChannel> channels = new ArrayList<>();
+		for (int c = 0; c < nChannels; c++)
+			channels.add(ImageChannel.getInstance("Channel " + c, ImageChannel.getDefaultChannelColor(c)));
+		var colorModel = ColorModelFactory.createColorModel(PixelType.UINT16, channels);
+		var raster = colorModel.createCompatibleWritableRaster(64, 48);
+		Random random = new Random(100L);
+		for (int c = 0; c < nChannels; c++) {
+			for (int y = 0; y < raster.getHeight(); y++) {
+				for (int x = 0; x < raster.getWidth(); x++)
+					raster.setSample(x, y, c, random.nextInt(65536));
+			}
+		}
+		var img = new BufferedImage(colorModel, raster, false, null);
+		var wrapped = new WrappedBufferedImageServer("Test", img, channels);
+
+		int[] selected = {3, 1};
+		try (var server = new TransformedServerBuilder(wrapped).selectChannels(selected).build()) {
+			assertEquals(selected.length, server.nChannels());
+			assertEquals(PixelType.UINT16, server.getPixelType());
+			assertEquals("Channel 3", server.getChannel(0).getName());
+
+			var request = RegionRequest.createInstance(server.getPath(), 1, 10, 5, 30, 20);
+			var imgSelected = server.readBufferedImage(request);
+			for (int b = 0; b < selected.length; b++) {
+				int[] expected = raster.getSamples(10, 5, 30, 20, selected[b], (int[])null);
+				int[] actual = imgSelected.getRaster().getSamples(0, 0, 30, 20, b, (int[])null);
+				assertArrayEquals(expected, actual);
+			}
+		}
+
+		assertThrows(IllegalArgumentException.class, () -> new TransformedServerBuilder(wrapped).selectChannels(nChannels));
+		assertThrows(IllegalArgumentException.class, () -> new TransformedServerBuilder(wrapped).selectChannels());
+	}
+
+}
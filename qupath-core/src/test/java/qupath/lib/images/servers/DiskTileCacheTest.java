@@ -0,0 +1,269 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.color.ColorModelFactory;
+
+@SuppressWarnings("javadoc")
+public class DiskTileCacheTest {
+
+	private static BufferedImage createRGB(int width, int height, long seed) {
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		var random = new Random(seed);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				img.setRGB(x, y, random.nextInt());
+		}
+		return img;
+	}
+
+	private static int[] getRGB(BufferedImage img) {
+		return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+	}
+
+	/**
+	 * Wait until all pending writes are complete, by closing and reopening the cache.
+	 */
+	private static DiskTileCache reopen(DiskTileCache cache) throws IOException {
+		cache.close();
+		return DiskTileCache.open(cache.getDirectory(), cache.getMaxBytes(), 64 * 1024);
+	}
+
+	private static void deleteDirectory(Path dir) throws IOException {
+		try (var stream = Files.list(dir)) {
+			for (var path : (Iterable<Path>)stream::iterator)
+				Files.delete(path);
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void test_persistence() throws Exception {
+		Path dir = Files.createTempDirectory("disk-tile-cache");
+		var cache = DiskTileCache.open(dir, 10 * 1024 * 1024, 64 * 1024);
+		try {
+			List<BufferedImage> images = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				var img = createRGB(64, 48, i);
+				images.add(img);
+				assertTrue(cache.put("tile" + i, img, null));
+			}
+			cache = reopen(cache);
+			assertEquals(20, cache.size());
+			for (int i = 0; i < 20; i++) {
+				var img = cache.get("tile" + i, null);
+				assertNotNull(img);
+				assertEquals(BufferedImage.TYPE_INT_RGB, img.getType());
+				assertArrayEquals(getRGB(images.get(i)), getRGB(img));
+			}
+			assertNull(cache.get("missing", null));
+			assertEquals(20L, cache.getHitCount());
+			assertEquals(1L, cache.getMissCount());
+		} finally {
+			cache.close();
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void test_customColorModel() throws Exception {
+		var channels = List.of(
+				ImageChannel.getInstance("A", ImageChannel.getDefaultChannelColor(0)),
+				ImageChannel.getInstance("B", ImageChannel.getDefaultChannelColor(1)));
+		var colorModel = ColorModelFactory.createColorModel(PixelType.FLOAT32, channels);
+		var raster = colorModel.createCompatibleWritableRaster(30, 20);
+		var random = new Random(1L);
+		for (int b = 0; b < 2; b++) {
+			for (int y = 0; y < 20; y++) {
+				for (int x = 0; x < 30; x++)
+					raster.setSample(x, y, b, random.nextFloat());
+			}
+		}
+		var img = new BufferedImage(colorModel, raster, false, null);
+
+		Path dir = Files.createTempDirectory("disk-tile-cache");
+		var cache = DiskTileCache.open(dir, 1024 * 1024, 64 * 1024);
+		try {
+			assertTrue(cache.put("float", img, colorModel));
+			cache = reopen(cache);
+			// Without the color model, the tile can't be restored
+			assertNull(cache.get("float", null));
+			var imgCached = cache.get("float", colorModel);
+			assertNotNull(imgCached);
+			for (int b = 0; b < 2; b++) {
+				assertArrayEquals(
+						raster.getSamples(0, 0, 30, 20, b, (float[])null),
+						imgCached.getRaster().getSamples(0, 0, 30, 20, b, (float[])null));
+			}
+		} finally {
+			cache.close();
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void test_eviction() throws Exception {
+		Path dir = Files.createTempDirectory("disk-tile-cache");
+		// Each tile is ~12 KB, so each chunk holds 5 tiles
+		long maxBytes = 256 * 1024;
+		var cache = DiskTileCache.open(dir, maxBytes, 64 * 1024);
+		try {
+			for (int i = 0; i < 100; i++)
+				cache.put("tile" + i, createRGB(64, 48, i), null);
+			cache = reopen(cache);
+			assertTrue(cache.getSizeBytes() <= maxBytes);
+			assertTrue(cache.size() > 0 && cache.size() < 100);
+			// The most recent tiles should have been retained
+			assertNotNull(cache.get("tile99", null));
+			assertNull(cache.get("tile0", null));
+			long fileBytes = 0;
+			try (var stream = Files.list(dir)) {
+				for (var path : (Iterable<Path>)stream::iterator)
+					fileBytes += Files.size(path);
+			}
+			assertEquals(cache.getSizeBytes(), fileBytes);
+
+			cache.clear();
+			assertEquals(0, cache.size());
+			assertFalse(cache.put("indexed", new BufferedImage(10, 10, BufferedImage.TYPE_BYTE_INDEXED), null));
+		} finally {
+			cache.close();
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void test_directoryLocked() throws Exception {
+		Path dir = Files.createTempDirectory("disk-tile-cache");
+		var cache = DiskTileCache.open(dir, 1024 * 1024, 64 * 1024);
+		try {
+			assertThrows(IOException.class, () -> DiskTileCache.open(dir, 1024 * 1024, 64 * 1024));
+			var img = createRGB(32, 32, 1L);
+			assertTrue(cache.put("tile", img, null));
+			// Once closed, the directory can be used again
+			cache = reopen(cache);
+			assertArrayEquals(getRGB(img), getRGB(cache.get("tile", null)));
+		} finally {
+			cache.close();
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void test_sharedCache() throws Exception {
+		Path dir = Files.createTempDirectory("disk-tile-cache");
+		DiskTileCache cache = null;
+		try {
+			var cache1 = DiskTileCache.acquire(dir, 1024 * 1024);
+			// Equivalent paths should give the same cache, rather than failing because the directory is locked
+			var cache2 = DiskTileCache.acquire(dir.resolve("sub").resolve(".."), 1024 * 1024);
+			assertTrue(cache1 == cache2);
+			var img = createRGB(32, 32, 4L);
+			assertTrue(cache1.put("tile", img, null));
+
+			// Cache should remain open until the last reference is released
+			cache1.release();
+			assertThrows(IOException.class, () -> DiskTileCache.open(dir, 1024 * 1024, 64 * 1024));
+			cache2.release();
+			cache = DiskTileCache.open(dir, 1024 * 1024, 64 * 1024);
+			assertArrayEquals(getRGB(img), getRGB(cache.get("tile", null)));
+		} finally {
+			if (cache != null)
+				cache.close();
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void test_existingChunkNotOverwritten() throws Exception {
+		Path dir = Files.createTempDirectory("disk-tile-cache");
+		var cache = DiskTileCache.open(dir, 1024 * 1024, 64 * 1024);
+		// Simulate a chunk that appears after the cache was opened
+		Path pathExisting = dir.resolve("chunk-0.qtc");
+		byte[] existing = {1, 2, 3, 4, 5, 6, 7, 8};
+		Files.write(pathExisting, existing);
+		try {
+			var img = createRGB(32, 32, 2L);
+			assertTrue(cache.put("tile", img, null));
+			cache = reopen(cache);
+			assertArrayEquals(existing, Files.readAllBytes(pathExisting));
+			assertArrayEquals(getRGB(img), getRGB(cache.get("tile", null)));
+		} finally {
+			cache.close();
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void test_keyMismatchIsMiss() throws Exception {
+		Path dir = Files.createTempDirectory("disk-tile-cache");
+		var cache = DiskTileCache.open(dir, 1024 * 1024, 64 * 1024);
+		try {
+			assertTrue(cache.put("tile", createRGB(32, 32, 3L), null));
+			// Wait for the tile to be written to the active chunk
+			long endTime = System.currentTimeMillis() + 5000;
+			while (cache.get("tile", null) == null && System.currentTimeMillis() < endTime)
+				Thread.sleep(10);
+			assertEquals(1, cache.size());
+
+			// Replace the stored key, as if another cache had written a different tile at the same location
+			Path path;
+			try (var stream = Files.list(dir)) {
+				path = stream.filter(p -> p.getFileName().toString().endsWith(".qtc")).findFirst().orElseThrow();
+			}
+			try (var channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+				var bytes = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+				bytes.putLong(1L).putLong(2L).flip();
+				channel.write(bytes, 4);
+			}
+			long misses = cache.getMissCount();
+			assertNull(cache.get("tile", null));
+			assertEquals(misses + 1, cache.getMissCount());
+		} finally {
+			cache.close();
+			deleteDirectory(dir);
+		}
+	}
+
+}
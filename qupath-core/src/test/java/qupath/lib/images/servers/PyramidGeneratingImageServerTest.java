@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class PyramidGeneratingImageServerTest {
+
+	/**
+	 * Server with a fixed path, which counts the number of tiles read.
+	 */
+	static class CountingServer extends WrappedBufferedImageServer {
+
+		private final AtomicInteger readCount = new AtomicInteger();
+
+		CountingServer(BufferedImage img) {
+			super("Counting", img);
+		}
+
+		@Override
+		protected String createID() {
+			return "counting-server";
+		}
+
+		@Override
+		protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+			readCount.incrementAndGet();
+			return super.readTile(tileRequest);
+		}
+
+	}
+
+	private static BufferedImage createImage(int width, int height) {
+		var img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++)
+				img.setRGB(x, y, (x % 256) << 16 | (y % 256) << 8 | ((x + y) % 256));
+		}
+		return img;
+	}
+
+	private static int[] getRGB(BufferedImage img) {
+		return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+	}
+
+	private static void deleteDirectory(Path dir) throws IOException {
+		try (var stream = Files.list(dir)) {
+			for (var path : (Iterable<Path>)stream::iterator)
+				Files.delete(path);
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void test_persistedLevels() throws Exception {
+		var img = createImage(512, 512);
+		Path dir = Files.createTempDirectory("pyramid");
+		try {
+			var server = new CountingServer(img);
+			var pyramid = ImageServers.pyramidalizeTiled(server, 128, 128, 1, 4);
+			assertTrue(ImageServers.persistPyramid(pyramid, dir, 10 * 1024 * 1024));
+			var request = RegionRequest.createInstance(pyramid.getPath(), 4, 0, 0, 512, 512);
+			var imgGenerated = pyramid.readBufferedImage(request);
+			assertTrue(server.readCount.get() > 0);
+			pyramid.close();
+
+			// When reopened, the lower resolution should be available without reading the full resolution image
+			var server2 = new CountingServer(img);
+			var pyramid2 = ImageServers.pyramidalizeTiled(server2, 128, 128, 1, 4);
+			assertTrue(ImageServers.persistPyramid(pyramid2, dir, 10 * 1024 * 1024));
+			var imgStored = pyramid2.readBufferedImage(request);
+			assertEquals(0, server2.readCount.get());
+			assertArrayEquals(getRGB(imgGenerated), getRGB(imgStored));
+
+			// Full resolution tiles should still be read from the original server
+			pyramid2.readBufferedImage(RegionRequest.createInstance(pyramid2.getPath(), 1, 0, 0, 128, 128));
+			assertEquals(1, server2.readCount.get());
+			pyramid2.close();
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void test_sharedLevelCache() throws Exception {
+		var img = createImage(512, 512);
+		Path dir = Files.createTempDirectory("pyramid");
+		try {
+			// Servers for the same entry may be open at the same time, and should share the stored tiles
+			var server = new CountingServer(img);
+			var pyramid = ImageServers.pyramidalizeTiled(server, 128, 128, 1, 4);
+			assertTrue(ImageServers.persistPyramid(pyramid, dir, 10 * 1024 * 1024));
+			var server2 = new CountingServer(img);
+			var pyramid2 = ImageServers.pyramidalizeTiled(server2, 128, 128, 1, 4);
+			assertTrue(ImageServers.persistPyramid(pyramid2, dir, 10 * 1024 * 1024));
+
+			var request = RegionRequest.createInstance(pyramid.getPath(), 4, 0, 0, 512, 512);
+			var imgGenerated = pyramid.readBufferedImage(request);
+			pyramid.close();
+
+			// Closing one server shouldn't close the store for the other
+			var imgStored = pyramid2.readBufferedImage(request);
+			assertArrayEquals(getRGB(imgGenerated), getRGB(imgStored));
+			pyramid2.close();
+
+			// Once all servers are closed, the directory shouldn't remain locked
+			var cache = DiskTileCache.open(dir, 10 * 1024 * 1024);
+			cache.close();
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void test_persistOtherServer() throws Exception {
+		var server = new CountingServer(createImage(64, 64));
+		Path dir = Files.createTempDirectory("pyramid");
+		try {
+			assertFalse(ImageServers.persistPyramid(server, dir, 1024));
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+
+}
@@ -0,0 +1,176 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class TilePrefetcherTest {
+
+	/**
+	 * Server with its own tile cache, which counts the number of tiles read.
+	 */
+	static class CountingServer extends WrappedBufferedImageServer {
+
+		private final Map<RegionRequest, BufferedImage> cache = new ConcurrentHashMap<>();
+		private final AtomicInteger readCount = new AtomicInteger();
+
+		CountingServer(BufferedImage img) {
+			super("Counting", img);
+		}
+
+		@Override
+		protected Map<RegionRequest, BufferedImage> getCache() {
+			return cache;
+		}
+
+		@Override
+		protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+			readCount.incrementAndGet();
+			return super.readTile(tileRequest);
+		}
+
+	}
+
+	/**
+	 * Server that blocks while reading, until released.
+	 */
+	static class BlockingServer extends CountingServer {
+
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		BlockingServer(BufferedImage img) {
+			super(img);
+		}
+
+		@Override
+		protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.readTile(tileRequest);
+		}
+
+	}
+
+	private static void awaitDone(TilePrefetcher.Prefetch prefetch) throws InterruptedException {
+		long timeout = System.currentTimeMillis() + 10_000;
+		while (!prefetch.isDone() && System.currentTimeMillis() < timeout)
+			Thread.sleep(5);
+		assertTrue(prefetch.isDone());
+	}
+
+	@Test
+	public void test_prefetch() throws Exception {
+		var img = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+		img.setRGB(10, 10, 0xff0000);
+		var server = new CountingServer(img);
+		var request = RegionRequest.createInstance(server);
+		var prefetcher = new TilePrefetcher(1, 10);
+
+		var prefetch = prefetcher.prefetch(server, Collections.singletonList(request));
+		assertEquals(1, prefetch.getTileCount());
+		prefetch.getCompletion().get(10, TimeUnit.SECONDS);
+		awaitDone(prefetch);
+		assertEquals(1, server.readCount.get());
+		assertTrue(server.cache.containsKey(request));
+		assertEquals(1L, prefetcher.getPrefetchedTileCount());
+		assertEquals(0, prefetcher.getPendingTileCount());
+
+		// Cached tiles shouldn't be requested again
+		prefetch = prefetcher.prefetch(server, Collections.singletonList(request));
+		assertEquals(0, prefetch.getTileCount());
+		assertEquals(0xff0000, server.readBufferedImage(request).getRGB(10, 10) & 0xffffff);
+		assertEquals(1, server.readCount.get());
+	}
+
+	@Test
+	public void test_noCache() throws Exception {
+		var server = new WrappedBufferedImageServer("Uncached", new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB)) {
+			@Override
+			protected Map<RegionRequest, BufferedImage> getCache() {
+				return null;
+			}
+		};
+		var prefetch = new TilePrefetcher(1, 10).prefetch(server, Collections.singletonList(RegionRequest.createInstance(server)));
+		// Prefetching is pointless if tiles can't be cached
+		assertEquals(0, prefetch.getTileCount());
+		assertTrue(prefetch.isDone());
+		assertTrue(prefetch.getCompletion().isDone());
+	}
+
+	@Test
+	public void test_cancelFreesQueue() throws Exception {
+		var prefetcher = new TilePrefetcher(1, 3);
+
+		// Occupy the only prefetch thread
+		var blocking = new BlockingServer(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB));
+		var running = prefetcher.prefetch(blocking, Collections.singletonList(RegionRequest.createInstance(blocking)));
+		assertTrue(blocking.started.await(10, TimeUnit.SECONDS));
+
+		// Fill the queue
+		var stale1 = new CountingServer(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB));
+		var stale2 = new CountingServer(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB));
+		var stale = prefetcher.prefetch(stale1, Collections.singletonList(RegionRequest.createInstance(stale1)));
+		assertEquals(1, prefetcher.prefetch(stale2, Collections.singletonList(RegionRequest.createInstance(stale2))).getTileCount());
+		assertEquals(1, stale.getTileCount());
+		assertEquals(2, prefetcher.getQueuedTaskCount());
+		assertEquals(3, prefetcher.getPendingTileCount());
+
+		// Cancelled tiles should leave the queue at once, and no longer count as pending
+		stale.cancel();
+		assertTrue(stale.isDone());
+		assertEquals(1, prefetcher.getQueuedTaskCount());
+		assertEquals(2, prefetcher.getPendingTileCount());
+
+		// ... so there is space for a new request
+		var next = new CountingServer(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB));
+		var prefetch = prefetcher.prefetch(next, Collections.singletonList(RegionRequest.createInstance(next)));
+		assertEquals(1, prefetch.getTileCount());
+
+		blocking.release.countDown();
+		awaitDone(running);
+		awaitDone(prefetch);
+		assertEquals(0, stale1.readCount.get());
+		assertEquals(1, next.readCount.get());
+		assertEquals(0, prefetcher.getPendingTileCount());
+	}
+
+}
@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.measurements;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestColumnarMeasurementStore {
+
+	@Test
+	public void test_list() {
+		var store = ColumnarMeasurementStore.create(10);
+		for (int i = 0; i < store.nRows(); i++)
+			TestMeasurementListFactory.testList(store.getMeasurementList(i));
+
+		// Lists are cleared at the end of the test, so all values should be missing
+		for (String name : store.getColumnNames()) {
+			for (float v : store.getColumn(name))
+				assertTrue(Float.isNaN(v));
+		}
+	}
+
+	@Test
+	public void test_pack() throws Exception {
+		List<PathObject> pathObjects = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			var pathObject = PathObjects.createDetectionObject(ROIs.createRectangleROI(i, i, 10, 10, ImagePlane.getDefaultPlane()));
+			try (var ml = pathObject.getMeasurementList()) {
+				ml.putMeasurement("Index", i);
+				if (i % 2 == 0)
+					ml.putMeasurement("Even", 1);
+			}
+			pathObjects.add(pathObject);
+		}
+		// Objects without measurements aren't packed
+		pathObjects.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(0, 0, 10, 10, ImagePlane.getDefaultPlane())));
+
+		var store = PathObjectTools.packMeasurements(pathObjects);
+		assertEquals(100, store.nRows());
+		assertEquals(Arrays.asList("Index", "Even"), store.getColumnNames());
+		assertFalse(pathObjects.get(100).hasMeasurements());
+
+		float[] index = store.getColumn("Index");
+		float[] even = store.getColumn("Even");
+		for (int i = 0; i < 100; i++) {
+			var ml = pathObjects.get(i).getMeasurementList();
+			assertEquals(i, ml.getMeasurementValue("Index"));
+			assertEquals(i, index[i]);
+			assertEquals(i % 2 == 0, ml.containsNamedMeasurement("Even"));
+			assertEquals(i % 2 == 0, !Float.isNaN(even[i]));
+		}
+
+		// Changes to the objects should be reflected in the store
+		var ml = pathObjects.get(1).getMeasurementList();
+		ml.putMeasurement("Index", 1000);
+		ml.putMeasurement("Other", 5);
+		ml.removeMeasurements("Index");
+		assertEquals(Arrays.asList("Other"), ml.getMeasurementNames());
+		assertTrue(Double.isNaN(store.getValue(1, "Index")));
+		assertEquals(5, store.getValue(1, "Other"));
+		assertEquals(Arrays.asList("Index", "Even", "Other"), store.getColumnNames());
+
+		// Other objects with the same measurements are unaffected
+		assertEquals(3, pathObjects.get(3).getMeasurementList().getMeasurementValue("Index"));
+		assertEquals(1, pathObjects.get(3).getMeasurementList().size());
+
+		// Serialized lists should be independent of the store
+		var bytes = new ByteArrayOutputStream();
+		try (var stream = new ObjectOutputStream(bytes)) {
+			stream.writeObject(pathObjects.get(2).getMeasurementList());
+		}
+		try (var stream = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			var list = (MeasurementList)stream.readObject();
+			assertNotEquals(pathObjects.get(2).getMeasurementList().getClass(), list.getClass());
+			assertEquals(Arrays.asList("Index", "Even"), list.getMeasurementNames());
+			assertEquals(2, list.getMeasurementValue("Index"));
+		}
+	}
+
+	@Test
+	public void test_dynamic() {
+		var store = ColumnarMeasurementStore.create(1);
+		var list = store.getMeasurementList(0);
+		assertFalse(list.supportsDynamicMeasurements());
+		var dynamic = new Measurement() {
+			@Override
+			public String getName() {
+				return "Dynamic";
+			}
+			@Override
+			public double getValue() {
+				return 1.0;
+			}
+			@Override
+			public boolean isDynamic() {
+				return true;
+			}
+		};
+		assertThrows(UnsupportedOperationException.class, () -> list.putMeasurement(dynamic));
+		assertThrows(IndexOutOfBoundsException.class, () -> store.getMeasurementList(1));
+	}
+
+}
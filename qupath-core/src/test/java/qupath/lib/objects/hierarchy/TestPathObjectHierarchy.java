@@ -30,8 +30,12 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.Test;
 
@@ -380,6 +384,88 @@ public class TestPathObjectHierarchy {
 	}
 	
 	
+	@Test
+	public void test_insertDetectionsInBulk() {
+		var plane = ImagePlane.getDefaultPlane();
+		var annotationROIs = Arrays.asList(
+				ROIs.createRectangleROI(0, 0, 500, 500, plane),
+				ROIs.createRectangleROI(100, 100, 200, 200, plane),
+				ROIs.createEllipseROI(400, 400, 300, 300, plane)
+				);
+		var rand = new Random(100L);
+		List<ROI> detectionROIs = new ArrayList<>();
+		for (int i = 0; i < 2000; i++)
+			detectionROIs.add(ROIs.createRectangleROI(rand.nextDouble() * 800, rand.nextDouble() * 800, 5, 5, plane));
+		
+		var hierarchySingle = new PathObjectHierarchy();
+		var hierarchyBulk = new PathObjectHierarchy();
+		for (var hierarchy : Arrays.asList(hierarchySingle, hierarchyBulk)) {
+			for (int i = 0; i < annotationROIs.size(); i++) {
+				var annotation = PathObjects.createAnnotationObject(annotationROIs.get(i));
+				annotation.setName("Annotation " + i);
+				hierarchy.insertPathObject(annotation, true);
+			}
+		}
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < detectionROIs.size(); i++) {
+			var detection = PathObjects.createDetectionObject(detectionROIs.get(i));
+			detection.setName("Detection " + i);
+			hierarchySingle.insertPathObject(detection, true);
+			detection = PathObjects.createDetectionObject(detectionROIs.get(i));
+			detection.setName("Detection " + i);
+			detections.add(detection);
+		}
+		assertTrue(hierarchyBulk.insertPathObjects(detections));
+		
+		// Parents should be the same whether detections are inserted one at a time or together
+		var parentsSingle = new HashMap<String, String>();
+		for (var detection : hierarchySingle.getDetectionObjects())
+			parentsSingle.put(detection.getName(), detection.getParent().getName());
+		var parentsBulk = new HashMap<String, String>();
+		for (var detection : hierarchyBulk.getDetectionObjects())
+			parentsBulk.put(detection.getName(), detection.getParent().getName());
+		assertEquals(parentsSingle.size(), detectionROIs.size());
+		assertEquals(parentsSingle, parentsBulk);
+		assertEquals(new HashSet<>(parentsBulk.values()).size(), annotationROIs.size() + 1);
+		assertEquals(hierarchySingle.nObjects(), hierarchyBulk.nObjects());
+	}
+	
+	
+	@Test
+	public void test_readWhileChanging() throws Exception {
+		var hierarchy = new PathObjectHierarchy();
+		hierarchy.addPathObject(PathObjects.createAnnotationObject(
+				ROIs.createRectangleROI(0, 0, 1000, 1000, ImagePlane.getDefaultPlane())));
+		assertEquals(hierarchy.nObjects(), 1);
+		
+		// Reading from another thread while listeners are notified shouldn't need to wait for listeners to complete,
+		// and should show the change that the event describes
+		var pool = Executors.newSingleThreadExecutor();
+		List<Integer> counts = new ArrayList<>();
+		hierarchy.addPathObjectListener(event -> {
+			try {
+				counts.add(pool.submit(() -> hierarchy.getDetectionObjects().size()).get(10, TimeUnit.SECONDS));
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		List<PathObject> detections = new ArrayList<>();
+		for (int i = 0; i < 10; i++)
+			detections.add(PathObjects.createDetectionObject(
+					ROIs.createRectangleROI(i * 10, i * 10, 5, 5, ImagePlane.getDefaultPlane())));
+		hierarchy.addPathObjects(detections);
+		var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI(500, 500, 5, 5, ImagePlane.getDefaultPlane()));
+		hierarchy.addPathObject(detection);
+		hierarchy.removeObject(detection, false);
+		pool.shutdown();
+		
+		assertEquals(counts, Arrays.asList(10, 11, 10));
+		assertEquals(hierarchy.nObjects(), 11);
+		assertEquals(hierarchy.getFlattenedObjectList(null).size(), 12);
+		assertEquals(hierarchy.getDetectionObjects().size(), 10);
+	}
+	
+	
 }
 
 // Helper classes for testing
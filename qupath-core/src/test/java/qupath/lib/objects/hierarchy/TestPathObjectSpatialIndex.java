@@ -0,0 +1,187 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.objects.hierarchy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestPathObjectSpatialIndex {
+
+	private static PathObject createDetection(Random rand) {
+		double x = rand.nextDouble() * 10000;
+		double y = rand.nextDouble() * 10000;
+		double w = 1 + rand.nextDouble() * 20;
+		double h = 1 + rand.nextDouble() * 20;
+		return PathObjects.createDetectionObject(ROIs.createRectangleROI(x, y, w, h, ImagePlane.getDefaultPlane()));
+	}
+
+	private static Set<PathObject> query(PathObjectSpatialIndex index, double x, double y, double w, double h) {
+		Set<PathObject> set = new HashSet<>();
+		index.visit(x, y, x + w, y + h, p -> {
+			var roi = p.getROI();
+			// Check exactly, since the index may return objects very slightly outside
+			if (roi.getBoundsX() <= x + w && roi.getBoundsY() <= y + h &&
+					roi.getBoundsX() + roi.getBoundsWidth() >= x && roi.getBoundsY() + roi.getBoundsHeight() >= y)
+				assertTrue(set.add(p));
+			return true;
+		});
+		return set;
+	}
+
+	private static Set<PathObject> queryBruteForce(Collection<PathObject> pathObjects, double x, double y, double w, double h) {
+		Set<PathObject> set = new HashSet<>();
+		for (var p : pathObjects) {
+			var roi = p.getROI();
+			if (roi.getBoundsX() <= x + w && roi.getBoundsY() <= y + h &&
+					roi.getBoundsX() + roi.getBoundsWidth() >= x && roi.getBoundsY() + roi.getBoundsHeight() >= y)
+				set.add(p);
+		}
+		return set;
+	}
+
+	private static void checkQueries(PathObjectSpatialIndex index, Collection<PathObject> expected, Random rand) {
+		assertEquals(expected.size(), index.size());
+		for (int i = 0; i < 100; i++) {
+			double x = rand.nextDouble() * 10000;
+			double y = rand.nextDouble() * 10000;
+			double w = rand.nextDouble() * 1000;
+			double h = rand.nextDouble() * 1000;
+			assertEquals(queryBruteForce(expected, x, y, w, h), query(index, x, y, w, h));
+		}
+		Set<PathObject> all = new HashSet<>();
+		index.visitAll(p -> all.add(p));
+		assertEquals(new HashSet<>(expected), all);
+	}
+
+	@Test
+	public void test_bulkLoad() {
+		var rand = new Random(100L);
+		List<PathObject> pathObjects = new ArrayList<>();
+		for (int i = 0; i < 10000; i++)
+			pathObjects.add(createDetection(rand));
+		var index = new PathObjectSpatialIndex(pathObjects);
+		checkQueries(index, pathObjects, rand);
+
+		// Empty index
+		index = new PathObjectSpatialIndex(Collections.emptyList());
+		assertEquals(0, index.size());
+		assertTrue(index.visit(0, 0, 10000, 10000, p -> false));
+	}
+
+	@Test
+	public void test_insertRemove() {
+		var rand = new Random(100L);
+		List<PathObject> pathObjects = new ArrayList<>();
+		for (int i = 0; i < 5000; i++)
+			pathObjects.add(createDetection(rand));
+		var index = new PathObjectSpatialIndex(pathObjects);
+
+		// Insert enough objects to require the tree to be rebuilt
+		for (int i = 0; i < 3000; i++) {
+			var pathObject = createDetection(rand);
+			pathObjects.add(pathObject);
+			index.insert(pathObject);
+		}
+		checkQueries(index, pathObjects, rand);
+
+		// Remove objects, both from the tree and those recently inserted
+		Collections.shuffle(pathObjects, rand);
+		for (int i = 0; i < 4000; i++)
+			assertTrue(index.remove(pathObjects.remove(pathObjects.size() - 1)));
+		assertFalse(index.remove(createDetection(rand)));
+		checkQueries(index, pathObjects, rand);
+	}
+
+	@Test
+	public void test_removeWithoutSearch() {
+		var rand = new Random(100L);
+		List<PathObject> pathObjects = new ArrayList<>();
+		for (int i = 0; i < 2000; i++)
+			pathObjects.add(createDetection(rand));
+		var index = new PathObjectSpatialIndex(pathObjects);
+
+		// Objects should be found within their bounds, with or without a full search
+		assertTrue(index.remove(pathObjects.remove(0), false));
+		assertFalse(index.remove(createDetection(rand), false));
+
+		// An object whose ROI has changed can only be found with a full search
+		var moved = pathObjects.get(0);
+		moved.setROI(ROIs.createRectangleROI(20000, 20000, 5, 5, ImagePlane.getDefaultPlane()));
+		assertFalse(index.remove(moved, false));
+		assertTrue(index.remove(moved, true));
+		pathObjects.remove(0);
+		assertEquals(pathObjects.size(), index.size());
+	}
+
+	@Test
+	public void test_hilbertOrder() {
+		// Use empty bounds spanning the full grid, so that object coordinates are used directly
+		var rand = new Random(100L);
+		var plane = ImagePlane.getDefaultPlane();
+		List<PathObject> pathObjects = new ArrayList<>();
+		pathObjects.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(0, 0, 0, 0, plane)));
+		pathObjects.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(65535, 65535, 0, 0, plane)));
+		for (int i = 0; i < 5000; i++) {
+			int x = rand.nextInt(65536);
+			int y = rand.nextInt(65536);
+			pathObjects.add(PathObjects.createDetectionObject(ROIs.createRectangleROI(x, y, 0, 0, plane)));
+		}
+		var index = new PathObjectSpatialIndex(pathObjects);
+
+		// Objects should be visited along the full curve, including values that use the highest bit
+		List<Long> values = new ArrayList<>();
+		index.visitAll(p -> values.add(Integer.toUnsignedLong(
+				PathObjectSpatialIndex.hilbert((int)p.getROI().getBoundsX(), (int)p.getROI().getBoundsY()))));
+		assertTrue(values.stream().anyMatch(v -> v > Integer.MAX_VALUE));
+		for (int i = 1; i < values.size(); i++)
+			assertTrue(values.get(i) >= values.get(i-1));
+	}
+
+	@Test
+	public void test_hilbert() {
+		// Each grid location should have a different position along the curve
+		Set<Integer> values = new HashSet<>();
+		for (int y = 0; y < 256; y++) {
+			for (int x = 0; x < 256; x++)
+				values.add(PathObjectSpatialIndex.hilbert(x << 8, y << 8));
+		}
+		assertEquals(256 * 256, values.size());
+	}
+
+}
@@ -0,0 +1,177 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+
+package qupath.lib.plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.servers.TilePrefetcher;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.AbstractTileableDetectionPlugin.ParallelDetectionTileManager;
+import qupath.lib.plugins.ParallelTileObject.Status;
+import qupath.lib.plugins.TilePipelineMetrics.Stage;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+
+@SuppressWarnings("javadoc")
+public class TestParallelDetectionTileManager {
+
+	/**
+	 * Server with its own tile cache, which counts the number of tiles read and can block while reading.
+	 */
+	static class BlockingServer extends WrappedBufferedImageServer {
+
+		private final Map<RegionRequest, BufferedImage> cache = new ConcurrentHashMap<>();
+		private final AtomicInteger readCount = new AtomicInteger();
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release;
+
+		BlockingServer(String name, boolean block) {
+			super(name, new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB));
+			release = new CountDownLatch(block ? 1 : 0);
+		}
+
+		@Override
+		protected Map<RegionRequest, BufferedImage> getCache() {
+			return cache;
+		}
+
+		@Override
+		protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
+			readCount.incrementAndGet();
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.readTile(tileRequest);
+		}
+
+	}
+
+	private static List<ParallelTileObject> createTiles(ParallelDetectionTileManager manager, PathObjectHierarchy hierarchy) {
+		var plane = ImagePlane.getDefaultPlane();
+		var countdown = new AtomicInteger(2);
+		List<ParallelTileObject> tiles = new ArrayList<>();
+		tiles.add(new ParallelTileObject(manager, ROIs.createRectangleROI(0, 0, 128, 256, plane), hierarchy, countdown));
+		tiles.add(new ParallelTileObject(manager, ROIs.createRectangleROI(128, 0, 128, 256, plane), hierarchy, countdown));
+		manager.setTiles(tiles);
+		return tiles;
+	}
+
+	@Test
+	public void test_queuedReadsNotAwaited() throws Exception {
+		var reader = new TilePrefetcher("test-read-", 1, 100, Thread.NORM_PRIORITY);
+
+		// Occupy the only read thread
+		var busy = new BlockingServer("Busy", true);
+		var busyPrefetch = reader.prefetch(busy, Collections.singletonList(RegionRequest.createInstance(busy)));
+		assertTrue(busy.started.await(10, TimeUnit.SECONDS));
+
+		var server = new BlockingServer("Image", false);
+		var parent = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 256, 256, ImagePlane.getDefaultPlane()));
+		var hierarchy = new PathObjectHierarchy();
+		hierarchy.addPathObject(parent);
+		var metrics = new TilePipelineMetrics();
+		var manager = new ParallelDetectionTileManager(parent, metrics, reader);
+		var tiles = createTiles(manager, hierarchy);
+		manager.setPrefetch(server, 1.0);
+		assertEquals(2, metrics.getStage(Stage.READ).getQueueDepth());
+		assertEquals(2, metrics.getStage(Stage.DETECT).getQueueDepth());
+
+		// Detection shouldn't wait for a read that is stuck in the queue, since it can read the pixels itself
+		var tile = tiles.get(0);
+		tile.updateStatus(Status.PROCESSING);
+		assertEquals(1, metrics.getStage(Stage.DETECT).getQueueDepth());
+		var pool = Executors.newSingleThreadExecutor();
+		try {
+			pool.submit(() -> manager.awaitPixels(tile)).get(10, TimeUnit.SECONDS);
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals(1, metrics.getStage(Stage.READ).getQueueDepth());
+		assertEquals(0, server.readCount.get());
+
+		busy.release.countDown();
+		busyPrefetch.getCompletion().get(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void test_mergeWhenComplete() throws Exception {
+		var reader = new TilePrefetcher("test-read-", 1, 100, Thread.NORM_PRIORITY);
+		var server = new BlockingServer("Image", false);
+		var plane = ImagePlane.getDefaultPlane();
+		var parent = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 256, 256, plane));
+		var hierarchy = new PathObjectHierarchy();
+		hierarchy.addPathObject(parent);
+		var metrics = new TilePipelineMetrics();
+		var manager = new ParallelDetectionTileManager(parent, metrics, reader);
+		var tiles = createTiles(manager, hierarchy);
+		manager.setPrefetch(server, 1.0);
+
+		List<PathObject> detections = new ArrayList<>();
+		for (var tile : tiles) {
+			tile.updateStatus(Status.PROCESSING);
+			manager.awaitPixels(tile);
+			var detection = PathObjects.createDetectionObject(ROIs.createRectangleROI(
+					tile.getROI().getBoundsX() + 10, 10, 20, 20, plane));
+			tile.addPathObject(detection);
+			detections.add(detection);
+		}
+		// Pixels are shared by both tiles, so should be read at most once
+		assertTrue(server.readCount.get() <= 1);
+
+		// Detections should only be added to the parent once all tiles are complete
+		tiles.get(0).setComplete(false);
+		assertFalse(parent.getChildObjects().containsAll(detections));
+		assertEquals(1, metrics.getStage(Stage.MERGE).getQueueDepth());
+		tiles.get(1).setComplete(false);
+		assertEquals(detections.size(), parent.nChildObjects());
+		assertTrue(parent.getChildObjects().containsAll(detections));
+		assertEquals(0, metrics.getStage(Stage.MERGE).getQueueDepth());
+		assertEquals(1, metrics.getStage(Stage.MERGE).getCount());
+		assertEquals(2, metrics.getStage(Stage.DETECT).getCount());
+	}
+
+}
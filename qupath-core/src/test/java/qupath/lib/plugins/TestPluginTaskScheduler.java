@@ -0,0 +1,126 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+@SuppressWarnings("javadoc")
+public class TestPluginTaskScheduler {
+
+	@Test
+	public void test_priorities() throws Exception {
+		var scheduler = new PluginTaskScheduler(1);
+		var started = new CountDownLatch(1);
+		var release = new CountDownLatch(1);
+		var done = new CountDownLatch(7);
+		List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+		// Block the only thread until everything else has been submitted
+		var blocker = scheduler.createTaskGroup("Blocker", PluginTaskScheduler.NORM_PRIORITY);
+		blocker.execute(() -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			done.countDown();
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		var first = scheduler.createTaskGroup("First", PluginTaskScheduler.NORM_PRIORITY);
+		var second = scheduler.createTaskGroup("Second", PluginTaskScheduler.NORM_PRIORITY);
+		var high = scheduler.createTaskGroup("High", PluginTaskScheduler.NORM_PRIORITY + 1);
+		for (String name : Arrays.asList("b1", "b2"))
+			second.execute(() -> {order.add(name); done.countDown();});
+		for (String name : Arrays.asList("a1", "a2"))
+			first.execute(() -> {order.add(name); done.countDown();});
+		for (String name : Arrays.asList("h1", "h2"))
+			high.execute(() -> {order.add(name); done.countDown();});
+		assertEquals(6, scheduler.getQueuedTaskCount());
+
+		release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		// Higher priority first, then earlier groups, then earlier tasks
+		assertEquals(Arrays.asList("h1", "h2", "a1", "a2", "b1", "b2"), order);
+	}
+
+	@Test
+	public void test_concurrentGroups() throws Exception {
+		var scheduler = new PluginTaskScheduler(4);
+		int nGroups = 8;
+		int nTasks = 100;
+		var count = new AtomicInteger();
+		var threads = new ArrayList<Thread>();
+		var schedulerThread = new AtomicBoolean(true);
+		for (int g = 0; g < nGroups; g++) {
+			var group = scheduler.createTaskGroup("Group " + g, PluginTaskScheduler.NORM_PRIORITY);
+			var thread = new Thread(() -> {
+				var service = new ExecutorCompletionService<Integer>(group);
+				for (int i = 0; i < nTasks; i++)
+					service.submit(() -> {
+						if (!PluginTaskScheduler.isSchedulerThread())
+							schedulerThread.set(false);
+						count.incrementAndGet();
+					}, i);
+				try {
+					for (int i = 0; i < nTasks; i++)
+						service.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (var thread : threads)
+			thread.join(10_000);
+		assertEquals(nGroups * nTasks, count.get());
+		assertTrue(schedulerThread.get());
+		assertFalse(PluginTaskScheduler.isSchedulerThread());
+		assertEquals(0, scheduler.getQueuedTaskCount());
+
+		// Changing the parallelism shouldn't lose any tasks
+		scheduler.setParallelism(2);
+		assertEquals(2, scheduler.getParallelism());
+		var done = new CountDownLatch(10);
+		var group = scheduler.createTaskGroup("After", PluginTaskScheduler.NORM_PRIORITY);
+		for (int i = 0; i < 10; i++)
+			group.execute(done::countDown);
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+
+}
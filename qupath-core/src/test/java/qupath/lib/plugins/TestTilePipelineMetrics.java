@@ -0,0 +1,64 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.plugins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.plugins.TilePipelineMetrics.Stage;
+
+@SuppressWarnings("javadoc")
+public class TestTilePipelineMetrics {
+
+	@Test
+	public void test_stages() {
+		var metrics = new TilePipelineMetrics();
+		assertTrue(Double.isNaN(metrics.getReadWaitFraction()));
+		
+		var detect = metrics.getStage(Stage.DETECT);
+		for (int i = 0; i < 5; i++)
+			detect.queued();
+		detect.dequeued();
+		detect.dequeued();
+		assertEquals(3, detect.getQueueDepth());
+		assertEquals(5, detect.getMaxQueueDepth());
+		assertTrue(Double.isNaN(detect.getMeanMillis()));
+
+		detect.record(2_000_000);
+		detect.record(4_000_000);
+		assertEquals(2, detect.getCount());
+		assertEquals(6.0, detect.getTotalMillis(), 1e-6);
+		assertEquals(3.0, detect.getMeanMillis(), 1e-6);
+		assertEquals(4.0, detect.getMaxMillis(), 1e-6);
+
+		// Stages are independent
+		assertEquals(0, metrics.getStage(Stage.READ).getCount());
+		assertEquals(0, metrics.getStage(Stage.MERGE).getMaxQueueDepth());
+
+		metrics.recordReadWait(2_000_000);
+		assertEquals(2.0, metrics.getReadWaitMillis(), 1e-6);
+		assertEquals(0.25, metrics.getReadWaitFraction(), 1e-6);
+	}
+
+}
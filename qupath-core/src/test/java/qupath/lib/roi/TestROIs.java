@@ -31,6 +31,7 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -230,6 +231,104 @@ public class TestROIs {
 	}
 	
 	
+	/**
+	 * Compare compact polygons with standard polygons, including when the coordinates are large.
+	 */
+	@Test
+	public void testCompactPolygons() {
+		var plane = ImagePlane.getPlane(1, 2);
+		for (double offset : new double[] {0, 1000.5, 123456.75}) {
+			// Approximate a circle, with coordinates at a precision that can be stored exactly
+			List<Point2> points = new ArrayList<>();
+			int n = 50;
+			for (int i = 0; i < n; i++) {
+				double theta = 2 * Math.PI * i / n;
+				points.add(new Point2(
+						offset + Math.round((20 + 15 * Math.cos(theta)) * 4) / 4.0,
+						offset / 2 + Math.round((30 + 10 * Math.sin(theta)) * 4) / 4.0));
+			}
+			var polygon = ROIs.createPolygonROI(points, plane);
+			var compact = ROIs.createCompactPolygonROI(points, plane);
+			assertTrue(compact instanceof PackedPolygonROI);
+			assertEquals(polygon.getImagePlane(), compact.getImagePlane());
+			testEqualPolygonPoints(polygon, compact, 0.0);
+
+			double delta = 1e-3;
+			assertEquals(polygon.getBoundsX(), compact.getBoundsX(), delta);
+			assertEquals(polygon.getBoundsY(), compact.getBoundsY(), delta);
+			assertEquals(polygon.getBoundsWidth(), compact.getBoundsWidth(), delta);
+			assertEquals(polygon.getBoundsHeight(), compact.getBoundsHeight(), delta);
+			assertEquals(polygon.getArea(), compact.getArea(), delta);
+			assertEquals(polygon.getScaledArea(0.5, 2.0), compact.getScaledArea(0.5, 2.0), delta);
+			assertEquals(polygon.getLength(), compact.getLength(), delta);
+			assertEquals(polygon.getScaledLength(0.5, 2.0), compact.getScaledLength(0.5, 2.0), delta);
+			assertEquals(polygon.nVertices(), compact.nVertices());
+			// Standard polygons store centroids as floats, so compare with values computed in double precision
+			double[] expected = computeAreaAndCentroid(points);
+			assertEquals(expected[0], compact.getArea(), 1e-6);
+			assertEquals(expected[1], compact.getCentroidX(), 1e-6);
+			assertEquals(expected[2], compact.getCentroidY(), 1e-6);
+			assertEquals(polygon.getGeometry().getArea(), compact.getGeometry().getArea(), 0.5);
+			assertTrue(compact.contains(compact.getCentroidX(), compact.getCentroidY()));
+
+			// Creating from coordinate arrays should give the same polygon
+			float[] x = new float[n];
+			float[] y = new float[n];
+			for (int i = 0; i < n; i++) {
+				x[i] = (float)points.get(i).getX();
+				y[i] = (float)points.get(i).getY();
+			}
+			testEqualPolygonPoints(compact, ROIs.createCompactPolygonROI(x, y, plane), 0.0);
+
+			// Translated polygons should remain compact
+			var translated = compact.translate(10.5, -5);
+			assertTrue(translated instanceof PackedPolygonROI);
+			testEqualPolygonPoints(polygon.translate(10.5, -5), translated, 1e-3);
+
+			// Serialization should preserve the compact representation
+			var compact2 = (ROI)objectFromBytes(objectToBytes(compact));
+			assertTrue(compact2 instanceof PackedPolygonROI);
+			testEqualPolygonPoints(compact, compact2, 0.0);
+			assertEquals(compact.getImagePlane(), compact2.getImagePlane());
+		}
+
+		// Coordinates are rounded to a fixed precision
+		var compact = ROIs.createCompactPolygonROI(
+				List.of(new Point2(0.1, 0.1), new Point2(10.1, 0.1), new Point2(10.1, 10.1)), plane);
+		assertEquals(50.0, compact.getArea(), 0.01);
+		assertEquals(0.1, compact.getBoundsX(), 1.0/PackedVertices.SCALE);
+
+		// Large polygons need more bits per coordinate
+		compact = ROIs.createCompactPolygonROI(
+				List.of(new Point2(0, 0), new Point2(100000, 0), new Point2(100000, 100000), new Point2(0, 100000)), plane);
+		assertTrue(compact instanceof PackedPolygonROI);
+		assertEquals(1e10, compact.getArea(), 1.0);
+		assertEquals(100000, compact.getBoundsWidth(), 0.0);
+	}
+	
+	
+	/**
+	 * Compute the area and centroid of a polygon, relative to its first point to avoid precision problems.
+	 * @return an array containing the area, centroid x and centroid y
+	 */
+	private static double[] computeAreaAndCentroid(List<Point2> points) {
+		double x = points.get(0).getX();
+		double y = points.get(0).getY();
+		double area2 = 0, cx = 0, cy = 0;
+		for (int i = 0; i < points.size(); i++) {
+			var p0 = points.get(i);
+			var p1 = points.get((i + 1) % points.size());
+			double x0 = p0.getX() - x, y0 = p0.getY() - y;
+			double x1 = p1.getX() - x, y1 = p1.getY() - y;
+			double cross = x0 * y1 - x1 * y0;
+			area2 += cross;
+			cx += (x0 + x1) * cross;
+			cy += (y0 + y1) * cross;
+		}
+		return new double[] {Math.abs(area2) / 2.0, x + cx / (3 * area2), y + cy / (3 * area2)};
+	}
+	
+	
 	private static void testEqualPolygonPoints(ROI roi1, ROI roi2, double tolerance) {
 		List<Point2> p1 = roi1.getAllPoints();
 		List<Point2> p2 = roi2.getAllPoints();
@@ -742,6 +742,14 @@ public class BioFormatsImageServer extends AbstractTileableImageServer {
 		return Collections.singletonList(uri);
 	}
 	
+	/**
+	 * Decoding tiles can be slow for some formats (e.g. JPEG2000), so cache them on disk if possible.
+	 */
+	@Override
+	protected boolean isDiskCacheable() {
+		return true;
+	}
+	
 	@Override
 	public String createID() {
 		String id = getClass().getSimpleName() + ": " + uri.toString();
@@ -265,6 +265,14 @@ public class OmeroWebImageServer extends AbstractTileableImageServer implements
 		return Collections.singletonList(uri);
 	}
 
+	/**
+	 * Tiles are requested over the network, so are cached on disk if possible.
+	 */
+	@Override
+	protected boolean isDiskCacheable() {
+		return true;
+	}
+
 	
 	/**
 	 * Retrieve any ROIs stored with this image as annotation objects.
@@ -681,13 +681,12 @@ public class StarDist2D {
 			var server2 = builder.build();
 			double downsample = resolution.getAveragedPixelSize().doubleValue() / cal.getAveragedPixelSize().doubleValue();
 			
-			detections.parallelStream().forEach(cell -> {
-				try {
-					ObjectMeasurements.addIntensityMeasurements(server2, cell, downsample, measurements, compartments);					
-				} catch (IOException e) {
-					log(e.getLocalizedMessage(), e);
-				}
-			});
+			// If a tile can't be read, only the cells it contains are left without intensity measurements
+			try {
+				ObjectMeasurements.addIntensityMeasurements(server2, detections, downsample, measurements, compartments);
+			} catch (IOException e) {
+				log(e.getLocalizedMessage(), e);
+			}
 			
 		}
 		
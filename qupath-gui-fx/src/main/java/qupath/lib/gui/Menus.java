@@ -249,6 +249,10 @@ class Menus {
 		@ActionDescription("Unmix the image with manually set values")
 		@ActionMenu("Unmix...>Manual Unmix")
 		public final Action MANUAL_UNMIX = qupath.createImageDataAction(imageData -> ManualUnmixingDialog.createManualUnmix(qupath));
+		@ActionDescription("Unmix every image in the current project, writing the results alongside each project entry. "
+				+ "Images that have already been unmixed with the same settings are skipped, so that a cancelled run can be resumed.")
+		@ActionMenu("Unmix...>Batch Unmix Project")
+		public final Action BATCH_UNMIX = qupath.createProjectAction(project -> BatchUnmixingCommand.createBatchUnmix(qupath));
 
 //		@Deprecated
 //		public final Action SHAPE_FEATURES = qupath.createPluginAction("Add shape features", ShapeFeaturesPlugin.class, null);
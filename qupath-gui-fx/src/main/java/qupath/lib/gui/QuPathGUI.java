@@ -196,6 +196,7 @@ import qupath.lib.gui.viewer.tools.PathTool;
 import qupath.lib.gui.viewer.tools.PathTools;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.ImageData.ImageType;
+import qupath.lib.images.servers.DiskTileCache;
 import qupath.lib.images.servers.ImageServer;
 import qupath.lib.images.servers.ImageServerBuilder;
 import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
@@ -794,6 +795,9 @@ public class QuPathGUI {
 		});
 		
 		ImageServerProvider.setCache(imageRegionStore.getCache(), BufferedImage.class);
+		initializeDiskTileCache();
+		ImageServers.setPersistentPyramidSize(getPyramidCacheSizeBytes());
+		PathPrefs.pyramidCacheSizeGBProperty().addListener((v, o, n) -> ImageServers.setPersistentPyramidSize(getPyramidCacheSizeBytes()));
 		
 		this.stage = stage;
 		this.isStandalone = isStandalone;
@@ -4166,6 +4170,35 @@ public class QuPathGUI {
 	
 	
 	
+	/**
+	 * Calculate the maximum size of the persistent pyramid cache based upon the user preferences.
+	 * @return pyramid cache size in bytes, or 0 if pyramids should not be persisted
+	 */
+	private static long getPyramidCacheSizeBytes() {
+		double sizeGB = PathPrefs.pyramidCacheSizeGBProperty().get();
+		return sizeGB > 0 ? (long)(sizeGB * 1024L * 1024L * 1024L) : 0L;
+	}
+	
+	/**
+	 * Open the persistent tile cache, if it has been enabled in the preferences.
+	 */
+	private static void initializeDiskTileCache() {
+		double sizeGB = PathPrefs.diskTileCacheSizeGBProperty().get();
+		if (!(sizeGB > 0))
+			return;
+		String userPath = PathPrefs.getUserPath();
+		Path dir = userPath == null ? Paths.get(System.getProperty("java.io.tmpdir"), "qupath-tile-cache") : Paths.get(userPath, "tile-cache");
+		try {
+			var diskCache = DiskTileCache.open(dir, (long)(sizeGB * 1024L * 1024L * 1024L));
+			ImageServerProvider.setDiskCache(diskCache);
+			Runtime.getRuntime().addShutdownHook(new Thread(diskCache::close));
+			logger.info("Disk tile cache: {} ({} MB used)", dir, diskCache.getSizeBytes() / (1024 * 1024));
+		} catch (IOException e) {
+			logger.warn("Unable to open disk tile cache: {}", e.getLocalizedMessage());
+			logger.debug(e.getLocalizedMessage(), e);
+		}
+	}
+	
 	/**
 	 * Calculate the appropriate tile cache size based upon the user preferences.
 	 * @return tile cache size in bytes
@@ -17,7 +17,7 @@ public class AutoUnmixingDialog {
             try {
                 File file = Dialogs.promptForFile("Select indirect data csv file", null, null);
                 proportionArray = DuplicateMatrixCommand.readCSV(file.toString(), proportionArray);
-                ImageData newImageData = AutoUnmixing.unmixAll_Crossed(qupath.getImageData(), proportionArray);
+                ImageData newImageData = AutoUnmixing.unmixAll_Tiled(qupath.getImageData(), proportionArray);
                 qupath.getViewer().setImageData(newImageData);
                 File exportDirectory = Dialogs.promptForDirectory(null);
                 String filePath = exportDirectory.toString();
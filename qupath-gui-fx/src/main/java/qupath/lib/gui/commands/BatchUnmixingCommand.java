@@ -0,0 +1,159 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.commands;
+
+import javafx.concurrent.Task;
+import javafx.event.ActionEvent;
+import javafx.scene.control.ButtonType;
+import org.controlsfx.dialog.ProgressDialog;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.BatchUnmixing;
+import qupath.lib.common.UnmixingPanel;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.dialogs.Dialogs;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command to unmix every image in the current project using {@link BatchUnmixing}.
+ * The unmixed images are written as pyramidal OME-TIFFs in the directory for each project entry.
+ */
+public class BatchUnmixingCommand {
+
+    private final static Logger logger = LoggerFactory.getLogger(BatchUnmixingCommand.class);
+
+    private static final String TITLE = "Batch unmixing";
+
+    //owner of the single-thread executor used to run batches, so that they don't block QuPath's short tasks
+    private static final BatchUnmixingCommand EXECUTOR_OWNER = new BatchUnmixingCommand();
+
+    public static void createBatchUnmix(QuPathGUI qupath) {
+        var project = qupath.getProject();
+        if(project == null) {
+            Dialogs.showNoProjectError(TITLE);
+            return;
+        }
+        File file = Dialogs.promptForFile("Select indirect data csv file", null, null);
+        if(file == null) {
+            Dialogs.showErrorMessage(TITLE, "No file was chosen");
+            return;
+        }
+        double[][] proportionArray = DuplicateMatrixCommand.readCSV(file.toString(), new double[7][43]);
+
+        UnmixingPanel panel = UnmixingPanel.getCrossedPanel();
+        if(Dialogs.showYesNoDialog(TITLE, "Read the fluorophore panel from a JSON file?\nOtherwise the default (crossed) panel will be used.")) {
+            File filePanel = Dialogs.promptForFile("Select unmixing panel", null, "Unmixing panel", ".json");
+            if(filePanel == null) {
+                return;
+            }
+            try {
+                panel = UnmixingPanel.readPanel(filePanel.toPath());
+            } catch(IOException e) {
+                Dialogs.showErrorMessage(TITLE, e);
+                return;
+            }
+        }
+
+        var entries = project.getImageList();
+        var job = new BatchUnmixing(proportionArray, panel);
+        int nAlreadyComplete = (int)entries.stream().filter(job::isComplete).count();
+        String message = "Unmix " + entries.size() + " images?";
+        if(nAlreadyComplete > 0) {
+            message += "\n" + nAlreadyComplete + " have already been unmixed with the same settings and will be skipped.";
+        }
+        if(!Dialogs.showConfirmDialog(TITLE, message)) {
+            return;
+        }
+
+        var task = new BatchUnmixingTask(job, entries);
+        var progress = new ProgressDialog(task);
+        progress.initOwner(qupath.getStage());
+        progress.setTitle(TITLE);
+        progress.getDialogPane().setHeaderText("Unmixing project images...");
+        progress.getDialogPane().setGraphic(null);
+        progress.getDialogPane().getButtonTypes().add(ButtonType.CANCEL);
+        progress.getDialogPane().lookupButton(ButtonType.CANCEL).addEventFilter(ActionEvent.ACTION, e -> {
+            if(Dialogs.showYesNoDialog("Cancel batch unmixing", "Stop unmixing? Completed images will be skipped when the project is unmixed again.")) {
+                //let the task finish, so that the status of every image is still returned
+                job.cancel();
+                progress.setHeaderText("Cancelling...");
+                progress.getDialogPane().lookupButton(ButtonType.CANCEL).setDisable(true);
+            }
+            e.consume();
+        });
+        qupath.createSingleThreadExecutor(EXECUTOR_OWNER).submit(task);
+        progress.showAndWait();
+
+        var results = task.getValue();
+        if(results != null) {
+            long nFailed = results.values().stream().filter(s -> s == BatchUnmixing.Status.FAILED).count();
+            long nCancelled = results.values().stream().filter(s -> s == BatchUnmixing.Status.CANCELLED).count();
+            if(nFailed > 0) {
+                Dialogs.showWarningNotification(TITLE, nFailed + "/" + results.size() + " images could not be unmixed - see the log for details");
+            } else if(nCancelled > 0) {
+                Dialogs.showInfoNotification(TITLE, "Unmixing stopped with " + nCancelled + " images remaining");
+            } else {
+                Dialogs.showInfoNotification(TITLE, "Unmixing complete");
+            }
+        }
+    }
+
+    private static class BatchUnmixingTask extends Task<Map<ProjectImageEntry<BufferedImage>, BatchUnmixing.Status>> {
+
+        private final BatchUnmixing job;
+        private final List<ProjectImageEntry<BufferedImage>> entries;
+
+        BatchUnmixingTask(BatchUnmixing job, List<ProjectImageEntry<BufferedImage>> entries) {
+            this.job = job;
+            this.entries = entries;
+        }
+
+        @Override
+        protected Map<ProjectImageEntry<BufferedImage>, BatchUnmixing.Status> call() throws Exception {
+            int max = entries.size();
+            AtomicInteger count = new AtomicInteger();
+            updateProgress(0, max);
+            updateMessage("Unmixing " + max + " images");
+            job.listener((entry, status) -> {
+                int n = count.incrementAndGet();
+                logger.debug("{}: {}", entry.getImageName(), status);
+                updateMessage(entry.getImageName() + " (" + n + "/" + max + ")");
+                updateProgress(n, max);
+            });
+            return job.run(entries);
+        }
+
+        @Override
+        protected void cancelled() {
+            job.cancel();
+        }
+
+    }
+
+}
@@ -33,6 +33,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.concurrent.Task;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.event.EventHandler;
 import javafx.geometry.*;
@@ -51,7 +55,10 @@ import javafx.stage.Modality;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
 import qupath.lib.common.AutoUnmixing;
+import qupath.lib.common.ChannelCorrelation;
+import qupath.lib.common.DuplicateChannelSweep;
 import qupath.lib.common.RemoveDuplicate;
+import qupath.lib.common.UnmixingPlan;
 import qupath.lib.common.GeneralTools;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.dialogs.Dialogs;
@@ -60,6 +67,7 @@ import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.*;
 import qupath.lib.images.writers.ImageWriter;
 import qupath.lib.images.writers.ImageWriterTools;
+import qupath.lib.regions.RegionRequest;
 
 /**
  * Command to show a Duplicate Matrix widget to preview and decide which threshold
@@ -70,15 +78,17 @@ import qupath.lib.images.writers.ImageWriterTools;
  */
 public class DuplicateMatrixCommand implements Runnable {
 
+    private final static Logger logger = LoggerFactory.getLogger(DuplicateMatrixCommand.class);
+
     private QuPathGUI qupath;
     private QuPathViewer viewer;
 
     private Stage dialog;
 
     private float[][] duplicateMatrix;
-    private BufferedImage img;
     private Double confirmDouble = 0.0;
     double[] thresholdValues;
+    private DuplicateChannelSweep sweep;
     private float maxPixelIntensity = 0;
 
     public ImageData<BufferedImage> imageData;
@@ -137,6 +147,9 @@ public class DuplicateMatrixCommand implements Runnable {
     private static final double IMAGE_WIDTH = IMAGE_VBOX_WIDTH;
     private static final double IMAGE_HEIGHT = IMAGE_VBOX_HEIGHT - IMAGE_LABEL_HEIGHT - 25;
 
+    //maximum number of pixels used for the initial matrix, so that it can be shown quickly
+    private static final long PREVIEW_PIXELS = 1_000_000L;
+
     private static final String START_THRESHOLD = "0.90";
     private static final String START_CHANNEL = "7";
 
@@ -339,6 +352,35 @@ public class DuplicateMatrixCommand implements Runnable {
         return thresholdTextField;
     }
 
+    /**
+     * Update the threshold label to show the effect of the current value, i.e. the number of distinct channels
+     * for a threshold, or the threshold required for a number of channels.
+     *
+     * @param thresholdLabel
+     * @param text current contents of the threshold text field
+     * @param isChannels true if the text field contains a number of channels, false if it contains a threshold
+     */
+    protected void updateThresholdFeedback(Label thresholdLabel, String text, boolean isChannels) {
+        String prompt = isChannels ? "Please enter the required number of channels" : "Please enter a threshold value";
+        String feedback = "";
+        try {
+            if(isChannels) {
+                int nChannels = Integer.parseInt(text.trim());
+                if(nChannels >= 1 && nChannels <= sweep.nChannels()) {
+                    feedback = String.format(" (threshold %.3f)", sweep.getThresholdForChannels(nChannels));
+                }
+            } else {
+                double threshold = Double.parseDouble(text.trim());
+                if(threshold >= -1.0 && threshold <= 1.0) {
+                    feedback = String.format(" (%d channels)", sweep.getChannelCount(threshold));
+                }
+            }
+        } catch(NumberFormatException e) {
+            //leave the feedback empty until the value is valid
+        }
+        thresholdLabel.setText(prompt + feedback + ": ");
+    }
+
     protected Button createThresholdConfirm() {
         Button thresholdConfirm = new Button("Submit");
         thresholdConfirm.setPrefSize(THRESHOLD_BUTTONS_WIDTH, THRESHOLD_HEIGHT);
@@ -556,15 +598,20 @@ public class DuplicateMatrixCommand implements Runnable {
     }
 
     protected Button createMatrixButton(float[][] duplicateMatrix, int i, int j) {
-        String tempString = String.format("%.2f", duplicateMatrix[i][j]);
         //set buttons to be the corresponding matrix
-        Button tempButton = new Button(tempString);
+        Button tempButton = new Button();
         tempButton.setPrefSize(BUTTON_WIDTH, BUTTON_LABEL_HEIGHT);
         tempButton.setMaxSize(BUTTON_WIDTH, BUTTON_LABEL_HEIGHT);
         tempButton.setMinSize(BUTTON_WIDTH, BUTTON_LABEL_HEIGHT);
         tempButton.setTooltip(new Tooltip("Select which channels to compare images"));
         tempButton.setAlignment(Pos.CENTER_RIGHT);
-        String tempButtonColour = getHeatmapColour(duplicateMatrix[i][j]);
+        setMatrixButtonValue(tempButton, duplicateMatrix[i][j]);
+        return tempButton;
+    }
+
+    protected void setMatrixButtonValue(Button tempButton, float value) {
+        tempButton.setText(String.format("%.2f", value));
+        String tempButtonColour = getHeatmapColour(value);
         tempButton.setStyle("-fx-border-color: #000000; -fx-border-radius: 0; -fx-background-color: " + tempButtonColour + "; -fx-background-radius: 0");
         tempButton.setOnMouseEntered(e -> {
             tempButton.setStyle("-fx-border-color: #000000; -fx-border-radius: 0; -fx-background-color: #C4C4C4; -fx-background-radius: 0");
@@ -578,7 +625,6 @@ public class DuplicateMatrixCommand implements Runnable {
         tempButton.setOnMouseReleased(e -> {
             tempButton.setStyle("-fx-border-color: #000000; -fx-border-radius: 0; -fx-background-color: " + tempButtonColour + "; -fx-background-radius: 0");
         });
-        return tempButton;
     }
 
     protected ToggleButton createToggleButton() {
@@ -654,13 +700,16 @@ public class DuplicateMatrixCommand implements Runnable {
             error.setScene(new Scene(vbox));
             return error;
         }
-        int size = imageData.getServer().nChannels();
-        duplicateMatrix = new float[size][size];
-        img = RemoveDuplicate.convertImageDataToImage(imageData);
-        duplicateMatrix = RemoveDuplicate.createConcatMatrix(img);
-        thresholdValues = new double[size];
-        thresholdValues = RemoveDuplicate.getAllThresholdValues(duplicateMatrix);
-        maxPixelIntensity = RemoveDuplicate.findMaximumPixelIntensity(img);
+        ImageServer<BufferedImage> server = imageData.getServer();
+        int size = server.nChannels();
+        //show a subsampled matrix straight away, and compute the full matrix in the background if needed
+        //tiles are streamed from the server, so the whole image is never held in memory
+        int previewStep = ChannelCorrelation.getStepForPixels(server.getWidth(), server.getHeight(), PREVIEW_PIXELS);
+        duplicateMatrix = ChannelCorrelation.computeMatrix(server, previewStep, UnmixingPlan.getSharedPool());
+        sweep = new DuplicateChannelSweep(duplicateMatrix);
+        thresholdValues = sweep.getAllThresholdValues();
+        boolean isPreview = previewStep > 1;
+        maxPixelIntensity = findMaximumPixelIntensity(server, previewStep);
 
         //larger panes
 
@@ -678,13 +727,15 @@ public class DuplicateMatrixCommand implements Runnable {
 
         Button splitButton = new Button("Split");
         splitButton.setOnAction(e -> {
+            File directory = Dialogs.promptForDirectory(null);
+            if(directory == null) {
+                return;
+            }
             ImageData originalImageData = imageData;
             viewer.setImageData(RemoveDuplicate.createSingleChannelImageData(originalImageData, 0));
-            String filePath0 = "D:\\Desktop\\QuPath\\channel0";
-            exportImage(viewer, filePath0, dialog);
+            exportImage(viewer, new File(directory, "channel0").getPath(), dialog);
             viewer.setImageData(RemoveDuplicate.createSingleChannelImageData(originalImageData, 1));
-            String filePath1 = "D:\\Desktop\\QuPath\\channel1";
-            exportImage(viewer, filePath1, dialog);
+            exportImage(viewer, new File(directory, "channel1").getPath(), dialog);
         });
 
         //Threshold Part
@@ -706,7 +757,7 @@ public class DuplicateMatrixCommand implements Runnable {
             }
             if(confirmDouble >= -1.0 && confirmDouble <= 1.0) {
                 String filePath = getFilePath(viewer, confirmDouble);
-                viewer.setImageData(RemoveDuplicate.concatDuplicateChannels(imageData, img, duplicateMatrix, confirmDouble));
+                viewer.setImageData(RemoveDuplicate.concatDuplicateChannels(imageData, duplicateMatrix, confirmDouble));
                 exportImage(viewer, filePath, dialog);
                 if(dialog.isShowing()) {
                     dialog.close();
@@ -736,10 +787,10 @@ public class DuplicateMatrixCommand implements Runnable {
                 System.out.println("Exception: " + e);
             }
             if(confirmDouble >= -1.0 && confirmDouble <= 1.0) {
-                distinctPreviewChannels = RemoveDuplicate.distinctChannels(duplicateMatrix, confirmDouble);
+                distinctPreviewChannels = new ArrayList<>(sweep.getDistinctChannels(confirmDouble));
                 float[][] previewMatrix = createPreviewMatrix(duplicateMatrix, distinctPreviewChannels);
                 try {
-                   previewDialog = createPreviewDialog(previewMatrix, confirmDouble, imageData, img, distinctPreviewChannels, dialog);
+                   previewDialog = createPreviewDialog(previewMatrix, confirmDouble, imageData, distinctPreviewChannels, dialog);
                    previewDialog.initOwner(dialog);
                    previewDialog.initModality(Modality.WINDOW_MODAL);
                    previewDialog.showAndWait();
@@ -761,7 +812,11 @@ public class DuplicateMatrixCommand implements Runnable {
                 thresholdLabel.setText("Please enter the required number of channels: ");
                 thresholdTextField.setText(START_CHANNEL);
             }
+            updateThresholdFeedback(thresholdLabel, thresholdTextField.getText(), thresholdToggle.isSelected());
         });
+        //the sweep answers any threshold immediately, so show the result as the value is typed
+        thresholdTextField.textProperty().addListener((v, o, n) -> updateThresholdFeedback(thresholdLabel, n, thresholdToggle.isSelected()));
+        updateThresholdFeedback(thresholdLabel, thresholdTextField.getText(), thresholdToggle.isSelected());
 
         thresholdPane.add(splitButton, 0, 0);
         thresholdPane.add(thresholdLabel, 1, 0);
@@ -842,6 +897,7 @@ public class DuplicateMatrixCommand implements Runnable {
         verticalLabelPane.getColumnConstraints().add(labelColumnConstraint);
 
         GridPane matrix = createMatrix();
+        Button[][] matrixButtons = new Button[size][size];
 
         Label placeholderLabel = createMatrixLabel("", true);
         horizontalLabelPane.add(placeholderLabel, 0, 0);
@@ -873,6 +929,7 @@ public class DuplicateMatrixCommand implements Runnable {
                     image2ScrollPane.setVisible(true);
                 });
                 matrix.add(tempButton, i, j);
+                matrixButtons[i][j] = tempButton;
             }
         }
 
@@ -908,10 +965,55 @@ public class DuplicateMatrixCommand implements Runnable {
         dialog.setMaxWidth(OVERALL_WIDTH);
         dialog.setMaxHeight(OVERALL_HEIGHT);
 
+        if(isPreview) {
+            dialog.setTitle("Duplicate Matrix (preview)");
+            ImageData<BufferedImage> fullImageData = imageData;
+            Task<float[][]> fullMatrixTask = new Task<>() {
+                @Override
+                protected float[][] call() throws Exception {
+                    return ChannelCorrelation.computeMatrix(server, 1, UnmixingPlan.getSharedPool());
+                }
+            };
+            fullMatrixTask.setOnSucceeded(e -> {
+                //ignore the result if the dialog has since been created for another image
+                if(imageData != fullImageData) {
+                    return;
+                }
+                float[][] fullMatrix = fullMatrixTask.getValue();
+                duplicateMatrix = fullMatrix;
+                sweep = new DuplicateChannelSweep(fullMatrix);
+                thresholdValues = sweep.getAllThresholdValues();
+                updateThresholdFeedback(thresholdLabel, thresholdTextField.getText(), thresholdToggle.isSelected());
+                for(int i = 0; i < size; i++) {
+                    for(int j = 0; j < size; j++) {
+                        setMatrixButtonValue(matrixButtons[i][j], fullMatrix[i][j]);
+                    }
+                }
+                dialog.setTitle("Duplicate Matrix");
+            });
+            fullMatrixTask.setOnFailed(e -> {
+                Throwable ex = fullMatrixTask.getException();
+                logger.error("Unable to compute the full duplicate matrix: " + ex.getLocalizedMessage(), ex);
+                Dialogs.showErrorNotification("Duplicate matrix", ex);
+            });
+            //stop computing the full matrix if the dialog is closed before it is complete
+            dialog.setOnHidden(e -> fullMatrixTask.cancel(true));
+            qupath.createSingleThreadExecutor(this).submit(fullMatrixTask);
+        }
+
         return dialog;
     }
 
-    protected Stage createPreviewDialog(float[][] duplicateMatrix, Double thresholdValue, ImageData<BufferedImage> imageData, BufferedImage img, ArrayList<Integer> distinctChannels, Stage duplicateDialog) throws IOException, NullPointerException {
+    /**
+     * Find the maximum pixel intensity used to scale the channel thumbnails.
+     * The image is read at the same subsampling as the preview matrix, rather than at full resolution.
+     */
+    private static float findMaximumPixelIntensity(ImageServer<BufferedImage> server, int step) throws IOException {
+        BufferedImage img = server.readBufferedImage(RegionRequest.createInstance(server.getPath(), step, 0, 0, server.getWidth(), server.getHeight()));
+        return img == null ? 0 : RemoveDuplicate.findMaximumPixelIntensity(img);
+    }
+
+    protected Stage createPreviewDialog(float[][] duplicateMatrix, Double thresholdValue, ImageData<BufferedImage> imageData, ArrayList<Integer> distinctChannels, Stage duplicateDialog) throws IOException, NullPointerException {
 
         Stage previewDialog = new Stage();
         previewDialog.setTitle("Preview");
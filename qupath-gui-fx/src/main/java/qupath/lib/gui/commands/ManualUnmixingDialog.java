@@ -240,6 +240,9 @@ public class ManualUnmixingDialog {
                     Dialogs.showErrorMessage("Error", "One or more values create a singular matrix");
                     resetChannelLists();
                     sme.printStackTrace();
+                } catch (IllegalArgumentException iae) {
+                    Dialogs.showErrorMessage("Error", iae.getLocalizedMessage());
+                    resetChannelLists();
                 } catch (NullPointerException npe) {
                     Dialogs.showErrorMessage("Error", "No export directory was chosen");
                     resetChannelLists();
@@ -25,7 +25,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javafx.beans.binding.Bindings;
+import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.LongProperty;
+import javafx.beans.property.SimpleDoubleProperty;
 import javafx.beans.property.SimpleLongProperty;
 import javafx.concurrent.ScheduledService;
 import javafx.concurrent.Task;
@@ -91,6 +93,7 @@ class MemoryMonitorDialog {
 
 	// Observable properties to store cache values
 	private LongProperty cachedTiles = new SimpleLongProperty();
+	private DoubleProperty cacheHitRate = new SimpleDoubleProperty(Double.NaN);
 	private LongProperty undoRedoSizeBytes = new SimpleLongProperty();
 
 	// Let's sometimes scale to MB, sometimes to GB
@@ -131,8 +134,10 @@ class MemoryMonitorDialog {
 		// Add it button to make it possible to clear the tile cache
 		Label labelClearCache = new Label();
 		labelClearCache.textProperty().bind(Bindings.createStringBinding(() -> {
-			return String.format("Num cached tiles: %d", cachedTiles.get());
-		}, cachedTiles));
+			if (Double.isNaN(cacheHitRate.get()))
+				return String.format("Num cached tiles: %d", cachedTiles.get());
+			return String.format("Num cached tiles: %d (hit rate %.1f%%)", cachedTiles.get(), cacheHitRate.get() * 100.0);
+		}, cachedTiles, cacheHitRate));
 		var btnClearCache = new Button("Clear tile cache");
 		btnClearCache.setTooltip(new Tooltip("Clear the cache used to store image tiles for better viewer performance"));
 		btnClearCache.setOnAction(e -> {
@@ -257,6 +262,7 @@ class MemoryMonitorDialog {
 			usedMemory.set(n.usedMemory);
 			undoRedoSizeBytes.set(n.undoRedoSizeBytes);
 			cachedTiles.set(n.cachedTiles);
+			cacheHitRate.set(n.cacheHitRate);
 			
 			long time = (timeMillis.get() - startTimeMillis) / 1000;
 			seriesUsed.getData().add(new XYChart.Data<Number, Number>(time, usedMemory.get()*scaleGB));
@@ -317,6 +323,7 @@ class MemoryMonitorDialog {
 		private long usedMemory;
 		private long undoRedoSizeBytes;
 		private long cachedTiles;
+		private double cacheHitRate;
 		
 		MemorySnapshot(QuPathGUI qupath, Runtime runtime) {
 			this.timeMillis = System.currentTimeMillis();
@@ -324,7 +331,10 @@ class MemoryMonitorDialog {
 			this.maxMemory = runtime.maxMemory();
 			this.usedMemory = totalMemory - runtime.freeMemory();
 			this.undoRedoSizeBytes = qupath.getUndoRedoManager().totalBytes();
-			this.cachedTiles = qupath.getViewer().getImageRegionStore().getCache().size();
+			var store = qupath.getViewer().getImageRegionStore();
+			this.cachedTiles = store.getCache().size();
+			var stats = store.getCacheStats();
+			this.cacheHitRate = stats.requestCount() == 0 ? Double.NaN : stats.hitRate();
 		}
 		
 	}
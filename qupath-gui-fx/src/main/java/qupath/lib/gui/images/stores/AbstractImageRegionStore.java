@@ -44,10 +44,7 @@ import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalCause;
-import com.google.common.cache.Weigher;
+import com.google.common.cache.CacheStats;
 
 import qupath.lib.awt.common.AwtTools;
 import qupath.lib.common.ThreadTools;
@@ -84,9 +81,9 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	protected List<TileListener<T>> tileListeners = Collections.synchronizedList(new ArrayList<>());
 
 	// Cache of image tiles for specified regions
-	protected Map<RegionRequest, T> cache;
+	protected DefaultRegionCache<T> cache;
 	// Cache image thumbnails
-	protected Map<RegionRequest, T> thumbnailCache;
+	protected DefaultRegionCache<T> thumbnailCache;
 	
 	/**
 	 * Maximum size of thumbnail, in any dimension.
@@ -117,37 +114,9 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		this.maxThumbnailSize = thumbnailSize;
 		this.tileCacheSizeBytes = tileCacheSizeBytes;
 		
-		// Because Guava uses integer weights, and we sometimes have *very* large images, we convert our size estimates KB
-		Weigher<RegionRequest, T> weigher = (var r, var t) -> (int)Long.min(Integer.MAX_VALUE, sizeEstimator.getApproxImageSize(t)/1024);
-		long maxWeight = Long.max(1, tileCacheSizeBytes / 1024);
-		// If concurrency > 1, the maximum size for an individual tile becomes maxWeight/concurrencyLevel
-		// This makes it more difficult to tune the cache size when working with large, non-pyramidal images
-		int concurrencyLevel = 1;
-		Cache<RegionRequest, T> originalCache = CacheBuilder.newBuilder()
-				.weigher(weigher)
-				.maximumWeight(maxWeight)
-				.softValues()
-				.concurrencyLevel(concurrencyLevel)
-//				.recordStats()
-				.removalListener(n -> {
-//					System.err.println(n.getKey() + " (" + cache.size() + ")");
-					if (n.getCause() == RemovalCause.COLLECTED)
-						logger.debug("Cached tile collected" + n.getKey() + " (cache size=" + cache.size()+")");
-					})
-				.build();
-		cache = originalCache.asMap();
-
-		Cache<RegionRequest, T> originalThumbnailCache = CacheBuilder.newBuilder()
-				.weigher(weigher)
-				.concurrencyLevel(1)
-				.maximumWeight(maxWeight)
-				.softValues()
-				.build();
-		
-		thumbnailCache = originalThumbnailCache.asMap();
-		
-//		cache = new DefaultRegionCache<>(sizeEstimator, tileCacheSizeBytes);
-//		thumbnailCache = new DefaultRegionCache<>(sizeEstimator, tileCacheSizeBytes/4);
+		// The memory limit is shared across all segments of the cache, so large tiles from non-pyramidal images can still be cached
+		cache = new DefaultRegionCache<>(sizeEstimator, Integer.MAX_VALUE, tileCacheSizeBytes);
+		thumbnailCache = new DefaultRegionCache<>(sizeEstimator, Integer.MAX_VALUE, tileCacheSizeBytes);
 	}
 
 	
@@ -236,6 +205,15 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 		return cache;
 	}
 	
+	/**
+	 * Get the hit, miss, load and eviction counts for the tile cache.
+	 * Load times include only tiles requested through this store.
+	 * @return
+	 */
+	public CacheStats getCacheStats() {
+		return cache.getStats();
+	}
+	
 	
 	/* (non-Javadoc)
 	 * @see qupath.lib.images.stores.ImageRegionStore#removeTileListener(qupath.lib.images.stores.TileListener)
@@ -260,14 +238,8 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	 * @param server
 	 * @return
 	 */
-	public synchronized Map<RegionRequest, T> getCachedTilesForServer(ImageServer<T> server) {
-		Map<RegionRequest, T> tiles = new HashMap<>();
-		var serverPath = server.getPath();
-		for (var entry : cache.entrySet()) {
-			if (entry.getValue() != null && entry.getKey().getPath().equals(serverPath))
-				tiles.put(entry.getKey(), entry.getValue());
-		}
-		return tiles;
+	public Map<RegionRequest, T> getCachedTilesForServer(ImageServer<T> server) {
+		return cache.getCachedTilesForServer(server.getPath());
 	}	
 	
 	
@@ -345,7 +317,7 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	 * @param ensureTileReturned 
 	 * @return
 	 */
-	protected synchronized Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final Map<RegionRequest, T> cache, final boolean ensureTileReturned) {
+	protected synchronized Object requestImageTile(final ImageServer<T> server, final RegionRequest request, final DefaultRegionCache<T> cache, final boolean ensureTileReturned) {
 		T img = cache.get(request);
 		if (img != null)
 			return img;
@@ -387,7 +359,7 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	
 //	protected abstract TileWorker<T> createTileWorker(final BaseImageServer<T> server, final RegionRequest request, final RegionCache<T> cache, final boolean ensureTileReturned);
 
-	protected TileWorker<T> createTileWorker(final ImageServer<T> server, final RegionRequest request, final Map<RegionRequest, T> cache, final boolean ensureTileReturned) {
+	protected TileWorker<T> createTileWorker(final ImageServer<T> server, final RegionRequest request, final DefaultRegionCache<T> cache, final boolean ensureTileReturned) {
 		return new DefaultTileWorker(server, request, cache, ensureTileReturned);
 	}
 
@@ -475,8 +447,8 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 				}
 			}
 		}
-		clearCacheForServer(thumbnailCache, server);
-		clearCacheForServer(cache, server);
+		thumbnailCache.invalidateServer(server.getPath());
+		cache.invalidateServer(server.getPath());
 		clearingCache = false;
 	}
 	
@@ -502,13 +474,6 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	
 	
 	
-	private synchronized void clearCacheForServer(Map<RegionRequest, T> map, ImageServer<?> server) {
-		String serverPath = server.getPath();
-		List<RegionRequest> keys = map.keySet().stream().filter(k -> k.getPath().equals(serverPath)).collect(Collectors.toList());
-		for (var key : keys)
-			map.remove(key);
-	}
-	
 	private synchronized void clearCacheForRequestOverlap(Map<RegionRequest, T> map, RegionRequest request) {
 		List<RegionRequest> keys = map.keySet().stream().filter(k -> request.overlapsRequest(k)).collect(Collectors.toList());
 		for (var key : keys)
@@ -750,10 +715,10 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 	 */
 	class DefaultTileWorker extends FutureTask<T> implements TileWorker<T> {
 		
-		private final Map<RegionRequest, T> cache;
+		private final DefaultRegionCache<T> cache;
 		private final RegionRequest request;
 		
-		DefaultTileWorker(final ImageServer<T> server, final RegionRequest request, final Map<RegionRequest, T> cache, final boolean ensureTileReturned) {
+		DefaultTileWorker(final ImageServer<T> server, final RegionRequest request, final DefaultRegionCache<T> cache, final boolean ensureTileReturned) {
 			super(new Callable<T>() {
 
 				@Override
@@ -764,16 +729,18 @@ abstract class AbstractImageRegionStore<T> implements ImageRegionStore<T> {
 			    	if (imgTile != null)
 			    		return imgTile;
 			    	// TODO: Investigate the (current) purpose of ensureTileReturned... doesn't seem to do anything here
-			    	if (ensureTileReturned)
-			    		return server.readBufferedImage(request);	
 			    	// Check if we still need the tile... if not, and we go searching, there can be a backlog
 			    	// making any requests slower to fulfill
 			    	// (Also, grab a snapshot of the listener list to avoid concurrent modifications)
-//			    	long t1 = System.currentTimeMillis();
-			    	T img = server.readBufferedImage(request);
-//			    	long t2 = System.currentTimeMillis();
-//			    	System.out.println("Tile request time: " + (t2 - t1));
-			    	return img;
+			    	long startTime = System.nanoTime();
+			    	boolean success = false;
+			    	try {
+			    		T img = server.readBufferedImage(request);
+			    		success = true;
+			    		return img;
+			    	} finally {
+			    		cache.recordLoad(System.nanoTime() - startTime, success);
+			    	}
 				}
 				
 			});
@@ -10,200 +10,395 @@
  * it under the terms of the GNU General Public License as
  * published by the Free Software Foundation, either version 3 of the
  * License, or (at your option) any later version.
- * 
+ *
  * QuPath is distributed in the hope that it will be useful,
  * but WITHOUT ANY WARRANTY; without even the implied warranty of
  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
  * GNU General Public License for more details.
- * 
- * You should have received a copy of the GNU General Public License 
+ *
+ * You should have received a copy of the GNU General Public License
  * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
  * #L%
  */
 
 package qupath.lib.gui.images.stores;
 
-import java.util.Collection;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.cache.CacheStats;
 
 import qupath.lib.regions.RegionRequest;
 
 /**
  * Map for storing image tiles, which automatically removes tiles that have not been accessed
  * in a while after it reaches a maximum number of tiles, or maximum memory consumption.
- * 
+ * <p>
  * The memory consumption estimate is based on the bit-depth of the image &amp; number of pixels it contains
  * (other overhead is ignored).
- * 
+ * <p>
+ * The map is split into segments that are locked independently, so that many threads can read and write tiles
+ * without contending on a single lock. Each segment is ordered by access; when the cache is full, the least recently
+ * used tile from a sample of segments is removed. Unlike the maximum weight of a Guava cache, the memory limit is
+ * shared by all segments - so a single large tile can use most of the cache.
+ * <p>
+ * Tiles are held by soft references, so they may also be removed if memory is low.
+ * Null keys and values are not supported.
+ *
  * @author Pete Bankhead
  *
  */
-class DefaultRegionCache<T> implements Map<RegionRequest, T> {
+class DefaultRegionCache<T> extends AbstractMap<RegionRequest, T> {
+
+	/**
+	 * Number of segments to compare when choosing a tile to evict.
+	 */
+	private static final int EVICTION_SAMPLES = 4;
 
-	private Map<RegionRequest, T> map;
+	private final Segment<T>[] segments;
 	private final SizeEstimator<T> sizeEstimator;
-	private int maxCapacity;
-	private int nonNullSize = 0;
-	private long maxMemoryBytes;
-	private long memoryBytes = 0; // Rely on synchronization to control access to map anyway, so no need for atomic...?
+	private final int maxCapacity;
+	private final long maxMemoryBytes;
 
+	private final AtomicInteger count = new AtomicInteger();
+	private final AtomicLong memoryBytes = new AtomicLong();
+	private final AtomicInteger evictionCursor = new AtomicInteger();
+	private final ReferenceQueue<T> collectedQueue = new ReferenceQueue<>();
+
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	private final LongAdder evictionCount = new LongAdder();
+	private final LongAdder loadSuccessCount = new LongAdder();
+	private final LongAdder loadExceptionCount = new LongAdder();
+	private final LongAdder totalLoadTime = new LongAdder();
+
+	@SuppressWarnings("unchecked")
 	DefaultRegionCache(final SizeEstimator<T> sizeEstimator, final int maxCapacity, final long maxSizeBytes) {
 		this.maxMemoryBytes = maxSizeBytes;
 		this.sizeEstimator = sizeEstimator;
 		this.maxCapacity = maxCapacity;
-		map = new LinkedHashMap<RegionRequest, T>(maxCapacity+1, 2f, true) {
-
-			private static final long serialVersionUID = 1L;
-
-			@Override
-			protected synchronized boolean removeEldestEntry(Map.Entry<RegionRequest, T> eldest) {
-				// Remove if the map is full (in terms of numbers), or occupying too much memory
-				boolean doRemove = nonNullSize >= maxCapacity || memoryBytes > maxMemoryBytes;
-				if (doRemove) {
-					memoryBytes = memoryBytes - sizeEstimator.getApproxImageSize(eldest.getValue());
-					if (eldest.getValue() != null)
-						nonNullSize--;
-//					if (getApproxImageSize(eldest.getValue()) > 10784000)
-//											logger.info(String.format("REMOVED! %.2f MB remaining, %d images", memoryBytes/(1024. * 1024.), size()));
-				}
-				return doRemove;
-			}
-
-		}; // Should never have to resize the cache, so loadfactor is > 1
-		//			logger.info("Max capacity: " + maxCapacity);
-		//			logger.info("Max size: " + maxSizeBytes);
-		map = Collections.synchronizedMap(map);
+		// Use a power of 2, so that a segment can be selected from the hash with a mask
+		int nSegments = Integer.highestOneBit(Math.max(1, Math.min(64, Runtime.getRuntime().availableProcessors() * 4)) * 2 - 1);
+		segments = new Segment[nSegments];
+		for (int i = 0; i < nSegments; i++)
+			segments[i] = new Segment<>();
 	}
 
 	DefaultRegionCache(final SizeEstimator<T> sizeEstimator, long maxSizeBytes) {
-		this(sizeEstimator, Math.max(200, (int)(maxSizeBytes / (256 * 256 * 4) + 10)), maxSizeBytes);
-	}
-
-//	synchronized void clearCacheForServer(ImageServer<?> server) {
-//		Iterator<Entry<RegionRequest, T>> iter = map.entrySet().iterator();
-//		while (iter.hasNext()) {
-//			Entry<RegionRequest, T> entry = iter.next();
-//			if (entry.getKey().getPath().equals(server.getPath())) {
-//				memoryBytes -= sizeEstimator.getApproxImageSize(entry.getValue());
-//				if (entry.getValue() != null)
-//					nonNullSize--;
-//				iter.remove();
-//			}
-//		}
-//	}
-//	
-//	
-//	synchronized void clearCacheForRequestOverlap(RegionRequest request) {
-//		Iterator<Entry<RegionRequest, T>> iter = map.entrySet().iterator();
-//		while (iter.hasNext()) {
-//			Entry<RegionRequest, T> entry = iter.next();
-//			if (request.overlapsRequest(entry.getKey())) {
-//				memoryBytes -= sizeEstimator.getApproxImageSize(entry.getValue());
-//				if (entry.getValue() != null)
-//					nonNullSize--;
-//				iter.remove();
-//			}
-//		}
-//	}
-
-	/* (non-Javadoc)
-	 * @see qupath.lib.images.stores.RegionCache#put(qupath.lib.regions.RegionRequest, T)
-	 */
+		this(sizeEstimator, Math.max(200, (int)Math.min(Integer.MAX_VALUE, maxSizeBytes / (256 * 256 * 4) + 10)), maxSizeBytes);
+	}
+
+	private Segment<T> segmentFor(Object key) {
+		// Select using bits that the HashMap within each segment does not depend upon, so that keys within a segment
+		// are still spread across all buckets
+		int h = key.hashCode() * 0x9E3779B9;
+		return segments[(h >>> 16) & (segments.length - 1)];
+	}
+
 	@Override
-	public synchronized T put(RegionRequest request, T img) {
-		// Update the memory requirements
-		T imgPrevious = map.put(request, img);
-		if (img != null) {
-			memoryBytes += sizeEstimator.getApproxImageSize(img);
-			nonNullSize++;
-		}
-		if (imgPrevious != null) {
-			memoryBytes -= sizeEstimator.getApproxImageSize(imgPrevious);
-			nonNullSize--;
+	public T get(Object key) {
+		if (key == null)
+			return null;
+		drainCollected();
+		var segment = segmentFor(key);
+		T value = null;
+		synchronized (segment) {
+			var entry = segment.lookup(key);
+			if (entry != null) {
+				value = entry.get();
+				if (value == null)
+					removeEntry(segment, entry);
+			}
 		}
-//		System.err.println(
-//				String.format("Cache: %d entries, %.1f/%.1f GB, %.1f%%", map.size(),
-//						memoryBytes/1024.0/1024.0/1024.0,
-//						maxMemoryBytes/1024.0/1024.0/1024.0,
-//						memoryBytes * 100.0/maxMemoryBytes));
-//		else
-//			System.out.println("PUTTING NEW: " + nonNullSize + ", " + request + ", " + Thread.currentThread());
-		return imgPrevious;
+		if (value == null)
+			missCount.increment();
+		else
+			hitCount.increment();
+		return value;
 	}
 
 	@Override
-	public synchronized void clear() {
-		memoryBytes = 0;
-		nonNullSize = 0;
-		map.clear();
+	public boolean containsKey(Object key) {
+		if (key == null)
+			return false;
+		var segment = segmentFor(key);
+		synchronized (segment) {
+			var entry = segment.lookup(key);
+			return entry != null && entry.get() != null;
+		}
 	}
-	
-	
+
 	@Override
-	public String toString() {
-		return String.format("Cache: %d (%d/%d non-null), %s", map.size(), nonNullSize, maxCapacity, map.toString());
+	public T put(RegionRequest request, T img) {
+		Objects.requireNonNull(request, "Cache key must not be null");
+		Objects.requireNonNull(img, "Cached tile must not be null");
+		drainCollected();
+		long bytes = sizeEstimator.getApproxImageSize(img);
+		var entry = new CacheEntry<>(request, img, bytes, collectedQueue);
+		var segment = segmentFor(request);
+		T imgPrevious = null;
+		synchronized (segment) {
+			var previous = segment.map.put(request, entry);
+			if (previous == null) {
+				count.incrementAndGet();
+				segment.keysForServer.computeIfAbsent(request.getPath(), k -> new HashSet<>()).add(request);
+			} else {
+				memoryBytes.addAndGet(-previous.bytes);
+				imgPrevious = previous.get();
+			}
+			memoryBytes.addAndGet(bytes);
+		}
+		evictIfNeeded();
+		return imgPrevious;
 	}
 
 	@Override
-	public synchronized int size() {
-		return map.size();
+	public T remove(Object key) {
+		if (key == null)
+			return null;
+		var segment = segmentFor(key);
+		synchronized (segment) {
+			var entry = segment.map.get(key);
+			if (entry == null)
+				return null;
+			removeEntry(segment, entry);
+			return entry.get();
+		}
 	}
 
-	@Override
-	public synchronized boolean isEmpty() {
-		return map.isEmpty();
+	/**
+	 * Remove an entry from a segment, updating the size and server index.
+	 * The segment lock must be held.
+	 * @return true if the entry was found in the segment, false if it had already been removed or replaced
+	 */
+	private boolean removeEntry(Segment<T> segment, CacheEntry<T> entry) {
+		// Entries are only equal to themselves, and this does not change the access order
+		if (!segment.map.remove(entry.key, entry))
+			return false;
+		count.decrementAndGet();
+		memoryBytes.addAndGet(-entry.bytes);
+		var keys = segment.keysForServer.get(entry.key.getPath());
+		if (keys != null && keys.remove(entry.key) && keys.isEmpty())
+			segment.keysForServer.remove(entry.key.getPath());
+		return true;
 	}
 
-	@Override
-	public synchronized boolean containsKey(Object key) {
-		return map.containsKey(key);
+	/**
+	 * Remove any entries whose tiles have been garbage collected.
+	 */
+	private void drainCollected() {
+		Reference<? extends T> ref;
+		while ((ref = collectedQueue.poll()) != null) {
+			@SuppressWarnings("unchecked")
+			var entry = (CacheEntry<T>)ref;
+			var segment = segmentFor(entry.key);
+			synchronized (segment) {
+				if (removeEntry(segment, entry))
+					evictionCount.increment();
+			}
+		}
 	}
 
-	@Override
-	public synchronized boolean containsValue(Object value) {
-		return map.containsValue(value);
+	private void evictIfNeeded() {
+		int nSegments = segments.length;
+		int nEmptyChecks = 0;
+		while ((count.get() > maxCapacity || memoryBytes.get() > maxMemoryBytes) && nEmptyChecks < nSegments) {
+			// Find the least recently used entry from the eldest entries of a few segments
+			int start = evictionCursor.getAndAdd(EVICTION_SAMPLES);
+			Segment<T> oldestSegment = null;
+			long oldestAccess = Long.MAX_VALUE;
+			for (int i = 0; i < Math.min(EVICTION_SAMPLES, nSegments); i++) {
+				var segment = segments[(start + i) & (nSegments - 1)];
+				synchronized (segment) {
+					if (segment.map.isEmpty())
+						continue;
+					long lastAccess = segment.map.values().iterator().next().lastAccess;
+					if (lastAccess < oldestAccess) {
+						oldestAccess = lastAccess;
+						oldestSegment = segment;
+					}
+				}
+			}
+			if (oldestSegment == null) {
+				nEmptyChecks += EVICTION_SAMPLES;
+				continue;
+			}
+			synchronized (oldestSegment) {
+				Iterator<CacheEntry<T>> iter = oldestSegment.map.values().iterator();
+				if (iter.hasNext() && removeEntry(oldestSegment, iter.next()))
+					evictionCount.increment();
+			}
+		}
 	}
 
-	@Override
-	public synchronized T get(Object key) {
-		return map.get(key);
+	/**
+	 * Remove all the tiles for a specified server path.
+	 * @param serverPath
+	 */
+	void invalidateServer(String serverPath) {
+		for (var segment : segments) {
+			synchronized (segment) {
+				var keys = segment.keysForServer.get(serverPath);
+				if (keys == null)
+					continue;
+				for (var key : keys.toArray(RegionRequest[]::new)) {
+					var entry = segment.map.get(key);
+					if (entry != null)
+						removeEntry(segment, entry);
+				}
+			}
+		}
 	}
 
-	@Override
-	public synchronized T remove(Object key) {
-		// Update the memory requirements
-		T imgPrevious = map.remove(key);
-		if (imgPrevious != null) {
-			memoryBytes -= sizeEstimator.getApproxImageSize(imgPrevious);
-			nonNullSize--;
+	/**
+	 * Get a snapshot of the cached tiles for a specified server path.
+	 * @param serverPath
+	 * @return
+	 */
+	Map<RegionRequest, T> getCachedTilesForServer(String serverPath) {
+		Map<RegionRequest, T> tiles = new HashMap<>();
+		for (var segment : segments) {
+			synchronized (segment) {
+				var keys = segment.keysForServer.get(serverPath);
+				if (keys == null)
+					continue;
+				for (var key : keys) {
+					var entry = segment.lookup(key);
+					T value = entry == null ? null : entry.get();
+					if (value != null)
+						tiles.put(key, value);
+				}
+			}
 		}
-		return imgPrevious;
+		return tiles;
+	}
+
+	/**
+	 * Record the time taken to read a tile that was requested for this cache.
+	 * @param nanos load time, in nanoseconds
+	 * @param success true if the tile was read successfully
+	 */
+	void recordLoad(long nanos, boolean success) {
+		if (success)
+			loadSuccessCount.increment();
+		else
+			loadExceptionCount.increment();
+		totalLoadTime.add(nanos);
+	}
+
+	/**
+	 * Get a snapshot of the hit, miss, load and eviction counts.
+	 * Evictions include tiles that were removed by the garbage collector.
+	 * @return
+	 */
+	CacheStats getStats() {
+		return new CacheStats(hitCount.sum(), missCount.sum(),
+				loadSuccessCount.sum(), loadExceptionCount.sum(), totalLoadTime.sum(),
+				evictionCount.sum());
+	}
+
+	/**
+	 * Get the approximate memory used by all cached tiles, in bytes.
+	 * @return
+	 */
+	long getMemoryBytes() {
+		return memoryBytes.get();
 	}
 
 	@Override
-	public synchronized void putAll(Map<? extends RegionRequest, ? extends T> m) {
-		for (Entry<? extends RegionRequest, ? extends T> entry : m.entrySet()) {
-			put(entry.getKey(), entry.getValue());
+	public void clear() {
+		for (var segment : segments) {
+			synchronized (segment) {
+				for (var entry : new ArrayList<>(segment.map.values()))
+					removeEntry(segment, entry);
+			}
 		}
 	}
 
 	@Override
-	public synchronized Set<RegionRequest> keySet() {
-		return map.keySet();
+	public String toString() {
+		return String.format("Cache: %d/%d tiles, %.1f/%.1f MB, %s", size(), maxCapacity,
+				memoryBytes.get()/(1024.0*1024.0), maxMemoryBytes/(1024.0*1024.0), getStats());
+	}
+
+	@Override
+	public int size() {
+		return Math.max(0, count.get());
 	}
 
 	@Override
-	public synchronized Collection<T> values() {
-		return map.values();
+	public boolean isEmpty() {
+		return size() == 0;
 	}
 
+	/**
+	 * Returns an unmodifiable snapshot of the cached tiles.
+	 */
 	@Override
-	public synchronized Set<Entry<RegionRequest, T>> entrySet() {
-		return map.entrySet();
+	public Set<Entry<RegionRequest, T>> entrySet() {
+		List<Entry<RegionRequest, T>> entries = new ArrayList<>();
+		for (var segment : segments) {
+			synchronized (segment) {
+				for (var entry : segment.map.values()) {
+					T value = entry.get();
+					if (value != null)
+						entries.add(new SimpleImmutableEntry<>(entry.key, value));
+				}
+			}
+		}
+		return Collections.unmodifiableSet(new HashSet<>(entries));
+	}
+
+
+	private static class Segment<T> {
+
+		// Access-ordered, so that the eldest entry is the least recently used
+		private final LinkedHashMap<RegionRequest, CacheEntry<T>> map = new LinkedHashMap<>(16, 0.75f, true);
+
+		// Keys for each server path, so that all the tiles for a server can be removed without checking every key
+		private final Map<String, Set<RegionRequest>> keysForServer = new HashMap<>();
+
+		/**
+		 * Get an entry, marking it as recently used.
+		 * The segment lock must be held.
+		 */
+		private CacheEntry<T> lookup(Object key) {
+			var entry = map.get(key);
+			if (entry != null)
+				entry.lastAccess = System.nanoTime();
+			return entry;
+		}
+
+	}
+
+
+	private static class CacheEntry<T> extends SoftReference<T> {
+
+		private final RegionRequest key;
+		private final long bytes;
+		private long lastAccess = System.nanoTime();
+
+		CacheEntry(RegionRequest key, T value, long bytes, ReferenceQueue<T> queue) {
+			super(value, queue);
+			this.key = key;
+			this.bytes = bytes;
+		}
+
 	}
-	
 
-}
\ No newline at end of file
+}
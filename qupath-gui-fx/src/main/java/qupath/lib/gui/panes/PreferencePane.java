@@ -126,6 +126,23 @@ public class PreferencePane {
 				"\nA high value can improve performance (especially for multichannel images), but increases risk of out-of-memory errors." +
 				"\nChanges take effect when QuPath is restarted.");
 		
+		addPropertyPreference(PathPrefs.diskTileCacheSizeGBProperty(),
+				Double.class,
+				"Disk tile cache size (GB)",
+				category,
+				"Maximum disk space to use for storing decoded image tiles between sessions (default is 0, i.e. no disk cache)." +
+				"\nThis can improve performance for images that are slow to read (e.g. JPEG2000, or images read from a server)." +
+				"\nThe cache is stored in the 'tile-cache' directory inside the QuPath user directory." +
+				"\nChanges take effect when QuPath is restarted.");
+		
+		addPropertyPreference(PathPrefs.pyramidCacheSizeGBProperty(),
+				Double.class,
+				"Stored pyramid size per image (GB)",
+				category,
+				"Maximum disk space to use for storing generated pyramid levels for each image in a project (default is 0, i.e. not stored)." +
+				"\nThis applies to single-resolution images that have been 'pyramidalized', and can make it much faster to view them zoomed out." +
+				"\nChanges take effect the next time an image is opened.");
+		
 		addPropertyPreference(PathPrefs.showImageNameInTitleProperty(), Boolean.class,
 				"Show image name in window title",
 				category,
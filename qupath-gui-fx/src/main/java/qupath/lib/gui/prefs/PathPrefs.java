@@ -883,6 +883,29 @@ public class PathPrefs {
 	}
 	
 	
+	private static DoubleProperty diskTileCacheSizeGB = createPersistentPreference("diskTileCacheSizeGB", 0.0);
+	
+	/**
+	 * Maximum size of the persistent tile cache on disk, in GB. If this is zero, tiles are not cached on disk.
+	 * @return
+	 */
+	public static DoubleProperty diskTileCacheSizeGBProperty() {
+		return diskTileCacheSizeGB;
+	}
+	
+	
+	private static DoubleProperty pyramidCacheSizeGB = createPersistentPreference("pyramidCacheSizeGB", 0.0);
+	
+	/**
+	 * Maximum size of the generated pyramid tiles stored for each project entry, in GB. 
+	 * If this is zero, generated pyramids are not stored.
+	 * @return
+	 */
+	public static DoubleProperty pyramidCacheSizeGBProperty() {
+		return pyramidCacheSizeGB;
+	}
+	
+	
 	private static BooleanProperty useCalibratedLocationString = createPersistentPreference("useCalibratedLocationString", true);
 	
 	/**
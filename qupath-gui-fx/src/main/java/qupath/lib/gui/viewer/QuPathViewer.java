@@ -207,6 +207,9 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 	private double rotation = 0;
 	private BooleanProperty zoomToFit = new SimpleBooleanProperty(false);
 	
+	// Predict & prefetch the tiles needed next when panning or zooming
+	private ViewerTilePrefetcher tilePrefetcher = new ViewerTilePrefetcher();
+	
 	// Affine transform used to apply rotation
 	private AffineTransform transform = new AffineTransform();
 	private AffineTransform transformInverse = new AffineTransform();
@@ -1678,6 +1681,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 		manager.detachAll();
 		manager.clear();
 		regionStore.removeTileListener(this);
+		tilePrefetcher.cancel();
 //		// Set the server to null
 //		setImageData(null);
 		// Notify listeners
@@ -2004,6 +2008,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 			double downsample = getDownsampleFactor();
 //			if (doFasterRepaint)
 //				downsample = downsampleFactor * 1.5;
+			tilePrefetcher.update(server, shapeToUpdate, downsample, getZPosition(), getTPosition());
 
 
 			// Try to repaint higher resolution tiles for only the requested region
@@ -2022,6 +2027,7 @@ public class QuPathViewer implements TileListener<BufferedImage>, PathObjectHier
 				regionStore.paintRegion(server, gBuffered, shapeToUpdate, getZPosition(), getTPosition(), downsample, imgThumbnail, null, getRenderer());
 			}
 		} else {
+			tilePrefetcher.cancel();
 			// Just paint the 'thumbnail' version, which has already (potentially) been color-transformed
 			paintThumbnail(gBuffered, imgThumbnailRGB, serverWidth, serverHeight, this);
 		}
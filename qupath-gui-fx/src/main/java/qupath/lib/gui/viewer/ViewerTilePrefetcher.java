@@ -0,0 +1,190 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.viewer;
+
+import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import qupath.lib.gui.images.stores.ImageRegionStoreHelpers;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.TilePrefetcher;
+import qupath.lib.images.servers.TilePrefetcher.Prefetch;
+import qupath.lib.regions.RegionRequest;
+
+/**
+ * Predict which tiles a viewer will need next, based upon how it is currently being panned and zoomed,
+ * and request them from a {@link TilePrefetcher}.
+ * <p>
+ * When panning, the region the viewer is expected to show shortly is prefetched at the current resolution.
+ * When zooming, the region around the center of the view is prefetched at the next resolution in the same direction.
+ * Any previous prefetch is cancelled whenever the prediction changes.
+ */
+class ViewerTilePrefetcher {
+
+	/**
+	 * How far ahead to predict the viewer location when panning.
+	 */
+	private static final long LOOKAHEAD_MILLIS = 500;
+
+	/**
+	 * If the viewer hasn't moved for longer than this, motion is assumed to have stopped.
+	 */
+	private static final long MAX_IDLE_MILLIS = 250;
+
+	/**
+	 * Weight given to the latest movement when updating the velocity estimate.
+	 */
+	private static final double SMOOTHING = 0.5;
+
+	private ImageServer<?> server;
+	private int z, t;
+	private double lastX, lastY, lastDownsample;
+	private long lastTime;
+
+	// Smoothed velocity, in full-resolution pixels per millisecond
+	private double vx, vy;
+
+	private Prefetch prefetch;
+
+	/**
+	 * Update the prediction based upon the region currently visible in the viewer.
+	 * @param server
+	 * @param shapeVisible
+	 * @param downsample
+	 * @param z
+	 * @param t
+	 */
+	synchronized void update(ImageServer<?> server, Shape shapeVisible, double downsample, int z, int t) {
+		var bounds = shapeVisible.getBounds2D();
+		double x = bounds.getCenterX();
+		double y = bounds.getCenterY();
+		long time = System.currentTimeMillis();
+
+		if (server != this.server || z != this.z || t != this.t) {
+			cancel();
+			this.server = server;
+			this.z = z;
+			this.t = t;
+			vx = 0;
+			vy = 0;
+			setLast(x, y, downsample, time);
+			return;
+		}
+		// Repainting without any change in the view (e.g. because a tile has arrived)
+		if (x == lastX && y == lastY && downsample == lastDownsample)
+			return;
+
+		long dt = time - lastTime;
+		if (dt > MAX_IDLE_MILLIS) {
+			vx = 0;
+			vy = 0;
+		}
+		if (dt > 0 && dt <= MAX_IDLE_MILLIS && downsample == lastDownsample) {
+			vx = SMOOTHING * (x - lastX) / dt + (1 - SMOOTHING) * vx;
+			vy = SMOOTHING * (y - lastY) / dt + (1 - SMOOTHING) * vy;
+		}
+		double zoom = downsample / lastDownsample;
+		setLast(x, y, downsample, time);
+
+		List<RegionRequest> regions = new ArrayList<>();
+
+		// Panning: request the region where we expect the viewer to be soon, at the current resolution
+		double dx = clip(vx * LOOKAHEAD_MILLIS, bounds.getWidth());
+		double dy = clip(vy * LOOKAHEAD_MILLIS, bounds.getHeight());
+		if (Math.abs(dx) >= downsample || Math.abs(dy) >= downsample) {
+			var boundsNext = new Rectangle2D.Double(bounds.getX() + dx, bounds.getY() + dy, bounds.getWidth(), bounds.getHeight());
+			ImageRegionStoreHelpers.getTilesToRequest(server, boundsNext, downsample, z, t, regions);
+		}
+
+		// Zooming: request the next resolution level in the same direction, around the center of the view
+		if (zoom != 1) {
+			double downsampleNext = getNextDownsample(server, downsample, zoom < 1);
+			if (!Double.isNaN(downsampleNext)) {
+				double scale = downsampleNext / downsample;
+				double w = bounds.getWidth() * scale;
+				double h = bounds.getHeight() * scale;
+				var boundsNext = new Rectangle2D.Double(x - w/2, y - h/2, w, h);
+				ImageRegionStoreHelpers.getTilesToRequest(server, boundsNext, downsampleNext, z, t, regions);
+			}
+		}
+
+		// Request tiles nearest the current view first
+		regions.sort(Comparator.comparingDouble(r -> distanceSq(r, x, y)));
+
+		// Cancel first, so that stale tiles free their place in the queue before new tiles are requested
+		if (prefetch != null)
+			prefetch.cancel();
+		prefetch = regions.isEmpty() ? null : TilePrefetcher.getInstance().prefetch(server, regions);
+	}
+
+	/**
+	 * Cancel any prefetching, e.g. because the viewer is closing or tiles are no longer required.
+	 */
+	synchronized void cancel() {
+		if (prefetch != null) {
+			prefetch.cancel();
+			prefetch = null;
+		}
+	}
+
+	private void setLast(double x, double y, double downsample, long time) {
+		lastX = x;
+		lastY = y;
+		lastDownsample = downsample;
+		lastTime = time;
+	}
+
+	private static double clip(double value, double max) {
+		return Math.max(-max, Math.min(max, value));
+	}
+
+	private static double distanceSq(RegionRequest request, double x, double y) {
+		double dx = x - (request.getX() + request.getWidth() / 2.0);
+		double dy = y - (request.getY() + request.getHeight() / 2.0);
+		return dx * dx + dy * dy;
+	}
+
+	/**
+	 * Get the downsample for the resolution level after the one used for the specified downsample.
+	 * @param server
+	 * @param downsample
+	 * @param higherResolution if true, return the next higher resolution (lower downsample); otherwise return the next lower resolution
+	 * @return the downsample, or NaN if there is no other resolution in that direction
+	 */
+	private static double getNextDownsample(ImageServer<?> server, double downsample, boolean higherResolution) {
+		double[] downsamples = server.getPreferredDownsamples().clone();
+		Arrays.sort(downsamples);
+		// Find the level currently used, allowing for small rounding errors
+		int level = 0;
+		while (level < downsamples.length - 1 && downsamples[level + 1] <= downsample * 1.0001)
+			level++;
+		int next = higherResolution ? level - 1 : level + 1;
+		if (next < 0 || next >= downsamples.length)
+			return Double.NaN;
+		return downsamples[next];
+	}
+
+}
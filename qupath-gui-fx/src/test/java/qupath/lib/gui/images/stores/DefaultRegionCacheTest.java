@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * This file is part of QuPath.
+ * %%
+ * Copyright (C) 2018 - 2020 QuPath developers, The University of Edinburgh
+ * %%
+ * QuPath is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * QuPath is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with QuPath.  If not, see <https://www.gnu.org/licenses/>.
+ * #L%
+ */
+
+package qupath.lib.gui.images.stores;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.regions.RegionRequest;
+
+@SuppressWarnings("javadoc")
+public class DefaultRegionCacheTest {
+
+	private static final SizeEstimator<byte[]> SIZE_ESTIMATOR = b -> b.length;
+
+	private static RegionRequest createRequest(String path, int x) {
+		return RegionRequest.createInstance(path, 1.0, x, 0, 256, 256);
+	}
+
+	@Test
+	public void test_memoryLimit() {
+		var cache = new DefaultRegionCache<>(SIZE_ESTIMATOR, Integer.MAX_VALUE, 10_000);
+		for (int i = 0; i < 100; i++)
+			cache.put(createRequest("a", i * 256), new byte[1000]);
+		assertTrue(cache.getMemoryBytes() <= 10_000);
+		assertEquals(cache.getMemoryBytes(), cache.size() * 1000L);
+		assertEquals(100 - cache.size(), cache.getStats().evictionCount());
+
+		// A tile larger than the cache shouldn't be retained
+		var request = createRequest("a", -256);
+		cache.put(request, new byte[20_000]);
+		assertFalse(cache.containsKey(request));
+		assertTrue(cache.getMemoryBytes() <= 10_000);
+
+		cache.clear();
+		assertTrue(cache.isEmpty());
+		assertEquals(0L, cache.getMemoryBytes());
+	}
+
+	@Test
+	public void test_invalidateServer() {
+		var cache = new DefaultRegionCache<>(SIZE_ESTIMATOR, Integer.MAX_VALUE, 1_000_000);
+		for (int i = 0; i < 50; i++) {
+			cache.put(createRequest("a", i * 256), new byte[100]);
+			cache.put(createRequest("b", i * 256), new byte[100]);
+		}
+		assertEquals(50, cache.getCachedTilesForServer("a").size());
+		cache.invalidateServer("a");
+		assertTrue(cache.getCachedTilesForServer("a").isEmpty());
+		assertEquals(50, cache.getCachedTilesForServer("b").size());
+		assertEquals(50, cache.size());
+		assertEquals(5000L, cache.getMemoryBytes());
+	}
+
+	@Test
+	public void test_stats() {
+		var cache = new DefaultRegionCache<>(SIZE_ESTIMATOR, Integer.MAX_VALUE, 1_000_000);
+		var request = createRequest("a", 0);
+		assertNull(cache.get(request));
+		cache.put(request, new byte[10]);
+		assertNotNull(cache.get(request));
+		cache.recordLoad(1000L, true);
+		var stats = cache.getStats();
+		assertEquals(1L, stats.hitCount());
+		assertEquals(1L, stats.missCount());
+		assertEquals(1L, stats.loadSuccessCount());
+		assertEquals(1000L, stats.totalLoadTime());
+	}
+
+	@Test
+	public void test_concurrentAccess() throws Exception {
+		var cache = new DefaultRegionCache<>(SIZE_ESTIMATOR, Integer.MAX_VALUE, 100_000);
+		var requests = new RegionRequest[2000];
+		for (int i = 0; i < requests.length; i++)
+			requests[i] = createRequest("server" + (i % 4), i * 256);
+		var pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < 8; t++) {
+				var random = new Random(t);
+				futures.add(pool.submit(() -> {
+					for (int i = 0; i < 20_000; i++) {
+						var request = requests[random.nextInt(requests.length)];
+						if (cache.get(request) == null)
+							cache.put(request, new byte[100]);
+						if (i % 5000 == 0)
+							cache.invalidateServer("server" + random.nextInt(4));
+					}
+				}));
+			}
+			for (var future : futures)
+				future.get();
+		} finally {
+			pool.shutdownNow();
+		}
+		// Size and memory counts should match the contents
+		long bytes = cache.entrySet().stream().mapToLong(e -> e.getValue().length).sum();
+		assertEquals(bytes, cache.getMemoryBytes());
+		assertTrue(cache.getMemoryBytes() <= 100_000);
+		int nTiles = 0;
+		for (int i = 0; i < 4; i++)
+			nTiles += cache.getCachedTilesForServer("server" + i).size();
+		assertEquals(cache.size(), nTiles);
+	}
+
+}